@@ -0,0 +1,65 @@
+package com.luhar.auctioneer.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.luhar.auctioneer.impl.AuctionScheduler;
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+
+// Cost of moving an auction's close time with many closes pending, which is what a bid in the snipe
+// window does. Should not grow with the number of pending closes
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuctionSchedulerBenchmark {
+    // A week ahead, in milliseconds
+    static final int HORIZON = 7 * 24 * 3600 * 1000;
+
+    @Param({ "1000", "100000" })
+    int pending;
+
+    BidTrackerImpl tracker;
+    AuctionScheduler scheduler;
+    Item[] items;
+    long start;
+    final Random random = new Random(42);
+
+    @Setup
+    public void setUp() {
+	Logger.getLogger(BidTracker.class).setLevel(Level.WARN);
+	tracker = new BidTrackerImpl();
+	scheduler = new AuctionScheduler(tracker, 1);
+	start = System.currentTimeMillis();
+	items = new Item[pending];
+	for (int i = 0; i < pending; i++) {
+	    items[i] = new Item("Item" + i);
+	    tracker.registerItem(items[i]);
+	    tracker.setCloseTime(items[i], start + 60000 + random.nextInt(HORIZON));
+	}
+    }
+
+    @Benchmark
+    public boolean setCloseTime() {
+	Item item = items[random.nextInt(items.length)];
+	return tracker.setCloseTime(item, start + 60000 + random.nextInt(HORIZON));
+    }
+}
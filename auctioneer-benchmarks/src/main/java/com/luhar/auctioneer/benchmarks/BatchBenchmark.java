@@ -0,0 +1,105 @@
+package com.luhar.auctioneer.benchmarks;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidRequest;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+// registerBids against calling registerBid once per request, for a burst of BATCH requests spread over a
+// few hot items where bidders amend several times within the burst
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+    static final int BATCH = 1000;
+
+    @State(Scope.Thread)
+    @SuppressWarnings("unchecked")
+    public static class Burst {
+	@Param({ "10", "100" })
+	int itemCount;
+
+	@Param({ "100", "1000" })
+	int biddersPerItem;
+
+	BidTrackerImpl tracker;
+	// Two bursts with all amounts distinct, alternated so every request changes the amount it amends
+	List<BidRequest>[] bursts;
+	int next;
+	Random random = new Random();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+	    Logger.getLogger(BidTracker.class).setLevel(org.apache.log4j.Level.OFF);
+	    tracker = new BidTrackerImpl();
+	    Item[] items = new Item[itemCount];
+	    User[] users = new User[biddersPerItem];
+	    for (int i = 0; i < users.length; i++) {
+		users[i] = new User("User" + i);
+		tracker.registerUser(users[i]);
+	    }
+	    for (int i = 0; i < items.length; i++) {
+		items[i] = new Item("Item" + i);
+		tracker.registerItem(items[i]);
+		for (User user : users) {
+		    tracker.registerBid(items[i], user, new BigDecimal(random.nextInt(1000) + 1));
+		}
+	    }
+	    // A burst reuses a small set of bidders per item so amendments pile up
+	    bursts = new List[2];
+	    bursts[0] = new ArrayList<BidRequest>(BATCH);
+	    bursts[1] = new ArrayList<BidRequest>(BATCH);
+	    for (int i = 0; i < BATCH; i++) {
+		Item item = items[random.nextInt(items.length)];
+		User user = users[random.nextInt(Math.max(1, users.length / 10))];
+		bursts[0].add(new BidRequest(item, user, new BigDecimal(2 * i + 1)));
+		bursts[1].add(new BidRequest(item, user, new BigDecimal(2 * i + 2)));
+	    }
+	}
+
+	List<BidRequest> nextBurst() {
+	    next ^= 1;
+	    return bursts[next];
+	}
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void registerBidLoop(Burst burst, Blackhole blackhole) {
+	for (BidRequest request : burst.nextBurst()) {
+	    blackhole.consume(burst.tracker.registerBid(request.getItem(), request.getUser(), request.getAmount()));
+	}
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public List<Bid> registerBids(Burst burst) {
+	return burst.tracker.registerBids(burst.nextBurst());
+    }
+}
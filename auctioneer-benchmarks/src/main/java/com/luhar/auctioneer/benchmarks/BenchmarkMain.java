@@ -0,0 +1,18 @@
+package com.luhar.auctioneer.benchmarks;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the selected benchmarks once per thread count. Thread counts come from the auctioneer.threads
+// system property, e.g. -Dauctioneer.threads=1,4,16. Other arguments are passed on to JMH
+public class BenchmarkMain {
+    
+    public static void main(String[] args) throws Exception {
+	CommandLineOptions commandLine = new CommandLineOptions(args);
+	String threadCounts = System.getProperty("auctioneer.threads", "1,2,4," + Runtime.getRuntime().availableProcessors());
+	for (String threads : threadCounts.split(",")) {
+	    new Runner(new OptionsBuilder().parent(commandLine).threads(Integer.parseInt(threads.trim())).build()).run();
+	}
+    }
+}
@@ -0,0 +1,108 @@
+package com.luhar.auctioneer.benchmarks;
+
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+import com.luhar.auctioneer.server.BidClient;
+import com.luhar.auctioneer.server.BidServer;
+
+// Bids sent to a BidServer over loopback. roundTrip waits for each answer before sending the next, and
+// runs as a sample of times for the tail latency. pipelined sends a batch before waiting for the last
+// answer, and its throughput is in bids a second
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BidServerBenchmark {
+    static final int BIDDERS = 1000;
+    static final int ITEMS = 64;
+    static final int BATCH = 256;
+
+    BidServer server;
+    BidClient client;
+    Item[] items;
+    User[] users;
+    BigDecimal[] amounts;
+    int next;
+
+    @Setup
+    public void setUp() throws Exception {
+	Logger.getLogger(BidTracker.class).setLevel(Level.OFF);
+	server = new BidServer(new BidTrackerImpl(), Runtime.getRuntime().availableProcessors(),
+		new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+	server.start();
+	client = new BidClient(server.getAddress());
+	items = new Item[ITEMS];
+	for (int i = 0; i < ITEMS; i++) {
+	    items[i] = new Item("Item" + i);
+	    client.registerItem(items[i]);
+	}
+	users = new User[BIDDERS];
+	for (int i = 0; i < BIDDERS; i++) {
+	    users[i] = new User("User" + i);
+	    client.registerUser(users[i]);
+	}
+	amounts = new BigDecimal[BIDDERS + 1];
+	for (int i = 0; i <= BIDDERS; i++) {
+	    amounts[i] = new BigDecimal(i + 1);
+	}
+    }
+
+    @TearDown
+    public void tearDown() {
+	client.close();
+	server.shutdown();
+    }
+
+    // Next bid, moving each bidder between two neighbouring amounts so books stay the same size
+    ListenableFuture<Bid> submitNext() {
+	int index = next;
+	next = (next + 1) % (2 * BIDDERS * ITEMS);
+	int user = index % BIDDERS;
+	Item item = items[(index / BIDDERS) % ITEMS];
+	return client.submitBid(item, users[user], amounts[user + ((index / (BIDDERS * ITEMS)) & 1)]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Bid roundTrip() throws Exception {
+	return submitNext().get();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public Bid pipelined() throws Exception {
+	ListenableFuture<Bid> last = null;
+	for (int i = 0; i < BATCH; i++) {
+	    last = submitNext();
+	}
+	// Responses come back in order, so the last one answers for the batch
+	return last.get();
+    }
+}
@@ -0,0 +1,124 @@
+package com.luhar.auctioneer.benchmarks;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.OffHeapBidStore;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+// Bids on a large catalog of fixed point items, with the books on the heap or in an OffHeapBidStore.
+// Setup prints the heap left in use and the time a full collection takes once the catalog is loaded,
+// which is what the store is for; the benchmarks show what the bid path and reads pay for it
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xmx3g", "-XX:MaxDirectMemorySize=2g" })
+public class BidStoreBenchmark {
+    static final int USERS = 10000;
+
+    @Param({ "heap", "offheap" })
+    String storage;
+
+    @Param({ "100000" })
+    int itemCount;
+
+    @Param({ "10" })
+    int bidsPerItem;
+
+    BidTrackerImpl tracker;
+    OffHeapBidStore store;
+    Item[] items;
+    User[] users;
+    final Random random = new Random(42);
+
+    @Setup
+    public void setUp() {
+	Logger.getLogger(BidTracker.class).setLevel(Level.OFF);
+	tracker = new BidTrackerImpl();
+	if ("offheap".equals(storage)) {
+	    store = new OffHeapBidStore();
+	    tracker.setBidStore(store);
+	}
+	users = new User[USERS];
+	for (int i = 0; i < USERS; i++) {
+	    users[i] = new User("User" + i);
+	    tracker.registerUser(users[i]);
+	}
+	items = new Item[itemCount];
+	for (int i = 0; i < itemCount; i++) {
+	    items[i] = new Item("Item" + i, "", BigDecimal.ZERO, PriceScale.CENTS);
+	    tracker.registerItem(items[i]);
+	    for (int b = 0; b < bidsPerItem; b++) {
+		tracker.registerBid(items[i], users[bidder(i, b)], 100L + b);
+	    }
+	}
+	long gcTime = collectionTime();
+	long started = System.nanoTime();
+	System.gc();
+	long pause = (System.nanoTime() - started) / 1000000;
+	Runtime runtime = Runtime.getRuntime();
+	System.out.println("\n" + storage + ": " + (long) itemCount * bidsPerItem + " bids, heap in use "
+		+ (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024) + " MB, full collection " + pause + " ms"
+		+ (store == null ? "" : ", store " + store.getReservedBytes() / (1024 * 1024) + " MB")
+		+ ", collector time so far " + gcTime + " ms");
+    }
+
+    @TearDown
+    public void tearDown() {
+	Runtime runtime = Runtime.getRuntime();
+	System.out.println("\n" + storage + ": heap in use " + (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024)
+		+ " MB, collector time " + collectionTime() + " ms"
+		+ (store == null ? "" : ", store holds " + store.getBidCount() + " bids"));
+    }
+
+    // Raise one bidder's bid on a random item
+    @Benchmark
+    public Bid amendBid() {
+	int item = random.nextInt(itemCount);
+	Item target = items[item];
+	User user = users[bidder(item, random.nextInt(bidsPerItem))];
+	return tracker.registerBid(target, user, target.getBidFromUser(user).getBidAmountUnits() + 1);
+    }
+
+    @Benchmark
+    public Bid getWinningBid() {
+	return tracker.getWinningBid(items[random.nextInt(itemCount)]);
+    }
+
+    private int bidder(int item, int bid) {
+	return (item * 7 + bid * 1009) % USERS;
+    }
+
+    private static long collectionTime() {
+	long total = 0;
+	for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+	    total += collector.getCollectionTime();
+	}
+	return total;
+    }
+}
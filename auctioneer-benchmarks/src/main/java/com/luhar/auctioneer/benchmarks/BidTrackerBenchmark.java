@@ -0,0 +1,132 @@
+package com.luhar.auctioneer.benchmarks;
+
+import java.math.BigDecimal;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+// Hot paths of a BidTracker under a skewed item mix, see BidTrackerState. Run through BenchmarkMain to
+// repeat the suite at several thread counts, or with -t when calling JMH directly
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BidTrackerBenchmark {
+
+    // registerNewBid calls per measured batch
+    static final int NEW_BIDS = 200;
+
+    // Per thread choice of items, users and amounts
+    @State(Scope.Thread)
+    public static class Picker {
+	final Random random = new Random();
+	int created;
+
+	Item item(BidTrackerState state) {
+	    return state.items[itemIndex(state)];
+	}
+
+	// Any user that already bid on the item
+	User bidderOn(BidTrackerState state, int itemIndex) {
+	    return state.users[random.nextInt(state.biddersOn(itemIndex))];
+	}
+
+	BigDecimal amount(BidTrackerState state) {
+	    return state.amounts[random.nextInt(BidTrackerState.AMOUNTS)];
+	}
+
+	// Any amount but the one the user's bid stands at, so every call is an amendment
+	BigDecimal amendedAmount(BidTrackerState state, Item item, User user) {
+	    int index = random.nextInt(BidTrackerState.AMOUNTS);
+	    Bid current = item.getBidFromUser(user);
+	    if (current != null && current.getBidAmount().compareTo(state.amounts[index]) == 0) {
+		index = (index + 1) % BidTrackerState.AMOUNTS;
+	    }
+	    return state.amounts[index];
+	}
+
+	int itemIndex(BidTrackerState state) {
+	    if (random.nextDouble() < BidTrackerState.HOT_TRAFFIC_SHARE) {
+		return random.nextInt(state.hotItems);
+	    }
+	    return random.nextInt(state.items.length);
+	}
+    }
+
+    // First bid of a newly registered user on an item. Includes the cost of registering the user. Every
+    // call adds a bid, so it runs in batches of NEW_BIDS on a freshly built state, and the score is the
+    // time for a batch. A hot book gains at most HOT_TRAFFIC_SHARE * NEW_BIDS / hotItems bids per batch
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 20, batchSize = NEW_BIDS)
+    @Measurement(iterations = 30, batchSize = NEW_BIDS)
+    public Bid registerNewBid(BidTrackerState state, Picker picker) {
+	User user = new User("New user " + picker.created++);
+	state.bidTracker.registerUser(user);
+	Item item = picker.item(state);
+	return registerBid(state, item, user, picker.amount(state));
+    }
+
+    // Existing bidder changing the amount of their bid
+    @Benchmark
+    public Bid amendBid(BidTrackerState state, Picker picker) {
+	int itemIndex = picker.itemIndex(state);
+	Item item = state.items[itemIndex];
+	User user = picker.bidderOn(state, itemIndex);
+	return registerBid(state, item, user, picker.amendedAmount(state, item, user));
+    }
+
+    @Benchmark
+    public Bid getWinningBid(BidTrackerState state, Picker picker) {
+	return state.bidTracker.getWinningBid(picker.item(state));
+    }
+
+    @Benchmark
+    public void getAllBidsForItem(BidTrackerState state, Picker picker, Blackhole blackhole) {
+	for (Bid bid : state.bidTracker.getAllBidsForItem(picker.item(state))) {
+	    blackhole.consume(bid);
+	}
+    }
+
+    @Benchmark
+    public void getAllItemsForUser(BidTrackerState state, Picker picker, Blackhole blackhole) {
+	User user = state.users[picker.random.nextInt(state.users.length)];
+	for (Item item : state.bidTracker.getAllItemsForUser(user)) {
+	    blackhole.consume(item);
+	}
+    }
+
+    @Benchmark
+    public boolean registerUser(BidTrackerState state, Picker picker) {
+	return state.bidTracker.registerUser(new User("New user " + picker.created++));
+    }
+
+    @Benchmark
+    public boolean registerItem(BidTrackerState state, Picker picker) {
+	return state.bidTracker.registerItem(new Item("New item " + picker.created++));
+    }
+
+    private Bid registerBid(BidTrackerState state, Item item, User user, BigDecimal amount) {
+	if (state.needsItemLock()) {
+	    synchronized (item) {
+		return state.bidTracker.registerBid(item, user, amount);
+	    }
+	}
+	return state.bidTracker.registerBid(item, user, amount);
+    }
+}
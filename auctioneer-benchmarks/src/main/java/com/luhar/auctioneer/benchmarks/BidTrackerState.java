@@ -0,0 +1,98 @@
+package com.luhar.auctioneer.benchmarks;
+
+import java.math.BigDecimal;
+
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.impl.ShardedBidTracker;
+import com.luhar.auctioneer.metrics.TrackerMetrics;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+// A populated tracker shared by all benchmark threads. A few hot items carry biddersPerItem bids each,
+// the rest of the catalog only a handful, which is roughly what a day of auctions looks like. Built again
+// before every iteration, so what one iteration registers does not change the next one's books
+@State(Scope.Benchmark)
+public class BidTrackerState {
+    // Share of the catalog that is hot, and share of the traffic that goes to hot items
+    static final double HOT_ITEM_SHARE = 0.01;
+    static final double HOT_TRAFFIC_SHARE = 0.8;
+    // Bidders on each cold item
+    static final int COLD_BIDDERS = 5;
+    // Number of distinct bid amounts used by the benchmarks
+    static final int AMOUNTS = 1024;
+
+    // impl is the plain BidTrackerImpl, sharded the ShardedBidTracker
+    @Param({ "impl", "sharded" })
+    String tracker;
+
+    @Param({ "1000", "10000" })
+    int itemCount;
+
+    @Param({ "10", "1000" })
+    int biddersPerItem;
+
+    // Record TrackerMetrics while running. Compare with -p metrics=false,true
+    @Param({ "false" })
+    boolean metrics;
+
+    BidTracker bidTracker;
+    Item[] items;
+    int hotItems;
+    User[] users;
+    BigDecimal[] amounts;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+	Logger.getLogger(BidTracker.class).setLevel(org.apache.log4j.Level.OFF);
+	BidTrackerImpl impl = new BidTrackerImpl();
+	if (metrics) {
+	    impl.setMetrics(new TrackerMetrics(impl));
+	}
+	bidTracker = "sharded".equals(tracker) ? new ShardedBidTracker(impl, Runtime.getRuntime().availableProcessors()) : impl;
+	amounts = new BigDecimal[AMOUNTS];
+	for (int i = 0; i < AMOUNTS; i++) {
+	    amounts[i] = new BigDecimal(i + 1);
+	}
+	users = new User[Math.max(biddersPerItem, COLD_BIDDERS)];
+	for (int i = 0; i < users.length; i++) {
+	    users[i] = new User("User" + i);
+	    bidTracker.registerUser(users[i]);
+	}
+	items = new Item[itemCount];
+	hotItems = Math.max(1, (int) (itemCount * HOT_ITEM_SHARE));
+	for (int i = 0; i < itemCount; i++) {
+	    items[i] = new Item("Item" + i);
+	    bidTracker.registerItem(items[i]);
+	    int bidders = biddersOn(i);
+	    for (int u = 0; u < bidders; u++) {
+		bidTracker.registerBid(items[i], users[u], amounts[(u * 31 + i) % AMOUNTS]);
+	    }
+	}
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+	if (bidTracker instanceof ShardedBidTracker) {
+	    ((ShardedBidTracker) bidTracker).shutdown();
+	}
+    }
+
+    // Number of users that bid on an item during set up. Hot items come first in the catalog
+    int biddersOn(int itemIndex) {
+	return itemIndex < hotItems ? biddersPerItem : Math.min(biddersPerItem, COLD_BIDDERS);
+    }
+
+    // BidTrackerImpl leaves it to the caller to serialize writes to an item
+    boolean needsItemLock() {
+	return bidTracker instanceof BidTrackerImpl;
+    }
+}
@@ -0,0 +1,122 @@
+package com.luhar.auctioneer.benchmarks;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+// Readers on one hot item while a writer keeps amending bids on it. The readers never wait for the writer,
+// so their throughput should grow with the reader threads, given the cores. Run with -tg 1,N to change the
+// number of readers in each group
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BookReadBenchmark {
+
+    @Param({ "1000" })
+    int biddersPerItem;
+
+    @Param({ "false", "true" })
+    boolean fixedPoint;
+
+    BidTracker tracker;
+    Item item;
+    User[] users;
+    BigDecimal[] amounts;
+    int next;
+
+    @Setup
+    public void setUp() {
+	Logger.getLogger(BidTracker.class).setLevel(Level.OFF);
+	tracker = new BidTrackerImpl();
+	item = fixedPoint ? new Item("Hot item", "", BigDecimal.ZERO, PriceScale.CENTS) : new Item("Hot item");
+	tracker.registerItem(item);
+	users = new User[biddersPerItem];
+	amounts = new BigDecimal[biddersPerItem + 1];
+	for (int i = 0; i <= biddersPerItem; i++) {
+	    amounts[i] = new BigDecimal(i + 1);
+	}
+	for (int i = 0; i < biddersPerItem; i++) {
+	    users[i] = new User("User" + i);
+	    tracker.registerUser(users[i]);
+	    tracker.registerBid(item, users[i], amounts[i]);
+	}
+    }
+
+    // The one writer, moving a bid to a neighbouring amount each call as in ItemBookBenchmark
+    @Benchmark
+    @Group("winningBid")
+    @GroupThreads(1)
+    public Bid amendForWinningBid() {
+	return amend();
+    }
+
+    @Benchmark
+    @Group("winningBid")
+    @GroupThreads(3)
+    public Bid getWinningBid() {
+	return tracker.getWinningBid(item);
+    }
+
+    @Benchmark
+    @Group("topBids")
+    @GroupThreads(1)
+    public Bid amendForTopBids() {
+	return amend();
+    }
+
+    @Benchmark
+    @Group("topBids")
+    @GroupThreads(3)
+    public List<Bid> getTopBids() {
+	return tracker.getTopBids(item, 10);
+    }
+
+    @Benchmark
+    @Group("allBids")
+    @GroupThreads(1)
+    public Bid amendForAllBids() {
+	return amend();
+    }
+
+    @Benchmark
+    @Group("allBids")
+    @GroupThreads(3)
+    public Collection<Bid> getAllBidsForItem() {
+	return tracker.getAllBidsForItem(item);
+    }
+
+    private Bid amend() {
+	int index = next;
+	next = (next + 1) % biddersPerItem;
+	Bid bid = item.getBidFromUser(users[index]);
+	BigDecimal amount = bid.getBidAmount().compareTo(amounts[index]) == 0 ? amounts[index + 1] : amounts[index];
+	return tracker.registerBid(item, users[index], amount);
+    }
+}
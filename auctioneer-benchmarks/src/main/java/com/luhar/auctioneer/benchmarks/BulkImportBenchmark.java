@@ -0,0 +1,111 @@
+package com.luhar.auctioneer.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.luhar.auctioneer.bulk.BulkImporter;
+import com.luhar.auctioneer.bulk.ImportReport;
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+// Registering a catalog of rows users and as many items into a fresh tracker. oneByOne calls registerUser
+// and registerItem for objects already made, importCsv and importBinary parse them from a file with a
+// BulkImporter on one thread per processor. Divide 2 * rows by the time for registrations a second
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx4g" })
+public class BulkImportBenchmark {
+    @Param({ "500000" })
+    int rows;
+
+    File directory;
+    File csv;
+    File binary;
+    List<User> users = new ArrayList<User>();
+    List<Item> items = new ArrayList<Item>();
+
+    @Setup
+    public void setUp() throws IOException {
+	Logger.getLogger(BidTracker.class).setLevel(Level.OFF);
+	directory = JournalBenchmark.createDirectory();
+	csv = new File(directory, "catalog.csv");
+	binary = new File(directory, "catalog.bin");
+	Writer writer = new OutputStreamWriter(new FileOutputStream(csv), "UTF-8");
+	try {
+	    for (int i = 0; i < rows; i++) {
+		User user = new User("User" + i);
+		Item item = new Item("Item" + i, "Lot " + i, new BigDecimal(i % 100), PriceScale.CENTS);
+		users.add(user);
+		items.add(item);
+		writer.write("user," + user.getID() + "," + user.getName() + "\n");
+		writer.write("item," + item.getID() + "," + item.getItemName() + "," + item.getDescription() + ","
+			+ item.getReserveAmount() + ",2\n");
+	    }
+	} finally {
+	    writer.close();
+	}
+	BulkImporter.writeBinary(binary, users, items);
+    }
+
+    @TearDown
+    public void tearDown() {
+	JournalBenchmark.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public BidTrackerImpl oneByOne() {
+	BidTrackerImpl tracker = new BidTrackerImpl();
+	for (int i = 0; i < rows; i++) {
+	    tracker.registerUser(users.get(i));
+	    tracker.registerItem(items.get(i));
+	}
+	return tracker;
+    }
+
+    @Benchmark
+    public ImportReport importCsv() throws IOException {
+	return importFile(csv);
+    }
+
+    @Benchmark
+    public ImportReport importBinary() throws IOException {
+	return importFile(binary);
+    }
+
+    private ImportReport importFile(File file) throws IOException {
+	BulkImporter importer = new BulkImporter(new BidTrackerImpl());
+	try {
+	    return importer.importFile(file);
+	} finally {
+	    importer.shutdown();
+	}
+    }
+}
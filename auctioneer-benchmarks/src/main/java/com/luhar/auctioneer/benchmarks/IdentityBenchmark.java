@@ -0,0 +1,107 @@
+package com.luhar.auctioneer.benchmarks;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.AuctioneerObject;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+import com.luhar.auctioneer.utils.RandomIdGenerator;
+import com.luhar.auctioneer.utils.SequentialIdGenerator;
+
+// Cost of identity for users that have already bid a lot. Equality and hashing go by ID alone, so looking
+// a user up, registering a user and checking the items a user has bid on should not grow with bidsPerUser.
+// generator picks how new IDs are made, newUser shows the cost of making one
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdentityBenchmark {
+    static final int USERS = 100;
+
+    @Param({ "10", "100", "1000" })
+    int bidsPerUser;
+
+    @Param({ "random", "sequential" })
+    String generator;
+
+    BidTracker tracker;
+    User[] users;
+    Item[] items;
+    Map<User, Integer> lookup;
+    int next;
+
+    @Setup
+    public void setUp() {
+	Logger.getLogger(BidTracker.class).setLevel(Level.OFF);
+	AuctioneerObject.setIdGenerator("random".equals(generator) ? new RandomIdGenerator()
+		: new SequentialIdGenerator());
+	tracker = new BidTrackerImpl();
+	users = new User[USERS];
+	lookup = new HashMap<User, Integer>();
+	for (int i = 0; i < USERS; i++) {
+	    users[i] = new User("User" + i);
+	    tracker.registerUser(users[i]);
+	    lookup.put(users[i], i);
+	}
+	items = new Item[bidsPerUser];
+	for (int j = 0; j < bidsPerUser; j++) {
+	    items[j] = new Item("Item" + j);
+	    tracker.registerItem(items[j]);
+	}
+	BigDecimal amount = BigDecimal.ONE;
+	for (int i = 0; i < USERS; i++) {
+	    for (int j = 0; j < bidsPerUser; j++) {
+		tracker.registerBid(items[j], users[i], amount);
+	    }
+	}
+    }
+
+    private int nextIndex() {
+	int index = next;
+	next = (next + 1) % USERS;
+	return index;
+    }
+
+    @Benchmark
+    public Integer lookupUser() {
+	return lookup.get(users[nextIndex()]);
+    }
+
+    // Registering someone already known is rejected after the equality check
+    @Benchmark
+    public boolean registerKnownUser() {
+	return tracker.registerUser(users[nextIndex()]);
+    }
+
+    @Benchmark
+    public boolean hasBidOn() {
+	int index = nextIndex();
+	return users[index].getItems().contains(items[index % bidsPerUser]);
+    }
+
+    @Benchmark
+    public User newUser() {
+	return new User("Someone");
+    }
+}
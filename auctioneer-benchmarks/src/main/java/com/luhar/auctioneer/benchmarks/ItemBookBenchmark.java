@@ -0,0 +1,105 @@
+package com.luhar.auctioneer.benchmarks;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+// Cost of amending a bid on a single item as the number of bidders on that item grows.
+// With the per-user index in Item this should stay flat across biddersPerItem. fixedPoint switches the
+// item to minor unit amounts ranked by a LongOrderBook. The query benchmarks should not grow with the book
+// either, apart from getRankOf which is O(log n).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ItemBookBenchmark {
+
+    @Param({ "10", "1000", "10000", "50000" })
+    int biddersPerItem;
+
+    @Param({ "false", "true" })
+    boolean fixedPoint;
+
+    BidTracker tracker;
+    Item item;
+    User[] users;
+    BigDecimal[] amounts;
+    int next;
+
+    @Setup
+    public void setUp() {
+	Logger.getLogger(BidTracker.class).setLevel(Level.OFF);
+	tracker = new BidTrackerImpl();
+	item = fixedPoint ? new Item("Hot item", "", BigDecimal.ZERO, PriceScale.CENTS) : new Item("Hot item");
+	tracker.registerItem(item);
+	users = new User[biddersPerItem];
+	amounts = new BigDecimal[biddersPerItem + 1];
+	for (int i = 0; i <= biddersPerItem; i++) {
+	    amounts[i] = new BigDecimal(i + 1);
+	}
+	for (int i = 0; i < biddersPerItem; i++) {
+	    users[i] = new User("User" + i);
+	    tracker.registerUser(users[i]);
+	    tracker.registerBid(item, users[i], amounts[i]);
+	}
+    }
+
+    // Each call moves one bidder's bid to a neighbouring amount, so the book keeps its size
+    @Benchmark
+    public Bid amendBid() {
+	int index = next;
+	next = (next + 1) % biddersPerItem;
+	Bid bid = item.getBidFromUser(users[index]);
+	BigDecimal amount = bid.getBidAmount().compareTo(amounts[index]) == 0 ? amounts[index + 1] : amounts[index];
+	return tracker.registerBid(item, users[index], amount);
+    }
+
+    @Benchmark
+    public Bid getBidFromUser() {
+	int index = next;
+	next = (next + 1) % biddersPerItem;
+	return item.getBidFromUser(users[index]);
+    }
+
+    // The best 10 bids, against copying the whole book to get them
+    @Benchmark
+    public List<Bid> topTenBids() {
+	return tracker.getTopBids(item, 10);
+    }
+
+    @Benchmark
+    public List<Bid> topTenBidsByCopy() {
+	return new ArrayList<Bid>(tracker.getAllBidsForItem(item)).subList(0, Math.min(10, biddersPerItem));
+    }
+
+    @Benchmark
+    public int getRankOf() {
+	int index = next;
+	next = (next + 1) % biddersPerItem;
+	return tracker.getRankOf(item.getBidFromUser(users[index]));
+    }
+}
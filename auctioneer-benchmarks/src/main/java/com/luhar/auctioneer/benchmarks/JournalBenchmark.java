@@ -0,0 +1,170 @@
+package com.luhar.auctioneer.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.journal.BidJournal;
+import com.luhar.auctioneer.journal.SyncMode;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+// Cost the journal adds to registerBid, and how fast a journal replays
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+    static final int BIDDERS = 1000;
+
+    @State(Scope.Thread)
+    public static class Journaled {
+	// none runs without a journal, for comparison
+	@Param({ "none", "ASYNC", "GROUP" })
+	String sync;
+
+	File directory;
+	BidJournal journal;
+	BidTrackerImpl tracker;
+	Item item;
+	User[] users;
+	BigDecimal[] amounts;
+	int next;
+
+	@Setup
+	public void setUp() throws IOException {
+	    Logger.getLogger(BidTracker.class).setLevel(Level.OFF);
+	    tracker = new BidTrackerImpl();
+	    if (!"none".equals(sync)) {
+		directory = createDirectory();
+		journal = new BidJournal(directory, BidJournal.DEFAULT_SEGMENT_SIZE, SyncMode.valueOf(sync), 10);
+		journal.recover(tracker);
+	    }
+	    item = new Item("Hot item");
+	    tracker.registerItem(item);
+	    users = new User[BIDDERS];
+	    amounts = new BigDecimal[BIDDERS + 1];
+	    for (int i = 0; i <= BIDDERS; i++) {
+		amounts[i] = new BigDecimal(i + 1);
+	    }
+	    for (int i = 0; i < BIDDERS; i++) {
+		users[i] = new User("User" + i);
+		tracker.registerUser(users[i]);
+		tracker.registerBid(item, users[i], amounts[i]);
+	    }
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+	    if (journal != null) {
+		journal.close();
+		deleteDirectory(directory);
+	    }
+	}
+    }
+
+    @State(Scope.Benchmark)
+    public static class Recorded {
+	@Param({ "1000000" })
+	int records;
+
+	// Take a snapshot at the end so recover only loads live objects
+	@Param({ "false", "true" })
+	boolean snapshot;
+
+	File directory;
+
+	@Setup
+	public void setUp() throws IOException {
+	    Logger.getLogger(BidTracker.class).setLevel(Level.OFF);
+	    directory = createDirectory();
+	    BidJournal journal = new BidJournal(directory);
+	    BidTrackerImpl tracker = new BidTrackerImpl();
+	    journal.recover(tracker);
+	    Item item = new Item("Hot item");
+	    tracker.registerItem(item);
+	    User[] users = new User[BIDDERS];
+	    for (int i = 0; i < BIDDERS; i++) {
+		users[i] = new User("User" + i);
+		tracker.registerUser(users[i]);
+	    }
+	    for (int i = 0; i < records - BIDDERS - 1; i++) {
+		tracker.registerBid(item, users[i % BIDDERS], new BigDecimal(i + 1));
+	    }
+	    if (snapshot) {
+		journal.snapshot(tracker);
+	    }
+	    journal.close();
+	}
+
+	@TearDown
+	public void tearDown() {
+	    deleteDirectory(directory);
+	}
+    }
+
+    // Bid amendment on an item with BIDDERS bidders, journaled or not
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Bid amendBid(Journaled state) {
+	int index = state.next;
+	state.next = (state.next + 1) % BIDDERS;
+	Bid bid = state.item.getBidFromUser(state.users[index]);
+	BigDecimal amount = bid.getBidAmount().compareTo(state.amounts[index]) == 0 ? state.amounts[index + 1] : state.amounts[index];
+	return state.tracker.registerBid(state.item, state.users[index], amount);
+    }
+
+    // Rebuild a tracker from a journal of Recorded.records records, starting from the latest snapshot if
+    // there is one
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2, batchSize = 1)
+    @Measurement(iterations = 5, batchSize = 1)
+    public BidTrackerImpl recover(Recorded state) throws IOException {
+	BidJournal journal = new BidJournal(state.directory);
+	try {
+	    BidTrackerImpl tracker = new BidTrackerImpl();
+	    journal.recover(tracker);
+	    return tracker;
+	} finally {
+	    journal.close();
+	}
+    }
+
+    static File createDirectory() throws IOException {
+	File directory = File.createTempFile("journal-benchmark", "");
+	directory.delete();
+	directory.mkdirs();
+	return directory;
+    }
+
+    static void deleteDirectory(File directory) {
+	File[] files = directory.listFiles();
+	if (files != null) {
+	    for (File file : files) {
+		file.delete();
+	    }
+	}
+	directory.delete();
+    }
+}
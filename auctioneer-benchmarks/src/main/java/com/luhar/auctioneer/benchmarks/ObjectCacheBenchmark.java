@@ -0,0 +1,85 @@
+package com.luhar.auctioneer.benchmarks;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.luhar.auctioneer.model.User;
+import com.luhar.auctioneer.utils.ObjectCache;
+import com.luhar.auctioneer.utils.ObjectStore;
+
+// Cost of a lookup in an ObjectCache holding 100k users, nine in ten lookups going to a hot tenth of them.
+// capacity 0 is the unbounded cache. Bounded caches keep the rest in an in-memory store, so misses show
+// the cost of reloading and evicting rather than of the disk. The hit rate is printed at the end of a run
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObjectCacheBenchmark {
+    static final int USERS = 100000;
+
+    @Param({ "0", "20000", "5000" })
+    int capacity;
+
+    ObjectCache<User> cache;
+    UUID[] ids;
+
+    @State(Scope.Thread)
+    public static class Lookups {
+	final Random random = new Random();
+    }
+
+    @Setup
+    public void setUp() {
+	final Map<UUID, User> stored = new ConcurrentHashMap<UUID, User>();
+	ObjectStore<User> store = new ObjectStore<User>() {
+	    public void write(User user) {
+		stored.put(user.getID(), user);
+	    }
+
+	    public User read(UUID id) {
+		return stored.get(id);
+	    }
+
+	    public void delete(UUID id) {
+		stored.remove(id);
+	    }
+	};
+	cache = capacity == 0 ? new ObjectCache<User>() : new ObjectCache<User>(capacity, store);
+	ids = new UUID[USERS];
+	for (int i = 0; i < USERS; i++) {
+	    User user = new User("User" + i);
+	    ids[i] = user.getID();
+	    cache.addItem(user);
+	}
+    }
+
+    @TearDown
+    public void tearDown() {
+	System.out.println("\ncapacity " + capacity + ": " + cache.getStats() + " hit rate: "
+		+ cache.getStats().getHitRate());
+    }
+
+    @Benchmark
+    public User getItem(Lookups lookups) {
+	int index = lookups.random.nextInt(10) == 0 ? lookups.random.nextInt(USERS) : lookups.random.nextInt(USERS / 10);
+	return cache.getItem(ids[index]);
+    }
+}
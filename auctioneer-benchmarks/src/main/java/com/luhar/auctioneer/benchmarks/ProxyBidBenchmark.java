@@ -0,0 +1,89 @@
+package com.luhar.auctioneer.benchmarks;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.impl.ProxyBidder;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.IncrementTable;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+// A bidding war between two users on a fresh item, up to a price of steps increments. storm has them
+// outbid each other one increment at a time through registerBid, proxy sets each one's maximum once
+// through a ProxyBidder. Each invocation is a whole war
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyBidBenchmark {
+    @Param({ "100", "1000" })
+    int steps;
+
+    BidTrackerImpl tracker;
+    IncrementTable increments = new IncrementTable(BigDecimal.ONE);
+    User alice;
+    User bob;
+    BigDecimal[] amounts;
+
+    @Setup
+    public void setUp() {
+	Logger.getLogger(BidTracker.class).setLevel(Level.OFF);
+	tracker = new BidTrackerImpl();
+	alice = new User("Alice");
+	bob = new User("Bob");
+	tracker.registerUser(alice);
+	tracker.registerUser(bob);
+	amounts = new BigDecimal[steps + 1];
+	for (int i = 0; i <= steps; i++) {
+	    amounts[i] = new BigDecimal(i + 1);
+	}
+    }
+
+    Item newItem() {
+	Item item = new Item("Hot item");
+	tracker.registerItem(item);
+	return item;
+    }
+
+    @Benchmark
+    public Bid storm() {
+	Item item = newItem();
+	Bid bid = null;
+	for (int i = 0; i <= steps; i++) {
+	    bid = tracker.registerBid(item, (i & 1) == 0 ? alice : bob, amounts[i]);
+	}
+	// Keep the tracker the same size from one invocation to the next
+	tracker.removeItem(item);
+	return bid;
+    }
+
+    @Benchmark
+    public Bid proxy() {
+	Item item = newItem();
+	// A fresh engine each time, so finished wars do not pile up in it
+	ProxyBidder proxies = new ProxyBidder(tracker, increments);
+	proxies.registerMaxBid(item, alice, amounts[steps]);
+	Bid bid = proxies.registerMaxBid(item, bob, amounts[steps - 1]);
+	tracker.removeItem(item);
+	return bid;
+    }
+}
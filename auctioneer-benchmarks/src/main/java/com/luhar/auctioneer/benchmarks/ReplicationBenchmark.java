@@ -0,0 +1,114 @@
+package com.luhar.auctioneer.benchmarks;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+import com.luhar.auctioneer.replication.CommitMode;
+import com.luhar.auctioneer.replication.ReplicationBackup;
+import com.luhar.auctioneer.replication.ReplicationPrimary;
+
+// Cost replication to a backup over loopback adds to registerBid, as JournalBenchmark does for the journal.
+// After each iteration it prints how far behind the backup was and how long it took to catch up
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplicationBenchmark {
+    static final int BIDDERS = 1000;
+
+    // none runs without replication, for comparison
+    @Param({ "none", "ASYNC", "SYNC" })
+    String commit;
+
+    BidTrackerImpl tracker;
+    ReplicationPrimary primary;
+    ReplicationBackup backup;
+    Item item;
+    User[] users;
+    BigDecimal[] amounts;
+    int next;
+
+    @Setup
+    public void setUp() throws Exception {
+	Logger.getLogger(BidTracker.class).setLevel(org.apache.log4j.Level.OFF);
+	tracker = new BidTrackerImpl();
+	item = new Item("Hot item");
+	tracker.registerItem(item);
+	users = new User[BIDDERS];
+	amounts = new BigDecimal[BIDDERS + 1];
+	for (int i = 0; i <= BIDDERS; i++) {
+	    amounts[i] = new BigDecimal(i + 1);
+	}
+	for (int i = 0; i < BIDDERS; i++) {
+	    users[i] = new User("User" + i);
+	    tracker.registerUser(users[i]);
+	    tracker.registerBid(item, users[i], amounts[i]);
+	}
+	if (!"none".equals(commit)) {
+	    primary = new ReplicationPrimary(tracker, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), CommitMode.valueOf(commit));
+	    primary.start();
+	    backup = new ReplicationBackup(new BidTrackerImpl(), primary.getAddress());
+	    backup.start();
+	    while (primary.getBackupCount() == 0) {
+		Thread.sleep(1);
+	    }
+	}
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportLag() throws InterruptedException {
+	if (primary == null) {
+	    return;
+	}
+	long lag = primary.getReplicationLag();
+	long started = System.nanoTime();
+	while (backup.getAppliedSequence() < primary.getSequence()) {
+	    Thread.sleep(1);
+	}
+	System.out.println("\n" + commit + ": " + primary.getSequence() + " records, backup " + lag + " behind, caught up in "
+		+ (System.nanoTime() - started) / 1000000 + " ms");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+	if (primary != null) {
+	    backup.close();
+	    primary.close();
+	}
+    }
+
+    // Bid amendment on an item with BIDDERS bidders, moving each bid to a neighbouring amount
+    @Benchmark
+    public Bid amendBid() {
+	int index = next;
+	next = (next + 1) % BIDDERS;
+	Bid bid = item.getBidFromUser(users[index]);
+	BigDecimal amount = bid.getBidAmount().compareTo(amounts[index]) == 0 ? amounts[index + 1] : amounts[index];
+	return tracker.registerBid(item, users[index], amount);
+    }
+}
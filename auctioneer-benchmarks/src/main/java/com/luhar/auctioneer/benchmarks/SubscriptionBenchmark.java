@@ -0,0 +1,92 @@
+package com.luhar.auctioneer.benchmarks;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.impl.WinningBidFeed;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+import com.luhar.auctioneer.model.WinningBidListener;
+import com.luhar.auctioneer.model.WinningBidUpdate;
+
+// Cost of winning bid subscriptions to the bid path. Every bid raises the price, so each one changes the
+// top of the book and is published. slow subscribers take a millisecond per update, and must not hold up
+// the bidder
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SubscriptionBenchmark {
+    static final int BIDDERS = 100;
+
+    @Param({ "0", "100" })
+    int subscribers;
+
+    @Param({ "false", "true" })
+    boolean slow;
+
+    BidTrackerImpl tracker;
+    WinningBidFeed feed;
+    Item item;
+    User[] users;
+    long amount;
+
+    @Setup
+    public void setUp() {
+	Logger.getLogger(BidTracker.class).setLevel(Level.OFF);
+	tracker = new BidTrackerImpl();
+	feed = new WinningBidFeed(tracker);
+	item = new Item("Hot item");
+	tracker.registerItem(item);
+	users = new User[BIDDERS];
+	for (int i = 0; i < BIDDERS; i++) {
+	    users[i] = new User("User" + i);
+	    tracker.registerUser(users[i]);
+	}
+	WinningBidListener listener = new WinningBidListener() {
+	    public void winningBidChanged(WinningBidUpdate update) {
+		if (slow) {
+		    try {
+			Thread.sleep(1);
+		    } catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		    }
+		}
+	    }
+	};
+	for (int i = 0; i < subscribers; i++) {
+	    feed.subscribe(item, listener);
+	}
+    }
+
+    @TearDown
+    public void tearDown() {
+	feed.shutdown();
+    }
+
+    @Benchmark
+    public Bid raiseBid() {
+	amount++;
+	return tracker.registerBid(item, users[(int) (amount % BIDDERS)], BigDecimal.valueOf(amount));
+    }
+}
@@ -0,0 +1,78 @@
+package com.luhar.auctioneer.benchmarks;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+// A power user who has bid on items and still wins 10 of them. scan finds them the way the "my bids"
+// page used to, asking every item for its winning bid, indexed asks the user's index
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserIndexBenchmark {
+    @Param({ "1000", "100000" })
+    int items;
+
+    BidTrackerImpl tracker;
+    User power;
+
+    @Setup
+    public void setUp() {
+	Logger.getLogger(BidTracker.class).setLevel(Level.OFF);
+	tracker = new BidTrackerImpl();
+	power = new User("Power");
+	User rival = new User("Rival");
+	tracker.registerUser(power);
+	tracker.registerUser(rival);
+	for (int i = 0; i < items; i++) {
+	    Item item = new Item("Item" + i);
+	    tracker.registerItem(item);
+	    tracker.registerBid(item, power, BigDecimal.TEN);
+	    if (i % (items / 10) != 0) {
+		tracker.registerBid(item, rival, BigDecimal.TEN.add(BigDecimal.ONE));
+	    }
+	}
+    }
+
+    @Benchmark
+    public List<Item> scan() {
+	List<Item> winning = new ArrayList<Item>();
+	for (Item item : tracker.getAllItemsForUser(power)) {
+	    Bid winner = tracker.getWinningBid(item);
+	    if (winner != null && winner.getUser().equals(power)) {
+		winning.add(item);
+	    }
+	}
+	return winning;
+    }
+
+    @Benchmark
+    public Collection<Item> indexed() {
+	return tracker.getItemsWinningForUser(power);
+    }
+}
@@ -0,0 +1,566 @@
+package com.luhar.auctioneer.bulk;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.journal.BidJournal;
+import com.luhar.auctioneer.journal.RecordCodec;
+import com.luhar.auctioneer.model.AuctioneerObject;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+// Registers a catalog of users and items from a file, as before a big sale. The file is memory mapped and
+// cut into chunks at row boundaries, which a fork-join pool parses in parallel. Each chunk registers what
+// it parses in batches through BidTrackerImpl.registerUsers and registerItems, which check each ID against
+// the tracker's caches as they add it, so a row repeating a registered ID or another row is rejected
+// rather than registered twice. Which of the rows repeating an ID is registered is only fixed within a
+// chunk, as chunks register in parallel. A file can be at most 2 GB, the most one mapping holds
+public class BulkImporter {
+    public static final int DEFAULT_BATCH_SIZE = 4096;
+    public static final int DEFAULT_MAX_REJECTIONS = 100;
+    // Chunks per thread, so threads that finish early take chunks from the others
+    private static final int CHUNKS_PER_THREAD = 8;
+    private static final int MIN_CHUNK_BYTES = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Comparator<ImportReport.Rejection> BY_ROW = new Comparator<ImportReport.Rejection>() {
+	public int compare(ImportReport.Rejection first, ImportReport.Rejection second) {
+	    return Long.compare(first.getRow(), second.getRow());
+	}
+    };
+
+    private final BidTrackerImpl tracker;
+    private final ForkJoinPool pool;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int maxRejections = DEFAULT_MAX_REJECTIONS;
+    private int minChunkBytes = MIN_CHUNK_BYTES;
+
+    // One thread per processor
+    public BulkImporter(BidTrackerImpl tracker) {
+	this(tracker, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BulkImporter(BidTrackerImpl tracker, int threads) {
+	if (threads < 1) {
+	    throw new IllegalArgumentException("Threads must be positive: " + threads);
+	}
+	this.tracker = tracker;
+	this.pool = new ForkJoinPool(threads);
+    }
+
+    // Rows registered in one call to the tracker
+    public void setBatchSize(int batchSize) {
+	if (batchSize < 1) {
+	    throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+	}
+	this.batchSize = batchSize;
+    }
+
+    // Rejected rows kept with their reasons in a report. All of them are counted
+    public void setMaxRejections(int maxRejections) {
+	if (maxRejections < 0) {
+	    throw new IllegalArgumentException("Max rejections must not be negative: " + maxRejections);
+	}
+	this.maxRejections = maxRejections;
+    }
+
+    // Smallest chunk a file is cut into, so tests can cut a small file into several
+    void setMinChunkBytes(int minChunkBytes) {
+	this.minChunkBytes = minChunkBytes;
+    }
+
+    // Import a file in the format its name suggests, see ImportFormat.forFile
+    public ImportReport importFile(File file) throws IOException {
+	return importFile(file, ImportFormat.forFile(file));
+    }
+
+    public ImportReport importFile(File file, ImportFormat format) throws IOException {
+	long started = System.nanoTime();
+	Tally tally;
+	RandomAccessFile input = new RandomAccessFile(file, "r");
+	try {
+	    long size = input.length();
+	    if (size > Integer.MAX_VALUE) {
+		throw new IOException("Import files are limited to 2 GB, split " + file + " into smaller ones");
+	    }
+	    ByteBuffer buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+	    Chunks chunks = format == ImportFormat.CSV ? lineChunks(buffer) : recordChunks(buffer);
+	    tally = pool.invoke(new ImportTask(buffer, format, chunks.bounds, 0, chunks.bounds.length - 1));
+	    if (chunks.damage != null) {
+		tally.rows++;
+		tally.reject(tally.rows, chunks.damage);
+	    }
+	} finally {
+	    input.close();
+	}
+	return new ImportReport(file.getPath(), format, tally.rows, tally.users, tally.items, tally.rejected, tally.rejections,
+		System.nanoTime() - started);
+    }
+
+    public void shutdown() {
+	pool.shutdown();
+    }
+
+    // Write users and items in the binary import format
+    public static void writeBinary(File file, Collection<User> users, Collection<Item> items) throws IOException {
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+	try {
+	    ByteBuffer scratch = ByteBuffer.allocate(1024);
+	    for (User user : users) {
+		scratch = writeRecord(out, scratch, user, null);
+	    }
+	    for (Item item : items) {
+		scratch = writeRecord(out, scratch, null, item);
+	    }
+	    out.writeInt(0);
+	} finally {
+	    out.close();
+	}
+    }
+
+    private static ByteBuffer writeRecord(DataOutputStream out, ByteBuffer scratch, User user, Item item) throws IOException {
+	while (true) {
+	    scratch.clear();
+	    try {
+		if (user != null) {
+		    RecordCodec.writeUser(scratch, user);
+		} else {
+		    RecordCodec.writeItem(scratch, item);
+		}
+		break;
+	    } catch (BufferOverflowException ex) {
+		scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+	    }
+	}
+	out.writeInt(scratch.position());
+	out.write(scratch.array(), 0, scratch.position());
+	return scratch;
+    }
+
+    // Where a file is cut, as offsets from the first chunk's start to the last one's end. Damage is why a
+    // binary file stops being readable before its end, or null
+    private static final class Chunks {
+	final int[] bounds;
+	final String damage;
+
+	Chunks(int[] bounds, String damage) {
+	    this.bounds = bounds;
+	    this.damage = damage;
+	}
+    }
+
+    private int chunkCount(int size) {
+	return Math.max(1, Math.min(pool.getParallelism() * CHUNKS_PER_THREAD, size / minChunkBytes));
+    }
+
+    // Cut a CSV file after the line break nearest past each even share of it
+    private Chunks lineChunks(ByteBuffer buffer) {
+	int size = buffer.limit();
+	int chunkCount = chunkCount(size);
+	int[] bounds = new int[chunkCount + 1];
+	int count = 1;
+	for (int i = 1; i < chunkCount; i++) {
+	    int position = Math.max((int) ((long) size * i / chunkCount), bounds[count - 1]);
+	    while (position < size && buffer.get(position++) != '\n') {
+	    }
+	    if (position > bounds[count - 1] && position < size) {
+		bounds[count++] = position;
+	    }
+	}
+	bounds[count++] = size;
+	return new Chunks(Arrays.copyOf(bounds, count), null);
+    }
+
+    // Walk the record lengths to cut a binary file between records. A length that runs past the end of
+    // the file leaves nothing after it to trust, so the file is read up to there
+    private Chunks recordChunks(ByteBuffer buffer) {
+	int size = buffer.limit();
+	int chunkBytes = size / chunkCount(size);
+	List<Integer> bounds = new ArrayList<Integer>();
+	bounds.add(0);
+	String damage = null;
+	int position = 0;
+	while (position < size) {
+	    if (size - position < 4) {
+		damage = "Record length cut short at offset " + position + ", the rest of the file is skipped";
+		break;
+	    }
+	    int length = buffer.getInt(position);
+	    if (length == 0) {
+		break;
+	    }
+	    if (length < 0 || length > size - position - 4) {
+		damage = "Damaged record length " + length + " at offset " + position + ", the rest of the file is skipped";
+		break;
+	    }
+	    position += 4 + length;
+	    if (position - bounds.get(bounds.size() - 1) >= chunkBytes) {
+		bounds.add(position);
+	    }
+	}
+	if (bounds.get(bounds.size() - 1) != position) {
+	    bounds.add(position);
+	}
+	int[] cuts = new int[Math.max(bounds.size(), 2)];
+	for (int i = 0; i < bounds.size(); i++) {
+	    cuts[i] = bounds.get(i);
+	}
+	return new Chunks(cuts, damage);
+    }
+
+    // Counts and rejections of a run of chunks
+    private final class Tally {
+	long rows;
+	long users;
+	long items;
+	long rejected;
+	final List<ImportReport.Rejection> rejections = new ArrayList<ImportReport.Rejection>();
+
+	void reject(long row, String reason) {
+	    rejected++;
+	    if (rejections.size() < maxRejections) {
+		rejections.add(new ImportReport.Rejection(row, reason));
+	    }
+	}
+
+	// Add the tally of the chunks that follow, whose rows are counted from the end of these
+	Tally append(Tally next) {
+	    for (ImportReport.Rejection rejection : next.rejections) {
+		if (rejections.size() < maxRejections) {
+		    rejections.add(new ImportReport.Rejection(rows + rejection.getRow(), rejection.getReason()));
+		}
+	    }
+	    rows += next.rows;
+	    users += next.users;
+	    items += next.items;
+	    rejected += next.rejected;
+	    return this;
+	}
+    }
+
+    // Import chunks from up to to, splitting them in half until there is one left
+    private final class ImportTask extends RecursiveTask<Tally> {
+	private static final long serialVersionUID = 1L;
+	private final ByteBuffer buffer;
+	private final ImportFormat format;
+	private final int[] bounds;
+	private final int from;
+	private final int to;
+
+	ImportTask(ByteBuffer buffer, ImportFormat format, int[] bounds, int from, int to) {
+	    this.buffer = buffer;
+	    this.format = format;
+	    this.bounds = bounds;
+	    this.from = from;
+	    this.to = to;
+	}
+
+	protected Tally compute() {
+	    if (to - from == 1) {
+		Chunk chunk = new Chunk(buffer.duplicate(), bounds[from], bounds[to]);
+		return format == ImportFormat.CSV ? chunk.readLines() : chunk.readRecords();
+	    }
+	    int middle = (from + to) >>> 1;
+	    ImportTask first = new ImportTask(buffer, format, bounds, from, middle);
+	    first.fork();
+	    Tally second = new ImportTask(buffer, format, bounds, middle, to).compute();
+	    return first.join().append(second);
+	}
+    }
+
+    // Parses one chunk on one thread, registering what it parses a batch at a time. Rows are counted from
+    // the start of the chunk
+    private final class Chunk {
+	private final ByteBuffer buffer;
+	private final int start;
+	private final int end;
+	private final Tally tally = new Tally();
+	private final List<User> users = new ArrayList<User>(batchSize);
+	private final long[] userRows = new long[batchSize];
+	private final List<Item> items = new ArrayList<Item>(batchSize);
+	private final long[] itemRows = new long[batchSize];
+	private final List<String> fields = new ArrayList<String>();
+	private byte[] line = new byte[256];
+
+	Chunk(ByteBuffer buffer, int start, int end) {
+	    this.buffer = buffer;
+	    this.start = start;
+	    this.end = end;
+	}
+
+	Tally readLines() {
+	    int position = start;
+	    while (position < end) {
+		int lineEnd = position;
+		while (lineEnd < end && buffer.get(lineEnd) != '\n') {
+		    lineEnd++;
+		}
+		tally.rows++;
+		int length = lineEnd - position;
+		if (length > 0 && buffer.get(lineEnd - 1) == '\r') {
+		    length--;
+		}
+		if (length > 0 && buffer.get(position) != '#') {
+		    readLine(position, length);
+		}
+		position = lineEnd + 1;
+	    }
+	    return finish();
+	}
+
+	private void readLine(int position, int length) {
+	    if (line.length < length) {
+		line = new byte[Math.max(length, line.length * 2)];
+	    }
+	    buffer.position(position);
+	    buffer.get(line, 0, length);
+	    try {
+		splitFields(new String(line, 0, length, UTF_8));
+		String kind = fields.get(0);
+		if ("user".equals(kind)) {
+		    if (fields.size() != 3) {
+			tally.reject(tally.rows, "A user row has 3 fields, not " + fields.size());
+			return;
+		    }
+		    String id = fields.get(1);
+		    addUser(id.isEmpty() ? new User(fields.get(2)) : new User(UUID.fromString(id), fields.get(2)));
+		} else if ("item".equals(kind)) {
+		    if (fields.size() < 3 || fields.size() > 6) {
+			tally.reject(tally.rows, "An item row has 3 to 6 fields, not " + fields.size());
+			return;
+		    }
+		    String id = fields.get(1);
+		    String reserve = field(4);
+		    String scale = field(5);
+		    addItem(new Item(id.isEmpty() ? AuctioneerObject.getIdGenerator().nextID() : UUID.fromString(id),
+			    fields.get(2), field(3), reserve.isEmpty() ? BigDecimal.ZERO : new BigDecimal(reserve),
+			    scale.isEmpty() ? null : new PriceScale(Integer.parseInt(scale))));
+		} else {
+		    tally.reject(tally.rows, "Unknown row kind: " + kind);
+		}
+	    } catch (RuntimeException ex) {
+		tally.reject(tally.rows, "Bad row: " + ex.getMessage());
+	    }
+	}
+
+	// An optional trailing field, empty if the row stops short of it
+	private String field(int index) {
+	    return index < fields.size() ? fields.get(index) : "";
+	}
+
+	private void splitFields(String text) {
+	    fields.clear();
+	    int length = text.length();
+	    int position = 0;
+	    while (true) {
+		if (position < length && text.charAt(position) == '"') {
+		    StringBuilder field = new StringBuilder();
+		    position++;
+		    while (true) {
+			if (position >= length) {
+			    throw new IllegalArgumentException("Quoted field is not closed");
+			}
+			char c = text.charAt(position++);
+			if (c != '"') {
+			    field.append(c);
+			} else if (position < length && text.charAt(position) == '"') {
+			    field.append('"');
+			    position++;
+			} else {
+			    break;
+			}
+		    }
+		    if (position < length && text.charAt(position) != ',') {
+			throw new IllegalArgumentException("Quoted field is followed by more than a comma");
+		    }
+		    fields.add(field.toString());
+		} else {
+		    int comma = text.indexOf(',', position);
+		    int fieldEnd = comma < 0 ? length : comma;
+		    fields.add(text.substring(position, fieldEnd));
+		    position = fieldEnd;
+		}
+		if (position >= length) {
+		    return;
+		}
+		// Past the comma
+		position++;
+	    }
+	}
+
+	Tally readRecords() {
+	    int position = start;
+	    while (position < end) {
+		int next = position + 4 + buffer.getInt(position);
+		tally.rows++;
+		buffer.limit(next);
+		buffer.position(position + 4);
+		try {
+		    byte type = buffer.get();
+		    if (type == RecordCodec.USER) {
+			User user = RecordCodec.readUser(buffer);
+			if (checkRead()) {
+			    addUser(user);
+			}
+		    } else if (type == RecordCodec.ITEM) {
+			Item item = RecordCodec.readItem(buffer);
+			if (checkRead()) {
+			    addItem(item);
+			}
+		    } else {
+			tally.reject(tally.rows, "Not a user or item record, type " + type);
+		    }
+		} catch (RuntimeException ex) {
+		    tally.reject(tally.rows, "Damaged record: " + ex);
+		}
+		buffer.limit(buffer.capacity());
+		position = next;
+	    }
+	    return finish();
+	}
+
+	// A record has to be used up by what it holds
+	private boolean checkRead() {
+	    if (buffer.hasRemaining()) {
+		tally.reject(tally.rows, "Damaged record, " + buffer.remaining() + " bytes left over");
+		return false;
+	    }
+	    return true;
+	}
+
+	private void addUser(User user) {
+	    userRows[users.size()] = tally.rows;
+	    users.add(user);
+	    if (users.size() == batchSize) {
+		registerUsers();
+	    }
+	}
+
+	private void addItem(Item item) {
+	    itemRows[items.size()] = tally.rows;
+	    items.add(item);
+	    if (items.size() == batchSize) {
+		registerItems();
+	    }
+	}
+
+	// The tracker hands back the duplicates in batch order, so one pass finds their rows
+	private void registerUsers() {
+	    List<User> duplicates = tracker.registerUsers(users);
+	    tally.users += users.size() - duplicates.size();
+	    int next = 0;
+	    for (int i = 0; i < users.size() && next < duplicates.size(); i++) {
+		if (users.get(i) == duplicates.get(next)) {
+		    tally.reject(userRows[i], "Duplicate user " + users.get(i).getID());
+		    next++;
+		}
+	    }
+	    users.clear();
+	}
+
+	private void registerItems() {
+	    List<Item> duplicates = tracker.registerItems(items);
+	    tally.items += items.size() - duplicates.size();
+	    int next = 0;
+	    for (int i = 0; i < items.size() && next < duplicates.size(); i++) {
+		if (items.get(i) == duplicates.get(next)) {
+		    tally.reject(itemRows[i], "Duplicate item " + items.get(i).getID());
+		    next++;
+		}
+	    }
+	    items.clear();
+	}
+
+	// Register what is left over. Duplicates are only found as batches go in, so the rejections are put
+	// back in row order
+	private Tally finish() {
+	    if (!users.isEmpty()) {
+		registerUsers();
+	    }
+	    if (!items.isEmpty()) {
+		registerItems();
+	    }
+	    Collections.sort(tally.rejections, BY_ROW);
+	    return tally;
+	}
+    }
+
+    public static void main(String[] args) throws IOException {
+	BasicConfigurator.configure();
+	Logger.getRootLogger().setLevel(Level.WARN);
+	if (args.length == 0) {
+	    System.err.println("Usage: BulkImporter <file> [setting=value ...]");
+	    System.err.println("Settings: format=csv|binary threads=<count> batch=<rows> journal=<directory>");
+	    System.exit(1);
+	}
+	File file = new File(args[0]);
+	ImportFormat format = ImportFormat.forFile(file);
+	int threads = Runtime.getRuntime().availableProcessors();
+	int batchSize = DEFAULT_BATCH_SIZE;
+	File journalDirectory = null;
+	for (int i = 1; i < args.length; i++) {
+	    int equals = args[i].indexOf('=');
+	    if (equals < 0) {
+		throw new IllegalArgumentException("Expected setting=value: " + args[i]);
+	    }
+	    String name = args[i].substring(0, equals);
+	    String value = args[i].substring(equals + 1);
+	    if ("format".equals(name)) {
+		format = ImportFormat.valueOf(value.toUpperCase(Locale.ROOT));
+	    } else if ("threads".equals(name)) {
+		threads = Integer.parseInt(value);
+	    } else if ("batch".equals(name)) {
+		batchSize = Integer.parseInt(value);
+	    } else if ("journal".equals(name)) {
+		journalDirectory = new File(value);
+	    } else {
+		throw new IllegalArgumentException("Unknown setting: " + name);
+	    }
+	}
+	BidTrackerImpl tracker = new BidTrackerImpl();
+	// Without a journal the catalog is only read, which shows how fast it goes and what it rejects
+	BidJournal journal = null;
+	if (journalDirectory != null) {
+	    journal = new BidJournal(journalDirectory);
+	    journal.recover(tracker);
+	}
+	BulkImporter importer = new BulkImporter(tracker, threads);
+	importer.setBatchSize(batchSize);
+	try {
+	    System.out.println(importer.importFile(file, format));
+	    if (journal != null) {
+		// So the next recovery starts from the catalog rather than replaying every registration
+		journal.snapshot(tracker);
+	    }
+	} finally {
+	    importer.shutdown();
+	    if (journal != null) {
+		journal.close();
+	    }
+	}
+    }
+}
@@ -0,0 +1,20 @@
+package com.luhar.auctioneer.bulk;
+
+import java.io.File;
+
+// Layout of a file for BulkImporter
+public enum ImportFormat {
+    // One row per line, user,<id>,<name> or item,<id>,<name>,<description>,<reserve>,<scale>. The ID may be
+    // left empty for a new one, as may the last three item fields. Fields holding commas or quotes are
+    // quoted, with quotes doubled; no field can hold a line break. Blank lines and lines starting with #
+    // are skipped
+    CSV,
+    // RecordCodec user and item records, each as [int length][record], ended by a zero length or the end of
+    // the file. BulkImporter.writeBinary writes it
+    BINARY;
+
+    // CSV for files ending in .csv, binary for anything else
+    public static ImportFormat forFile(File file) {
+	return file.getName().toLowerCase().endsWith(".csv") ? CSV : BINARY;
+    }
+}
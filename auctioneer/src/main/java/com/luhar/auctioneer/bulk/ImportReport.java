@@ -0,0 +1,113 @@
+package com.luhar.auctioneer.bulk;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+// What a BulkImporter run did. Rows are lines of a CSV file or records of a binary one, counted from 1.
+// Every rejected row is counted, but only the first few are kept with their reasons
+public class ImportReport {
+
+    // A row that was not registered, and why
+    public static final class Rejection {
+	private final long row;
+	private final String reason;
+
+	Rejection(long row, String reason) {
+	    this.row = row;
+	    this.reason = reason;
+	}
+
+	public long getRow() {
+	    return row;
+	}
+
+	public String getReason() {
+	    return reason;
+	}
+
+	public String toString() {
+	    return "row " + row + ": " + reason;
+	}
+    }
+
+    private final String source;
+    private final ImportFormat format;
+    private final long rows;
+    private final long usersRegistered;
+    private final long itemsRegistered;
+    private final long rejectedCount;
+    private final List<Rejection> rejections;
+    private final long elapsedNanos;
+
+    ImportReport(String source, ImportFormat format, long rows, long usersRegistered, long itemsRegistered,
+	    long rejectedCount, List<Rejection> rejections, long elapsedNanos) {
+	this.source = source;
+	this.format = format;
+	this.rows = rows;
+	this.usersRegistered = usersRegistered;
+	this.itemsRegistered = itemsRegistered;
+	this.rejectedCount = rejectedCount;
+	this.rejections = Collections.unmodifiableList(rejections);
+	this.elapsedNanos = elapsedNanos;
+    }
+
+    public String getSource() {
+	return source;
+    }
+
+    public ImportFormat getFormat() {
+	return format;
+    }
+
+    // Rows read, including skipped and rejected ones
+    public long getRows() {
+	return rows;
+    }
+
+    public long getUsersRegistered() {
+	return usersRegistered;
+    }
+
+    public long getItemsRegistered() {
+	return itemsRegistered;
+    }
+
+    public long getRegistrations() {
+	return usersRegistered + itemsRegistered;
+    }
+
+    public long getRejectedCount() {
+	return rejectedCount;
+    }
+
+    // The first rejected rows, in file order
+    public List<Rejection> getRejections() {
+	return rejections;
+    }
+
+    public long getElapsedNanos() {
+	return elapsedNanos;
+    }
+
+    // Registrations a second
+    public double getRate() {
+	return elapsedNanos == 0 ? 0 : getRegistrations() * 1e9 / elapsedNanos;
+    }
+
+    public String toString() {
+	StringBuilder text = new StringBuilder();
+	text.append(source).append(" (").append(format).append("): ").append(rows).append(" rows, ")
+		.append(usersRegistered).append(" users and ").append(itemsRegistered).append(" items registered in ")
+		.append(String.format(Locale.ROOT, "%.1f", elapsedNanos / 1e6)).append(" ms, ")
+		.append(String.format(Locale.ROOT, "%.0f", getRate())).append(" a second, ")
+		.append(rejectedCount).append(" rejected");
+	for (Rejection rejection : rejections) {
+	    text.append("\n  ").append(rejection);
+	}
+	if (rejectedCount > rejections.size()) {
+	    text.append("\n  ...");
+	}
+	return text.toString();
+    }
+}
@@ -0,0 +1,14 @@
+package com.luhar.auctioneer.cluster;
+
+// Unchecked failure to reach a partition node, or an error the node sent back
+public class ClusterException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public ClusterException(String message) {
+	super(message);
+    }
+
+    public ClusterException(String message, Throwable cause) {
+	super(message, cause);
+    }
+}
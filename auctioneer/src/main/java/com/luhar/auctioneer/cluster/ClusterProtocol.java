@@ -0,0 +1,213 @@
+package com.luhar.auctioneer.cluster;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidCursor;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+// Messages between a PartitionedBidTracker and its PartitionNodes. A request is an operation byte and its
+// arguments, answered by OK and the result or ERROR and a message. IDs go as two longs and amounts as their
+// decimal string, so nothing is lost on the way. A bid carries its bidder's ID and name, so the router can
+// rebuild it around its own Item and User objects. Items moving between nodes go as RecordCodec records,
+// each as [int length][record], ended by a zero length
+final class ClusterProtocol {
+    static final byte REGISTER_USER = 1;
+    static final byte REGISTER_ITEM = 2;
+    static final byte REGISTER_BID = 3;
+    static final byte REGISTER_BIDS = 4;
+    static final byte SET_CLOSE_TIME = 5;
+    static final byte CLOSE_ITEM = 6;
+    static final byte GET_WINNING_BID = 7;
+    static final byte GET_ALL_BIDS = 8;
+    static final byte GET_TOP_BIDS = 9;
+    static final byte GET_BIDS_PAGE = 10;
+    static final byte GET_RANK_OF = 11;
+    static final byte GET_ITEMS_FOR_USER = 12;
+    static final byte GET_USERS = 13;
+    static final byte GET_ITEMS = 14;
+    // Moving partitions: the records of a partition's items, records to apply, and dropping the items
+    static final byte EXPORT_PARTITION = 15;
+    static final byte IMPORT_RECORDS = 16;
+    static final byte DROP_PARTITION = 17;
+    static final byte GET_ITEMS_WINNING_FOR_USER = 18;
+    static final byte GET_ITEMS_OUTBID_FOR_USER = 19;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    private ClusterProtocol() {
+    }
+
+    static void writeUUID(DataOutput out, UUID id) throws IOException {
+	out.writeLong(id.getMostSignificantBits());
+	out.writeLong(id.getLeastSignificantBits());
+    }
+
+    static UUID readUUID(DataInput in) throws IOException {
+	return new UUID(in.readLong(), in.readLong());
+    }
+
+    static void writeDecimal(DataOutput out, BigDecimal value) throws IOException {
+	out.writeUTF(value.toString());
+    }
+
+    static BigDecimal readDecimal(DataInput in) throws IOException {
+	return new BigDecimal(in.readUTF());
+    }
+
+    static void writeUser(DataOutput out, User user) throws IOException {
+	writeUUID(out, user.getID());
+	out.writeUTF(user.getName());
+    }
+
+    static User readUser(DataInput in) throws IOException {
+	return new User(readUUID(in), in.readUTF());
+    }
+
+    static void writeUsers(DataOutput out, List<User> users) throws IOException {
+	out.writeInt(users.size());
+	for (User user : users) {
+	    writeUser(out, user);
+	}
+    }
+
+    static List<User> readUsers(DataInput in) throws IOException {
+	int count = in.readInt();
+	List<User> users = new ArrayList<User>(count);
+	for (int i = 0; i < count; i++) {
+	    users.add(readUser(in));
+	}
+	return users;
+    }
+
+    static void writeItem(DataOutput out, Item item) throws IOException {
+	writeUUID(out, item.getID());
+	out.writeUTF(item.getItemName());
+	out.writeUTF(item.getDescription());
+	writeDecimal(out, item.getReserveAmount());
+	out.writeByte(item.getPriceScale() == null ? -1 : item.getPriceScale().getScale());
+    }
+
+    static Item readItem(DataInput in) throws IOException {
+	UUID id = readUUID(in);
+	String name = in.readUTF();
+	String description = in.readUTF();
+	BigDecimal reserveAmount = readDecimal(in);
+	byte scale = in.readByte();
+	return new Item(id, name, description, reserveAmount, scale < 0 ? null : new PriceScale(scale));
+    }
+
+    static void writeItems(DataOutput out, List<Item> items) throws IOException {
+	out.writeInt(items.size());
+	for (Item item : items) {
+	    writeItem(out, item);
+	}
+    }
+
+    static List<Item> readItems(DataInput in) throws IOException {
+	int count = in.readInt();
+	List<Item> items = new ArrayList<Item>(count);
+	for (int i = 0; i < count; i++) {
+	    items.add(readItem(in));
+	}
+	return items;
+    }
+
+    // A bid, or null
+    static void writeBid(DataOutput out, Bid bid) throws IOException {
+	if (bid == null) {
+	    out.writeBoolean(false);
+	    return;
+	}
+	out.writeBoolean(true);
+	writeUUID(out, bid.getID());
+	writeUser(out, bid.getUser());
+	out.writeLong(bid.getLastUpdateTime());
+	writeDecimal(out, bid.getBidAmount());
+    }
+
+    // Rebuild a bid on the given item. Its bidder is the user already known by that ID, if there is one
+    static Bid readBid(DataInput in, Item item, ConcurrentMap<UUID, User> users) throws IOException {
+	if (!in.readBoolean()) {
+	    return null;
+	}
+	UUID id = readUUID(in);
+	User user = readUser(in);
+	User known = users.putIfAbsent(user.getID(), user);
+	long lastUpdated = in.readLong();
+	return new Bid(id, item, known == null ? user : known, readDecimal(in), lastUpdated);
+    }
+
+    static void writeBids(DataOutput out, List<Bid> bids) throws IOException {
+	out.writeInt(bids.size());
+	for (Bid bid : bids) {
+	    writeBid(out, bid);
+	}
+    }
+
+    static List<Bid> readBids(DataInput in, Item item, ConcurrentMap<UUID, User> users) throws IOException {
+	int count = in.readInt();
+	List<Bid> bids = new ArrayList<Bid>(count);
+	for (int i = 0; i < count; i++) {
+	    bids.add(readBid(in, item, users));
+	}
+	return bids;
+    }
+
+    // A cursor, or null
+    static void writeCursor(DataOutput out, BidCursor cursor) throws IOException {
+	if (cursor == null) {
+	    out.writeBoolean(false);
+	    return;
+	}
+	out.writeBoolean(true);
+	writeUUID(out, cursor.getBidID());
+	out.writeBoolean(cursor.getAmount() != null);
+	if (cursor.getAmount() != null) {
+	    writeDecimal(out, cursor.getAmount());
+	}
+	out.writeLong(cursor.getLastUpdated());
+	out.writeLong(cursor.getSequence());
+	out.writeLong(cursor.getAmountUnits());
+	out.writeLong(cursor.getArrival());
+    }
+
+    static BidCursor readCursor(DataInput in, Item item) throws IOException {
+	if (!in.readBoolean()) {
+	    return null;
+	}
+	UUID bidID = readUUID(in);
+	BigDecimal amount = in.readBoolean() ? readDecimal(in) : null;
+	return new BidCursor(item, bidID, amount, in.readLong(), in.readLong(), in.readLong(), in.readLong());
+    }
+
+    static void writeRecord(DataOutput out, byte[] record) throws IOException {
+	out.writeInt(record.length);
+	out.write(record);
+    }
+
+    static void endRecords(DataOutput out) throws IOException {
+	out.writeInt(0);
+    }
+
+    // Next record, or null at the end of the records
+    static byte[] readRecord(DataInput in) throws IOException {
+	int length = in.readInt();
+	if (length == 0) {
+	    return null;
+	}
+	byte[] record = new byte[length];
+	in.readFully(record);
+	return record;
+    }
+}
@@ -0,0 +1,118 @@
+package com.luhar.auctioneer.cluster;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+// Consistent hash of partitions onto nodes. An object's ID picks one of a fixed number of partitions, and
+// each partition belongs to the node whose point on the ring comes next after the partition's own. Every
+// node has many points, so partitions spread evenly, and a node that joins only takes partitions from the
+// others: nothing moves between the nodes that were already there. A ring is immutable, adding or removing
+// a node gives a new one
+public final class HashRing {
+    public static final int DEFAULT_PARTITIONS = 256;
+    // Points each node has on the ring
+    static final int POINTS_PER_NODE = 128;
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int partitionCount;
+    private final Set<String> nodes;
+    private final String[] owners;
+
+    public HashRing(int partitionCount, Collection<String> nodes) {
+	if (partitionCount < 1) {
+	    throw new IllegalArgumentException("Partition count must be positive: " + partitionCount);
+	}
+	this.partitionCount = partitionCount;
+	this.nodes = Collections.unmodifiableSet(new LinkedHashSet<String>(nodes));
+	this.owners = new String[partitionCount];
+	if (this.nodes.isEmpty()) {
+	    return;
+	}
+	TreeMap<Long, String> points = new TreeMap<Long, String>();
+	for (String node : this.nodes) {
+	    for (int i = 0; i < POINTS_PER_NODE; i++) {
+		points.put(HASH.hashBytes((node + "#" + i).getBytes(UTF_8)).asLong(), node);
+	    }
+	}
+	for (int partition = 0; partition < partitionCount; partition++) {
+	    Map.Entry<Long, String> point = points.ceilingEntry(HASH.hashInt(partition).asLong());
+	    owners[partition] = (point == null ? points.firstEntry() : point).getValue();
+	}
+    }
+
+    // Partition an object with the given ID belongs to
+    public static int partitionOf(UUID id, int partitionCount) {
+	long bits = id.getMostSignificantBits() ^ id.getLeastSignificantBits();
+	// Mix the bits, as sequential IDs differ only in their last few
+	bits ^= bits >>> 33;
+	bits *= 0xff51afd7ed558ccdL;
+	bits ^= bits >>> 33;
+	return (int) ((bits & Long.MAX_VALUE) % partitionCount);
+    }
+
+    public int partitionOf(UUID id) {
+	return partitionOf(id, partitionCount);
+    }
+
+    public int getPartitionCount() {
+	return this.partitionCount;
+    }
+
+    public Set<String> getNodes() {
+	return this.nodes;
+    }
+
+    // Node that owns a partition, or null if the ring has no nodes
+    public String ownerOf(int partition) {
+	return owners[partition];
+    }
+
+    // Node that owns the object with the given ID
+    public String ownerOf(UUID id) {
+	return owners[partitionOf(id)];
+    }
+
+    // Partitions a node owns
+    public List<Integer> partitionsOf(String node) {
+	List<Integer> partitions = new ArrayList<Integer>();
+	for (int partition = 0; partition < partitionCount; partition++) {
+	    if (node.equals(owners[partition])) {
+		partitions.add(partition);
+	    }
+	}
+	return partitions;
+    }
+
+    public HashRing withNode(String node) {
+	Set<String> newNodes = new LinkedHashSet<String>(nodes);
+	newNodes.add(node);
+	return new HashRing(partitionCount, newNodes);
+    }
+
+    public HashRing withoutNode(String node) {
+	Set<String> newNodes = new LinkedHashSet<String>(nodes);
+	newNodes.remove(node);
+	return new HashRing(partitionCount, newNodes);
+    }
+
+    public String toString() {
+	StringBuilder builder = new StringBuilder();
+	builder.append("Ring of ").append(partitionCount).append(" partitions:");
+	for (String node : nodes) {
+	    builder.append("  ").append(node).append(": ").append(partitionsOf(node).size());
+	}
+	return builder.toString();
+    }
+}
@@ -0,0 +1,81 @@
+package com.luhar.auctioneer.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+
+// The router's connection to one partition node. Calls take turns on it, one request and its answer at a time.
+// A call that breaks off part way leaves the stream out of step, so the client then closes and takes itself
+// out of the router's nodes
+final class NodeClient {
+
+    // One request: writes its arguments, then reads the answer that follows OK. Holds no state of its own,
+    // so the same call can go to several nodes at once
+    abstract static class Call<T> {
+	abstract void write(DataOutputStream out) throws IOException;
+
+	abstract T read(DataInputStream in) throws IOException;
+    }
+
+    private final String name;
+    private final Map<String, NodeClient> nodes;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    NodeClient(String name, InetSocketAddress address, Map<String, NodeClient> nodes) throws IOException {
+	this.name = name;
+	this.nodes = nodes;
+	this.socket = new Socket(address.getAddress(), address.getPort());
+	socket.setTcpNoDelay(true);
+	this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+	this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    String getName() {
+	return name;
+    }
+
+    // A node's error answer leaves the stream in step. Anything else going wrong once the request has been
+    // started may leave part of the request or of its answer behind, so the client is dropped
+    synchronized <T> T call(byte op, Call<T> call) {
+	String error;
+	try {
+	    out.writeByte(op);
+	    call.write(out);
+	    out.flush();
+	    if (in.readByte() != ClusterProtocol.ERROR) {
+		return call.read(in);
+	    }
+	    error = in.readUTF();
+	} catch (IOException ex) {
+	    drop();
+	    throw new ClusterException("Lost node " + name + ": " + ex.getMessage(), ex);
+	} catch (RuntimeException ex) {
+	    drop();
+	    throw ex;
+	} catch (Error ex) {
+	    drop();
+	    throw ex;
+	}
+	throw new ClusterException("Node " + name + " failed request " + op + ": " + error);
+    }
+
+    private void drop() {
+	nodes.remove(name, this);
+	close();
+    }
+
+    void close() {
+	try {
+	    socket.close();
+	} catch (IOException ex) {
+	    // Going away anyway
+	}
+    }
+}
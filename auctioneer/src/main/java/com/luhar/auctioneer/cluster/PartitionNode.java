@@ -0,0 +1,417 @@
+package com.luhar.auctioneer.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.impl.ShardedBidTracker;
+import com.luhar.auctioneer.journal.RecordCodec;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidCursor;
+import com.luhar.auctioneer.model.BidPage;
+import com.luhar.auctioneer.model.BidRequest;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+// One node of a partitioned deployment. Holds the items of the partitions the router gives it in a
+// BidTrackerImpl, with every user, and answers the router's requests over a socket. Each connection has
+// its own thread and work on an item goes through a ShardedBidTracker, so an item still has one writer
+// however many connections bid on it. Partitions are moved while the router holds back all other requests
+//
+// Run on its own with: java com.luhar.auctioneer.cluster.PartitionNode [port] [shards]. It prints the port
+// it listens on and stops when its standard input closes
+public class PartitionNode {
+    private static final Logger logger = Logger.getLogger(BidTracker.class);
+    // Large enough for an item record with its name and description in three bytes a character
+    private static final int RECORD_SIZE = 1024;
+    private static final Comparator<Bid> BY_SEQUENCE = new Comparator<Bid>() {
+	public int compare(Bid o1, Bid o2) {
+	    long sequence1 = o1.getSequence();
+	    long sequence2 = o2.getSequence();
+	    return sequence1 < sequence2 ? -1 : (sequence1 == sequence2 ? 0 : 1);
+	}
+    };
+
+    private final BidTrackerImpl tracker;
+    private final ShardedBidTracker sharded;
+    private final InetSocketAddress bindAddress;
+    private final List<Socket> connections = Collections.synchronizedList(new ArrayList<Socket>());
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+
+    // Node on the loopback interface. Port zero picks a free one
+    public PartitionNode(int port) {
+	this(new BidTrackerImpl(), Runtime.getRuntime().availableProcessors(), new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public PartitionNode(BidTrackerImpl tracker, int shardCount, InetSocketAddress bindAddress) {
+	this.tracker = tracker;
+	this.sharded = new ShardedBidTracker(tracker, shardCount);
+	this.bindAddress = bindAddress;
+    }
+
+    public synchronized void start() throws IOException {
+	if (serverSocket != null) {
+	    throw new IllegalStateException("Node already started: " + serverSocket.getLocalSocketAddress());
+	}
+	serverSocket = new ServerSocket();
+	serverSocket.bind(bindAddress);
+	acceptor = new Thread(new Runnable() {
+	    public void run() {
+		accept();
+	    }
+	}, "auctioneer-node-" + serverSocket.getLocalPort());
+	acceptor.setDaemon(true);
+	acceptor.start();
+	logger.info("Partition node listening on " + serverSocket.getLocalSocketAddress());
+    }
+
+    // Address the node listens on, with the port picked if it was started on port zero
+    public InetSocketAddress getAddress() {
+	return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    public BidTrackerImpl getTracker() {
+	return tracker;
+    }
+
+    // Stop listening, drop the open connections and wait for queued work to finish
+    public void shutdown() {
+	try {
+	    if (serverSocket != null) {
+		serverSocket.close();
+	    }
+	} catch (IOException ex) {
+	    logger.warn("Could not close node socket: " + ex.getMessage());
+	}
+	synchronized (connections) {
+	    for (Socket socket : connections) {
+		try {
+		    socket.close();
+		} catch (IOException ex) {
+		    // Going away anyway
+		}
+	    }
+	}
+	sharded.shutdown();
+    }
+
+    private void accept() {
+	while (!serverSocket.isClosed()) {
+	    final Socket socket;
+	    try {
+		socket = serverSocket.accept();
+	    } catch (IOException ex) {
+		if (!serverSocket.isClosed()) {
+		    logger.warn("Node stopped accepting connections: " + ex.getMessage());
+		}
+		return;
+	    }
+	    connections.add(socket);
+	    Thread thread = new Thread(new Runnable() {
+		public void run() {
+		    serve(socket);
+		}
+	    }, "auctioneer-node-connection-" + socket.getPort());
+	    thread.setDaemon(true);
+	    thread.start();
+	}
+    }
+
+    // Answer requests on one connection until the router closes it
+    private void serve(Socket socket) {
+	try {
+	    socket.setTcpNoDelay(true);
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+	    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	    while (true) {
+		byte op;
+		try {
+		    op = in.readByte();
+		} catch (EOFException ex) {
+		    return;
+		}
+		try {
+		    handle(op, in, out);
+		} catch (RuntimeException ex) {
+		    // The request was read in full before anything failed, so the connection can carry on
+		    logger.warn("Node request " + op + " failed: " + ex.toString());
+		    out.writeByte(ClusterProtocol.ERROR);
+		    out.writeUTF(String.valueOf(ex.getMessage()));
+		}
+		out.flush();
+	    }
+	} catch (SocketException ex) {
+	    // Closed by the router or by shutdown
+	} catch (IOException ex) {
+	    logger.warn("Node connection failed: " + ex.getMessage());
+	} finally {
+	    connections.remove(socket);
+	    try {
+		socket.close();
+	    } catch (IOException ex) {
+		// Nothing more to do
+	    }
+	}
+    }
+
+    // Read one request's arguments, do it, and write OK and the result. Every answer is worked out before OK
+    // goes out, so a request that fails is answered with the error alone
+    private void handle(byte op, DataInputStream in, DataOutputStream out) throws IOException {
+	switch (op) {
+	case ClusterProtocol.REGISTER_USER: {
+	    User user = ClusterProtocol.readUser(in);
+	    User known = tracker.getUser(user.getID());
+	    boolean added = known == null && sharded.registerUser(user);
+	    out.writeByte(ClusterProtocol.OK);
+	    out.writeBoolean(added);
+	    break;
+	}
+	case ClusterProtocol.REGISTER_ITEM: {
+	    Item item = ClusterProtocol.readItem(in);
+	    boolean added = tracker.getItem(item.getID()) == null && sharded.registerItem(item);
+	    out.writeByte(ClusterProtocol.OK);
+	    out.writeBoolean(added);
+	    break;
+	}
+	case ClusterProtocol.REGISTER_BID: {
+	    Item item = tracker.getItem(ClusterProtocol.readUUID(in));
+	    User user = tracker.getUser(ClusterProtocol.readUUID(in));
+	    BigDecimal amount = ClusterProtocol.readDecimal(in);
+	    Bid bid = item == null || user == null ? null : sharded.registerBid(item, user, amount);
+	    out.writeByte(ClusterProtocol.OK);
+	    ClusterProtocol.writeBid(out, bid);
+	    break;
+	}
+	case ClusterProtocol.REGISTER_BIDS: {
+	    int count = in.readInt();
+	    List<BidRequest> requests = new ArrayList<BidRequest>(count);
+	    // Where each known request sits in the batch. Requests for unknown items or users are rejected here
+	    int[] indexes = new int[count];
+	    for (int i = 0; i < count; i++) {
+		Item item = tracker.getItem(ClusterProtocol.readUUID(in));
+		User user = tracker.getUser(ClusterProtocol.readUUID(in));
+		BigDecimal amount = ClusterProtocol.readDecimal(in);
+		if (item != null && user != null) {
+		    indexes[requests.size()] = i;
+		    requests.add(new BidRequest(item, user, amount));
+		}
+	    }
+	    Bid[] results = new Bid[count];
+	    List<Bid> placed = sharded.registerBids(requests);
+	    for (int i = 0; i < placed.size(); i++) {
+		results[indexes[i]] = placed.get(i);
+	    }
+	    out.writeByte(ClusterProtocol.OK);
+	    ClusterProtocol.writeBids(out, Arrays.asList(results));
+	    break;
+	}
+	case ClusterProtocol.SET_CLOSE_TIME: {
+	    Item item = tracker.getItem(ClusterProtocol.readUUID(in));
+	    long closeTime = in.readLong();
+	    boolean set = item != null && sharded.setCloseTime(item, closeTime);
+	    out.writeByte(ClusterProtocol.OK);
+	    out.writeBoolean(set);
+	    break;
+	}
+	case ClusterProtocol.CLOSE_ITEM: {
+	    Item item = tracker.getItem(ClusterProtocol.readUUID(in));
+	    boolean closed = item != null && sharded.closeItem(item);
+	    out.writeByte(ClusterProtocol.OK);
+	    out.writeBoolean(closed);
+	    break;
+	}
+	case ClusterProtocol.GET_WINNING_BID: {
+	    Item item = tracker.getItem(ClusterProtocol.readUUID(in));
+	    Bid winner = item == null ? null : sharded.getWinningBid(item);
+	    out.writeByte(ClusterProtocol.OK);
+	    ClusterProtocol.writeBid(out, winner);
+	    break;
+	}
+	case ClusterProtocol.GET_ALL_BIDS: {
+	    Item item = tracker.getItem(ClusterProtocol.readUUID(in));
+	    List<Bid> bids = item == null ? Collections.<Bid> emptyList() : new ArrayList<Bid>(sharded.getAllBidsForItem(item));
+	    out.writeByte(ClusterProtocol.OK);
+	    ClusterProtocol.writeBids(out, bids);
+	    break;
+	}
+	case ClusterProtocol.GET_TOP_BIDS: {
+	    Item item = tracker.getItem(ClusterProtocol.readUUID(in));
+	    int count = in.readInt();
+	    List<Bid> bids = item == null ? Collections.<Bid> emptyList() : sharded.getTopBids(item, count);
+	    out.writeByte(ClusterProtocol.OK);
+	    ClusterProtocol.writeBids(out, bids);
+	    break;
+	}
+	case ClusterProtocol.GET_BIDS_PAGE: {
+	    Item item = tracker.getItem(ClusterProtocol.readUUID(in));
+	    BidCursor cursor = ClusterProtocol.readCursor(in, item);
+	    int pageSize = in.readInt();
+	    BidPage page = item == null ? new BidPage(Collections.<Bid> emptyList(), null) : sharded.getBidsPage(item, cursor, pageSize);
+	    out.writeByte(ClusterProtocol.OK);
+	    ClusterProtocol.writeBids(out, page.getBids());
+	    ClusterProtocol.writeCursor(out, page.getNext());
+	    break;
+	}
+	case ClusterProtocol.GET_RANK_OF: {
+	    Bid bid = tracker.getBid(ClusterProtocol.readUUID(in));
+	    int rank = bid == null ? -1 : sharded.getRankOf(bid);
+	    out.writeByte(ClusterProtocol.OK);
+	    out.writeInt(rank);
+	    break;
+	}
+	case ClusterProtocol.GET_ITEMS_FOR_USER: {
+	    User user = tracker.getUser(ClusterProtocol.readUUID(in));
+	    List<Item> items = user == null ? Collections.<Item> emptyList() : new ArrayList<Item>(sharded.getAllItemsForUser(user));
+	    out.writeByte(ClusterProtocol.OK);
+	    ClusterProtocol.writeItems(out, items);
+	    break;
+	}
+	case ClusterProtocol.GET_ITEMS_WINNING_FOR_USER:
+	case ClusterProtocol.GET_ITEMS_OUTBID_FOR_USER: {
+	    User user = tracker.getUser(ClusterProtocol.readUUID(in));
+	    List<Item> items;
+	    if (user == null) {
+		items = Collections.<Item> emptyList();
+	    } else if (op == ClusterProtocol.GET_ITEMS_WINNING_FOR_USER) {
+		items = new ArrayList<Item>(sharded.getItemsWinningForUser(user));
+	    } else {
+		items = new ArrayList<Item>(sharded.getItemsOutbidForUser(user));
+	    }
+	    out.writeByte(ClusterProtocol.OK);
+	    ClusterProtocol.writeItems(out, items);
+	    break;
+	}
+	case ClusterProtocol.GET_USERS: {
+	    List<User> users = new ArrayList<User>(tracker.getAllRegisteredUsers());
+	    out.writeByte(ClusterProtocol.OK);
+	    ClusterProtocol.writeUsers(out, users);
+	    break;
+	}
+	case ClusterProtocol.GET_ITEMS: {
+	    List<Item> items = new ArrayList<Item>(tracker.getAllRegisteredItems());
+	    out.writeByte(ClusterProtocol.OK);
+	    ClusterProtocol.writeItems(out, items);
+	    break;
+	}
+	case ClusterProtocol.EXPORT_PARTITION: {
+	    int partition = in.readInt();
+	    int partitionCount = in.readInt();
+	    // Made in full first, so a failure can still be answered with an error
+	    List<byte[]> records = new ArrayList<byte[]>();
+	    for (Item item : itemsIn(partition, partitionCount)) {
+		exportItem(item, records);
+	    }
+	    out.writeByte(ClusterProtocol.OK);
+	    for (byte[] record : records) {
+		ClusterProtocol.writeRecord(out, record);
+	    }
+	    ClusterProtocol.endRecords(out);
+	    break;
+	}
+	case ClusterProtocol.IMPORT_RECORDS: {
+	    int applied = 0;
+	    int skipped = 0;
+	    byte[] record;
+	    while ((record = ClusterProtocol.readRecord(in)) != null) {
+		if (RecordCodec.apply(ByteBuffer.wrap(record), tracker)) {
+		    applied++;
+		} else {
+		    skipped++;
+		}
+	    }
+	    if (skipped > 0) {
+		throw new ClusterException("Could not apply " + skipped + " of " + (applied + skipped) + " records");
+	    }
+	    out.writeByte(ClusterProtocol.OK);
+	    out.writeInt(applied);
+	    break;
+	}
+	case ClusterProtocol.DROP_PARTITION: {
+	    int partition = in.readInt();
+	    int partitionCount = in.readInt();
+	    int dropped = 0;
+	    for (Item item : itemsIn(partition, partitionCount)) {
+		if (tracker.removeItem(item)) {
+		    dropped++;
+		}
+	    }
+	    out.writeByte(ClusterProtocol.OK);
+	    out.writeInt(dropped);
+	    break;
+	}
+	default:
+	    throw new IOException("Unknown request: " + op);
+	}
+    }
+
+    private List<Item> itemsIn(int partition, int partitionCount) {
+	List<Item> items = new ArrayList<Item>();
+	for (Item item : tracker.getAllRegisteredItems()) {
+	    if (HashRing.partitionOf(item.getID(), partitionCount) == partition) {
+		items.add(item);
+	    }
+	}
+	return items;
+    }
+
+    // An item as the records that rebuild it: the item, its close time, its bids in the order they were
+    // made, so equal amounts keep their ranking, and last its close, which would turn the bids away
+    private void exportItem(Item item, List<byte[]> records) {
+	ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE + 3 * (item.getItemName().length() + item.getDescription().length()));
+	RecordCodec.writeItem(buffer, item);
+	records.add(Arrays.copyOf(buffer.array(), buffer.position()));
+	if (item.getCloseTime() != Item.NO_CLOSE_TIME) {
+	    buffer.clear();
+	    RecordCodec.writeCloseTime(buffer, item);
+	    records.add(Arrays.copyOf(buffer.array(), buffer.position()));
+	}
+	List<Bid> bids = new ArrayList<Bid>(item.copyBids());
+	Collections.sort(bids, BY_SEQUENCE);
+	for (Bid bid : bids) {
+	    buffer.clear();
+	    RecordCodec.writeNewBid(buffer, bid);
+	    records.add(Arrays.copyOf(buffer.array(), buffer.position()));
+	}
+	if (item.isClosed()) {
+	    buffer.clear();
+	    RecordCodec.writeClosed(buffer, item);
+	    records.add(Arrays.copyOf(buffer.array(), buffer.position()));
+	}
+    }
+
+    public static void main(String[] args) throws IOException {
+	BasicConfigurator.configure();
+	Logger.getRootLogger().setLevel(Level.WARN);
+	int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+	int shardCount = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+	PartitionNode node = new PartitionNode(new BidTrackerImpl(), shardCount, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	node.start();
+	System.out.println("Partition node listening on port " + node.getAddress().getPort());
+	System.out.flush();
+	while (System.in.read() >= 0) {
+	}
+	node.shutdown();
+    }
+}
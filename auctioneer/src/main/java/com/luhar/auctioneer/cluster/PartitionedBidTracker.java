@@ -0,0 +1,609 @@
+package com.luhar.auctioneer.cluster;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.luhar.auctioneer.journal.RecordCodec;
+import com.luhar.auctioneer.model.AuctioneerObject;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidCursor;
+import com.luhar.auctioneer.model.BidPage;
+import com.luhar.auctioneer.model.BidRequest;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+// BidTracker spread over PartitionNodes. Each item belongs to a partition, picked by its ID, and each
+// partition to a node by a HashRing. Work on an item goes to the node that owns it, queries across items ask
+// every node at once and merge the answers, and every node knows every user. Adding or removing a node moves
+// only the partitions whose owner changes, copying each one's items to the new owner before dropping them
+// from the old; all other calls wait while partitions move.
+//
+// Bids come back rebuilt around the Item and User objects this tracker has seen, so they equal the nodes'
+// bids by ID, but are copies: they do not change when the bid is amended later
+public class PartitionedBidTracker implements BidTracker {
+    private static final Logger logger = Logger.getLogger(BidTracker.class);
+    private static final int USER_RECORD_SIZE = 1024;
+
+    private final ConcurrentMap<UUID, User> users = new ConcurrentHashMap<UUID, User>();
+    private final ConcurrentMap<UUID, Item> items = new ConcurrentHashMap<UUID, Item>();
+    private final Map<String, NodeClient> nodes = new ConcurrentHashMap<String, NodeClient>();
+    // Held for reading by every call, and for writing while partitions move
+    private final ReentrantReadWriteLock moving = new ReentrantReadWriteLock();
+    private final ListeningExecutorService fanOut;
+    private volatile HashRing ring;
+
+    public PartitionedBidTracker() {
+	this(HashRing.DEFAULT_PARTITIONS);
+    }
+
+    public PartitionedBidTracker(int partitionCount) {
+	this.ring = new HashRing(partitionCount, Collections.<String> emptySet());
+	this.fanOut = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+		.setNameFormat("auctioneer-router-%d").setDaemon(true).build()));
+    }
+
+    public HashRing getRing() {
+	return this.ring;
+    }
+
+    // Connect to a node and give it its share of the partitions. The node is sent every user first
+    public void addNode(String name, InetSocketAddress address) throws IOException {
+	NodeClient client = new NodeClient(name, address, nodes);
+	moving.writeLock().lock();
+	try {
+	    if (nodes.containsKey(name)) {
+		client.close();
+		throw new IllegalArgumentException("Node already added: " + name);
+	    }
+	    if (!nodes.isEmpty()) {
+		List<User> known = nodes.values().iterator().next().call(ClusterProtocol.GET_USERS, USERS);
+		final List<byte[]> records = new ArrayList<byte[]>(known.size());
+		ByteBuffer buffer = ByteBuffer.allocate(USER_RECORD_SIZE);
+		for (User user : known) {
+		    buffer.clear();
+		    RecordCodec.writeUser(buffer, user);
+		    records.add(Arrays.copyOf(buffer.array(), buffer.position()));
+		}
+		client.call(ClusterProtocol.IMPORT_RECORDS, importRecords(records));
+	    }
+	    nodes.put(name, client);
+	    try {
+		rebalance(ring.withNode(name));
+	    } catch (RuntimeException ex) {
+		nodes.remove(name);
+		client.close();
+		throw ex;
+	    }
+	} finally {
+	    moving.writeLock().unlock();
+	}
+    }
+
+    // Move a node's partitions to the other nodes and disconnect from it. A node whose connection was lost
+    // only leaves the ring: its partitions start again empty on the other nodes
+    public void removeNode(String name) {
+	moving.writeLock().lock();
+	try {
+	    if (!nodes.containsKey(name)) {
+		if (!ring.getNodes().contains(name)) {
+		    throw new IllegalArgumentException("Unknown node: " + name);
+		}
+		logger.error("Removing lost node " + name + ", the items of its " + ring.partitionsOf(name).size() + " partitions are gone");
+		ring = ring.withoutNode(name);
+		return;
+	    }
+	    if (nodes.size() == 1) {
+		throw new IllegalStateException("Cannot remove the last node: " + name);
+	    }
+	    rebalance(ring.withoutNode(name));
+	    nodes.remove(name).close();
+	} finally {
+	    moving.writeLock().unlock();
+	}
+    }
+
+    // Disconnect from every node. The nodes keep their items
+    public void shutdown() {
+	moving.writeLock().lock();
+	try {
+	    for (NodeClient client : nodes.values()) {
+		client.close();
+	    }
+	    nodes.clear();
+	    ring = new HashRing(ring.getPartitionCount(), Collections.<String> emptySet());
+	} finally {
+	    moving.writeLock().unlock();
+	}
+	fanOut.shutdown();
+    }
+
+    // Move each partition whose owner differs in the next ring: export it from its owner and import it into
+    // the new one. Only once every partition is copied does the ring change and the old owners drop theirs.
+    // If a copy fails, the new owners drop what they were sent and the ring stays as it was, so every item
+    // stays on its owner and a later move does not meet half copied partitions
+    private void rebalance(HashRing next) {
+	HashRing current = ring;
+	List<Integer> copied = new ArrayList<Integer>();
+	try {
+	    for (int partition = 0; partition < next.getPartitionCount(); partition++) {
+		String from = current.ownerOf(partition);
+		String to = next.ownerOf(partition);
+		if (from == null || from.equals(to)) {
+		    continue;
+		}
+		List<byte[]> records = node(from).call(ClusterProtocol.EXPORT_PARTITION, partitionCall(partition, next.getPartitionCount(), RECORDS));
+		copied.add(partition);
+		if (!records.isEmpty()) {
+		    node(to).call(ClusterProtocol.IMPORT_RECORDS, importRecords(records));
+		}
+	    }
+	} catch (RuntimeException ex) {
+	    dropCopies(copied, next, next);
+	    throw ex;
+	}
+	ring = next;
+	dropCopies(copied, current, next);
+	logger.info("Moved " + copied.size() + " partitions. " + next);
+    }
+
+    // Drop the given partitions from their owners in a ring. A node that fails keeps its copies, which is
+    // logged, so the others are still dropped
+    private void dropCopies(List<Integer> partitions, HashRing owners, HashRing next) {
+	for (int partition : partitions) {
+	    String owner = owners.ownerOf(partition);
+	    try {
+		node(owner).call(ClusterProtocol.DROP_PARTITION, partitionCall(partition, next.getPartitionCount(), COUNT));
+	    } catch (RuntimeException ex) {
+		logger.error("Could not drop partition " + partition + " from node " + owner + ": " + ex.getMessage());
+	    }
+	}
+    }
+
+    public boolean registerUser(final User user) {
+	moving.readLock().lock();
+	try {
+	    users.putIfAbsent(user.getID(), user);
+	    List<Boolean> added = callAll(ClusterProtocol.REGISTER_USER, new NodeClient.Call<Boolean>() {
+		void write(DataOutputStream out) throws IOException {
+		    ClusterProtocol.writeUser(out, user);
+		}
+
+		Boolean read(DataInputStream in) throws IOException {
+		    return in.readBoolean();
+		}
+	    });
+	    return added.contains(Boolean.TRUE);
+	} finally {
+	    moving.readLock().unlock();
+	}
+    }
+
+    public boolean registerItem(final Item item) {
+	moving.readLock().lock();
+	try {
+	    items.putIfAbsent(item.getID(), item);
+	    return ownerOf(item).call(ClusterProtocol.REGISTER_ITEM, new NodeClient.Call<Boolean>() {
+		void write(DataOutputStream out) throws IOException {
+		    ClusterProtocol.writeItem(out, item);
+		}
+
+		Boolean read(DataInputStream in) throws IOException {
+		    return in.readBoolean();
+		}
+	    });
+	} finally {
+	    moving.readLock().unlock();
+	}
+    }
+
+    public Bid registerBid(final Item item, final User user, final BigDecimal amount) {
+	moving.readLock().lock();
+	try {
+	    users.putIfAbsent(user.getID(), user);
+	    return ownerOf(item).call(ClusterProtocol.REGISTER_BID, new NodeClient.Call<Bid>() {
+		void write(DataOutputStream out) throws IOException {
+		    ClusterProtocol.writeUUID(out, item.getID());
+		    ClusterProtocol.writeUUID(out, user.getID());
+		    ClusterProtocol.writeDecimal(out, amount);
+		}
+
+		Bid read(DataInputStream in) throws IOException {
+		    return ClusterProtocol.readBid(in, item, users);
+		}
+	    });
+	} finally {
+	    moving.readLock().unlock();
+	}
+    }
+
+    // Split the batch by node and send each part at once. Results come back in request order
+    public List<Bid> registerBids(Collection<BidRequest> requests) {
+	moving.readLock().lock();
+	try {
+	    final Map<NodeClient, List<BidRequest>> nodeRequests = new LinkedHashMap<NodeClient, List<BidRequest>>();
+	    final Map<NodeClient, List<Integer>> nodeIndexes = new LinkedHashMap<NodeClient, List<Integer>>();
+	    int index = 0;
+	    for (BidRequest request : requests) {
+		users.putIfAbsent(request.getUser().getID(), request.getUser());
+		NodeClient client = ownerOf(request.getItem());
+		if (!nodeRequests.containsKey(client)) {
+		    nodeRequests.put(client, new ArrayList<BidRequest>());
+		    nodeIndexes.put(client, new ArrayList<Integer>());
+		}
+		nodeRequests.get(client).add(request);
+		nodeIndexes.get(client).add(index++);
+	    }
+	    List<ListenableFuture<List<Bid>>> parts = new ArrayList<ListenableFuture<List<Bid>>>();
+	    for (final Map.Entry<NodeClient, List<BidRequest>> entry : nodeRequests.entrySet()) {
+		parts.add(fanOut.submit(new Callable<List<Bid>>() {
+		    public List<Bid> call() {
+			return entry.getKey().call(ClusterProtocol.REGISTER_BIDS, bidsCall(entry.getValue()));
+		    }
+		}));
+	    }
+	    List<List<Bid>> partResults = getAll(parts);
+	    Bid[] results = new Bid[index];
+	    int part = 0;
+	    for (List<Integer> indexes : nodeIndexes.values()) {
+		List<Bid> partResult = partResults.get(part++);
+		for (int i = 0; i < indexes.size(); i++) {
+		    results[indexes.get(i)] = partResult.get(i);
+		}
+	    }
+	    return Arrays.asList(results);
+	} finally {
+	    moving.readLock().unlock();
+	}
+    }
+
+    public boolean setCloseTime(final Item item, final long closeTime) {
+	moving.readLock().lock();
+	try {
+	    return ownerOf(item).call(ClusterProtocol.SET_CLOSE_TIME, new NodeClient.Call<Boolean>() {
+		void write(DataOutputStream out) throws IOException {
+		    ClusterProtocol.writeUUID(out, item.getID());
+		    out.writeLong(closeTime);
+		}
+
+		Boolean read(DataInputStream in) throws IOException {
+		    return in.readBoolean();
+		}
+	    });
+	} finally {
+	    moving.readLock().unlock();
+	}
+    }
+
+    public boolean closeItem(final Item item) {
+	moving.readLock().lock();
+	try {
+	    return ownerOf(item).call(ClusterProtocol.CLOSE_ITEM, new NodeClient.Call<Boolean>() {
+		void write(DataOutputStream out) throws IOException {
+		    ClusterProtocol.writeUUID(out, item.getID());
+		}
+
+		Boolean read(DataInputStream in) throws IOException {
+		    return in.readBoolean();
+		}
+	    });
+	} finally {
+	    moving.readLock().unlock();
+	}
+    }
+
+    public Bid getWinningBid(final Item item) {
+	moving.readLock().lock();
+	try {
+	    return ownerOf(item).call(ClusterProtocol.GET_WINNING_BID, new NodeClient.Call<Bid>() {
+		void write(DataOutputStream out) throws IOException {
+		    ClusterProtocol.writeUUID(out, item.getID());
+		}
+
+		Bid read(DataInputStream in) throws IOException {
+		    return ClusterProtocol.readBid(in, item, users);
+		}
+	    });
+	} finally {
+	    moving.readLock().unlock();
+	}
+    }
+
+    public Collection<Bid> getAllBidsForItem(final Item item) {
+	moving.readLock().lock();
+	try {
+	    return ownerOf(item).call(ClusterProtocol.GET_ALL_BIDS, new NodeClient.Call<List<Bid>>() {
+		void write(DataOutputStream out) throws IOException {
+		    ClusterProtocol.writeUUID(out, item.getID());
+		}
+
+		List<Bid> read(DataInputStream in) throws IOException {
+		    return ClusterProtocol.readBids(in, item, users);
+		}
+	    });
+	} finally {
+	    moving.readLock().unlock();
+	}
+    }
+
+    public List<Bid> getTopBids(final Item item, final int count) {
+	// Checked here as well as on the node, so a bad count never goes out
+	if (count < 0) {
+	    throw new IllegalArgumentException("Bid count must not be negative: " + count);
+	}
+	moving.readLock().lock();
+	try {
+	    return ownerOf(item).call(ClusterProtocol.GET_TOP_BIDS, new NodeClient.Call<List<Bid>>() {
+		void write(DataOutputStream out) throws IOException {
+		    ClusterProtocol.writeUUID(out, item.getID());
+		    out.writeInt(count);
+		}
+
+		List<Bid> read(DataInputStream in) throws IOException {
+		    return ClusterProtocol.readBids(in, item, users);
+		}
+	    });
+	} finally {
+	    moving.readLock().unlock();
+	}
+    }
+
+    public BidPage getBidsPage(final Item item, final BidCursor cursor, final int pageSize) {
+	if (pageSize <= 0) {
+	    throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+	}
+	moving.readLock().lock();
+	try {
+	    return ownerOf(item).call(ClusterProtocol.GET_BIDS_PAGE, new NodeClient.Call<BidPage>() {
+		void write(DataOutputStream out) throws IOException {
+		    ClusterProtocol.writeUUID(out, item.getID());
+		    ClusterProtocol.writeCursor(out, cursor);
+		    out.writeInt(pageSize);
+		}
+
+		BidPage read(DataInputStream in) throws IOException {
+		    List<Bid> bids = ClusterProtocol.readBids(in, item, users);
+		    return new BidPage(bids, ClusterProtocol.readCursor(in, item));
+		}
+	    });
+	} finally {
+	    moving.readLock().unlock();
+	}
+    }
+
+    public int getRankOf(final Bid bid) {
+	moving.readLock().lock();
+	try {
+	    return ownerOf(bid.getItem()).call(ClusterProtocol.GET_RANK_OF, new NodeClient.Call<Integer>() {
+		void write(DataOutputStream out) throws IOException {
+		    ClusterProtocol.writeUUID(out, bid.getID());
+		}
+
+		Integer read(DataInputStream in) throws IOException {
+		    return in.readInt();
+		}
+	    });
+	} finally {
+	    moving.readLock().unlock();
+	}
+    }
+
+    public Collection<Item> getAllItemsForUser(User user) {
+	return itemsForUser(ClusterProtocol.GET_ITEMS_FOR_USER, user);
+    }
+
+    // Each node knows where the user stands on its own items
+    public Collection<Item> getItemsWinningForUser(User user) {
+	return itemsForUser(ClusterProtocol.GET_ITEMS_WINNING_FOR_USER, user);
+    }
+
+    public Collection<Item> getItemsOutbidForUser(User user) {
+	return itemsForUser(ClusterProtocol.GET_ITEMS_OUTBID_FOR_USER, user);
+    }
+
+    private Collection<Item> itemsForUser(byte op, final User user) {
+	moving.readLock().lock();
+	try {
+	    return mergeItems(callAll(op, new NodeClient.Call<List<Item>>() {
+		void write(DataOutputStream out) throws IOException {
+		    ClusterProtocol.writeUUID(out, user.getID());
+		}
+
+		List<Item> read(DataInputStream in) throws IOException {
+		    return ClusterProtocol.readItems(in);
+		}
+	    }));
+	} finally {
+	    moving.readLock().unlock();
+	}
+    }
+
+    // Every node holds every user, so any one of them can answer
+    public Collection<User> getAllRegisteredUsers() {
+	moving.readLock().lock();
+	try {
+	    if (nodes.isEmpty()) {
+		return Collections.emptyList();
+	    }
+	    List<User> result = new ArrayList<User>();
+	    for (User user : nodes.values().iterator().next().call(ClusterProtocol.GET_USERS, USERS)) {
+		User known = users.putIfAbsent(user.getID(), user);
+		result.add(known == null ? user : known);
+	    }
+	    return result;
+	} finally {
+	    moving.readLock().unlock();
+	}
+    }
+
+    public Collection<Item> getAllRegisteredItems() {
+	moving.readLock().lock();
+	try {
+	    return mergeItems(callAll(ClusterProtocol.GET_ITEMS, ITEMS));
+	} finally {
+	    moving.readLock().unlock();
+	}
+    }
+
+    private NodeClient ownerOf(AuctioneerObject object) {
+	String node = ring.ownerOf(object.getID());
+	if (node == null) {
+	    throw new IllegalStateException("No partition nodes");
+	}
+	return node(node);
+    }
+
+    private NodeClient node(String name) {
+	NodeClient client = nodes.get(name);
+	if (client == null) {
+	    throw new ClusterException("Node " + name + " is not connected");
+	}
+	return client;
+    }
+
+    // Make a call on every node at once and gather the answers
+    private <T> List<T> callAll(final byte op, final NodeClient.Call<T> call) {
+	List<ListenableFuture<T>> answers = new ArrayList<ListenableFuture<T>>(nodes.size());
+	for (final NodeClient client : nodes.values()) {
+	    answers.add(fanOut.submit(new Callable<T>() {
+		public T call() {
+		    return client.call(op, call);
+		}
+	    }));
+	}
+	return getAll(answers);
+    }
+
+    private static <T> List<T> getAll(List<ListenableFuture<T>> futures) {
+	try {
+	    return Futures.getUnchecked(Futures.allAsList(futures));
+	} catch (UncheckedExecutionException ex) {
+	    if (ex.getCause() instanceof RuntimeException) {
+		throw (RuntimeException) ex.getCause();
+	    }
+	    throw ex;
+	}
+    }
+
+    // Items from several nodes as the Item objects this tracker knows
+    private Collection<Item> mergeItems(List<List<Item>> answers) {
+	Map<UUID, Item> merged = new LinkedHashMap<UUID, Item>();
+	for (List<Item> answer : answers) {
+	    for (Item item : answer) {
+		Item known = items.putIfAbsent(item.getID(), item);
+		merged.put(item.getID(), known == null ? item : known);
+	    }
+	}
+	return new ArrayList<Item>(merged.values());
+    }
+
+    private NodeClient.Call<List<Bid>> bidsCall(final List<BidRequest> requests) {
+	return new NodeClient.Call<List<Bid>>() {
+	    void write(DataOutputStream out) throws IOException {
+		out.writeInt(requests.size());
+		for (BidRequest request : requests) {
+		    ClusterProtocol.writeUUID(out, request.getItem().getID());
+		    ClusterProtocol.writeUUID(out, request.getUser().getID());
+		    ClusterProtocol.writeDecimal(out, request.getAmount());
+		}
+	    }
+
+	    List<Bid> read(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<Bid> bids = new ArrayList<Bid>(count);
+		for (BidRequest request : requests) {
+		    bids.add(ClusterProtocol.readBid(in, request.getItem(), users));
+		}
+		return bids;
+	    }
+	};
+    }
+
+    private static <T> NodeClient.Call<T> partitionCall(final int partition, final int partitionCount, final Answer<T> answer) {
+	return new NodeClient.Call<T>() {
+	    void write(DataOutputStream out) throws IOException {
+		out.writeInt(partition);
+		out.writeInt(partitionCount);
+	    }
+
+	    T read(DataInputStream in) throws IOException {
+		return answer.read(in);
+	    }
+	};
+    }
+
+    private static NodeClient.Call<Integer> importRecords(final List<byte[]> records) {
+	return new NodeClient.Call<Integer>() {
+	    void write(DataOutputStream out) throws IOException {
+		for (byte[] record : records) {
+		    ClusterProtocol.writeRecord(out, record);
+		}
+		ClusterProtocol.endRecords(out);
+	    }
+
+	    Integer read(DataInputStream in) throws IOException {
+		return in.readInt();
+	    }
+	};
+    }
+
+    // Reads an answer that needs no arguments from the call
+    private abstract static class Answer<T> extends NodeClient.Call<T> {
+	void write(DataOutputStream out) {
+	}
+    }
+
+    private static final Answer<List<User>> USERS = new Answer<List<User>>() {
+	List<User> read(DataInputStream in) throws IOException {
+	    return ClusterProtocol.readUsers(in);
+	}
+    };
+
+    private static final Answer<List<Item>> ITEMS = new Answer<List<Item>>() {
+	List<Item> read(DataInputStream in) throws IOException {
+	    return ClusterProtocol.readItems(in);
+	}
+    };
+
+    private static final Answer<List<byte[]>> RECORDS = new Answer<List<byte[]>>() {
+	List<byte[]> read(DataInputStream in) throws IOException {
+	    List<byte[]> records = new ArrayList<byte[]>();
+	    byte[] record;
+	    while ((record = ClusterProtocol.readRecord(in)) != null) {
+		records.add(record);
+	    }
+	    return records;
+	}
+    };
+
+    private static final Answer<Integer> COUNT = new Answer<Integer>() {
+	Integer read(DataInputStream in) throws IOException {
+	    return in.readInt();
+	}
+    };
+}
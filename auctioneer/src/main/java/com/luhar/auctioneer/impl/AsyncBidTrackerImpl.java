@@ -0,0 +1,458 @@
+package com.luhar.auctioneer.impl;
+
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.luhar.auctioneer.model.AsyncBidTracker;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidCursor;
+import com.luhar.auctioneer.model.BidPage;
+import com.luhar.auctioneer.model.BidRequest;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+// AsyncBidTracker over a synchronous BidTracker.
+//
+// Over a ShardedBidTracker requests go straight onto the shard queues and their futures complete when the
+// shard gets to them, so no thread waits on a request. Any other BidTracker is called from an executor,
+// one virtual thread per request when the JVM has them, and has to be safe to call from several threads.
+//
+// At most maxInFlight requests are queued or running at once. Past that a request fails straight away
+// with a RejectedExecutionException, so a gateway can push back on its clients instead of queueing
+// without bound. A request that is not answered within the timeout fails with a TimeoutException
+public class AsyncBidTrackerImpl implements AsyncBidTracker {
+    private static final Logger logger = Logger.getLogger(BidTracker.class);
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256 * 1024;
+    private final BidTracker delegate;
+    // Set when the delegate is sharded, so requests can be queued on its shards
+    private final ShardedBidTracker sharded;
+    private final ExecutorService executor;
+    private final boolean ownsDelegate;
+    private final boolean ownsExecutor;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final long timeoutMillis;
+    // Fails requests that run out of time. Null when there is no timeout
+    private final ScheduledThreadPoolExecutor timer;
+
+    // Over a new ShardedBidTracker, without a timeout
+    public AsyncBidTrackerImpl() {
+	this(new ShardedBidTracker(), null, true, false, DEFAULT_MAX_IN_FLIGHT, 0);
+    }
+
+    // A timeout of zero or less means requests wait as long as they need
+    public AsyncBidTrackerImpl(BidTracker delegate, int maxInFlight, long timeoutMillis) {
+	this(delegate, delegate instanceof ShardedBidTracker ? null : defaultExecutor(), false, true, maxInFlight, timeoutMillis);
+    }
+
+    // Calls a delegate that is not sharded on the given executor, which is left running on shutdown
+    public AsyncBidTrackerImpl(BidTracker delegate, ExecutorService executor, int maxInFlight, long timeoutMillis) {
+	this(delegate, executor, false, false, maxInFlight, timeoutMillis);
+    }
+
+    private AsyncBidTrackerImpl(BidTracker delegate, ExecutorService executor, boolean ownsDelegate, boolean ownsExecutor,
+	    int maxInFlight, long timeoutMillis) {
+	if (maxInFlight < 1) {
+	    throw new IllegalArgumentException("Requests in flight must be positive: " + maxInFlight);
+	}
+	this.delegate = delegate;
+	this.sharded = delegate instanceof ShardedBidTracker ? (ShardedBidTracker) delegate : null;
+	if (sharded == null && executor == null) {
+	    throw new IllegalArgumentException("An executor is needed for a BidTracker that is not sharded");
+	}
+	this.executor = executor;
+	this.ownsDelegate = ownsDelegate;
+	this.ownsExecutor = ownsExecutor;
+	this.maxInFlight = maxInFlight;
+	this.inFlight = new Semaphore(maxInFlight);
+	this.timeoutMillis = timeoutMillis;
+	if (timeoutMillis > 0) {
+	    timer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("auctioneer-async-timer")
+		    .setDaemon(true).build());
+	    timer.setRemoveOnCancelPolicy(true);
+	} else {
+	    timer = null;
+	}
+    }
+
+    // One virtual thread per task where the JVM has them, otherwise a pool of daemon threads
+    static ExecutorService defaultExecutor() {
+	try {
+	    Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+	    return (ExecutorService) method.invoke(null);
+	} catch (Exception ex) {
+	    logger.info("Virtual threads are not available, async requests run on a thread pool");
+	}
+	return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 4, new ThreadFactoryBuilder()
+		.setNameFormat("auctioneer-async-%d").setDaemon(true).build());
+    }
+
+    // Number of requests queued or running
+    public int getInFlight() {
+	return maxInFlight - inFlight.availablePermits();
+    }
+
+    public CompletableFuture<Boolean> registerUser(final User user) {
+	if (sharded != null) {
+	    return queue(new Supplier<ListenableFuture<Boolean>>() {
+		public ListenableFuture<Boolean> get() {
+		    return sharded.submitUser(user);
+		}
+	    });
+	}
+	return call(new Callable<Boolean>() {
+	    public Boolean call() {
+		return delegate.registerUser(user);
+	    }
+	});
+    }
+
+    public CompletableFuture<Boolean> registerItem(final Item item) {
+	if (sharded != null) {
+	    return queue(new Supplier<ListenableFuture<Boolean>>() {
+		public ListenableFuture<Boolean> get() {
+		    return sharded.submitItem(item);
+		}
+	    });
+	}
+	return call(new Callable<Boolean>() {
+	    public Boolean call() {
+		return delegate.registerItem(item);
+	    }
+	});
+    }
+
+    public CompletableFuture<Bid> registerBid(final Item item, final User user, final BigDecimal amount) {
+	if (sharded != null) {
+	    return queue(new Supplier<ListenableFuture<Bid>>() {
+		public ListenableFuture<Bid> get() {
+		    return sharded.submitBid(item, user, amount);
+		}
+	    });
+	}
+	return call(new Callable<Bid>() {
+	    public Bid call() {
+		return delegate.registerBid(item, user, amount);
+	    }
+	});
+    }
+
+    public CompletableFuture<List<Bid>> registerBids(final Collection<BidRequest> requests) {
+	if (sharded != null) {
+	    return queue(new Supplier<ListenableFuture<List<Bid>>>() {
+		public ListenableFuture<List<Bid>> get() {
+		    return sharded.submitBids(requests);
+		}
+	    });
+	}
+	return call(new Callable<List<Bid>>() {
+	    public List<Bid> call() {
+		return delegate.registerBids(requests);
+	    }
+	});
+    }
+
+    public CompletableFuture<Boolean> setCloseTime(final Item item, final long closeTime) {
+	if (sharded != null) {
+	    return queue(new Supplier<ListenableFuture<Boolean>>() {
+		public ListenableFuture<Boolean> get() {
+		    return sharded.submitCloseTime(item, closeTime);
+		}
+	    });
+	}
+	return call(new Callable<Boolean>() {
+	    public Boolean call() {
+		return delegate.setCloseTime(item, closeTime);
+	    }
+	});
+    }
+
+    public CompletableFuture<Boolean> closeItem(final Item item) {
+	if (sharded != null) {
+	    return queue(new Supplier<ListenableFuture<Boolean>>() {
+		public ListenableFuture<Boolean> get() {
+		    return sharded.submitClose(item);
+		}
+	    });
+	}
+	return call(new Callable<Boolean>() {
+	    public Boolean call() {
+		return delegate.closeItem(item);
+	    }
+	});
+    }
+
+    public CompletableFuture<Bid> getWinningBid(final Item item) {
+	if (sharded != null) {
+	    return queue(new Supplier<ListenableFuture<Bid>>() {
+		public ListenableFuture<Bid> get() {
+		    return sharded.submitWinningBid(item);
+		}
+	    });
+	}
+	return call(new Callable<Bid>() {
+	    public Bid call() {
+		return delegate.getWinningBid(item);
+	    }
+	});
+    }
+
+    public CompletableFuture<Collection<Bid>> getAllBidsForItem(final Item item) {
+	if (sharded != null) {
+	    return queue(new Supplier<ListenableFuture<Collection<Bid>>>() {
+		public ListenableFuture<Collection<Bid>> get() {
+		    return sharded.submitAllBidsForItem(item);
+		}
+	    });
+	}
+	return call(new Callable<Collection<Bid>>() {
+	    public Collection<Bid> call() {
+		return delegate.getAllBidsForItem(item);
+	    }
+	});
+    }
+
+    public CompletableFuture<List<Bid>> getTopBids(final Item item, final int count) {
+	if (sharded != null) {
+	    return queue(new Supplier<ListenableFuture<List<Bid>>>() {
+		public ListenableFuture<List<Bid>> get() {
+		    return sharded.submitTopBids(item, count);
+		}
+	    });
+	}
+	return call(new Callable<List<Bid>>() {
+	    public List<Bid> call() {
+		return delegate.getTopBids(item, count);
+	    }
+	});
+    }
+
+    public CompletableFuture<BidPage> getBidsPage(final Item item, final BidCursor cursor, final int pageSize) {
+	if (sharded != null) {
+	    return queue(new Supplier<ListenableFuture<BidPage>>() {
+		public ListenableFuture<BidPage> get() {
+		    return sharded.submitBidsPage(item, cursor, pageSize);
+		}
+	    });
+	}
+	return call(new Callable<BidPage>() {
+	    public BidPage call() {
+		return delegate.getBidsPage(item, cursor, pageSize);
+	    }
+	});
+    }
+
+    public CompletableFuture<Integer> getRankOf(final Bid bid) {
+	if (sharded != null) {
+	    return queue(new Supplier<ListenableFuture<Integer>>() {
+		public ListenableFuture<Integer> get() {
+		    return sharded.submitRankOf(bid);
+		}
+	    });
+	}
+	return call(new Callable<Integer>() {
+	    public Integer call() {
+		return delegate.getRankOf(bid);
+	    }
+	});
+    }
+
+    // The sharded tracker answers the remaining reads without going through a shard, so they complete at once
+
+    public CompletableFuture<Collection<Item>> getAllItemsForUser(final User user) {
+	if (sharded != null) {
+	    return CompletableFuture.completedFuture(sharded.getAllItemsForUser(user));
+	}
+	return call(new Callable<Collection<Item>>() {
+	    public Collection<Item> call() {
+		return delegate.getAllItemsForUser(user);
+	    }
+	});
+    }
+
+    public CompletableFuture<Collection<Item>> getItemsWinningForUser(final User user) {
+	if (sharded != null) {
+	    return CompletableFuture.completedFuture(sharded.getItemsWinningForUser(user));
+	}
+	return call(new Callable<Collection<Item>>() {
+	    public Collection<Item> call() {
+		return delegate.getItemsWinningForUser(user);
+	    }
+	});
+    }
+
+    public CompletableFuture<Collection<Item>> getItemsOutbidForUser(final User user) {
+	if (sharded != null) {
+	    return CompletableFuture.completedFuture(sharded.getItemsOutbidForUser(user));
+	}
+	return call(new Callable<Collection<Item>>() {
+	    public Collection<Item> call() {
+		return delegate.getItemsOutbidForUser(user);
+	    }
+	});
+    }
+
+    public CompletableFuture<Collection<User>> getAllRegisteredUsers() {
+	if (sharded != null) {
+	    return CompletableFuture.completedFuture(sharded.getAllRegisteredUsers());
+	}
+	return call(new Callable<Collection<User>>() {
+	    public Collection<User> call() {
+		return delegate.getAllRegisteredUsers();
+	    }
+	});
+    }
+
+    public CompletableFuture<Collection<Item>> getAllRegisteredItems() {
+	if (sharded != null) {
+	    return CompletableFuture.completedFuture(sharded.getAllRegisteredItems());
+	}
+	return call(new Callable<Collection<Item>>() {
+	    public Collection<Item> call() {
+		return delegate.getAllRegisteredItems();
+	    }
+	});
+    }
+
+    // Stop the timer, and the executor and tracker if they were made here. Requests already queued on
+    // them still run
+    public void shutdown() {
+	if (timer != null) {
+	    timer.shutdownNow();
+	}
+	if (ownsExecutor && executor != null) {
+	    executor.shutdown();
+	    try {
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	    } catch (InterruptedException ex) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+	if (ownsDelegate) {
+	    sharded.shutdown();
+	}
+    }
+
+    // Queue a request on a shard and complete the returned future from the shard's future
+    private <T> CompletableFuture<T> queue(Supplier<ListenableFuture<T>> request) {
+	final CompletableFuture<T> future = new CompletableFuture<T>();
+	if (!acquire(future)) {
+	    return future;
+	}
+	final ListenableFuture<T> source;
+	try {
+	    source = request.get();
+	} catch (RejectedExecutionException ex) {
+	    inFlight.release();
+	    future.completeExceptionally(ex);
+	    return future;
+	}
+	source.addListener(new Runnable() {
+	    public void run() {
+		inFlight.release();
+		try {
+		    future.complete(Uninterruptibles.getUninterruptibly(source));
+		} catch (ExecutionException ex) {
+		    future.completeExceptionally(ex.getCause());
+		} catch (CancellationException ex) {
+		    future.cancel(false);
+		}
+	    }
+	}, MoreExecutors.sameThreadExecutor());
+	// A request cancelled or timed out before its shard gets to it is taken off the shard's queue
+	future.whenComplete(new BiConsumer<T, Throwable>() {
+	    public void accept(T result, Throwable failure) {
+		if (failure != null) {
+		    source.cancel(false);
+		}
+	    }
+	});
+	expire(future);
+	return future;
+    }
+
+    // Run a request on the executor and complete the returned future with its result
+    private <T> CompletableFuture<T> call(final Callable<T> request) {
+	final CompletableFuture<T> future = new CompletableFuture<T>();
+	if (!acquire(future)) {
+	    return future;
+	}
+	try {
+	    executor.execute(new Runnable() {
+		public void run() {
+		    // Skip requests that were cancelled or timed out while they waited
+		    if (future.isDone()) {
+			inFlight.release();
+			return;
+		    }
+		    // The slot is free again by the time the caller sees the answer
+		    T result;
+		    try {
+			result = request.call();
+		    } catch (Exception ex) {
+			inFlight.release();
+			future.completeExceptionally(ex);
+			return;
+		    }
+		    inFlight.release();
+		    future.complete(result);
+		}
+	    });
+	} catch (RejectedExecutionException ex) {
+	    inFlight.release();
+	    future.completeExceptionally(ex);
+	    return future;
+	}
+	expire(future);
+	return future;
+    }
+
+    // Take a slot for a new request, or fail its future if there are none left
+    private boolean acquire(CompletableFuture<?> future) {
+	if (inFlight.tryAcquire()) {
+	    return true;
+	}
+	future.completeExceptionally(new RejectedExecutionException("Too many requests in flight: " + maxInFlight));
+	return false;
+    }
+
+    // Fail a future that is still not done once the timeout has passed
+    private void expire(final CompletableFuture<?> future) {
+	if (timer == null || future.isDone()) {
+	    return;
+	}
+	final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+	    public void run() {
+		future.completeExceptionally(new TimeoutException("No answer within " + timeoutMillis + " ms"));
+	    }
+	}, timeoutMillis, TimeUnit.MILLISECONDS);
+	future.whenComplete(new BiConsumer<Object, Throwable>() {
+	    public void accept(Object result, Throwable failure) {
+		timeout.cancel(false);
+	    }
+	});
+    }
+}
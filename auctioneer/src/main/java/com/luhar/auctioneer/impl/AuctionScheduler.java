@@ -0,0 +1,375 @@
+package com.luhar.auctioneer.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.luhar.auctioneer.model.AuctioneerObject;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.BidTrackerListener;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+// Closes auctions when their close time comes round. Pending closes sit in a hierarchical timing wheel:
+// 8 levels of 64 slots, where level k holds closes due within 64^(k+1) ticks and each slot is an
+// intrusive list, so scheduling, moving and cancelling a close are O(1) however many are pending. As time
+// passes, a slot of a higher level is emptied into the levels below once its turn comes, and level 0
+// slots close their items. Ticks with nothing below a level are skipped in one step.
+//
+// Items are scheduled from the tracker's events: a registered item with a close time, a close time
+// changed through BidTracker.setCloseTime, and an item closed by hand. With snipe protection on, a bid
+// made shortly before the close pushes the close back, so the other bidders get a chance to answer.
+//
+// An auction is never closed before its close time, and at most one tick after it while the scheduler
+// keeps up. On a ShardedBidTracker the close runs on the item's shard, after bids already queued for it
+public class AuctionScheduler implements BidTrackerListener {
+    private static final Logger logger = Logger.getLogger(BidTracker.class);
+    static final int WHEEL_BITS = 6;
+    static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    static final int LEVELS = 8;
+    // Level of a timer in the due list, which is emptied on the next advance
+    private static final int DUE = LEVELS;
+
+    // A pending close. Linked into one slot, or the due list, at a time
+    static final class Timer {
+	final Item item;
+	long deadline;
+	int level = -1;
+	int slot;
+	Timer previous;
+	Timer next;
+
+	Timer(Item item) {
+	    this.item = item;
+	}
+    }
+
+    private final BidTrackerImpl tracker;
+    private final ShardedBidTracker sharded;
+    private final long tickMillis;
+    // Clock time of tick 0
+    private final long origin;
+    // Everything below is guarded by the scheduler's lock
+    private final Map<UUID, Timer> timers = new HashMap<UUID, Timer>();
+    private final Timer[][] wheel = new Timer[LEVELS][WHEEL_SIZE];
+    private final int[] levelCounts = new int[LEVELS];
+    private Timer due;
+    // Next tick to process
+    private long current;
+    private volatile long snipeWindow;
+    private volatile long snipeExtension;
+    private volatile boolean running;
+    private Thread ticker;
+
+    public AuctionScheduler(BidTrackerImpl tracker, long tickMillis) {
+	this(tracker, null, tickMillis);
+    }
+
+    // Closes run on the shard that owns each item
+    public AuctionScheduler(ShardedBidTracker sharded, long tickMillis) {
+	this(sharded.getDelegate(), sharded, tickMillis);
+    }
+
+    private AuctionScheduler(BidTrackerImpl tracker, ShardedBidTracker sharded, long tickMillis) {
+	if (tickMillis < 1) {
+	    throw new IllegalArgumentException("Tick must be at least a millisecond: " + tickMillis);
+	}
+	this.tracker = tracker;
+	this.sharded = sharded;
+	this.tickMillis = tickMillis;
+	this.origin = AuctioneerObject.getClock().currentTimeMillis();
+	// Listen first, so an item registered while the existing ones are scheduled is not missed
+	tracker.addListener(this);
+	for (Item item : tracker.getAllRegisteredItems()) {
+	    schedule(item);
+	}
+    }
+
+    // Push the close back to extensionMillis after any bid made within windowMillis of it. Zero turns it off
+    public void setSnipeProtection(long windowMillis, long extensionMillis) {
+	if (windowMillis < 0 || extensionMillis < 0) {
+	    throw new IllegalArgumentException("Snipe window and extension must not be negative");
+	}
+	this.snipeExtension = extensionMillis;
+	this.snipeWindow = windowMillis;
+    }
+
+    // Closes waiting to happen
+    public synchronized int getPendingCount() {
+	return timers.size();
+    }
+
+    // Advance on the tracker's clock from a daemon thread, once a tick
+    public synchronized void start() {
+	if (ticker != null) {
+	    return;
+	}
+	running = true;
+	ticker = new Thread(new Runnable() {
+	    public void run() {
+		long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		while (running) {
+		    try {
+			advance(AuctioneerObject.getClock().currentTimeMillis());
+		    } catch (RuntimeException ex) {
+			logger.error("Could not close due auctions", ex);
+		    }
+		    LockSupport.parkNanos(tickNanos);
+		}
+	    }
+	}, "auctioneer-scheduler");
+	ticker.setDaemon(true);
+	ticker.start();
+    }
+
+    // Stop the thread and stop listening. Pending closes are dropped
+    public void shutdown() throws InterruptedException {
+	Thread thread;
+	synchronized (this) {
+	    running = false;
+	    thread = ticker;
+	    ticker = null;
+	}
+	if (thread != null) {
+	    thread.join();
+	}
+	tracker.removeListener(this);
+    }
+
+    // Close every auction due by nowMillis. Returns how many closes were made or queued
+    public int advance(long nowMillis) {
+	List<Item> closing = new ArrayList<Item>();
+	synchronized (this) {
+	    for (Timer timer = due; timer != null; timer = timer.next) {
+		closing.add(timer.item);
+		timers.remove(timer.item.getID());
+		timer.level = -1;
+	    }
+	    due = null;
+	    long target = nowMillis < origin ? -1 : (nowMillis - origin) / tickMillis;
+	    while (current <= target) {
+		long tick = current;
+		for (int level = LEVELS - 1; level > 0; level--) {
+		    if ((tick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+			cascade(level, (int) ((tick >>> (WHEEL_BITS * level)) & (WHEEL_SIZE - 1)));
+		    }
+		}
+		int slot = (int) (tick & (WHEEL_SIZE - 1));
+		Timer timer = wheel[0][slot];
+		wheel[0][slot] = null;
+		while (timer != null) {
+		    Timer next = timer.next;
+		    levelCounts[0]--;
+		    timer.level = -1;
+		    timer.previous = null;
+		    timer.next = null;
+		    if (timer.deadline > tick) {
+			// Was parked out of the wheel's reach
+			insert(timer);
+		    } else {
+			timers.remove(timer.item.getID());
+			closing.add(timer.item);
+		    }
+		    timer = next;
+		}
+		current = nextTick(tick, target);
+	    }
+	}
+	// Close outside the lock, as closing tells the tracker's listeners, this one among them. A close that a
+	// late bid put off after it was taken from the wheel goes back in for its new time
+	for (final Item item : closing) {
+	    if (sharded != null) {
+		final long now = nowMillis;
+		final ListenableFuture<Boolean> closed = sharded.submitDueClose(item, now);
+		closed.addListener(new Runnable() {
+		    public void run() {
+			if (!Futures.getUnchecked(closed)) {
+			    rescheduleIfMoved(item, now);
+			}
+		    }
+		}, MoreExecutors.sameThreadExecutor());
+	    } else if (!tracker.closeDueItem(item, nowMillis)) {
+		rescheduleIfMoved(item, nowMillis);
+	    }
+	}
+	return closing.size();
+    }
+
+    // Tick to process after this one. Jumps over ticks where nothing can fire: with the lowest k levels
+    // empty, nothing happens before the next tick that is a multiple of 64^k
+    private long nextTick(long tick, long target) {
+	int level = 0;
+	while (level < LEVELS && levelCounts[level] == 0) {
+	    level++;
+	}
+	if (level == 0) {
+	    return tick + 1;
+	}
+	if (level == LEVELS) {
+	    return Math.max(tick + 1, target + 1);
+	}
+	long next = ((tick >>> (WHEEL_BITS * level)) + 1) << (WHEEL_BITS * level);
+	return Math.max(tick + 1, Math.min(next, target + 1));
+    }
+
+    // Move the timers of a higher level slot to the levels below, now that the slot's turn has come
+    private void cascade(int level, int slot) {
+	Timer timer = wheel[level][slot];
+	wheel[level][slot] = null;
+	while (timer != null) {
+	    Timer next = timer.next;
+	    levelCounts[level]--;
+	    timer.level = -1;
+	    timer.previous = null;
+	    timer.next = null;
+	    insert(timer);
+	    timer = next;
+	}
+    }
+
+    private synchronized void schedule(Item item) {
+	long closeTime = item.getCloseTime();
+	Timer timer = timers.get(item.getID());
+	if (closeTime == Item.NO_CLOSE_TIME || item.isClosed()) {
+	    if (timer != null) {
+		unlink(timer);
+		timers.remove(item.getID());
+	    }
+	    return;
+	}
+	if (timer == null) {
+	    timer = new Timer(item);
+	    timers.put(item.getID(), timer);
+	} else {
+	    unlink(timer);
+	}
+	// Round up, so an auction never closes early
+	long delta = closeTime - origin;
+	timer.deadline = delta <= 0 ? 0 : (delta - 1) / tickMillis + 1;
+	insert(timer);
+    }
+
+    // A due close was not made. If that is because the close time moved on, wait for the new time
+    private void rescheduleIfMoved(Item item, long nowMillis) {
+	if (item.getCloseTime() > nowMillis) {
+	    schedule(item);
+	}
+    }
+
+    private synchronized void cancel(Item item) {
+	Timer timer = timers.remove(item.getID());
+	if (timer != null) {
+	    unlink(timer);
+	}
+    }
+
+    // Link a timer into the lowest level whose span reaches its deadline from the current tick
+    private void insert(Timer timer) {
+	long deadline = timer.deadline;
+	if (deadline < current) {
+	    link(timer, DUE, 0);
+	    return;
+	}
+	if ((deadline >>> (WHEEL_BITS * LEVELS)) != (current >>> (WHEEL_BITS * LEVELS))) {
+	    // Further out than the wheel reaches. Park it on the last tick it covers, to be put back from there
+	    deadline = current | ((1L << (WHEEL_BITS * LEVELS)) - 1);
+	}
+	int level = 0;
+	while ((deadline >>> (WHEEL_BITS * (level + 1))) != (current >>> (WHEEL_BITS * (level + 1)))) {
+	    level++;
+	}
+	link(timer, level, (int) ((deadline >>> (WHEEL_BITS * level)) & (WHEEL_SIZE - 1)));
+    }
+
+    private void link(Timer timer, int level, int slot) {
+	Timer head = level == DUE ? due : wheel[level][slot];
+	timer.level = level;
+	timer.slot = slot;
+	timer.previous = null;
+	timer.next = head;
+	if (head != null) {
+	    head.previous = timer;
+	}
+	if (level == DUE) {
+	    due = timer;
+	} else {
+	    wheel[level][slot] = timer;
+	    levelCounts[level]++;
+	}
+    }
+
+    private void unlink(Timer timer) {
+	if (timer.level < 0) {
+	    return;
+	}
+	if (timer.previous != null) {
+	    timer.previous.next = timer.next;
+	} else if (timer.level == DUE) {
+	    due = timer.next;
+	} else {
+	    wheel[timer.level][timer.slot] = timer.next;
+	}
+	if (timer.next != null) {
+	    timer.next.previous = timer.previous;
+	}
+	if (timer.level != DUE) {
+	    levelCounts[timer.level]--;
+	}
+	timer.level = -1;
+	timer.previous = null;
+	timer.next = null;
+    }
+
+    public void userRegistered(User user) {
+    }
+
+    public void itemRegistered(Item item) {
+	if (item.getCloseTime() != Item.NO_CLOSE_TIME) {
+	    schedule(item);
+	}
+    }
+
+    public void bidPlaced(Bid bid) {
+	protectFromSnipe(bid);
+    }
+
+    public void bidAmended(Bid bid) {
+	protectFromSnipe(bid);
+    }
+
+    public void closeTimeChanged(Item item) {
+	schedule(item);
+    }
+
+    public void itemClosed(Item item, Bid winner) {
+	cancel(item);
+    }
+
+    // Runs on the thread placing the bid, which owns the item, so the close time can be changed directly
+    private void protectFromSnipe(Bid bid) {
+	long window = snipeWindow;
+	if (window == 0) {
+	    return;
+	}
+	Item item = bid.getItem();
+	long closeTime = item.getCloseTime();
+	if (closeTime == Item.NO_CLOSE_TIME) {
+	    return;
+	}
+	long bidTime = bid.getLastUpdateTime();
+	long extended = bidTime + snipeExtension;
+	if (bidTime >= closeTime - window && extended > closeTime) {
+	    tracker.setCloseTime(item, extended);
+	}
+    }
+}
@@ -0,0 +1,270 @@
+package com.luhar.auctioneer.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import com.luhar.auctioneer.model.AuctioneerObject;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.BidTrackerListener;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+// Audit trail of every change a BidTrackerImpl accepts, one line per change written by a background thread.
+// Changes are copied into a ring of events made up front, so the bid path only fills in a slot and never
+// allocates or formats anything. When the ring is full the bid path waits for the writer to catch up
+// rather than lose an event. Lines look like
+//   1700000000000 BID_PLACED bid=... item=... user=... amount=12.50 updated=1700000000000
+public class AuditLog implements BidTrackerListener {
+    private static final Logger logger = Logger.getLogger(BidTracker.class);
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+    // Writer sleeps this long when there is nothing to write, producers this long when the ring is full
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    enum EventType {
+	USER_REGISTERED, ITEM_REGISTERED, BID_PLACED, BID_AMENDED, CLOSE_TIME_CHANGED, ITEM_CLOSED
+    }
+
+    // One slot of the ring. Filled by a producer, then published by setting sequence
+    static final class Event {
+	volatile long sequence = -1;
+	EventType type;
+	long time;
+	UUID id;
+	UUID itemID;
+	UUID userID;
+	String name;
+	BigDecimal amount;
+	long amountUnits;
+	PriceScale priceScale;
+	long lastUpdated;
+    }
+
+    private final Writer out;
+    private final Event[] ring;
+    private final int mask;
+    // Next sequence to hand to a producer
+    private final AtomicLong claimed = new AtomicLong();
+    // Every event below this sequence has been written
+    private volatile long written;
+    private volatile boolean running = true;
+    private final Thread writer;
+    // Reused by the writer thread for each line
+    private final StringBuilder line = new StringBuilder(256);
+
+    public AuditLog(Writer out) {
+	this(out, DEFAULT_CAPACITY);
+    }
+
+    // capacity is rounded up to a power of two
+    public AuditLog(Writer out, int capacity) {
+	if (capacity < 1) {
+	    throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+	}
+	int size = Integer.highestOneBit(capacity);
+	if (size < capacity) {
+	    size <<= 1;
+	}
+	this.out = out;
+	this.ring = new Event[size];
+	this.mask = size - 1;
+	for (int i = 0; i < size; i++) {
+	    ring[i] = new Event();
+	}
+	writer = new Thread(new Runnable() {
+	    public void run() {
+		drain();
+	    }
+	}, "auctioneer-audit");
+	writer.setDaemon(true);
+	writer.start();
+    }
+
+    public void userRegistered(User user) {
+	long sequence = claim();
+	Event event = ring[(int) (sequence & mask)];
+	event.type = EventType.USER_REGISTERED;
+	event.id = user.getID();
+	event.name = user.getName();
+	event.sequence = sequence;
+    }
+
+    public void itemRegistered(Item item) {
+	long sequence = claim();
+	Event event = ring[(int) (sequence & mask)];
+	event.type = EventType.ITEM_REGISTERED;
+	event.id = item.getID();
+	event.name = item.getItemName();
+	event.priceScale = item.getPriceScale();
+	event.amount = item.getReserveAmount();
+	event.sequence = sequence;
+    }
+
+    public void bidPlaced(Bid bid) {
+	long sequence = claim();
+	Event event = ring[(int) (sequence & mask)];
+	event.type = EventType.BID_PLACED;
+	copyBid(bid, event);
+	event.sequence = sequence;
+    }
+
+    public void bidAmended(Bid bid) {
+	long sequence = claim();
+	Event event = ring[(int) (sequence & mask)];
+	event.type = EventType.BID_AMENDED;
+	copyBid(bid, event);
+	event.sequence = sequence;
+    }
+
+    public void closeTimeChanged(Item item) {
+	long sequence = claim();
+	Event event = ring[(int) (sequence & mask)];
+	event.type = EventType.CLOSE_TIME_CHANGED;
+	event.itemID = item.getID();
+	event.lastUpdated = item.getCloseTime();
+	event.sequence = sequence;
+    }
+
+    public void itemClosed(Item item, Bid winner) {
+	long sequence = claim();
+	Event event = ring[(int) (sequence & mask)];
+	event.type = EventType.ITEM_CLOSED;
+	if (winner != null) {
+	    copyBid(winner, event);
+	}
+	event.itemID = item.getID();
+	event.sequence = sequence;
+    }
+
+    // The amount is copied now, as the bid may change again before the line is written. Fixed point
+    // amounts are kept in minor units and only turned into a BigDecimal by the writer
+    private void copyBid(Bid bid, Event event) {
+	event.id = bid.getID();
+	event.itemID = bid.getItem().getID();
+	event.userID = bid.getUser().getID();
+	event.priceScale = bid.getItem().getPriceScale();
+	if (event.priceScale != null) {
+	    event.amountUnits = bid.getBidAmountUnits();
+	} else {
+	    event.amount = bid.getBidAmount();
+	}
+	event.lastUpdated = bid.getLastUpdateTime();
+    }
+
+    // Take the next sequence, waiting while the writer is a whole ring behind. The event in its slot is
+    // handed to the writer by setting its sequence once it has been filled in
+    private long claim() {
+	long sequence = claimed.getAndIncrement();
+	while (sequence - written >= ring.length) {
+	    LockSupport.parkNanos(PARK_NANOS);
+	}
+	ring[(int) (sequence & mask)].time = AuctioneerObject.getClock().currentTimeMillis();
+	return sequence;
+    }
+
+    // Number of events written so far
+    public long getWritten() {
+	return written;
+    }
+
+    // Wait until every event published before this call has been written, or the timeout passes
+    public boolean flush(long timeout, TimeUnit unit) {
+	long target = claimed.get();
+	long deadline = System.nanoTime() + unit.toNanos(timeout);
+	while (written < target) {
+	    if (System.nanoTime() > deadline || !writer.isAlive()) {
+		return false;
+	    }
+	    LockSupport.parkNanos(PARK_NANOS);
+	}
+	return true;
+    }
+
+    // Write what is left and stop the writer thread. Listeners should be removed from the tracker first
+    public void shutdown() throws InterruptedException {
+	running = false;
+	writer.join();
+    }
+
+    private void drain() {
+	long next = 0;
+	boolean unflushed = false;
+	while (true) {
+	    Event event = ring[(int) (next & mask)];
+	    if (event.sequence == next) {
+		write(event);
+		event.id = null;
+		event.itemID = null;
+		event.userID = null;
+		event.name = null;
+		event.amount = null;
+		event.priceScale = null;
+		written = ++next;
+		unflushed = true;
+		continue;
+	    }
+	    // Caught up, so push out what has been written before waiting
+	    if (unflushed) {
+		try {
+		    out.flush();
+		} catch (IOException ex) {
+		    logger.error("Could not flush audit log", ex);
+		}
+		unflushed = false;
+	    }
+	    if (!running && claimed.get() == next) {
+		return;
+	    }
+	    LockSupport.parkNanos(PARK_NANOS);
+	}
+    }
+
+    private void write(Event event) {
+	line.setLength(0);
+	line.append(event.time).append(' ').append(event.type.name());
+	switch (event.type) {
+	case USER_REGISTERED:
+	    line.append(" user=").append(event.id).append(" name=").append(event.name);
+	    break;
+	case ITEM_REGISTERED:
+	    line.append(" item=").append(event.id).append(" name=").append(event.name)
+		    .append(" reserve=").append(event.amount.toPlainString());
+	    if (event.priceScale != null) {
+		line.append(" scale=").append(event.priceScale.getScale());
+	    }
+	    break;
+	case CLOSE_TIME_CHANGED:
+	    line.append(" item=").append(event.itemID).append(" close=").append(event.lastUpdated);
+	    break;
+	case ITEM_CLOSED:
+	    line.append(" item=").append(event.itemID);
+	    if (event.id == null) {
+		line.append(" winner=none");
+		break;
+	    }
+	    BigDecimal winning = event.priceScale != null ? event.priceScale.toAmount(event.amountUnits) : event.amount;
+	    line.append(" winner=").append(event.id).append(" user=").append(event.userID)
+		    .append(" amount=").append(winning.toPlainString());
+	    break;
+	default:
+	    BigDecimal amount = event.priceScale != null ? event.priceScale.toAmount(event.amountUnits) : event.amount;
+	    line.append(" bid=").append(event.id).append(" item=").append(event.itemID)
+		    .append(" user=").append(event.userID).append(" amount=").append(amount.toPlainString())
+		    .append(" updated=").append(event.lastUpdated);
+	}
+	line.append('\n');
+	try {
+	    out.append(line);
+	} catch (IOException ex) {
+	    logger.error("Could not write audit event: " + line, ex);
+	}
+    }
+}
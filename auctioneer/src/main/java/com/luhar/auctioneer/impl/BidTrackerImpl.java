@@ -1,102 +1,830 @@
 package com.luhar.auctioneer.impl;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
 
+import com.google.common.base.Predicate;
+import com.luhar.auctioneer.metrics.Operation;
+import com.luhar.auctioneer.metrics.RejectReason;
+import com.luhar.auctioneer.metrics.TrackerMetrics;
 import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidCursor;
+import com.luhar.auctioneer.model.BidPage;
+import com.luhar.auctioneer.model.BidRequest;
 import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.BidTrackerListener;
 import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.OffHeapBidStore;
 import com.luhar.auctioneer.model.User;
 import com.luhar.auctioneer.utils.ObjectCache;
 
 public class BidTrackerImpl implements BidTracker {
     private static final Logger logger = Logger.getLogger(BidTracker.class);
+    private static final Predicate<Item> CLOSED_ITEMS = new Predicate<Item>() {
+	public boolean apply(Item item) {
+	    return item.isClosed();
+	}
+    };
+    // Set once before the tracker is used, see setItemCache
     private ObjectCache<Item> items = new ObjectCache<Item>();
     private ObjectCache<User> users = new ObjectCache<User>();
     private ObjectCache<Bid> bids = new ObjectCache<Bid>();
+    // Holds the bids of fixed point items when set, see setBidStore
+    private OffHeapBidStore bidStore;
+    // Copied on write, so the bid path can walk it without locking or allocating an iterator
+    private volatile BidTrackerListener[] listeners = new BidTrackerListener[0];
+    // Null while metrics are off
+    private volatile TrackerMetrics metrics;
+    
+    // Keep items in the given cache, such as one bounded with an ItemArchive behind it. Has to be called
+    // before any item is registered. Only closed items are let go: callers may still hold an open item and
+    // bid on it, and those bids would go into a book the reloaded copy knows nothing of
+    public void setItemCache(ObjectCache<Item> itemCache) {
+	if (!items.getAllItems().isEmpty()) {
+	    throw new IllegalStateException("Items have already been registered");
+	}
+	itemCache.setEvictable(CLOSED_ITEMS);
+	this.items = itemCache;
+    }
+    
+    // Keep the bids of fixed point items registered from now on in the given store rather than on the heap.
+    // Such bids are found through the store, so neither the bid index nor their users hold them. Has to
+    // be called before any item is registered
+    public void setBidStore(OffHeapBidStore store) {
+	if (!items.getAllItems().isEmpty()) {
+	    throw new IllegalStateException("Items have already been registered");
+	}
+	this.bidStore = store;
+    }
+    
+    public OffHeapBidStore getBidStore() {
+	return bidStore;
+    }
+    
+    public ObjectCache.Stats getItemCacheStats() {
+	return items.getStats();
+    }
+    
+    // Move a closed item out of memory. Its bids leave the tracker's bid index and its bidders' lists, so
+    // nothing is left holding the item's book. getItem still finds the item, reading it back with its book
+    // from the item cache's store. Returns false if the cache has no store or the item is not in memory
+    public boolean archiveItem(Item item) {
+	if (!item.isClosed()) {
+	    throw new IllegalArgumentException("Only closed items can be archived: " + item.toString());
+	}
+	if (!items.evictItem(item.getID())) {
+	    return false;
+	}
+	dropBids(item);
+	if (logger.isInfoEnabled()) {
+	    logger.info("Archived item: " + item.toString());
+	}
+	return true;
+    }
+    
+    // Forget an item and its bids altogether, as when the item moves to another tracker. Returns false if
+    // the item is not in memory
+    public boolean removeItem(Item item) {
+	if (items.removeItem(item.getID()) == null) {
+	    return false;
+	}
+	dropBids(item);
+	if (logger.isInfoEnabled()) {
+	    logger.info("Removed item: " + item.toString());
+	}
+	return true;
+    }
+    
+    // Take an item's bids out of the bid index and their bidders' lists
+    private void dropBids(Item item) {
+	if (item.getBidStore() != null) {
+	    item.releaseBids();
+	} else {
+	    for (Bid bid : item.getBids()) {
+		bids.removeItem(bid.getID());
+		bid.getUser().removeBid(bid);
+	    }
+	}
+    }
     
+    // Record the latency of every operation and the outcome of every bid in the given metrics from now on.
+    // Null turns metrics off
+    public void setMetrics(TrackerMetrics metrics) {
+	this.metrics = metrics;
+    }
+    
+    public TrackerMetrics getMetrics() {
+	return metrics;
+    }
+    
+    // Tell a listener about every change from now on
+    public synchronized void addListener(BidTrackerListener listener) {
+	BidTrackerListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+	newListeners[listeners.length] = listener;
+	listeners = newListeners;
+    }
+    
+    public synchronized void removeListener(BidTrackerListener listener) {
+	BidTrackerListener[] current = listeners;
+	for (int i = 0; i < current.length; i++) {
+	    if (current[i] == listener) {
+		BidTrackerListener[] newListeners = new BidTrackerListener[current.length - 1];
+		System.arraycopy(current, 0, newListeners, 0, i);
+		System.arraycopy(current, i + 1, newListeners, i, current.length - i - 1);
+		listeners = newListeners;
+		return;
+	    }
+	}
+    }
     
     public boolean registerUser(User user) {
+	long start = startTimer();
+	boolean registered = addUser(user);
+	stopTimer(Operation.REGISTER_USER, start);
+	return registered;
+    }
+    
+    private boolean addUser(User user) {
 	if (users.containsItem(user)) { 
 	    logger.warn("Attempting to register duplicate user: " + user.toString());
 	    return false;
 	}
 	
-	logger.info("Registering user: " + user.toString());
+	if (logger.isInfoEnabled()) {
+	    logger.info("Registering user: " + user.toString());
+	}
 	users.addItem(user);
+	for (BidTrackerListener listener : listeners) {
+	    listener.userRegistered(user);
+	}
 	return true;
     }
     
     public boolean registerItem(Item item) {
+	long start = startTimer();
+	boolean registered = addItem(item);
+	stopTimer(Operation.REGISTER_ITEM, start);
+	return registered;
+    }
+    
+    private boolean addItem(Item item) {
 	if (items.containsItem(item)) {
 	    logger.warn("Attempting to register duplicate item: " + item.toString());
 	    return false;
 	}
 	
-	logger.info("Registering item: " + item.toString());
+	if (logger.isInfoEnabled()) {
+	    logger.info("Registering item: " + item.toString());
+	}
+	useBidStore(item);
 	items.addItem(item);
+	for (BidTrackerListener listener : listeners) {
+	    listener.itemRegistered(item);
+	}
 	return true;
     }
     
+    // Register many users at once, as a BulkImporter does. Safe to call from several threads: each user is
+    // checked and added in one step, so duplicates are caught within and across batches. Listeners are told
+    // of each user, but nothing is logged per user. Returns the users that were already registered
+    public List<User> registerUsers(Collection<User> newUsers) {
+	long start = startTimer();
+	List<User> duplicates = new ArrayList<User>();
+	for (User user : newUsers) {
+	    if (users.addIfAbsent(user)) {
+		for (BidTrackerListener listener : listeners) {
+		    listener.userRegistered(user);
+		}
+	    } else {
+		duplicates.add(user);
+	    }
+	}
+	stopTimer(Operation.REGISTER_USERS, start);
+	if (logger.isInfoEnabled()) {
+	    logger.info("Registered " + (newUsers.size() - duplicates.size()) + " users");
+	}
+	return duplicates;
+    }
+    
+    // Same as registerUsers for items
+    public List<Item> registerItems(Collection<Item> newItems) {
+	long start = startTimer();
+	List<Item> duplicates = new ArrayList<Item>();
+	for (Item item : newItems) {
+	    // Checked first as well, so a duplicate does not take a place in the bid store
+	    if (!items.containsItem(item)) {
+		useBidStore(item);
+		if (items.addIfAbsent(item)) {
+		    for (BidTrackerListener listener : listeners) {
+			listener.itemRegistered(item);
+		    }
+		    continue;
+		}
+		// Another batch registered the item in between. Give back the place this copy took in the bid
+		// store, unless the registered item is this very one
+		if (items.getItem(item.getID()) != item) {
+		    item.releaseBids();
+		}
+	    }
+	    duplicates.add(item);
+	}
+	stopTimer(Operation.REGISTER_ITEMS, start);
+	if (logger.isInfoEnabled()) {
+	    logger.info("Registered " + (newItems.size() - duplicates.size()) + " items");
+	}
+	return duplicates;
+    }
+    
     public Bid registerBid(Item item, User user, BigDecimal amount) {
+	long start = startTimer();
+	Bid bid = placeBid(item, user, amount);
+	stopTimer(Operation.REGISTER_BID, start);
+	return bid;
+    }
+    
+    // Record a bid in minor units on a fixed point item. Ranking and the reserve check are done on longs
+    public Bid registerBid(Item item, User user, long amountUnits) {
+	long start = startTimer();
+	Bid bid = placeBid(item, user, amountUnits);
+	stopTimer(Operation.REGISTER_BID, start);
+	return bid;
+    }
+    
+    private Bid placeBid(Item item, User user, BigDecimal amount) {
+	if (item.getPriceScale() != null) {
+	    // Fixed point item. Convert once here and work in minor units from then on
+	    long amountUnits;
+	    try {
+		amountUnits = item.getPriceScale().toUnits(amount);
+	    } catch (ArithmeticException ex) {
+		logger.warn("Reject bid because amount does not fit the item's price scale: " + amount.toPlainString());
+		countRejected(RejectReason.INVALID_AMOUNT);
+		return null;
+	    }
+	    return placeBid(item, user, amountUnits);
+	}
 	boolean itemCheck = items.containsItem(item);
+	boolean openCheck = !item.isClosed();
 	boolean userCheck = users.containsItem(user);
 	// Bid amount has to be non-zero and greater than the reserve amount
-	boolean amountCheck = amount.compareTo(BigDecimal.ZERO) > 0 && amount.compareTo(item.getReserveAmount()) >= 0;
-	if (itemCheck && userCheck && amountCheck) {
+	boolean amountCheck = amount.compareTo(BigDecimal.ZERO) > 0;
+	boolean reserveCheck = amount.compareTo(item.getReserveAmount()) >= 0;
+	if (itemCheck && openCheck && userCheck && amountCheck && reserveCheck) {
 	    // First check if the item already has a bid by this user. If it has, simply modify the bid amount
 	    Bid existingBid = item.getBidFromUser(user);
 	    if (existingBid != null) {
-		logger.info("Item: " + item.toString() + " already contains a bid from user: " + user.toString());
+		if (logger.isInfoEnabled()) {
+		    logger.info("Item: " + item.toString() + " already contains a bid from user: " + user.toString());
+		}
 		if (existingBid.getBidAmount().compareTo(amount) != 0) {
 		    // Modify the bid amount
-		    logger.info("Modifying amount for existing Bid: " + existingBid.toString() + " to: " + amount.toPlainString());
-		    existingBid.setBidAmount(amount);
-		    item.bidModified(existingBid);
-		    return existingBid;
+		    if (logger.isInfoEnabled()) {
+			logger.info("Modifying amount for existing Bid: " + existingBid.toString() + " to: " + amount.toPlainString());
+		    }
+		    if (!item.updateBid(existingBid, amount)) {
+			return closedDuringBid(item, null);
+		    }
+		    for (BidTrackerListener listener : listeners) {
+			listener.bidAmended(existingBid);
+		    }
+		    countAmended();
 		}
+		// A bid already at this amount is left alone, like applyRequest does
+		return existingBid;
 	    }
 	    // Get the user to make a new bid
 	    Bid newBid = user.makeBid(item, amount);
-	    item.addBid(newBid);
+	    if (!item.addBid(newBid)) {
+		return closedDuringBid(item, newBid);
+	    }
 	    bids.addItem(newBid);
-	    logger.info(String.format("Registered new bid: %s for item: %s by user: %s", newBid.toString(), item.toString(), user.toString()));
+	    for (BidTrackerListener listener : listeners) {
+		listener.bidPlaced(newBid);
+	    }
+	    countPlaced();
+	    if (logger.isInfoEnabled()) {
+		logger.info(String.format("Registered new bid: %s for item: %s by user: %s", newBid.toString(), item.toString(), user.toString()));
+	    }
 	    return newBid;
 	} 
 	
 	if (!itemCheck) { logger.warn("Reject bid because of invalid item: " + item.toString()); }
+	if (!openCheck) { logger.warn("Reject bid because of closed item: " + item.toString()); }
 	if (!userCheck) { logger.warn("Reject bid because of invalid user: " + user.toString()); }
-	if (!amountCheck) { logger.warn("Reject bid because of invalid amount: " + amount.toPlainString()); }
+	if (!amountCheck || !reserveCheck) { logger.warn("Reject bid because of invalid amount: " + amount.toPlainString()); }
+	countRejected(rejectReason(itemCheck, openCheck, userCheck, amountCheck));
 	return null;
     }
+    
+    private Bid placeBid(Item item, User user, long amountUnits) {
+	if (item.getPriceScale() == null) {
+	    throw new IllegalArgumentException("Item does not use a fixed point price scale: " + item.toString());
+	}
+	boolean itemCheck = items.containsItem(item);
+	boolean openCheck = !item.isClosed();
+	boolean userCheck = users.containsItem(user);
+	// Bid amount has to be non-zero and greater than the reserve amount
+	boolean amountCheck = amountUnits > 0;
+	boolean reserveCheck = amountUnits >= item.getReserveAmountUnits();
+	if (itemCheck && openCheck && userCheck && amountCheck && reserveCheck) {
+	    // First check if the item already has a bid by this user. If it has, simply modify the bid amount
+	    Bid existingBid = item.getBidFromUser(user);
+	    if (existingBid != null) {
+		if (logger.isInfoEnabled()) {
+		    logger.info("Item: " + item.toString() + " already contains a bid from user: " + user.toString());
+		}
+		if (existingBid.getBidAmountUnits() != amountUnits) {
+		    // Modify the bid amount
+		    if (logger.isInfoEnabled()) {
+			logger.info("Modifying amount for existing Bid: " + existingBid.toString() + " to: " + amountUnits + " units");
+		    }
+		    if (!item.updateBid(existingBid, amountUnits)) {
+			return closedDuringBid(item, null);
+		    }
+		    for (BidTrackerListener listener : listeners) {
+			listener.bidAmended(existingBid);
+		    }
+		    countAmended();
+		}
+		// A bid already at this amount is left alone, like applyRequest does
+		return existingBid;
+	    }
+	    // Get the user to make a new bid
+	    Bid newBid = makeBid(item, user, amountUnits);
+	    if (!item.addBid(newBid)) {
+		return closedDuringBid(item, newBid);
+	    }
+	    indexBid(newBid);
+	    for (BidTrackerListener listener : listeners) {
+		listener.bidPlaced(newBid);
+	    }
+	    countPlaced();
+	    if (logger.isInfoEnabled()) {
+		logger.info(String.format("Registered new bid: %s for item: %s by user: %s", newBid.toString(), item.toString(), user.toString()));
+	    }
+	    return newBid;
+	}
+	
+	if (!itemCheck) { logger.warn("Reject bid because of invalid item: " + item.toString()); }
+	if (!openCheck) { logger.warn("Reject bid because of closed item: " + item.toString()); }
+	if (!userCheck) { logger.warn("Reject bid because of invalid user: " + user.toString()); }
+	if (!amountCheck || !reserveCheck) { logger.warn("Reject bid because of invalid amount: " + amountUnits + " units"); }
+	countRejected(rejectReason(itemCheck, openCheck, userCheck, amountCheck));
+	return null;
+    }
+    
+    // The item closed after the bid was checked and its book refused the bid. A new bid is taken back
+    // from its user, so nothing refers to it
+    private Bid closedDuringBid(Item item, Bid newBid) {
+	if (newBid != null) {
+	    newBid.getUser().removeBid(newBid);
+	}
+	logger.warn("Reject bid because of closed item: " + item.toString());
+	countRejected(RejectReason.CLOSED_ITEM);
+	return null;
+    }
+    
+    // First failed check of a rejected bid. The reserve is the only one left if the others passed
+    private static RejectReason rejectReason(boolean itemCheck, boolean openCheck, boolean userCheck, boolean amountCheck) {
+	if (!itemCheck) {
+	    return RejectReason.INVALID_ITEM;
+	}
+	if (!openCheck) {
+	    return RejectReason.CLOSED_ITEM;
+	}
+	if (!userCheck) {
+	    return RejectReason.INVALID_USER;
+	}
+	return amountCheck ? RejectReason.BELOW_RESERVE : RejectReason.INVALID_AMOUNT;
+    }
 
+    
+    // Record a burst of bids. Every request is checked first, then the valid ones are grouped by item and
+    // each item's book is updated in one go. A user who bids on the same item several times in a batch
+    // only has their last valid amount applied, so their earlier requests get the same bid back
+    public List<Bid> registerBids(Collection<BidRequest> requests) {
+	long start = startTimer();
+	List<Bid> results = placeBids(requests);
+	stopTimer(Operation.REGISTER_BIDS, start);
+	return results;
+    }
+    
+    private List<Bid> placeBids(Collection<BidRequest> requests) {
+	BidRequest[] batch = requests.toArray(new BidRequest[requests.size()]);
+	Bid[] results = new Bid[batch.length];
+	boolean[] accepted = new boolean[batch.length];
+	// Amounts in minor units, for requests on fixed point items
+	long[] amountUnits = new long[batch.length];
+	// For each item, the index of every user's last accepted request, in the order the users appear
+	Map<UUID, Map<UUID, Integer>> lastRequests = new LinkedHashMap<UUID, Map<UUID, Integer>>();
+	int rejected = 0;
+	for (int i = 0; i < batch.length; i++) {
+	    if (!checkRequest(batch[i], amountUnits, i)) {
+		rejected++;
+		continue;
+	    }
+	    accepted[i] = true;
+	    UUID itemID = batch[i].getItem().getID();
+	    Map<UUID, Integer> itemRequests = lastRequests.get(itemID);
+	    if (itemRequests == null) {
+		itemRequests = new LinkedHashMap<UUID, Integer>();
+		lastRequests.put(itemID, itemRequests);
+	    }
+	    itemRequests.put(batch[i].getUser().getID(), i);
+	}
+	
+	for (Map<UUID, Integer> itemRequests : lastRequests.values()) {
+	    for (int index : itemRequests.values()) {
+		results[index] = applyRequest(batch[index], amountUnits[index]);
+	    }
+	}
+	// Requests overtaken by a later one from the same user share its outcome, which is null if the item
+	// closed before it was applied
+	for (int i = 0; i < batch.length; i++) {
+	    if (accepted[i]) {
+		results[i] = results[lastRequests.get(batch[i].getItem().getID()).get(batch[i].getUser().getID())];
+	    }
+	}
+	if (logger.isInfoEnabled()) {
+	    logger.info("Registered batch of " + batch.length + " bids on " + lastRequests.size() + " items, " + rejected + " rejected");
+	}
+	return Arrays.asList(results);
+    }
+    
+    // Validate a batched request the same way registerBid does. Amounts for fixed point items are
+    // converted into amountUnits[index]
+    private boolean checkRequest(BidRequest request, long[] amountUnits, int index) {
+	Item item = request.getItem();
+	BigDecimal amount = request.getAmount();
+	if (!items.containsItem(item)) {
+	    logger.warn("Reject bid because of invalid item: " + item.toString());
+	    countRejected(RejectReason.INVALID_ITEM);
+	    return false;
+	}
+	if (item.isClosed()) {
+	    logger.warn("Reject bid because of closed item: " + item.toString());
+	    countRejected(RejectReason.CLOSED_ITEM);
+	    return false;
+	}
+	if (!users.containsItem(request.getUser())) {
+	    logger.warn("Reject bid because of invalid user: " + request.getUser().toString());
+	    countRejected(RejectReason.INVALID_USER);
+	    return false;
+	}
+	boolean amountCheck;
+	boolean reserveCheck;
+	if (item.getPriceScale() != null) {
+	    try {
+		amountUnits[index] = item.getPriceScale().toUnits(amount);
+	    } catch (ArithmeticException ex) {
+		logger.warn("Reject bid because amount does not fit the item's price scale: " + amount.toPlainString());
+		countRejected(RejectReason.INVALID_AMOUNT);
+		return false;
+	    }
+	    amountCheck = amountUnits[index] > 0;
+	    reserveCheck = amountUnits[index] >= item.getReserveAmountUnits();
+	} else {
+	    amountCheck = amount.compareTo(BigDecimal.ZERO) > 0;
+	    reserveCheck = amount.compareTo(item.getReserveAmount()) >= 0;
+	}
+	if (!amountCheck || !reserveCheck) {
+	    logger.warn("Reject bid because of invalid amount: " + amount.toPlainString());
+	    countRejected(amountCheck ? RejectReason.BELOW_RESERVE : RejectReason.INVALID_AMOUNT);
+	    return false;
+	}
+	return true;
+    }
+    
+    // New bid on a fixed point item. A bid kept in the bid store is left out of its user's bids
+    private static Bid makeBid(Item item, User user, long amountUnits) {
+	return item.getBidStore() != null ? new Bid(item, user, amountUnits) : user.makeBid(item, amountUnits);
+    }
+    
+    // Add a new bid to the bid index, unless the bid store finds it
+    private void indexBid(Bid bid) {
+	if (bid.getItem().getBidStore() == null) {
+	    bids.addItem(bid);
+	}
+    }
+    
+    // Move the bids of a new fixed point item to the bid store, if there is one
+    private void useBidStore(Item item) {
+	if (bidStore != null && item.getPriceScale() != null && item.getBidStore() == null && item.getBids().isEmpty()) {
+	    item.storeBidsIn(bidStore);
+	}
+    }
+    
+    // Apply a checked request to its item's book. A bid already at the requested amount is left alone.
+    // Returns null if the item closed after the request was checked
+    private Bid applyRequest(BidRequest request, long amountUnits) {
+	Item item = request.getItem();
+	User user = request.getUser();
+	boolean fixedPoint = item.getPriceScale() != null;
+	Bid existingBid = item.getBidFromUser(user);
+	if (existingBid != null) {
+	    if (fixedPoint ? existingBid.getBidAmountUnits() != amountUnits
+		    : existingBid.getBidAmount().compareTo(request.getAmount()) != 0) {
+		if (!(fixedPoint ? item.updateBid(existingBid, amountUnits) : item.updateBid(existingBid, request.getAmount()))) {
+		    return closedDuringBid(item, null);
+		}
+		for (BidTrackerListener listener : listeners) {
+		    listener.bidAmended(existingBid);
+		}
+		countAmended();
+	    }
+	    return existingBid;
+	}
+	Bid newBid = fixedPoint ? makeBid(item, user, amountUnits) : user.makeBid(item, request.getAmount());
+	if (!item.addBid(newBid)) {
+	    return closedDuringBid(item, newBid);
+	}
+	indexBid(newBid);
+	for (BidTrackerListener listener : listeners) {
+	    listener.bidPlaced(newBid);
+	}
+	countPlaced();
+	return newBid;
+    }
 
+    public boolean setCloseTime(Item item, long closeTime) {
+	long start = startTimer();
+	boolean changed = changeCloseTime(item, closeTime);
+	stopTimer(Operation.SET_CLOSE_TIME, start);
+	return changed;
+    }
+    
+    private boolean changeCloseTime(Item item, long closeTime) {
+	if (!items.containsItem(item) || item.isClosed()) {
+	    logger.warn("Cannot set close time of invalid or closed item: " + item.toString());
+	    return false;
+	}
+	item.setCloseTime(closeTime);
+	for (BidTrackerListener listener : listeners) {
+	    listener.closeTimeChanged(item);
+	}
+	return true;
+    }
+    
+    public boolean closeItem(Item item) {
+	long start = startTimer();
+	boolean closed = close(item);
+	stopTimer(Operation.CLOSE_ITEM, start);
+	return closed;
+    }
+    
+    private boolean close(Item item) {
+	if (!items.containsItem(item) || !item.close()) {
+	    return false;
+	}
+	announceClose(item);
+	return true;
+    }
+    
+    // Tell the listeners about an item that has just closed
+    private void announceClose(Item item) {
+	Bid winner = item.getWinningBid();
+	if (logger.isInfoEnabled()) {
+	    logger.info("Closed item: " + item.toString() + " won by: " + winner);
+	}
+	for (BidTrackerListener listener : listeners) {
+	    listener.itemClosed(item, winner);
+	}
+    }
+    
+    // Close an auction the scheduler found due, unless a late bid has pushed its close time past now. The
+    // close time is checked again as the book closes, so a bid in the snipe window that moves it after the
+    // scheduler looked still keeps the auction open
+    boolean closeDueItem(Item item, long now) {
+	long start = startTimer();
+	boolean closed = items.containsItem(item) && item.closeIfDue(now);
+	if (closed) {
+	    announceClose(item);
+	}
+	stopTimer(Operation.CLOSE_ITEM, start);
+	return closed;
+    }
+    
     public Bid getWinningBid(Item item) {
-	if (item.getBids().size() > 0) {
-	   return item.getWinningBid();
-	} else {
+	long start = startTimer();
+	Bid winner = item.getWinningBid();
+	if (winner == null && logger.isInfoEnabled()) {
 	    logger.info("No bids recorded for item: " + item.toString());
-	    return null;
 	}
+	stopTimer(Operation.GET_WINNING_BID, start);
+	return winner;
     }
 
     public Collection<Bid> getAllBidsForItem(Item item) {
-	return item.getBids();
+	long start = startTimer();
+	Collection<Bid> itemBids = item.copyBids();
+	stopTimer(Operation.GET_ALL_BIDS_FOR_ITEM, start);
+	return itemBids;
+    }
+
+    public List<Bid> getTopBids(Item item, int count) {
+	if (count < 0) {
+	    throw new IllegalArgumentException("Bid count must not be negative: " + count);
+	}
+	long start = startTimer();
+	List<Bid> top = item.getTopBids(count);
+	stopTimer(Operation.GET_TOP_BIDS, start);
+	return top;
+    }
+    
+    public BidPage getBidsPage(Item item, BidCursor cursor, int pageSize) {
+	if (pageSize < 1) {
+	    throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+	}
+	long start = startTimer();
+	BidPage page = item.getBidsPage(cursor, pageSize);
+	stopTimer(Operation.GET_BIDS_PAGE, start);
+	return page;
+    }
+    
+    public int getRankOf(Bid bid) {
+	long start = startTimer();
+	int rank = bid.getItem().getRankOf(bid);
+	stopTimer(Operation.GET_RANK_OF, start);
+	return rank;
     }
 
     public Collection<Item> getAllItemsForUser(User user) {
-	return user.getItems();
+	long start = startTimer();
+	List<Item> userItems = user.getItems();
+	if (bidStore != null) {
+	    userItems.addAll(bidStore.getItems(user));
+	}
+	stopTimer(Operation.GET_ALL_ITEMS_FOR_USER, start);
+	return userItems;
+    }
+
+    // The user's index keeps these up to date, so they cost the size of the answer. Items whose bids are
+    // kept off the heap are not in the index, and have their winning bids looked at one by one
+    public Collection<Item> getItemsWinningForUser(User user) {
+	long start = startTimer();
+	Collection<Item> userItems = withStoredItems(user, user.getItemsWinning(), true);
+	stopTimer(Operation.GET_ITEMS_WINNING_FOR_USER, start);
+	return userItems;
+    }
+
+    public Collection<Item> getItemsOutbidForUser(User user) {
+	long start = startTimer();
+	Collection<Item> userItems = withStoredItems(user, user.getItemsOutbid(), false);
+	stopTimer(Operation.GET_ITEMS_OUTBID_FOR_USER, start);
+	return userItems;
+    }
+
+    private Collection<Item> withStoredItems(User user, List<Item> userItems, boolean winning) {
+	if (bidStore != null) {
+	    for (Item item : bidStore.getItems(user)) {
+		Bid winner = item.getWinningBid();
+		if (winner != null && winner.getUser().getID().equals(user.getID()) == winning) {
+		    userItems.add(item);
+		}
+	    }
+	}
+	return userItems;
     }
     
     public Collection<User> getAllRegisteredUsers() {
-	return users.getAllItems();
+	long start = startTimer();
+	Collection<User> allUsers = users.getAllItems();
+	stopTimer(Operation.GET_ALL_REGISTERED_USERS, start);
+	return allUsers;
     }
     
     public Collection<Item> getAllRegisteredItems() {
-	return items.getAllItems();
+	long start = startTimer();
+	Collection<Item> allItems = items.getAllItems();
+	stopTimer(Operation.GET_ALL_REGISTERED_ITEMS, start);
+	return allItems;
+    }
+    
+    // Get every bid the tracker holds
+    public Collection<Bid> getAllBids() {
+	if (bidStore == null) {
+	    return bids.getAllItems();
+	}
+	List<Bid> allBids = new ArrayList<Bid>(bids.getAllItems());
+	allBids.addAll(bidStore.getAllBids());
+	return allBids;
+    }
+    
+    public User getUser(UUID userID) {
+	return users.getItem(userID);
+    }
+    
+    public Item getItem(UUID itemID) {
+	return items.getItem(itemID);
+    }
+    
+    public Bid getBid(UUID bidID) {
+	Bid bid = bids.getItem(bidID);
+	if (bid == null && bidStore != null) {
+	    bid = bidStore.getBid(bidID);
+	}
+	return bid;
+    }
+    
+    // System.nanoTime() for one call in TrackerMetrics.LATENCY_SAMPLE while metrics are on, otherwise 0.
+    // Reading the clock twice on every call would cost about as much as a read of the tracker
+    private long startTimer() {
+	if (metrics == null || ThreadLocalRandom.current().nextInt(TrackerMetrics.LATENCY_SAMPLE) != 0) {
+	    return 0;
+	}
+	return System.nanoTime();
+    }
+    
+    private void stopTimer(Operation operation, long start) {
+	TrackerMetrics current = metrics;
+	if (current != null) {
+	    current.record(operation, start);
+	}
+    }
+    
+    private void countPlaced() {
+	TrackerMetrics current = metrics;
+	if (current != null) {
+	    current.bidPlaced();
+	}
+    }
+    
+    private void countAmended() {
+	TrackerMetrics current = metrics;
+	if (current != null) {
+	    current.bidAmended();
+	}
+    }
+    
+    private void countRejected(RejectReason reason) {
+	TrackerMetrics current = metrics;
+	if (current != null) {
+	    current.bidRejected(reason);
+	}
+    }
+    
+    // Recovery. These put back state read from a journal or snapshot without validation, logging or
+    // telling listeners. Applying the same record twice leaves the tracker as if it was applied once
+    
+    public void restoreUser(User user) {
+	if (!users.containsItem(user)) {
+	    users.addItem(user);
+	}
+    }
+    
+    public void restoreItem(Item item) {
+	if (!items.containsItem(item)) {
+	    useBidStore(item);
+	    items.addItem(item);
+	}
+    }
+    
+    // Put back a bid with its original ID and update time. If the bid is already known, its amount and
+    // time are brought up to date instead
+    public Bid restoreBid(UUID bidID, Item item, User user, BigDecimal amount, long lastUpdated) {
+	Bid bid = getBid(bidID);
+	if (bid != null) {
+	    item.restoreBid(bid, amount, lastUpdated);
+	    return bid;
+	}
+	bid = new Bid(bidID, item, user, amount, lastUpdated);
+	if (item.getBidStore() == null) {
+	    user.addBid(bid);
+	}
+	item.addBid(bid);
+	indexBid(bid);
+	return bid;
+    }
+    
+    // Put back an amendment to a known bid. Returns null if the bid is not known
+    public Bid restoreBidAmount(UUID bidID, BigDecimal amount, long lastUpdated) {
+	Bid bid = getBid(bidID);
+	if (bid != null) {
+	    bid.getItem().restoreBid(bid, amount, lastUpdated);
+	}
+	return bid;
+    }
+    
+    // Put back a close time recovered from a journal or snapshot
+    public void restoreCloseTime(Item item, long closeTime) {
+	if (!item.isClosed()) {
+	    item.setCloseTime(closeTime);
+	}
+    }
+    
+    // Put back the close of an auction recovered from a journal or snapshot
+    public void restoreClosed(Item item) {
+	item.close();
     }
     
     public static void main(String[] args) {
@@ -127,10 +855,9 @@ public class BidTrackerImpl implements BidTracker {
 	logger.info("All bids on item foo: " + foo.getBids().toString());
 	logger.info("Winning bid on item foo: " + foo.getWinningBid().toString());
 	
-	// Alice, bob and charlie all bid on bar. Charlie bids last. Thread.sleep added to simulate last bid
+	// Alice, bob and charlie all bid on bar. Charlie bids last
 	bidTracker.registerBid(bar, alice, new BigDecimal(5));
 	bidTracker.registerBid(bar, bob, new BigDecimal(6));
-	try { Thread.sleep(1); } catch (Exception ex) {}
 	bidTracker.registerBid(bar, charlie, new BigDecimal(6));
 	// Although Charlie and Bob's bids are identical, Bob bid first and should win the auction
 	logger.info("Winning bid on bar is: " + bar.getWinningBid().toString());
@@ -0,0 +1,213 @@
+package com.luhar.auctioneer.impl;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.IncrementTable;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+// Bids on users' behalf up to the maximum each has set on an item, so a bidding war between users who
+// would keep topping each other up by one increment is settled in one step. The proxy with the highest
+// maximum leads, the earlier one on a tie, and its visible bid is one increment above the best other bid,
+// never above its maximum. The others bid their whole maximum, which is as far as they would have gone.
+// Each new maximum therefore places or amends at most three bids through the tracker, however long the
+// war it replaces, and the item's book reads the same as it would have at the end of that war.
+//
+// Bids made directly should go through registerBid here, so the leading proxy answers them. Work for an
+// item is serialised on its proxies; any BidTracker will do, a ShardedBidTracker included
+public class ProxyBidder {
+    private static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    // A user's standing maximum on one item
+    static final class Proxy {
+	final User user;
+	BigDecimal maxAmount;
+
+	Proxy(User user, BigDecimal maxAmount) {
+	    this.user = user;
+	    this.maxAmount = maxAmount;
+	}
+    }
+
+    // The proxies on one item. Guarded by its own lock
+    static final class ProxyBook {
+	final Map<UUID, Proxy> proxies = new HashMap<UUID, Proxy>();
+	Proxy leader;
+    }
+
+    private final BidTracker tracker;
+    private final IncrementTable increments;
+    private final ConcurrentHashMap<UUID, ProxyBook> books = new ConcurrentHashMap<UUID, ProxyBook>();
+    private final AtomicLong placedBids = new AtomicLong();
+
+    public ProxyBidder(BidTracker tracker, IncrementTable increments) {
+	this.tracker = tracker;
+	this.increments = increments;
+    }
+
+    // Set or raise the most a user will pay for an item. Returns the user's bid once the proxies have been
+    // settled, which is not the winning bid if another proxy's maximum is higher. Returns null if the bid
+    // is rejected, or the maximum is no higher than the user's standing one or their current bid
+    public Bid registerMaxBid(Item item, User user, BigDecimal maxAmount) {
+	ProxyBook book = bookFor(item);
+	synchronized (book) {
+	    if (item.isClosed()) {
+		books.remove(item.getID(), book);
+		logger.warn("Reject maximum bid because of closed item: " + item.toString());
+		return null;
+	    }
+	    Proxy proxy = book.proxies.get(user.getID());
+	    Bid current = item.getBidFromUser(user);
+	    if ((proxy != null && maxAmount.compareTo(proxy.maxAmount) <= 0)
+		    || (current != null && maxAmount.compareTo(current.getBidAmount()) <= 0)) {
+		logger.warn("Reject maximum bid no higher than the standing one: " + maxAmount.toPlainString());
+		return null;
+	    }
+	    Proxy leader = book.leader;
+	    if (leader != null && !leader.user.equals(user) && maxAmount.compareTo(leader.maxAmount) <= 0) {
+		// Outbid straight away: bid the whole maximum, and the leader answers it. On a tie the leader
+		// goes first, so its bid keeps the time priority its maximum has
+		boolean tie = maxAmount.compareTo(leader.maxAmount) == 0;
+		if (tie) {
+		    reprice(item, book, maxAmount);
+		}
+		Bid bid = place(item, user, maxAmount);
+		if (bid != null) {
+		    remember(book, proxy, user, maxAmount);
+		    if (!tie) {
+			reprice(item, book, null);
+		    }
+		}
+		return bid;
+	    }
+	    // The new leader's price, set against the leader it displaces as if that one had bid its maximum
+	    BigDecimal price = priceFor(item, user, maxAmount, leader == null || leader.user.equals(user) ? null : leader.maxAmount);
+	    Bid bid = current != null && current.getBidAmount().compareTo(price) >= 0 ? current : place(item, user, price);
+	    if (bid == null) {
+		return null;
+	    }
+	    Proxy previous = leader;
+	    book.leader = remember(book, proxy, user, maxAmount);
+	    if (previous != null && previous != book.leader) {
+		// The displaced leader ends on its maximum. Often reprice has capped it there already
+		Bid standing = item.getBidFromUser(previous.user);
+		if (standing == null || standing.getBidAmount().compareTo(previous.maxAmount) < 0) {
+		    place(item, previous.user, previous.maxAmount);
+		}
+	    }
+	    return bid;
+	}
+    }
+
+    // Record a bid made without a proxy. The leading proxy, if any, answers it up to its maximum
+    public Bid registerBid(Item item, User user, BigDecimal amount) {
+	ProxyBook book = books.get(item.getID());
+	if (book == null) {
+	    return tracker.registerBid(item, user, amount);
+	}
+	synchronized (book) {
+	    Bid bid = tracker.registerBid(item, user, amount);
+	    if (bid != null) {
+		reprice(item, book, null);
+	    }
+	    return bid;
+	}
+    }
+
+    // The user's standing maximum on an item, or null if they have none
+    public BigDecimal getMaxBid(Item item, User user) {
+	ProxyBook book = books.get(item.getID());
+	if (book == null) {
+	    return null;
+	}
+	synchronized (book) {
+	    Proxy proxy = book.proxies.get(user.getID());
+	    return proxy == null ? null : proxy.maxAmount;
+	}
+    }
+
+    // Bids placed or amended on proxies' behalf so far
+    public long getPlacedBidCount() {
+	return placedBids.get();
+    }
+
+    public IncrementTable getIncrements() {
+	return increments;
+    }
+
+    private ProxyBook bookFor(Item item) {
+	ProxyBook book = books.get(item.getID());
+	if (book == null) {
+	    ProxyBook newBook = new ProxyBook();
+	    book = books.putIfAbsent(item.getID(), newBook);
+	    if (book == null) {
+		book = newBook;
+	    }
+	}
+	return book;
+    }
+
+    private static Proxy remember(ProxyBook book, Proxy proxy, User user, BigDecimal maxAmount) {
+	if (proxy == null) {
+	    proxy = new Proxy(user, maxAmount);
+	    book.proxies.put(user.getID(), proxy);
+	} else {
+	    proxy.maxAmount = maxAmount;
+	}
+	return proxy;
+    }
+
+    // Raise the leader's bid over anything that has overtaken it, and over the rival amount if given, as far
+    // as its maximum allows
+    private void reprice(Item item, ProxyBook book, BigDecimal rivalAmount) {
+	Proxy leader = book.leader;
+	if (leader == null) {
+	    return;
+	}
+	BigDecimal price = priceFor(item, leader.user, leader.maxAmount, rivalAmount);
+	Bid current = item.getBidFromUser(leader.user);
+	if (current == null || current.getBidAmount().compareTo(price) < 0) {
+	    place(item, leader.user, price);
+	}
+    }
+
+    // Lowest bid that keeps the user ahead of every other bid on the item, and of the given rival maximum,
+    // capped at the user's maximum. With nothing to beat it is the reserve, or one increment if there is none
+    private BigDecimal priceFor(Item item, User user, BigDecimal maxAmount, BigDecimal rivalAmount) {
+	BigDecimal best = rivalAmount;
+	List<Bid> top = tracker.getTopBids(item, 2);
+	for (Bid bid : top) {
+	    if (!bid.getUser().equals(user)) {
+		if (best == null || bid.getBidAmount().compareTo(best) > 0) {
+		    best = bid.getBidAmount();
+		}
+		break;
+	    }
+	}
+	BigDecimal price;
+	if (best == null) {
+	    price = item.getReserveAmount().signum() > 0 ? item.getReserveAmount() : increments.incrementAt(BigDecimal.ZERO);
+	} else {
+	    price = best.add(increments.incrementAt(best)).max(item.getReserveAmount());
+	}
+	return price.min(maxAmount);
+    }
+
+    private Bid place(Item item, User user, BigDecimal amount) {
+	Bid bid = tracker.registerBid(item, user, amount);
+	if (bid != null) {
+	    placedBids.incrementAndGet();
+	}
+	return bid;
+    }
+}
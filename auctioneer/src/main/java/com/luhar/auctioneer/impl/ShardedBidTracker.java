@@ -0,0 +1,301 @@
+package com.luhar.auctioneer.impl;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.luhar.auctioneer.model.AuctioneerObject;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidCursor;
+import com.luhar.auctioneer.model.BidPage;
+import com.luhar.auctioneer.model.BidRequest;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+// BidTracker that runs all work for an item on a single shard thread, picked by the item ID.
+// Each shard is the only writer of its items' books, so the bid path itself takes no locks and
+// bids submitted for one item are applied in the order they were submitted. Reads of an item's book do not
+// queue: each item publishes a snapshot of its book as it changes, so the blocking reads run on the caller's
+// thread and never wait behind the shard. The submit reads still queue, for callers that want a read
+// ordered after the work they have submitted.
+public class ShardedBidTracker implements BidTracker {
+    private static final Logger logger = Logger.getLogger(BidTracker.class);
+    private final BidTrackerImpl delegate;
+    private final ListeningExecutorService[] shards;
+
+    public ShardedBidTracker() {
+	this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ShardedBidTracker(int shardCount) {
+	this(new BidTrackerImpl(), shardCount);
+    }
+
+    public ShardedBidTracker(BidTrackerImpl delegate, int shardCount) {
+	if (shardCount < 1) {
+	    throw new IllegalArgumentException("Shard count must be positive: " + shardCount);
+	}
+	this.delegate = delegate;
+	this.shards = new ListeningExecutorService[shardCount];
+	for (int i = 0; i < shardCount; i++) {
+	    ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+		    .setNameFormat("auctioneer-shard-" + i).setDaemon(true).build());
+	    shards[i] = MoreExecutors.listeningDecorator(executor);
+	}
+	logger.info("Started BidTracker with " + shardCount + " shards");
+    }
+
+    // Number of shard threads
+    public int getShardCount() {
+	return shards.length;
+    }
+
+    // Shard that owns the given object
+    int shardFor(AuctioneerObject object) {
+	return (object.getID().hashCode() & Integer.MAX_VALUE) % shards.length;
+    }
+
+    // Queue a bid on the shard that owns the item. The future yields the new or amended Bid, or null if it was rejected
+    public ListenableFuture<Bid> submitBid(final Item item, final User user, final BigDecimal amount) {
+	return shards[shardFor(item)].submit(new Callable<Bid>() {
+	    public Bid call() {
+		return delegate.registerBid(item, user, amount);
+	    }
+	});
+    }
+
+    // Split a batch by shard and queue each part on its shard as one task. The future yields the results
+    // in request order
+    public ListenableFuture<List<Bid>> submitBids(Collection<BidRequest> requests) {
+	final List<List<BidRequest>> shardRequests = new ArrayList<List<BidRequest>>(shards.length);
+	final List<List<Integer>> shardIndexes = new ArrayList<List<Integer>>(shards.length);
+	for (int i = 0; i < shards.length; i++) {
+	    shardRequests.add(new ArrayList<BidRequest>());
+	    shardIndexes.add(new ArrayList<Integer>());
+	}
+	int index = 0;
+	for (BidRequest request : requests) {
+	    int shard = shardFor(request.getItem());
+	    shardRequests.get(shard).add(request);
+	    shardIndexes.get(shard).add(index++);
+	}
+	List<ListenableFuture<List<Bid>>> parts = new ArrayList<ListenableFuture<List<Bid>>>();
+	final List<Integer> partShards = new ArrayList<Integer>();
+	for (int i = 0; i < shards.length; i++) {
+	    final List<BidRequest> part = shardRequests.get(i);
+	    if (part.isEmpty()) {
+		continue;
+	    }
+	    parts.add(shards[i].submit(new Callable<List<Bid>>() {
+		public List<Bid> call() {
+		    return delegate.registerBids(part);
+		}
+	    }));
+	    partShards.add(i);
+	}
+	final int size = index;
+	return Futures.transform(Futures.allAsList(parts), new Function<List<List<Bid>>, List<Bid>>() {
+	    public List<Bid> apply(List<List<Bid>> partResults) {
+		Bid[] results = new Bid[size];
+		for (int p = 0; p < partResults.size(); p++) {
+		    List<Integer> indexes = shardIndexes.get(partShards.get(p));
+		    List<Bid> partResult = partResults.get(p);
+		    for (int i = 0; i < indexes.size(); i++) {
+			results[indexes.get(i)] = partResult.get(i);
+		    }
+		}
+		return Arrays.asList(results);
+	    }
+	});
+    }
+
+    // Queue a change to an item's close time on the shard that owns the item
+    public ListenableFuture<Boolean> submitCloseTime(final Item item, final long closeTime) {
+	return shards[shardFor(item)].submit(new Callable<Boolean>() {
+	    public Boolean call() {
+		return delegate.setCloseTime(item, closeTime);
+	    }
+	});
+    }
+
+    // Queue the close of an item's auction on the shard that owns the item. Bids queued before it are
+    // applied, bids queued after it are rejected
+    public ListenableFuture<Boolean> submitClose(final Item item) {
+	return shards[shardFor(item)].submit(new Callable<Boolean>() {
+	    public Boolean call() {
+		return delegate.closeItem(item);
+	    }
+	});
+    }
+
+    // Queue the close of an auction that was due at the given time. Skipped if the close time has since
+    // been pushed back
+    ListenableFuture<Boolean> submitDueClose(final Item item, final long now) {
+	return shards[shardFor(item)].submit(new Callable<Boolean>() {
+	    public Boolean call() {
+		return delegate.closeDueItem(item, now);
+	    }
+	});
+    }
+
+    BidTrackerImpl getDelegate() {
+	return delegate;
+    }
+
+    // Queue a read of an item's winning bid on the shard that owns the item
+    public ListenableFuture<Bid> submitWinningBid(final Item item) {
+	return shards[shardFor(item)].submit(new Callable<Bid>() {
+	    public Bid call() {
+		return delegate.getWinningBid(item);
+	    }
+	});
+    }
+
+    // Queue a copy of an item's book on the shard that owns the item
+    public ListenableFuture<Collection<Bid>> submitAllBidsForItem(final Item item) {
+	return shards[shardFor(item)].submit(new Callable<Collection<Bid>>() {
+	    public Collection<Bid> call() {
+		return delegate.getAllBidsForItem(item);
+	    }
+	});
+    }
+
+    // Queue a read of an item's best bids on the shard that owns the item
+    public ListenableFuture<List<Bid>> submitTopBids(final Item item, final int count) {
+	return shards[shardFor(item)].submit(new Callable<List<Bid>>() {
+	    public List<Bid> call() {
+		return delegate.getTopBids(item, count);
+	    }
+	});
+    }
+
+    // Queue a read of a page of an item's bids on the shard that owns the item
+    public ListenableFuture<BidPage> submitBidsPage(final Item item, final BidCursor cursor, final int pageSize) {
+	return shards[shardFor(item)].submit(new Callable<BidPage>() {
+	    public BidPage call() {
+		return delegate.getBidsPage(item, cursor, pageSize);
+	    }
+	});
+    }
+
+    // Queue a read of a bid's rank on the shard that owns its item
+    public ListenableFuture<Integer> submitRankOf(final Bid bid) {
+	return shards[shardFor(bid.getItem())].submit(new Callable<Integer>() {
+	    public Integer call() {
+		return delegate.getRankOf(bid);
+	    }
+	});
+    }
+
+    // Queue a user registration on the shard that owns the user
+    public ListenableFuture<Boolean> submitUser(final User user) {
+	return shards[shardFor(user)].submit(new Callable<Boolean>() {
+	    public Boolean call() {
+		return delegate.registerUser(user);
+	    }
+	});
+    }
+
+    // Queue an item registration on the shard that owns the item
+    public ListenableFuture<Boolean> submitItem(final Item item) {
+	return shards[shardFor(item)].submit(new Callable<Boolean>() {
+	    public Boolean call() {
+		return delegate.registerItem(item);
+	    }
+	});
+    }
+
+    public boolean registerUser(User user) {
+	return Futures.getUnchecked(submitUser(user));
+    }
+
+    public boolean registerItem(Item item) {
+	return Futures.getUnchecked(submitItem(item));
+    }
+
+    public Bid registerBid(Item item, User user, BigDecimal amount) {
+	return Futures.getUnchecked(submitBid(item, user, amount));
+    }
+
+    public List<Bid> registerBids(Collection<BidRequest> requests) {
+	return Futures.getUnchecked(submitBids(requests));
+    }
+
+    public boolean setCloseTime(Item item, long closeTime) {
+	return Futures.getUnchecked(submitCloseTime(item, closeTime));
+    }
+
+    public boolean closeItem(Item item) {
+	return Futures.getUnchecked(submitClose(item));
+    }
+
+    public Bid getWinningBid(Item item) {
+	return delegate.getWinningBid(item);
+    }
+
+    public Collection<Bid> getAllBidsForItem(Item item) {
+	return delegate.getAllBidsForItem(item);
+    }
+
+    public List<Bid> getTopBids(Item item, int count) {
+	return delegate.getTopBids(item, count);
+    }
+
+    public BidPage getBidsPage(Item item, BidCursor cursor, int pageSize) {
+	return delegate.getBidsPage(item, cursor, pageSize);
+    }
+
+    public int getRankOf(Bid bid) {
+	return delegate.getRankOf(bid);
+    }
+
+    public Collection<Item> getAllItemsForUser(User user) {
+	return ImmutableList.copyOf(delegate.getAllItemsForUser(user));
+    }
+
+    public Collection<Item> getItemsWinningForUser(User user) {
+	return delegate.getItemsWinningForUser(user);
+    }
+
+    public Collection<Item> getItemsOutbidForUser(User user) {
+	return delegate.getItemsOutbidForUser(user);
+    }
+
+    public Collection<User> getAllRegisteredUsers() {
+	return delegate.getAllRegisteredUsers();
+    }
+
+    public Collection<Item> getAllRegisteredItems() {
+	return delegate.getAllRegisteredItems();
+    }
+
+    // Stop accepting work and wait for the queued work on every shard to finish
+    public void shutdown() {
+	for (ListeningExecutorService shard : shards) {
+	    shard.shutdown();
+	}
+	try {
+	    for (ListeningExecutorService shard : shards) {
+		shard.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	    }
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+}
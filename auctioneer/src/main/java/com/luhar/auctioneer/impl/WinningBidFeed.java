@@ -0,0 +1,194 @@
+package com.luhar.auctioneer.impl;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.BidTrackerListener;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+import com.luhar.auctioneer.model.WinningBidListener;
+import com.luhar.auctioneer.model.WinningBidUpdate;
+
+// Pushes winning bid changes to subscribers, so clients do not have to poll getWinningBid. Subscribers
+// can follow one item or every item.
+//
+// The thread that changes a book only drops the update into each subscriber's pending slot for the item
+// and, if the subscriber is idle, schedules it on the executor. A subscriber that falls behind finds just
+// the latest update per item when it catches up, so a hot item never queues work for it and never makes
+// the bid path wait. Each subscriber is called by one thread at a time, and sees an item's updates in
+// version order, with some versions skipped when they were coalesced
+public class WinningBidFeed implements WinningBidListener, BidTrackerListener {
+    private static final Logger logger = Logger.getLogger(BidTracker.class);
+    // Of two updates to the same item, the later version, whichever order they turn up in
+    private static final BiFunction<WinningBidUpdate, WinningBidUpdate, WinningBidUpdate> LATEST = new BiFunction<WinningBidUpdate, WinningBidUpdate, WinningBidUpdate>() {
+	public WinningBidUpdate apply(WinningBidUpdate pending, WinningBidUpdate update) {
+	    return update.getVersion() > pending.getVersion() ? update : pending;
+	}
+    };
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final ConcurrentHashMap<UUID, CopyOnWriteArrayList<Subscription>> itemSubscriptions = new ConcurrentHashMap<UUID, CopyOnWriteArrayList<Subscription>>();
+    private final CopyOnWriteArrayList<Subscription> allSubscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    // Feed for the items of a tracker, delivering on a small pool of daemon threads
+    public WinningBidFeed(BidTrackerImpl tracker) {
+	this(tracker, Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors() / 2),
+		new ThreadFactoryBuilder().setNameFormat("auctioneer-feed-%d").setDaemon(true).build()), true);
+    }
+
+    // Feed delivering on the given executor, which is left running on shutdown
+    public WinningBidFeed(BidTrackerImpl tracker, Executor executor) {
+	this(tracker, executor, false);
+    }
+
+    private WinningBidFeed(BidTrackerImpl tracker, Executor executor, boolean ownsExecutor) {
+	this.executor = executor;
+	this.ownedExecutor = ownsExecutor ? (ExecutorService) executor : null;
+	// Listen first, so an item registered while the existing ones are hooked up is not missed
+	tracker.addListener(this);
+	for (Item item : tracker.getAllRegisteredItems()) {
+	    item.setWinningBidListener(this);
+	}
+    }
+
+    // Follow the winning bid on one item. The latest update already known is passed on straight away
+    public Subscription subscribe(Item item, WinningBidListener listener) {
+	Subscription subscription = new Subscription(item.getID(), listener);
+	CopyOnWriteArrayList<Subscription> subscriptions = itemSubscriptions.get(item.getID());
+	if (subscriptions == null) {
+	    subscriptions = new CopyOnWriteArrayList<Subscription>();
+	    CopyOnWriteArrayList<Subscription> existing = itemSubscriptions.putIfAbsent(item.getID(), subscriptions);
+	    if (existing != null) {
+		subscriptions = existing;
+	    }
+	}
+	subscriptions.add(subscription);
+	WinningBidUpdate current = item.getWinningBidUpdate();
+	if (current != null) {
+	    subscription.publish(current);
+	}
+	return subscription;
+    }
+
+    // Follow the winning bid on every item
+    public Subscription subscribeAll(WinningBidListener listener) {
+	Subscription subscription = new Subscription(null, listener);
+	allSubscriptions.add(subscription);
+	return subscription;
+    }
+
+    // Number of subscriptions to one item, not counting those to every item
+    public int getSubscriberCount(Item item) {
+	CopyOnWriteArrayList<Subscription> subscriptions = itemSubscriptions.get(item.getID());
+	return subscriptions == null ? 0 : subscriptions.size();
+    }
+
+    // Stop the delivery threads if the feed made them
+    public void shutdown() {
+	if (ownedExecutor != null) {
+	    ownedExecutor.shutdown();
+	}
+    }
+
+    // Called on the thread that changed the book
+    public void winningBidChanged(WinningBidUpdate update) {
+	CopyOnWriteArrayList<Subscription> subscriptions = itemSubscriptions.get(update.getItemID());
+	if (subscriptions != null) {
+	    for (Subscription subscription : subscriptions) {
+		subscription.publish(update);
+	    }
+	}
+	for (Subscription subscription : allSubscriptions) {
+	    subscription.publish(update);
+	}
+    }
+
+    public void itemRegistered(Item item) {
+	item.setWinningBidListener(this);
+    }
+
+    public void userRegistered(User user) {
+    }
+
+    public void bidPlaced(Bid bid) {
+    }
+
+    public void bidAmended(Bid bid) {
+    }
+
+    public void closeTimeChanged(Item item) {
+    }
+
+    // The winner was already pushed when it took the top of the book
+    public void itemClosed(Item item, Bid winner) {
+    }
+
+    // One listener's interest in one item, or in every item when itemID is null
+    public class Subscription implements Runnable {
+	private final UUID itemID;
+	private final WinningBidListener listener;
+	// Latest update not yet delivered, per item
+	private final ConcurrentHashMap<UUID, WinningBidUpdate> pending = new ConcurrentHashMap<UUID, WinningBidUpdate>();
+	// Set while a delivery run is scheduled or running
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private volatile boolean cancelled;
+
+	Subscription(UUID itemID, WinningBidListener listener) {
+	    this.itemID = itemID;
+	    this.listener = listener;
+	}
+
+	// Stop delivering updates. An update already being delivered still arrives
+	public void cancel() {
+	    cancelled = true;
+	    if (itemID == null) {
+		allSubscriptions.remove(this);
+	    } else {
+		CopyOnWriteArrayList<Subscription> subscriptions = itemSubscriptions.get(itemID);
+		if (subscriptions != null) {
+		    subscriptions.remove(this);
+		}
+	    }
+	    pending.clear();
+	}
+
+	// The update given out on subscribe can race with newer ones from the bid path, so an update only
+	// replaces a pending one with a lower version
+	void publish(WinningBidUpdate update) {
+	    pending.merge(update.getItemID(), update, LATEST);
+	    if (scheduled.compareAndSet(false, true)) {
+		executor.execute(this);
+	    }
+	}
+
+	// Deliver everything pending, then stand down unless more arrived in the meantime
+	public void run() {
+	    do {
+		for (UUID pendingItemID : pending.keySet()) {
+		    // Taken by key, so an update that replaces this one meanwhile is kept for the next round
+		    WinningBidUpdate update = pending.remove(pendingItemID);
+		    if (update == null || cancelled) {
+			continue;
+		    }
+		    try {
+			listener.winningBidChanged(update);
+		    } catch (RuntimeException ex) {
+			logger.warn("Winning bid subscriber failed on update: " + update.toString(), ex);
+		    }
+		}
+		scheduled.set(false);
+	    } while (!pending.isEmpty() && !cancelled && scheduled.compareAndSet(false, true));
+	}
+    }
+}
@@ -0,0 +1,439 @@
+package com.luhar.auctioneer.journal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.BidTrackerListener;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+// Append-only journal of the changes a BidTrackerImpl accepts, kept in memory-mapped segment files of a
+// fixed size. Each record is framed as [int payload length][int CRC32 of the payload][payload], see
+// RecordCodec for the payload. A zero length marks the end of the data in a segment, and a record that
+// does not fit in what is left of a segment goes at the start of the next one.
+//
+// Use recover() to rebuild a tracker from what is already on disk and then journal its changes. Calling
+// snapshot() now and then keeps recovery time down to the size of the tracker rather than its history
+public class BidJournal implements BidTrackerListener, Closeable {
+    private static final Logger logger = Logger.getLogger(BidTracker.class);
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 10;
+    static final int HEADER_SIZE = 8;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File directory;
+    private final int segmentSize;
+    private final SyncMode syncMode;
+    private final long syncIntervalMillis;
+    private final Thread syncer;
+
+    // Guarded by this
+    private int segmentIndex;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+    private final CRC32 crc = new CRC32();
+    private volatile long appended;
+
+    // Guarded by syncLock
+    private final Object syncLock = new Object();
+    private volatile long synced;
+    private int waiters;
+    private volatile boolean closed;
+
+    public BidJournal(File directory) throws IOException {
+	this(directory, DEFAULT_SEGMENT_SIZE, SyncMode.ASYNC, DEFAULT_SYNC_INTERVAL_MILLIS);
+    }
+
+    public BidJournal(File directory, int segmentSize, SyncMode syncMode, long syncIntervalMillis) throws IOException {
+	if (!directory.isDirectory() && !directory.mkdirs()) {
+	    throw new IOException("Cannot create journal directory: " + directory);
+	}
+	this.directory = directory;
+	this.segmentSize = segmentSize;
+	this.syncMode = syncMode;
+	this.syncIntervalMillis = syncIntervalMillis;
+	int[] segments = segmentIndexes();
+	openSegment(segments.length == 0 ? 0 : segments[segments.length - 1]);
+	seekToEnd();
+	syncer = new Thread(new Runnable() {
+	    public void run() {
+		syncLoop();
+	    }
+	}, "auctioneer-journal-sync");
+	syncer.setDaemon(true);
+	syncer.start();
+    }
+
+    // Load the latest snapshot in the journal directory, if there is one, into a tracker and replay the
+    // journal from where the snapshot was taken. Then journal every change the tracker accepts from now on.
+    // Returns the number of journal records replayed
+    public long recover(BidTrackerImpl tracker) throws IOException {
+	long records = replay(tracker, loadSnapshot(tracker));
+	tracker.addListener(this);
+	return records;
+    }
+    
+    // Rebuild a tracker as recover() does, and tell a listener about each journal record as it is replayed, as
+    // if the tracker had just accepted the change. For tools that want the history and not only the state,
+    // such as replaying a recorded workload. Nothing is journaled. Returns the number of records replayed
+    public long read(BidTrackerImpl tracker, BidTrackerListener listener) throws IOException {
+	return replay(tracker, loadSnapshot(tracker), listener);
+    }
+    
+    // Load the latest snapshot that can be read into a tracker. Returns the journal position it was taken at,
+    // or 0 if there is none
+    private long loadSnapshot(BidTrackerImpl tracker) throws IOException {
+	File[] snapshots = TrackerSnapshot.list(directory);
+	for (int i = snapshots.length - 1; i >= 0; i--) {
+	    try {
+		return TrackerSnapshot.load(snapshots[i], tracker);
+	    } catch (JournalException ex) {
+		// snapshot() keeps the previous snapshot and its segments for this
+		logger.warn("Cannot use snapshot " + snapshots[i] + ", trying an older one", ex);
+	    }
+	}
+	return 0;
+    }
+
+    // Apply every record on disk to a tracker, see replay(BidTrackerImpl, long)
+    public long replay(BidTrackerImpl tracker) {
+	return replay(tracker, 0);
+    }
+
+    // Apply the records from a position on to a tracker. Records are applied through the tracker's restore
+    // methods, so nothing is logged or sent to listeners and replaying into a tracker that has seen some of
+    // the records already is harmless. Returns the number of records read
+    public long replay(BidTrackerImpl tracker, long position) {
+	return replay(tracker, position, null);
+    }
+    
+    private synchronized long replay(BidTrackerImpl tracker, long position, BidTrackerListener listener) {
+	long started = System.nanoTime();
+	long records = 0;
+	long skipped = 0;
+	byte[] payload = new byte[4096];
+	int firstSegment = (int) (position >>> 32);
+	for (int index : segmentIndexes()) {
+	    if (index < firstSegment) {
+		continue;
+	    }
+	    ByteBuffer buffer = index == segmentIndex ? segment.duplicate() : mapSegment(index, FileChannel.MapMode.READ_ONLY);
+	    buffer.position(index == firstSegment ? (int) position : 0);
+	    while (true) {
+		int length = readLength(buffer);
+		if (length <= 0) {
+		    break;
+		}
+		int checksum = buffer.getInt();
+		if (payload.length < length) {
+		    payload = new byte[Math.max(length, payload.length * 2)];
+		}
+		buffer.get(payload, 0, length);
+		crc.reset();
+		crc.update(payload, 0, length);
+		if ((int) crc.getValue() != checksum) {
+		    logger.warn("Journal segment " + index + " has a damaged record at " + (buffer.position() - length - HEADER_SIZE)
+			    + ", ignoring the rest of the segment");
+		    break;
+		}
+		if (!RecordCodec.apply(ByteBuffer.wrap(payload, 0, length), tracker)) {
+		    skipped++;
+		} else if (listener != null) {
+		    RecordCodec.announce(ByteBuffer.wrap(payload, 0, length), tracker, listener);
+		}
+		records++;
+	    }
+	}
+	if (skipped > 0) {
+	    logger.warn("Skipped " + skipped + " journal records that refer to unknown users, items or bids");
+	}
+	logger.info("Replayed " + records + " journal records in " + (System.nanoTime() - started) / 1000000 + " ms");
+	return records;
+    }
+
+    public void userRegistered(User user) {
+	record(RecordCodec.USER, user, null, null);
+    }
+
+    public void itemRegistered(Item item) {
+	record(RecordCodec.ITEM, null, item, null);
+    }
+
+    public void bidPlaced(Bid bid) {
+	record(RecordCodec.NEW_BID, null, null, bid);
+    }
+
+    public void bidAmended(Bid bid) {
+	record(RecordCodec.AMENDED_BID, null, null, bid);
+    }
+
+    public void closeTimeChanged(Item item) {
+	record(RecordCodec.CLOSE_TIME, null, item, null);
+    }
+
+    public void itemClosed(Item item, Bid winner) {
+	record(RecordCodec.CLOSED, null, item, null);
+    }
+
+    // Position after the last record, as the segment index in the high 32 bits and the offset in the low
+    public synchronized long position() {
+	return ((long) segmentIndex << 32) | segment.position();
+    }
+
+    // Write a snapshot of a tracker journaled here, then drop the snapshots and segments it replaces.
+    // Bidding can carry on while the snapshot is written
+    public File snapshot(BidTrackerImpl tracker) throws IOException {
+	long position = position();
+	File file = TrackerSnapshot.write(tracker, directory, position);
+	// Keep the previous snapshot, and the segments it needs, in case the new one cannot be read back
+	File[] snapshots = TrackerSnapshot.list(directory);
+	for (int i = 0; i < snapshots.length - 2; i++) {
+	    if (!snapshots[i].delete()) {
+		logger.warn("Cannot delete old snapshot " + snapshots[i]);
+	    }
+	}
+	int firstSegment = (int) (TrackerSnapshot.positionOf(snapshots[Math.max(0, snapshots.length - 2)]) >>> 32);
+	for (int index : segmentIndexes()) {
+	    if (index < firstSegment && !segmentFile(index).delete()) {
+		logger.warn("Cannot delete journal segment " + segmentFile(index));
+	    }
+	}
+	return file;
+    }
+
+    // Force everything appended so far to disk
+    public void sync() {
+	long target;
+	MappedByteBuffer buffer;
+	synchronized (this) {
+	    target = appended;
+	    buffer = segment;
+	}
+	force(buffer, target);
+    }
+
+    public void close() throws IOException {
+	synchronized (syncLock) {
+	    closed = true;
+	    syncLock.notifyAll();
+	}
+	try {
+	    syncer.join();
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	}
+	synchronized (this) {
+	    segment.force();
+	    channel.close();
+	}
+    }
+
+    private void record(byte type, User user, Item item, Bid bid) {
+	long sequence;
+	synchronized (this) {
+	    if (closed) {
+		throw new JournalException("Journal is closed: " + directory);
+	    }
+	    while (true) {
+		scratch.clear();
+		try {
+		    switch (type) {
+		    case RecordCodec.USER:
+			RecordCodec.writeUser(scratch, user);
+			break;
+		    case RecordCodec.ITEM:
+			RecordCodec.writeItem(scratch, item);
+			break;
+		    case RecordCodec.NEW_BID:
+			RecordCodec.writeNewBid(scratch, bid);
+			break;
+		    case RecordCodec.CLOSE_TIME:
+			RecordCodec.writeCloseTime(scratch, item);
+			break;
+		    case RecordCodec.CLOSED:
+			RecordCodec.writeClosed(scratch, item);
+			break;
+		    default:
+			RecordCodec.writeAmendedBid(scratch, bid);
+		    }
+		    break;
+		} catch (BufferOverflowException ex) {
+		    scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+		}
+	    }
+	    scratch.flip();
+	    sequence = append(scratch);
+	}
+	if (syncMode == SyncMode.GROUP) {
+	    awaitSync(sequence);
+	}
+    }
+
+    // Write a payload to the current segment, rolling to a new one if it does not fit. Returns the
+    // sequence number of the record
+    private long append(ByteBuffer payload) {
+	int length = payload.remaining();
+	if (length + HEADER_SIZE > segmentSize) {
+	    throw new JournalException("Record of " + length + " bytes does not fit in a journal segment");
+	}
+	if (segment.remaining() < length + HEADER_SIZE) {
+	    // Records in the old segment are made durable here, as the syncer only forces the current one
+	    segment.force();
+	    try {
+		channel.close();
+		openSegment(segmentIndex + 1);
+	    } catch (IOException ex) {
+		throw new JournalException("Failed to roll journal segment in " + directory, ex);
+	    }
+	}
+	crc.reset();
+	crc.update(payload.array(), payload.position(), length);
+	int start = segment.position();
+	// The header goes in last, so a reader never sees a length before its payload
+	segment.position(start + HEADER_SIZE);
+	segment.put(payload);
+	segment.putInt(start + 4, (int) crc.getValue());
+	segment.putInt(start, length);
+	return ++appended;
+    }
+
+    private void awaitSync(long sequence) {
+	synchronized (syncLock) {
+	    waiters++;
+	    syncLock.notifyAll();
+	    try {
+		while (synced < sequence && !closed) {
+		    syncLock.wait();
+		}
+	    } catch (InterruptedException ex) {
+		Thread.currentThread().interrupt();
+	    } finally {
+		waiters--;
+	    }
+	}
+    }
+
+    private void syncLoop() {
+	while (!closed) {
+	    sync();
+	    synchronized (syncLock) {
+		try {
+		    // In group mode the next force starts as soon as anyone is waiting on an unforced record, and
+		    // covers everyone who joined while the last force was running
+		    if (!closed && !(syncMode == SyncMode.GROUP && waiters > 0 && synced < appended)) {
+			syncLock.wait(syncIntervalMillis);
+		    }
+		} catch (InterruptedException ex) {
+		    return;
+		}
+	    }
+	}
+    }
+
+    private void force(MappedByteBuffer buffer, long target) {
+	if (target <= synced) {
+	    return;
+	}
+	buffer.force();
+	synchronized (syncLock) {
+	    if (target > synced) {
+		synced = target;
+	    }
+	    syncLock.notifyAll();
+	}
+    }
+
+    // Position the current segment after its last valid record, clearing anything torn after it
+    private void seekToEnd() {
+	ByteBuffer buffer = segment.duplicate();
+	buffer.position(0);
+	int end = 0;
+	while (true) {
+	    int length = readLength(buffer);
+	    if (length <= 0) {
+		break;
+	    }
+	    int checksum = buffer.getInt();
+	    byte[] payload = new byte[length];
+	    buffer.get(payload);
+	    crc.reset();
+	    crc.update(payload, 0, length);
+	    if ((int) crc.getValue() != checksum) {
+		break;
+	    }
+	    end = buffer.position();
+	}
+	if (end + 4 <= segmentSize && segment.getInt(end) != 0) {
+	    logger.warn("Clearing torn journal record at " + end + " in segment " + segmentIndex);
+	    for (int i = end; i < segmentSize; i++) {
+		segment.put(i, (byte) 0);
+	    }
+	}
+	segment.position(end);
+    }
+
+    // Length of the next record, or 0 if there is none
+    private static int readLength(ByteBuffer buffer) {
+	if (buffer.remaining() < HEADER_SIZE) {
+	    return 0;
+	}
+	int length = buffer.getInt();
+	if (length <= 0 || length > buffer.remaining() - 4) {
+	    return 0;
+	}
+	return length;
+    }
+
+    private void openSegment(int index) throws IOException {
+	channel = new RandomAccessFile(segmentFile(index), "rw").getChannel();
+	segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+	segmentIndex = index;
+    }
+
+    private MappedByteBuffer mapSegment(int index, FileChannel.MapMode mode) {
+	try {
+	    RandomAccessFile file = new RandomAccessFile(segmentFile(index), "r");
+	    try {
+		return file.getChannel().map(mode, 0, file.length());
+	    } finally {
+		file.close();
+	    }
+	} catch (IOException ex) {
+	    throw new JournalException("Failed to read journal segment " + index + " in " + directory, ex);
+	}
+    }
+
+    private File segmentFile(int index) {
+	return new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    private int[] segmentIndexes() {
+	String[] names = directory.list(new FilenameFilter() {
+	    public boolean accept(File dir, String name) {
+		return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+	    }
+	});
+	int[] indexes = new int[names == null ? 0 : names.length];
+	for (int i = 0; i < indexes.length; i++) {
+	    indexes[i] = Integer.parseInt(names[i].substring(SEGMENT_PREFIX.length(), names[i].length() - SEGMENT_SUFFIX.length()));
+	}
+	Arrays.sort(indexes);
+	return indexes;
+    }
+}
@@ -0,0 +1,168 @@
+package com.luhar.auctioneer.journal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.OffHeapBidStore;
+import com.luhar.auctioneer.model.User;
+import com.luhar.auctioneer.utils.ObjectStore;
+
+// Items that are no longer bid on, kept on disk with their books, one file per item. Used as the store
+// behind a tracker's item cache. An item read back gets its book rebuilt with the original bids, in the
+// order they were made, but its bids are only reachable through the item. Bidders are looked up in the
+// tracker, so they have to be registered with it before an item that refers to them is read. Layout:
+//   magic, version, item record, close time, closed flag, bid count, then per bid: ID, user ID, update
+//   time, amount, and a CRC32. Version 1 archives have no close time or flag
+public class ItemArchive implements ObjectStore<Item> {
+    static final int MAGIC = 0x41554341;
+    static final int VERSION = 2;
+    static final String ARCHIVE_SUFFIX = ".item";
+    // Largest a bid can take: two IDs, a time, and a BigDecimal of up to 255 bytes with its scale and length
+    private static final int MAX_BID_SIZE = 16 + 16 + 8 + 4 + 1 + 255;
+    private static final Comparator<Bid> BY_SEQUENCE = new Comparator<Bid>() {
+	public int compare(Bid o1, Bid o2) {
+	    long sequence1 = o1.getSequence();
+	    long sequence2 = o2.getSequence();
+	    return sequence1 < sequence2 ? -1 : (sequence1 == sequence2 ? 0 : 1);
+	}
+    };
+
+    private final File directory;
+    private final BidTrackerImpl tracker;
+
+    public ItemArchive(File directory, BidTrackerImpl tracker) {
+	this.directory = directory;
+	this.tracker = tracker;
+	if (!directory.isDirectory() && !directory.mkdirs()) {
+	    throw new JournalException("Could not create archive directory: " + directory);
+	}
+    }
+
+    // The file only appears under its final name once it is complete
+    public void write(Item item) throws IOException {
+	List<Bid> bids = new ArrayList<Bid>(item.copyBids());
+	Collections.sort(bids, BY_SEQUENCE);
+	byte[] name = item.getItemName().getBytes(RecordCodec.UTF_8);
+	byte[] description = item.getDescription().getBytes(RecordCodec.UTF_8);
+	ByteBuffer buffer = ByteBuffer.allocate(64 + name.length + description.length + MAX_BID_SIZE
+		* (bids.size() + 1));
+	buffer.putInt(MAGIC);
+	buffer.putInt(VERSION);
+	RecordCodec.writeItem(buffer, item);
+	buffer.putLong(item.getCloseTime());
+	buffer.put((byte) (item.isClosed() ? 1 : 0));
+	buffer.putInt(bids.size());
+	for (Bid bid : bids) {
+	    RecordCodec.writeUUID(buffer, bid.getID());
+	    RecordCodec.writeUUID(buffer, bid.getUser().getID());
+	    buffer.putLong(bid.getLastUpdateTime());
+	    RecordCodec.writeAmount(buffer, bid);
+	}
+	CRC32 crc = new CRC32();
+	crc.update(buffer.array(), 0, buffer.position());
+	buffer.putLong(crc.getValue());
+	buffer.flip();
+
+	File file = archiveFile(item.getID());
+	File temporary = new File(directory, file.getName() + ".tmp");
+	FileChannel channel = new FileOutputStream(temporary).getChannel();
+	try {
+	    while (buffer.hasRemaining()) {
+		channel.write(buffer);
+	    }
+	    channel.force(true);
+	} finally {
+	    channel.close();
+	}
+	if (!temporary.renameTo(file)) {
+	    file.delete();
+	    if (!temporary.renameTo(file)) {
+		throw new IOException("Could not move archive into place: " + file);
+	    }
+	}
+    }
+
+    public Item read(UUID id) throws IOException {
+	File file = archiveFile(id);
+	if (!file.exists()) {
+	    return null;
+	}
+	ByteBuffer buffer;
+	FileChannel channel = new FileInputStream(file).getChannel();
+	try {
+	    buffer = ByteBuffer.allocate((int) channel.size());
+	    while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+	    }
+	} finally {
+	    channel.close();
+	}
+	buffer.flip();
+	if (buffer.remaining() < 8 + 8 || buffer.getInt() != MAGIC) {
+	    throw new JournalException("Not an item archive: " + file);
+	}
+	int version = buffer.getInt();
+	if (version < 1 || version > VERSION) {
+	    throw new JournalException("Unknown item archive version " + version + ": " + file);
+	}
+	CRC32 crc = new CRC32();
+	crc.update(buffer.array(), 0, buffer.limit() - 8);
+	if (crc.getValue() != buffer.getLong(buffer.limit() - 8)) {
+	    throw new JournalException("Damaged item archive: " + file);
+	}
+	if (buffer.get() != RecordCodec.ITEM) {
+	    throw new JournalException("Item archive does not start with an item: " + file);
+	}
+	Item item = RecordCodec.readItem(buffer);
+	// Bids go back to the tracker's bid store if it keeps one
+	OffHeapBidStore store = tracker.getBidStore();
+	if (store != null && item.getPriceScale() != null) {
+	    item.storeBidsIn(store);
+	}
+	boolean closed = false;
+	if (version >= 2) {
+	    item.setCloseTime(buffer.getLong());
+	    closed = buffer.get() != 0;
+	}
+	int count = buffer.getInt();
+	for (int i = 0; i < count; i++) {
+	    UUID bidID = RecordCodec.readUUID(buffer);
+	    UUID userID = RecordCodec.readUUID(buffer);
+	    long lastUpdated = buffer.getLong();
+	    BigDecimal amount = RecordCodec.readAmount(buffer, item);
+	    User user = tracker.getUser(userID);
+	    if (user == null) {
+		throw new JournalException("Archived item " + id + " has a bid from unknown user " + userID);
+	    }
+	    item.addBid(new Bid(bidID, item, user, amount, lastUpdated));
+	}
+	if (closed) {
+	    item.close();
+	}
+	return item;
+    }
+
+    public void delete(UUID id) throws IOException {
+	File file = archiveFile(id);
+	if (file.exists() && !file.delete()) {
+	    throw new IOException("Could not delete archive: " + file);
+	}
+    }
+
+    File archiveFile(UUID id) {
+	return new File(directory, id.toString() + ARCHIVE_SUFFIX);
+    }
+}
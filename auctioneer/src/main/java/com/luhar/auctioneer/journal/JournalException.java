@@ -0,0 +1,14 @@
+package com.luhar.auctioneer.journal;
+
+// Unchecked failure to read or write a journal
+public class JournalException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public JournalException(String message) {
+	super(message);
+    }
+
+    public JournalException(String message, Throwable cause) {
+	super(message, cause);
+    }
+}
@@ -0,0 +1,231 @@
+package com.luhar.auctioneer.journal;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTrackerListener;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+// Compact binary form of the changes a BidTracker accepts. Every record starts with a type byte.
+// Amounts of fixed point items are written as a long of minor units, others as a BigDecimal
+public final class RecordCodec {
+    public static final byte USER = 1;
+    public static final byte ITEM = 2;
+    public static final byte NEW_BID = 3;
+    public static final byte AMENDED_BID = 4;
+    public static final byte CLOSE_TIME = 5;
+    public static final byte CLOSED = 6;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private RecordCodec() {
+    }
+
+    public static void writeUser(ByteBuffer buffer, User user) {
+	buffer.put(USER);
+	writeUUID(buffer, user.getID());
+	writeString(buffer, user.getName());
+    }
+
+    public static void writeItem(ByteBuffer buffer, Item item) {
+	buffer.put(ITEM);
+	writeUUID(buffer, item.getID());
+	writeString(buffer, item.getItemName());
+	writeString(buffer, item.getDescription());
+	writeDecimal(buffer, item.getReserveAmount());
+	buffer.put((byte) (item.getPriceScale() == null ? -1 : item.getPriceScale().getScale()));
+    }
+
+    public static void writeNewBid(ByteBuffer buffer, Bid bid) {
+	buffer.put(NEW_BID);
+	writeUUID(buffer, bid.getID());
+	writeUUID(buffer, bid.getItem().getID());
+	writeUUID(buffer, bid.getUser().getID());
+	buffer.putLong(bid.getLastUpdateTime());
+	writeAmount(buffer, bid);
+    }
+
+    public static void writeAmendedBid(ByteBuffer buffer, Bid bid) {
+	buffer.put(AMENDED_BID);
+	writeUUID(buffer, bid.getID());
+	buffer.putLong(bid.getLastUpdateTime());
+	writeAmount(buffer, bid);
+    }
+
+    public static void writeCloseTime(ByteBuffer buffer, Item item) {
+	buffer.put(CLOSE_TIME);
+	writeUUID(buffer, item.getID());
+	buffer.putLong(item.getCloseTime());
+    }
+
+    public static void writeClosed(ByteBuffer buffer, Item item) {
+	buffer.put(CLOSED);
+	writeUUID(buffer, item.getID());
+    }
+
+    // Apply one record to a tracker through its restore methods. Returns false if the record refers to
+    // something the tracker does not know, which only happens if earlier records were lost
+    public static boolean apply(ByteBuffer buffer, BidTrackerImpl tracker) {
+	byte type = buffer.get();
+	switch (type) {
+	case USER:
+	    tracker.restoreUser(readUser(buffer));
+	    return true;
+	case ITEM:
+	    tracker.restoreItem(readItem(buffer));
+	    return true;
+	case NEW_BID: {
+	    UUID bidID = readUUID(buffer);
+	    Item item = tracker.getItem(readUUID(buffer));
+	    User user = tracker.getUser(readUUID(buffer));
+	    long lastUpdated = buffer.getLong();
+	    if (item == null || user == null) {
+		return false;
+	    }
+	    tracker.restoreBid(bidID, item, user, readAmount(buffer, item), lastUpdated);
+	    return true;
+	}
+	case AMENDED_BID: {
+	    Bid bid = tracker.getBid(readUUID(buffer));
+	    long lastUpdated = buffer.getLong();
+	    if (bid == null) {
+		return false;
+	    }
+	    tracker.restoreBidAmount(bid.getID(), readAmount(buffer, bid.getItem()), lastUpdated);
+	    return true;
+	}
+	case CLOSE_TIME: {
+	    Item item = tracker.getItem(readUUID(buffer));
+	    long closeTime = buffer.getLong();
+	    if (item == null) {
+		return false;
+	    }
+	    tracker.restoreCloseTime(item, closeTime);
+	    return true;
+	}
+	case CLOSED: {
+	    Item item = tracker.getItem(readUUID(buffer));
+	    if (item == null) {
+		return false;
+	    }
+	    tracker.restoreClosed(item);
+	    return true;
+	}
+	default:
+	    throw new JournalException("Unknown record type: " + type);
+	}
+    }
+
+    // Tell a listener about a record that has been applied to a tracker, as the tracker would have told it
+    // when it accepted the change. The first field of every record is the ID of what it changed
+    public static void announce(ByteBuffer buffer, BidTrackerImpl tracker, BidTrackerListener listener) {
+	int start = buffer.position();
+	byte type = buffer.get(start);
+	UUID id = new UUID(buffer.getLong(start + 1), buffer.getLong(start + 9));
+	switch (type) {
+	case USER:
+	    listener.userRegistered(tracker.getUser(id));
+	    break;
+	case ITEM:
+	    listener.itemRegistered(tracker.getItem(id));
+	    break;
+	case NEW_BID:
+	    listener.bidPlaced(tracker.getBid(id));
+	    break;
+	case AMENDED_BID:
+	    listener.bidAmended(tracker.getBid(id));
+	    break;
+	case CLOSE_TIME:
+	    listener.closeTimeChanged(tracker.getItem(id));
+	    break;
+	case CLOSED: {
+	    Item item = tracker.getItem(id);
+	    listener.itemClosed(item, item.getWinningBid());
+	    break;
+	}
+	default:
+	    throw new JournalException("Unknown record type: " + type);
+	}
+    }
+
+    // The body of a user record, after its type byte
+    public static User readUser(ByteBuffer buffer) {
+	return new User(readUUID(buffer), readString(buffer));
+    }
+
+    // The body of an item record, after its type byte
+    public static Item readItem(ByteBuffer buffer) {
+	UUID id = readUUID(buffer);
+	String name = readString(buffer);
+	String description = readString(buffer);
+	BigDecimal reserveAmount = readDecimal(buffer);
+	byte scale = buffer.get();
+	return new Item(id, name, description, reserveAmount, scale < 0 ? null : new PriceScale(scale));
+    }
+
+    static void writeAmount(ByteBuffer buffer, Bid bid) {
+	if (bid.getItem().getPriceScale() != null) {
+	    buffer.putLong(bid.getBidAmountUnits());
+	} else {
+	    writeDecimal(buffer, bid.getBidAmount());
+	}
+    }
+
+    static BigDecimal readAmount(ByteBuffer buffer, Item item) {
+	if (item.getPriceScale() != null) {
+	    return item.getPriceScale().toAmount(buffer.getLong());
+	}
+	return readDecimal(buffer);
+    }
+
+    static void writeUUID(ByteBuffer buffer, UUID id) {
+	buffer.putLong(id.getMostSignificantBits());
+	buffer.putLong(id.getLeastSignificantBits());
+    }
+
+    static UUID readUUID(ByteBuffer buffer) {
+	return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    static void writeString(ByteBuffer buffer, String value) {
+	byte[] bytes = value.getBytes(UTF_8);
+	buffer.putInt(bytes.length);
+	buffer.put(bytes);
+    }
+
+    static String readString(ByteBuffer buffer) {
+	int length = buffer.getInt();
+	// A damaged length should fail like any other short read, not ask for a huge array
+	if (length < 0 || length > buffer.remaining()) {
+	    throw new BufferUnderflowException();
+	}
+	byte[] bytes = new byte[length];
+	buffer.get(bytes);
+	return new String(bytes, UTF_8);
+    }
+
+    static void writeDecimal(ByteBuffer buffer, BigDecimal value) {
+	byte[] unscaled = value.unscaledValue().toByteArray();
+	if (unscaled.length > 255) {
+	    throw new JournalException("Amount too large to record: " + value.toPlainString());
+	}
+	buffer.putInt(value.scale());
+	buffer.put((byte) unscaled.length);
+	buffer.put(unscaled);
+    }
+
+    static BigDecimal readDecimal(ByteBuffer buffer) {
+	int scale = buffer.getInt();
+	byte[] unscaled = new byte[buffer.get() & 0xff];
+	buffer.get(unscaled);
+	return new BigDecimal(new BigInteger(unscaled), scale);
+    }
+}
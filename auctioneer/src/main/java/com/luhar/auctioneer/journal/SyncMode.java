@@ -0,0 +1,11 @@
+package com.luhar.auctioneer.journal;
+
+// When journal writes are forced to disk
+public enum SyncMode {
+    // A background thread forces the journal every sync interval. Callers never wait, and a crash of
+    // the machine can lose the last interval's changes
+    ASYNC,
+    // Every change waits until it has been forced. Changes that arrive while a force is running share
+    // the next one, so concurrent callers pay for one force between them
+    GROUP
+}
@@ -0,0 +1,258 @@
+package com.luhar.auctioneer.journal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+// Point-in-time copy of a BidTrackerImpl's users, items and bids, written in the same binary records as
+// the journal. The file is a header of [int magic][int version][long journal position], then the records
+// as [int length][payload], users first, then items, then every bid in the order it was last updated so
+// the books come back with the same time priority. A zero length ends the records and is followed by a
+// CRC32 of everything before it.
+//
+// A snapshot is taken while bidding carries on, so it can catch some changes made after the journal
+// position it records. Loading it and then replaying the journal from that position gives the same state
+// as replaying everything, because replayed records overwrite rather than add to what is there
+public final class TrackerSnapshot {
+    private static final Logger logger = Logger.getLogger(BidTracker.class);
+    static final int MAGIC = 0x41554353;
+    static final int VERSION = 1;
+    static final String SNAPSHOT_PREFIX = "snapshot-";
+    static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    // Order bids are written in, so the books come back with the same time priority. Only for bids that
+    // cannot change while they are sorted, such as those from bidsInUpdateOrder
+    public static final Comparator<Bid> BY_LAST_UPDATE = new Comparator<Bid>() {
+	public int compare(Bid o1, Bid o2) {
+	    long time1 = o1.getLastUpdateTime();
+	    long time2 = o2.getLastUpdateTime();
+	    if (time1 != time2) {
+		return time1 < time2 ? -1 : 1;
+	    }
+	    // Same millisecond. Keep the order they were made in, so recovery hands out sequences in it again
+	    long sequence1 = o1.getSequence();
+	    long sequence2 = o2.getSequence();
+	    return sequence1 < sequence2 ? -1 : (sequence1 == sequence2 ? 0 : 1);
+	}
+    };
+
+    private TrackerSnapshot() {
+    }
+
+    // Write a snapshot of a tracker to the directory, tagged with the journal position it starts from.
+    // The file only appears under its final name once it is complete
+    public static File write(BidTrackerImpl tracker, File directory, long journalPosition) throws IOException {
+	long started = System.nanoTime();
+	File file = snapshotFile(directory, journalPosition);
+	File temporary = new File(directory, file.getName() + ".tmp");
+	Writer writer = new Writer(new FileOutputStream(temporary).getChannel());
+	try {
+	    writer.buffer.putInt(MAGIC);
+	    writer.buffer.putInt(VERSION);
+	    writer.buffer.putLong(journalPosition);
+	    for (User user : tracker.getAllRegisteredUsers()) {
+		writer.write(RecordCodec.USER, user);
+	    }
+	    List<Item> items = new ArrayList<Item>(tracker.getAllRegisteredItems());
+	    List<Item> closedItems = new ArrayList<Item>();
+	    for (Item item : items) {
+		writer.write(RecordCodec.ITEM, item);
+		if (item.getCloseTime() != Item.NO_CLOSE_TIME) {
+		    writer.write(RecordCodec.CLOSE_TIME, item);
+		}
+		if (item.isClosed()) {
+		    closedItems.add(item);
+		}
+	    }
+	    for (Bid bid : bidsInUpdateOrder(items)) {
+		writer.write(RecordCodec.NEW_BID, bid);
+	    }
+	    // Closed after their bids are back, as a closed book takes no more bids
+	    for (Item item : closedItems) {
+		writer.write(RecordCodec.CLOSED, item);
+	    }
+	    writer.finish();
+	} finally {
+	    writer.channel.close();
+	}
+	if (!temporary.renameTo(file)) {
+	    throw new IOException("Cannot rename snapshot to " + file);
+	}
+	logger.info("Wrote snapshot " + file + " in " + (System.nanoTime() - started) / 1000000 + " ms");
+	return file;
+    }
+
+    // Copies of the items' bids in the order they were last updated. Each item's bids are copied in one go
+    // under its book's lock, so bidding can carry on while they are sorted and written
+    public static List<Bid> bidsInUpdateOrder(Collection<Item> items) {
+	List<Bid> bids = new ArrayList<Bid>();
+	for (Item item : items) {
+	    bids.addAll(item.copyBidStates());
+	}
+	Collections.sort(bids, BY_LAST_UPDATE);
+	return bids;
+    }
+
+    // Load a snapshot into a tracker. Returns the journal position to replay from
+    public static long load(File file, BidTrackerImpl tracker) throws IOException {
+	long started = System.nanoTime();
+	RandomAccessFile input = new RandomAccessFile(file, "r");
+	MappedByteBuffer buffer;
+	try {
+	    buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+	} finally {
+	    input.close();
+	}
+	int end = buffer.limit() - 4;
+	if (end < 16 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+	    throw new JournalException("Not a snapshot: " + file);
+	}
+	if (buffer.getInt(end) != checksum(buffer, end)) {
+	    throw new JournalException("Snapshot is damaged: " + file);
+	}
+	buffer.position(8);
+	long journalPosition = buffer.getLong();
+	byte[] payload = new byte[4096];
+	long records = 0;
+	int length;
+	while ((length = buffer.getInt()) != 0) {
+	    if (payload.length < length) {
+		payload = new byte[Math.max(length, payload.length * 2)];
+	    }
+	    buffer.get(payload, 0, length);
+	    RecordCodec.apply(ByteBuffer.wrap(payload, 0, length), tracker);
+	    records++;
+	}
+	logger.info("Loaded " + records + " records from snapshot " + file + " in " + (System.nanoTime() - started) / 1000000 + " ms");
+	return journalPosition;
+    }
+
+    // Snapshots in a directory, oldest first
+    public static File[] list(File directory) {
+	File[] files = directory.listFiles(new FilenameFilter() {
+	    public boolean accept(File dir, String name) {
+		return name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX);
+	    }
+	});
+	if (files == null) {
+	    return new File[0];
+	}
+	// Names hold the position as fixed width hex, so they sort in position order
+	Arrays.sort(files);
+	return files;
+    }
+
+    // Journal position a snapshot file starts from
+    public static long positionOf(File file) {
+	String name = file.getName();
+	return Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length()), 16);
+    }
+
+    static File snapshotFile(File directory, long journalPosition) {
+	return new File(directory, String.format("%s%016x%s", SNAPSHOT_PREFIX, journalPosition, SNAPSHOT_SUFFIX));
+    }
+
+    // CRC32 of the first length bytes of a buffer
+    private static int checksum(ByteBuffer buffer, int length) {
+	CRC32 crc = new CRC32();
+	byte[] chunk = new byte[64 * 1024];
+	ByteBuffer source = buffer.duplicate();
+	source.position(0);
+	source.limit(length);
+	while (source.hasRemaining()) {
+	    int size = Math.min(chunk.length, source.remaining());
+	    source.get(chunk, 0, size);
+	    crc.update(chunk, 0, size);
+	}
+	return (int) crc.getValue();
+    }
+
+    // Buffers records and keeps a running CRC of what it writes
+    private static class Writer {
+	final FileChannel channel;
+	final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	final CRC32 crc = new CRC32();
+
+	Writer(FileChannel channel) {
+	    this.channel = channel;
+	}
+
+	void write(byte type, Object value) throws IOException {
+	    int start = buffer.position();
+	    try {
+		encode(type, value);
+	    } catch (BufferOverflowException ex) {
+		buffer.position(start);
+		flush();
+		// A single record is always far smaller than the buffer
+		encode(type, value);
+	    }
+	}
+
+	private void encode(byte type, Object value) {
+	    int start = buffer.position();
+	    buffer.putInt(0);
+	    switch (type) {
+	    case RecordCodec.USER:
+		RecordCodec.writeUser(buffer, (User) value);
+		break;
+	    case RecordCodec.ITEM:
+		RecordCodec.writeItem(buffer, (Item) value);
+		break;
+	    case RecordCodec.CLOSE_TIME:
+		RecordCodec.writeCloseTime(buffer, (Item) value);
+		break;
+	    case RecordCodec.CLOSED:
+		RecordCodec.writeClosed(buffer, (Item) value);
+		break;
+	    default:
+		RecordCodec.writeNewBid(buffer, (Bid) value);
+	    }
+	    buffer.putInt(start, buffer.position() - start - 4);
+	}
+
+	void finish() throws IOException {
+	    if (buffer.remaining() < 8) {
+		flush();
+	    }
+	    buffer.putInt(0);
+	    crc.update(buffer.array(), 0, buffer.position());
+	    buffer.putInt((int) crc.getValue());
+	    buffer.flip();
+	    while (buffer.hasRemaining()) {
+		channel.write(buffer);
+	    }
+	    channel.force(true);
+	}
+
+	private void flush() throws IOException {
+	    crc.update(buffer.array(), 0, buffer.position());
+	    buffer.flip();
+	    while (buffer.hasRemaining()) {
+		channel.write(buffer);
+	    }
+	    buffer.clear();
+	}
+    }
+}
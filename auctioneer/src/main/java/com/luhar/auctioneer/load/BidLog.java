@@ -0,0 +1,158 @@
+package com.luhar.auctioneer.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.journal.BidJournal;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTrackerListener;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+// Bids, closes and close time changes recorded in a BidJournal, in the order they happened, for
+// LoadDriver.replay. Each is due at its recorded time from the first bid on, and a change without a time
+// of its own is due with the one before it. Close times move with the replay's clock. Users and items are
+// registered before the replay starts. If the journal has been snapshotted it starts from the snapshot,
+// whose bids are not replayed
+public class BidLog {
+    private final List<User> users = new ArrayList<User>();
+    private final List<Item> items = new ArrayList<Item>();
+    private final List<LoadRequest> requests = new ArrayList<LoadRequest>();
+    // Items by their index in items, for spreading requests over threads
+    private final Map<UUID, Integer> itemIndexes = new HashMap<UUID, Integer>();
+    private final Map<UUID, User> usersByID = new HashMap<UUID, User>();
+    private long firstTime = -1;
+    private long lastTime;
+
+    // Read the journal in a directory
+    public static BidLog load(File directory) throws IOException {
+	final BidLog log = new BidLog();
+	BidJournal journal = new BidJournal(directory);
+	try {
+	    journal.read(new BidTrackerImpl(), new BidTrackerListener() {
+		public void userRegistered(User user) {
+		    log.userFor(user);
+		}
+
+		public void itemRegistered(Item item) {
+		    log.itemFor(item);
+		}
+
+		public void bidPlaced(Bid bid) {
+		    log.addBid(bid);
+		}
+
+		public void bidAmended(Bid bid) {
+		    log.addBid(bid);
+		}
+
+		public void closeTimeChanged(Item item) {
+		    log.addClose(item, item.getCloseTime());
+		}
+
+		public void itemClosed(Item item, Bid winner) {
+		    log.addClose(item, Item.NO_CLOSE_TIME);
+		}
+	    });
+	} finally {
+	    journal.close();
+	}
+	return log;
+    }
+
+    public List<User> getUsers() {
+	return users;
+    }
+
+    public List<Item> getItems() {
+	return items;
+    }
+
+    // Number of requests to replay
+    public int size() {
+	return requests.size();
+    }
+
+    // Time from the first recorded bid to the last, in milliseconds
+    public long getSpanMillis() {
+	return firstTime < 0 ? 0 : lastTime - firstTime;
+    }
+
+    // Recorded time of the first bid, which replays start from
+    long getFirstTime() {
+	return Math.max(firstTime, 0);
+    }
+
+    List<LoadRequest> getRequests() {
+	return requests;
+    }
+
+    // Index of the item a request is on, so requests on one item can be kept in order on one thread
+    int indexOf(Item item) {
+	return itemIndexes.get(item.getID());
+    }
+
+    // Copies of the recorded users and items are registered with the tracker under test, so its books are
+    // its own
+    private User userFor(User recorded) {
+	User user = usersByID.get(recorded.getID());
+	if (user == null) {
+	    user = new User(recorded.getID(), recorded.getName());
+	    usersByID.put(user.getID(), user);
+	    users.add(user);
+	}
+	return user;
+    }
+
+    private Item itemFor(Item recorded) {
+	Integer index = itemIndexes.get(recorded.getID());
+	if (index != null) {
+	    return items.get(index);
+	}
+	Item item = new Item(recorded.getID(), recorded.getItemName(), recorded.getDescription(), recorded.getReserveAmount(),
+		recorded.getPriceScale());
+	itemIndexes.put(item.getID(), items.size());
+	items.add(item);
+	return item;
+    }
+
+    private void addBid(Bid bid) {
+	LoadRequest request = add(bid.getLastUpdateTime());
+	request.kind = LoadRequest.BID;
+	request.item = itemFor(bid.getItem());
+	request.user = userFor(bid.getUser());
+	// The recorded bid changes as the replay goes on, so keep the amount as it is now
+	request.amount = bid.getBidAmount();
+    }
+
+    private void addClose(Item item, long closeTime) {
+	LoadRequest request = add(-1);
+	request.kind = LoadRequest.CLOSE;
+	request.item = itemFor(item);
+	request.closeTime = closeTime;
+    }
+
+    // A request due at the given time, or with the one before it if the time is -1
+    private LoadRequest add(long time) {
+	if (time >= 0) {
+	    if (firstTime < 0) {
+		firstTime = time;
+	    }
+	    lastTime = Math.max(lastTime, time);
+	}
+	LoadRequest request = new LoadRequest();
+	request.dueNanos = time < 0 || firstTime < 0 ? lastDue() : Math.max(lastDue(), (time - firstTime) * 1000000);
+	requests.add(request);
+	return request;
+    }
+
+    private long lastDue() {
+	return requests.isEmpty() ? 0 : requests.get(requests.size() - 1).dueNanos;
+    }
+}
@@ -0,0 +1,385 @@
+package com.luhar.auctioneer.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.impl.ShardedBidTracker;
+import com.luhar.auctioneer.metrics.LatencyHistogram;
+import com.luhar.auctioneer.model.AuctioneerObject;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+// Puts load on any BidTracker from a number of threads, either a synthetic Workload or a BidLog recorded
+// by a journal, and reports throughput and latency percentiles. When requests go out on a schedule, at a
+// set rate or at the recorded times, each thread waits for a request's due time, sends it and measures its
+// latency from the due time. A thread held up by a slow answer sends the requests it has fallen behind on
+// straight away, and they count as late as they are. This keeps a stalled tracker from hiding its stall by
+// slowing the load down.
+//
+// A replay keeps every item's requests on one thread, so they reach the tracker in the recorded order. A
+// generated run does the same on a plain BidTrackerImpl, which takes each item's bids from one thread at a
+// time: every thread bids on its own share of the items, picked with the weights they have in the whole
+// Zipf distribution
+public class LoadDriver {
+    private static final Logger logger = Logger.getLogger(BidTracker.class);
+    // Due times further off than this are waited for by parking, nearer ones by spinning
+    private static final long PARK_THRESHOLD_NANOS = 100000;
+
+    // The requests of one thread, in the order they go out
+    abstract static class Source {
+	// The next request, or null when there are no more
+	abstract LoadRequest next();
+    }
+
+    private final BidTracker tracker;
+    private final int threadCount;
+
+    public LoadDriver(BidTracker tracker, int threadCount) {
+	if (threadCount < 1) {
+	    throw new IllegalArgumentException("Thread count must be positive: " + threadCount);
+	}
+	this.tracker = tracker;
+	this.threadCount = threadCount;
+    }
+
+    // Register the workload's users and items, then run it for its warmup and duration
+    public LoadReport run(String label, Workload workload) {
+	User[] users = new User[workload.getUserCount()];
+	for (int i = 0; i < users.length; i++) {
+	    users[i] = new User("User" + i);
+	    tracker.registerUser(users[i]);
+	}
+	Item[] items = new Item[workload.getItemCount()];
+	for (int i = 0; i < items.length; i++) {
+	    items[i] = workload.isFixedPoint() ? new Item("Item" + i, "", BigDecimal.ONE, PriceScale.CENTS)
+		    : new Item("Item" + i, "", BigDecimal.ONE);
+	    tracker.registerItem(items[i]);
+	}
+	BigDecimal[] prices = new BigDecimal[workload.getMaxPrice()];
+	for (int i = 0; i < prices.length; i++) {
+	    prices[i] = BigDecimal.valueOf(i + 1);
+	}
+	boolean partitioned = tracker instanceof BidTrackerImpl && threadCount > 1;
+	if (partitioned && items.length < threadCount) {
+	    throw new IllegalArgumentException("Each thread needs an item of its own: " + items.length + " items for " + threadCount + " threads");
+	}
+	ZipfDistribution zipf = new ZipfDistribution(items.length, workload.getZipfExponent());
+	Source[] sources = new Source[threadCount];
+	for (int i = 0; i < threadCount; i++) {
+	    if (partitioned) {
+		// Items i, i + threadCount, ... go to thread i, as items are split in a replay
+		ZipfDistribution share = new ZipfDistribution(items.length, workload.getZipfExponent(), i, threadCount);
+		sources[i] = new GeneratedRequests(workload, i, threadCount, users, items, prices, share, i, threadCount);
+	    } else {
+		sources[i] = new GeneratedRequests(workload, i, threadCount, users, items, prices, zipf, 0, 1);
+	    }
+	}
+	logger.info("Running " + workload + " on " + threadCount + " threads");
+	return drive(label, sources, workload.getRate() > 0, 1, workload.getWarmupMillis() * 1000000,
+		workload.getDurationMillis() * 1000000, workload.getRate());
+    }
+
+    // Register the log's users and items, then send its requests at speed times the recorded rate, or as
+    // fast as they are answered for a speed of 0
+    public LoadReport replay(String label, BidLog log, double speed) {
+	if (speed < 0) {
+	    throw new IllegalArgumentException("Speed must not be negative: " + speed);
+	}
+	for (User user : log.getUsers()) {
+	    tracker.registerUser(user);
+	}
+	for (Item item : log.getItems()) {
+	    tracker.registerItem(item);
+	}
+	List<List<LoadRequest>> parts = new ArrayList<List<LoadRequest>>();
+	for (int i = 0; i < threadCount; i++) {
+	    parts.add(new ArrayList<LoadRequest>());
+	}
+	for (LoadRequest request : log.getRequests()) {
+	    parts.get(log.indexOf(request.item) % threadCount).add(request);
+	}
+	double timeScale = speed == 0 ? 1 : speed;
+	long clockStart = AuctioneerObject.getClock().currentTimeMillis();
+	Source[] sources = new Source[threadCount];
+	for (int i = 0; i < threadCount; i++) {
+	    sources[i] = new ReplayedRequests(parts.get(i), log.getFirstTime(), clockStart, timeScale);
+	}
+	logger.info("Replaying " + log.size() + " requests over " + log.getSpanMillis() + " ms at speed " + speed + " on "
+		+ threadCount + " threads");
+	double rate = speed == 0 || log.getSpanMillis() == 0 ? 0 : log.size() * speed * 1000.0 / log.getSpanMillis();
+	return drive(label, sources, speed > 0, timeScale, 0, Long.MAX_VALUE, rate);
+    }
+
+    private LoadReport drive(String label, final Source[] sources, final boolean scheduled, final double timeScale,
+	    long warmupNanos, long durationNanos, double targetRate) {
+	final LatencyHistogram[] response = new LatencyHistogram[LoadRequest.KINDS];
+	final LatencyHistogram[] service = new LatencyHistogram[LoadRequest.KINDS];
+	for (int kind = 0; kind < LoadRequest.KINDS; kind++) {
+	    response[kind] = new LatencyHistogram();
+	    service[kind] = new LatencyHistogram();
+	}
+	final long[] rejected = new long[threadCount];
+	final long[] finished = new long[threadCount];
+	final Throwable[] failures = new Throwable[threadCount];
+	final CountDownLatch ready = new CountDownLatch(threadCount);
+	final CountDownLatch go = new CountDownLatch(1);
+	// Set before go opens
+	final long[] times = new long[3];
+	Thread[] threads = new Thread[threadCount];
+	for (int i = 0; i < threadCount; i++) {
+	    final int index = i;
+	    threads[i] = new Thread(new Runnable() {
+		public void run() {
+		    ready.countDown();
+		    try {
+			go.await();
+			sendAll(sources[index], scheduled, timeScale, times[0], times[1], times[2], response, service, rejected, finished, index);
+		    } catch (Throwable ex) {
+			failures[index] = ex;
+		    }
+		}
+	    }, "auctioneer-load-" + i);
+	    threads[i].start();
+	}
+	try {
+	    ready.await();
+	    times[0] = System.nanoTime() + PARK_THRESHOLD_NANOS;
+	    times[1] = times[0] + warmupNanos;
+	    times[2] = durationNanos == Long.MAX_VALUE ? Long.MAX_VALUE : times[1] + durationNanos;
+	    go.countDown();
+	    for (Thread thread : threads) {
+		thread.join();
+	    }
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	    throw new IllegalStateException("Interrupted waiting for the load to finish", ex);
+	}
+	long totalRejected = 0;
+	long lastFinished = times[1];
+	for (int i = 0; i < threadCount; i++) {
+	    if (failures[i] != null) {
+		throw new IllegalStateException("Request failed: " + failures[i].getMessage(), failures[i]);
+	    }
+	    totalRejected += rejected[i];
+	    lastFinished = Math.max(lastFinished, finished[i]);
+	}
+	LatencyHistogram.Snapshot[] responseSnapshots = new LatencyHistogram.Snapshot[LoadRequest.KINDS];
+	LatencyHistogram.Snapshot[] serviceSnapshots = new LatencyHistogram.Snapshot[LoadRequest.KINDS];
+	for (int kind = 0; kind < LoadRequest.KINDS; kind++) {
+	    responseSnapshots[kind] = response[kind].snapshot();
+	    serviceSnapshots[kind] = service[kind].snapshot();
+	}
+	LoadReport report = new LoadReport(label, threadCount, lastFinished - times[1], targetRate, totalRejected,
+		responseSnapshots, serviceSnapshots);
+	logger.info(report.toString());
+	return report;
+    }
+
+    // Send one thread's requests, measuring the ones due or sent from measureStart on until end
+    private void sendAll(Source source, boolean scheduled, double timeScale, long start, long measureStart, long end,
+	    LatencyHistogram[] response, LatencyHistogram[] service, long[] rejected, long[] finished, int index) {
+	// All threads start together
+	waitUntil(start);
+	long done = start;
+	LoadRequest request;
+	while ((request = source.next()) != null) {
+	    long due = 0;
+	    if (scheduled) {
+		due = start + (long) (request.dueNanos / timeScale);
+		if (due >= end) {
+		    break;
+		}
+		waitUntil(due);
+	    } else if (done >= end) {
+		break;
+	    }
+	    long sent = System.nanoTime();
+	    boolean accepted = request.send(tracker);
+	    done = System.nanoTime();
+	    if ((scheduled ? due : sent) >= measureStart) {
+		response[request.kind].record(done - (scheduled ? due : sent));
+		service[request.kind].record(done - sent);
+		if (!accepted && request.kind == LoadRequest.BID) {
+		    rejected[index]++;
+		}
+	    }
+	}
+	finished[index] = Math.min(done, end);
+    }
+
+    private static void waitUntil(long due) {
+	long remaining;
+	while ((remaining = due - System.nanoTime()) > 0) {
+	    if (remaining > PARK_THRESHOLD_NANOS) {
+		LockSupport.parkNanos(remaining - PARK_THRESHOLD_NANOS / 2);
+	    } else {
+		Thread.yield();
+	    }
+	}
+    }
+
+    // Requests of a synthetic workload, generated as they are needed into one reused request
+    static final class GeneratedRequests extends Source {
+	private final LoadRequest request = new LoadRequest();
+	private final Random random;
+	private final User[] users;
+	private final Item[] items;
+	private final BigDecimal[] prices;
+	private final ZipfDistribution zipf;
+	// The items picked from are itemOffset, itemOffset + itemStep and so on
+	private final int itemOffset;
+	private final int itemStep;
+	private final double readRatio;
+	private final double amendRatio;
+	private final int regularBidders;
+	private final long intervalNanos;
+	private long due;
+
+	GeneratedRequests(Workload workload, int thread, int threadCount, User[] users, Item[] items, BigDecimal[] prices, ZipfDistribution zipf,
+		int itemOffset, int itemStep) {
+	    this.random = new Random(workload.getSeed() * 31 + thread);
+	    this.users = users;
+	    this.items = items;
+	    this.prices = prices;
+	    this.zipf = zipf;
+	    this.itemOffset = itemOffset;
+	    this.itemStep = itemStep;
+	    this.readRatio = workload.getReadRatio();
+	    this.amendRatio = workload.getAmendRatio();
+	    this.regularBidders = workload.getRegularBidders();
+	    this.intervalNanos = workload.getRate() > 0 ? Math.round(threadCount * 1e9 / workload.getRate()) : 0;
+	    // Threads take turns, so the requests of all of them are evenly spaced
+	    this.due = intervalNanos * thread / threadCount;
+	}
+
+	LoadRequest next() {
+	    request.dueNanos = due;
+	    due += intervalNanos;
+	    int rank = itemOffset + zipf.next(random) * itemStep;
+	    request.item = items[rank];
+	    if (random.nextDouble() < readRatio) {
+		request.kind = LoadRequest.READ;
+		return request;
+	    }
+	    request.kind = LoadRequest.BID;
+	    if (random.nextDouble() < amendRatio) {
+		request.user = users[(int) (((long) rank * regularBidders + random.nextInt(regularBidders)) % users.length)];
+	    } else {
+		request.user = users[random.nextInt(users.length)];
+	    }
+	    request.amount = prices[random.nextInt(prices.length)];
+	    return request;
+	}
+    }
+
+    // Recorded requests of the items one thread replays. Close times move to the replay's clock
+    static final class ReplayedRequests extends Source {
+	private final List<LoadRequest> requests;
+	private final LoadRequest moved = new LoadRequest();
+	private final long firstTime;
+	private final long clockStart;
+	private final double timeScale;
+	private int next;
+
+	ReplayedRequests(List<LoadRequest> requests, long firstTime, long clockStart, double timeScale) {
+	    this.requests = requests;
+	    this.firstTime = firstTime;
+	    this.clockStart = clockStart;
+	    this.timeScale = timeScale;
+	}
+
+	LoadRequest next() {
+	    if (next == requests.size()) {
+		return null;
+	    }
+	    LoadRequest request = requests.get(next++);
+	    if (request.kind != LoadRequest.CLOSE || request.closeTime == Item.NO_CLOSE_TIME) {
+		return request;
+	    }
+	    moved.kind = LoadRequest.CLOSE;
+	    moved.item = request.item;
+	    moved.dueNanos = request.dueNanos;
+	    moved.closeTime = clockStart + (long) ((request.closeTime - firstTime) / timeScale);
+	    return moved;
+	}
+    }
+
+    // Usage: LoadDriver generate [setting=value ...] or LoadDriver replay <journal directory> [setting=value ...]
+    // Settings are tracker=impl|sharded, shards, threads, label and csv, a file to add the report to, plus
+    // speed for a replay and the Workload settings for a generated run
+    public static void main(String[] args) throws IOException {
+	BasicConfigurator.configure();
+	Logger.getRootLogger().setLevel(Level.WARN);
+	if (args.length == 0 || !("generate".equals(args[0]) || ("replay".equals(args[0]) && args.length > 1))) {
+	    System.err.println("Usage: LoadDriver generate [setting=value ...]");
+	    System.err.println("       LoadDriver replay <journal directory> [setting=value ...]");
+	    System.exit(1);
+	}
+	boolean replay = "replay".equals(args[0]);
+	Workload workload = new Workload();
+	String trackerName = "impl";
+	int shards = Runtime.getRuntime().availableProcessors();
+	int threads = 1;
+	String label = null;
+	String csv = null;
+	double speed = 1;
+	for (int i = replay ? 2 : 1; i < args.length; i++) {
+	    int equals = args[i].indexOf('=');
+	    if (equals < 0) {
+		throw new IllegalArgumentException("Expected setting=value: " + args[i]);
+	    }
+	    String name = args[i].substring(0, equals);
+	    String value = args[i].substring(equals + 1);
+	    if ("tracker".equals(name)) {
+		trackerName = value;
+	    } else if ("shards".equals(name)) {
+		shards = Integer.parseInt(value);
+	    } else if ("threads".equals(name)) {
+		threads = Integer.parseInt(value);
+	    } else if ("label".equals(name)) {
+		label = value;
+	    } else if ("csv".equals(name)) {
+		csv = value;
+	    } else if ("speed".equals(name)) {
+		speed = Double.parseDouble(value);
+	    } else {
+		workload.set(name, value);
+	    }
+	}
+	BidTracker tracker;
+	ShardedBidTracker sharded = null;
+	if ("impl".equals(trackerName)) {
+	    tracker = new BidTrackerImpl();
+	} else if ("sharded".equals(trackerName)) {
+	    sharded = new ShardedBidTracker(shards);
+	    tracker = sharded;
+	} else {
+	    throw new IllegalArgumentException("Unknown tracker: " + trackerName + ", expected impl or sharded");
+	}
+	if (label == null) {
+	    label = trackerName + " " + args[0];
+	}
+	LoadDriver driver = new LoadDriver(tracker, threads);
+	LoadReport report = replay ? driver.replay(label, BidLog.load(new File(args[1])), speed) : driver.run(label, workload);
+	System.out.println(report);
+	if (csv != null) {
+	    report.appendCsv(new File(csv));
+	}
+	if (sharded != null) {
+	    sharded.shutdown();
+	}
+    }
+}
@@ -0,0 +1,139 @@
+package com.luhar.auctioneer.load;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+import com.luhar.auctioneer.metrics.LatencyHistogram;
+
+// What a LoadDriver run measured. Response times are from when each request was due to when it was
+// answered, so a stall counts against every request that should have gone out during it, not just the
+// one that was waiting. Service times are from when each was actually sent. Without a rate the two are
+// the same. Reports can be added to one CSV file to compare trackers and workloads
+public class LoadReport {
+    static final String CSV_HEADER = "label,threads,seconds,requests,throughput,target_rate,rejected_bids"
+	    + ",bid_count,bid_p50_us,bid_p99_us,bid_p999_us,bid_max_us,bid_service_p99_us"
+	    + ",read_count,read_p50_us,read_p99_us,read_p999_us,read_max_us,read_service_p99_us";
+
+    private final String label;
+    private final int threads;
+    private final long elapsedNanos;
+    private final double targetRate;
+    private final long rejectedBids;
+    private final LatencyHistogram.Snapshot[] response;
+    private final LatencyHistogram.Snapshot[] service;
+
+    LoadReport(String label, int threads, long elapsedNanos, double targetRate, long rejectedBids,
+	    LatencyHistogram.Snapshot[] response, LatencyHistogram.Snapshot[] service) {
+	this.label = label;
+	this.threads = threads;
+	this.elapsedNanos = elapsedNanos;
+	this.targetRate = targetRate;
+	this.rejectedBids = rejectedBids;
+	this.response = response;
+	this.service = service;
+    }
+
+    public String getLabel() {
+	return label;
+    }
+
+    public long getElapsedNanos() {
+	return elapsedNanos;
+    }
+
+    // Requests answered while measuring
+    public long getRequestCount() {
+	long count = 0;
+	for (LatencyHistogram.Snapshot snapshot : response) {
+	    count += snapshot.getCount();
+	}
+	return count;
+    }
+
+    // Requests answered a second
+    public double getThroughput() {
+	return elapsedNanos == 0 ? 0 : getRequestCount() * 1e9 / elapsedNanos;
+    }
+
+    public long getRejectedBids() {
+	return rejectedBids;
+    }
+
+    public LatencyHistogram.Snapshot getBidLatency() {
+	return response[LoadRequest.BID];
+    }
+
+    public LatencyHistogram.Snapshot getBidServiceTime() {
+	return service[LoadRequest.BID];
+    }
+
+    public LatencyHistogram.Snapshot getReadLatency() {
+	return response[LoadRequest.READ];
+    }
+
+    public LatencyHistogram.Snapshot getReadServiceTime() {
+	return service[LoadRequest.READ];
+    }
+
+    public LatencyHistogram.Snapshot getCloseLatency() {
+	return response[LoadRequest.CLOSE];
+    }
+
+    // One CSV line, without the header
+    public String toCsv() {
+	StringBuilder line = new StringBuilder();
+	line.append(label.replace(',', ';')).append(',').append(threads);
+	line.append(',').append(format(elapsedNanos / 1e9)).append(',').append(getRequestCount());
+	line.append(',').append(format(getThroughput())).append(',').append(format(targetRate)).append(',').append(rejectedBids);
+	for (int kind = LoadRequest.BID; kind <= LoadRequest.READ; kind++) {
+	    LatencyHistogram.Snapshot latency = response[kind];
+	    line.append(',').append(latency.getCount());
+	    line.append(',').append(micros(latency.getP50())).append(',').append(micros(latency.getP99()));
+	    line.append(',').append(micros(latency.getP999())).append(',').append(micros(latency.getMax()));
+	    line.append(',').append(micros(service[kind].getP99()));
+	}
+	return line.toString();
+    }
+
+    // Add this report to a CSV file, writing the header first if the file is new
+    public void appendCsv(File file) throws IOException {
+	boolean header = !file.exists() || file.length() == 0;
+	Writer writer = new FileWriter(file, true);
+	try {
+	    if (header) {
+		writer.write(CSV_HEADER + "\n");
+	    }
+	    writer.write(toCsv() + "\n");
+	} finally {
+	    writer.close();
+	}
+    }
+
+    private static String format(double value) {
+	return String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    private static String micros(long nanos) {
+	return format(nanos / 1000.0);
+    }
+
+    public String toString() {
+	StringBuilder text = new StringBuilder();
+	text.append(label).append(": ").append(getRequestCount()).append(" requests in ").append(format(elapsedNanos / 1e9))
+		.append(" s on ").append(threads).append(" threads, ").append(format(getThroughput())).append(" a second");
+	if (targetRate > 0) {
+	    text.append(" (target ").append(format(targetRate)).append(")");
+	}
+	text.append(", ").append(rejectedBids).append(" bids rejected");
+	for (int kind = 0; kind < LoadRequest.KINDS; kind++) {
+	    if (response[kind].getCount() > 0) {
+		text.append("\n  ").append(LoadRequest.KIND_NAMES[kind]).append(" latency ").append(response[kind]);
+		text.append("\n  ").append(LoadRequest.KIND_NAMES[kind]).append(" service ").append(service[kind]);
+	    }
+	}
+	return text.toString();
+    }
+}
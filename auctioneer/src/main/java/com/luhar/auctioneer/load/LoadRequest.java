@@ -0,0 +1,41 @@
+package com.luhar.auctioneer.load;
+
+import java.math.BigDecimal;
+
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+// One request LoadDriver sends. Generated workloads fill in one per thread over and over, replays hold
+// one per recorded change
+final class LoadRequest {
+    static final int BID = 0;
+    static final int READ = 1;
+    static final int CLOSE = 2;
+    static final int KINDS = 3;
+    static final String[] KIND_NAMES = { "bid", "read", "close" };
+
+    int kind;
+    Item item;
+    User user;
+    BigDecimal amount;
+    // For a close, the new close time, or NO_CLOSE_TIME to close now
+    long closeTime = Item.NO_CLOSE_TIME;
+    // When the request is due, from the start of the run
+    long dueNanos;
+
+    // Send the request. Returns false if the tracker rejected it
+    boolean send(BidTracker tracker) {
+	switch (kind) {
+	case BID:
+	    Bid bid = tracker.registerBid(item, user, amount);
+	    return bid != null;
+	case READ:
+	    tracker.getWinningBid(item);
+	    return true;
+	default:
+	    return closeTime == Item.NO_CLOSE_TIME ? tracker.closeItem(item) : tracker.setCloseTime(item, closeTime);
+	}
+    }
+}
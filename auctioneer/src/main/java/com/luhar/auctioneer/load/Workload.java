@@ -0,0 +1,191 @@
+package com.luhar.auctioneer.load;
+
+// Settings of a synthetic workload for LoadDriver.run. Items are picked with a Zipf distribution, so a few
+// hot ones take most of the bids. Of the bids, amendRatio come from a handful of regular bidders per item,
+// who have usually bid on it before and so amend their bid; the rest come from any user. readRatio of the
+// requests read the winning bid instead of bidding. With a rate set, requests are sent on a fixed
+// schedule whether or not earlier ones have been answered, and latencies are measured from when each was
+// due to be sent. With no rate each thread sends its next request as soon as the last is answered
+public class Workload {
+    private int userCount = 10000;
+    private int itemCount = 1000;
+    private double zipfExponent = 1.0;
+    private double amendRatio = 0.5;
+    private int regularBidders = 8;
+    private double readRatio = 0.2;
+    private double rate;
+    private long warmupMillis = 1000;
+    private long durationMillis = 5000;
+    private int maxPrice = 10000;
+    private boolean fixedPoint;
+    private long seed = 42;
+
+    public int getUserCount() {
+	return userCount;
+    }
+
+    public void setUserCount(int userCount) {
+	if (userCount < 1) {
+	    throw new IllegalArgumentException("User count must be positive: " + userCount);
+	}
+	this.userCount = userCount;
+    }
+
+    public int getItemCount() {
+	return itemCount;
+    }
+
+    public void setItemCount(int itemCount) {
+	if (itemCount < 1) {
+	    throw new IllegalArgumentException("Item count must be positive: " + itemCount);
+	}
+	this.itemCount = itemCount;
+    }
+
+    public double getZipfExponent() {
+	return zipfExponent;
+    }
+
+    // 0 picks items evenly, higher values make the hottest items hotter
+    public void setZipfExponent(double zipfExponent) {
+	if (zipfExponent < 0) {
+	    throw new IllegalArgumentException("Zipf exponent must not be negative: " + zipfExponent);
+	}
+	this.zipfExponent = zipfExponent;
+    }
+
+    public double getAmendRatio() {
+	return amendRatio;
+    }
+
+    public void setAmendRatio(double amendRatio) {
+	this.amendRatio = checkRatio(amendRatio);
+    }
+
+    public int getRegularBidders() {
+	return regularBidders;
+    }
+
+    // Regular bidders on each item
+    public void setRegularBidders(int regularBidders) {
+	if (regularBidders < 1) {
+	    throw new IllegalArgumentException("Regular bidders must be positive: " + regularBidders);
+	}
+	this.regularBidders = regularBidders;
+    }
+
+    public double getReadRatio() {
+	return readRatio;
+    }
+
+    public void setReadRatio(double readRatio) {
+	this.readRatio = checkRatio(readRatio);
+    }
+
+    public double getRate() {
+	return rate;
+    }
+
+    // Requests a second across all threads, 0 to send as fast as answers come back
+    public void setRate(double rate) {
+	if (rate < 0) {
+	    throw new IllegalArgumentException("Rate must not be negative: " + rate);
+	}
+	this.rate = rate;
+    }
+
+    public long getWarmupMillis() {
+	return warmupMillis;
+    }
+
+    // Time to run before measuring
+    public void setWarmupMillis(long warmupMillis) {
+	this.warmupMillis = warmupMillis;
+    }
+
+    public long getDurationMillis() {
+	return durationMillis;
+    }
+
+    // Time to measure for, after the warmup
+    public void setDurationMillis(long durationMillis) {
+	if (durationMillis <= 0) {
+	    throw new IllegalArgumentException("Duration must be positive: " + durationMillis);
+	}
+	this.durationMillis = durationMillis;
+    }
+
+    public int getMaxPrice() {
+	return maxPrice;
+    }
+
+    // Bids are for a whole number of units from 1 to maxPrice
+    public void setMaxPrice(int maxPrice) {
+	if (maxPrice < 1) {
+	    throw new IllegalArgumentException("Max price must be positive: " + maxPrice);
+	}
+	this.maxPrice = maxPrice;
+    }
+
+    public boolean isFixedPoint() {
+	return fixedPoint;
+    }
+
+    // Register items with PriceScale.CENTS rather than BigDecimal amounts
+    public void setFixedPoint(boolean fixedPoint) {
+	this.fixedPoint = fixedPoint;
+    }
+
+    public long getSeed() {
+	return seed;
+    }
+
+    // Runs with the same seed and thread count send the same requests
+    public void setSeed(long seed) {
+	this.seed = seed;
+    }
+
+    // Set a setting by its name, as given on the command line
+    public void set(String name, String value) {
+	if ("users".equals(name)) {
+	    setUserCount(Integer.parseInt(value));
+	} else if ("items".equals(name)) {
+	    setItemCount(Integer.parseInt(value));
+	} else if ("zipf".equals(name)) {
+	    setZipfExponent(Double.parseDouble(value));
+	} else if ("amend".equals(name)) {
+	    setAmendRatio(Double.parseDouble(value));
+	} else if ("regulars".equals(name)) {
+	    setRegularBidders(Integer.parseInt(value));
+	} else if ("reads".equals(name)) {
+	    setReadRatio(Double.parseDouble(value));
+	} else if ("rate".equals(name)) {
+	    setRate(Double.parseDouble(value));
+	} else if ("warmup".equals(name)) {
+	    setWarmupMillis(Long.parseLong(value));
+	} else if ("duration".equals(name)) {
+	    setDurationMillis(Long.parseLong(value));
+	} else if ("maxPrice".equals(name)) {
+	    setMaxPrice(Integer.parseInt(value));
+	} else if ("fixedPoint".equals(name)) {
+	    setFixedPoint(Boolean.parseBoolean(value));
+	} else if ("seed".equals(name)) {
+	    setSeed(Long.parseLong(value));
+	} else {
+	    throw new IllegalArgumentException("Unknown workload setting: " + name);
+	}
+    }
+
+    private static double checkRatio(double ratio) {
+	if (ratio < 0 || ratio > 1) {
+	    throw new IllegalArgumentException("Ratio must be between 0 and 1: " + ratio);
+	}
+	return ratio;
+    }
+
+    public String toString() {
+	return "Workload: users=" + userCount + " items=" + itemCount + " zipf=" + zipfExponent + " amend=" + amendRatio
+		+ " regulars=" + regularBidders + " reads=" + readRatio + " rate=" + rate + " warmup=" + warmupMillis
+		+ " duration=" + durationMillis + " maxPrice=" + maxPrice + " fixedPoint=" + fixedPoint + " seed=" + seed;
+    }
+}
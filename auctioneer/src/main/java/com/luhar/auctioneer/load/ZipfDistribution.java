@@ -0,0 +1,34 @@
+package com.luhar.auctioneer.load;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Picks ranks 0 to size - 1 with the chance of rank k proportional to 1 / (k + 1)^exponent, by a binary
+// search of the cumulative distribution
+final class ZipfDistribution {
+    private final double[] cumulative;
+
+    ZipfDistribution(int size, double exponent) {
+	this(size, exponent, 0, 1);
+    }
+
+    // Only the ranks offset, offset + step, offset + 2 * step and so on below size, each as likely against
+    // the others as in the whole distribution. next gives the place of the rank among them
+    ZipfDistribution(int size, double exponent, int offset, int step) {
+	cumulative = new double[(size - offset + step - 1) / step];
+	double total = 0;
+	for (int k = 0; k < cumulative.length; k++) {
+	    total += 1 / Math.pow(offset + k * step + 1, exponent);
+	    cumulative[k] = total;
+	}
+	for (int k = 0; k < cumulative.length; k++) {
+	    cumulative[k] /= total;
+	}
+    }
+
+    int next(Random random) {
+	int index = Arrays.binarySearch(cumulative, random.nextDouble());
+	int rank = index >= 0 ? index : -index - 1;
+	return Math.min(rank, cumulative.length - 1);
+    }
+}
@@ -0,0 +1,157 @@
+package com.luhar.auctioneer.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Histogram of latencies in nanoseconds, with buckets that grow with the value: 32 per power of two, so
+// a percentile is within about 3% of the true value. Recording is an increment of one counter in a stripe
+// picked by the recording thread, so threads rarely touch the same cache line and never wait. Values of
+// MAX_VALUE and more, over 18 minutes, are counted in the top bucket
+public class LatencyHistogram {
+    static final int SUB_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final long MAX_VALUE = (1L << 40) - 1;
+    static final int BUCKETS = bucketOf(MAX_VALUE) + 1;
+    private static final int MAX_STRIPES = 8;
+
+    // Percentiles of a histogram at one point in time
+    public static final class Snapshot {
+	private final long[] counts;
+	private final long count;
+	private final long sum;
+	private final long max;
+
+	Snapshot(long[] counts, long sum, long max) {
+	    long total = 0;
+	    for (long bucketCount : counts) {
+		total += bucketCount;
+	    }
+	    this.counts = counts;
+	    this.count = total;
+	    this.sum = sum;
+	    this.max = max;
+	}
+
+	public long getCount() {
+	    return count;
+	}
+
+	public long getMax() {
+	    return max;
+	}
+
+	public double getMean() {
+	    return count == 0 ? 0 : (double) sum / count;
+	}
+
+	// Smallest recorded value that quantile of the values are at or below, rounded up to its bucket.
+	// 0 when nothing has been recorded
+	public long getPercentile(double quantile) {
+	    if (quantile < 0 || quantile > 1) {
+		throw new IllegalArgumentException("Quantile must be between 0 and 1: " + quantile);
+	    }
+	    if (count == 0) {
+		return 0;
+	    }
+	    long rank = Math.max(1, (long) Math.ceil(quantile * count));
+	    long seen = 0;
+	    for (int i = 0; i < counts.length; i++) {
+		seen += counts[i];
+		if (seen >= rank) {
+		    return Math.min(upperBound(i), max);
+		}
+	    }
+	    return max;
+	}
+
+	public long getP50() {
+	    return getPercentile(0.5);
+	}
+
+	public long getP99() {
+	    return getPercentile(0.99);
+	}
+
+	public long getP999() {
+	    return getPercentile(0.999);
+	}
+
+	public String toString() {
+	    return "count: " + count + " mean: " + Math.round(getMean()) + " p50: " + getP50() + " p99: " + getP99()
+		    + " p99.9: " + getP999() + " max: " + max + " ns";
+	}
+    }
+
+    private final AtomicLongArray[] stripes;
+    private final AtomicLongArray sums;
+    private final AtomicLong max = new AtomicLong();
+    private final int mask;
+
+    public LatencyHistogram() {
+	int size = Integer.highestOneBit(Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors()));
+	this.stripes = new AtomicLongArray[size];
+	for (int i = 0; i < size; i++) {
+	    stripes[i] = new AtomicLongArray(BUCKETS);
+	}
+	// One sum per stripe, spread a cache line apart
+	this.sums = new AtomicLongArray(size * 8);
+	this.mask = size - 1;
+    }
+
+    public void record(long nanos) {
+	long value = nanos < 0 ? 0 : Math.min(nanos, MAX_VALUE);
+	int stripe = (int) Thread.currentThread().getId() & mask;
+	stripes[stripe].incrementAndGet(bucketOf(value));
+	sums.addAndGet(stripe * 8, value);
+	long currentMax = max.get();
+	while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+	    currentMax = max.get();
+	}
+    }
+
+    // Counts being recorded while this runs may or may not be included
+    public Snapshot snapshot() {
+	long[] counts = new long[BUCKETS];
+	long sum = 0;
+	for (int s = 0; s < stripes.length; s++) {
+	    AtomicLongArray stripe = stripes[s];
+	    for (int i = 0; i < BUCKETS; i++) {
+		counts[i] += stripe.get(i);
+	    }
+	    sum += sums.get(s * 8);
+	}
+	return new Snapshot(counts, sum, max.get());
+    }
+
+    // Start again from nothing. Values recorded while this runs may be partly kept
+    public void reset() {
+	for (int s = 0; s < stripes.length; s++) {
+	    AtomicLongArray stripe = stripes[s];
+	    for (int i = 0; i < BUCKETS; i++) {
+		stripe.set(i, 0);
+	    }
+	    sums.set(s * 8, 0);
+	}
+	max.set(0);
+    }
+
+    // Values below SUB_BUCKETS have a bucket each. Above that, each power of two is split into SUB_BUCKETS
+    static int bucketOf(long value) {
+	if (value < SUB_BUCKETS) {
+	    return (int) value;
+	}
+	int exponent = 63 - Long.numberOfLeadingZeros(value);
+	int shift = exponent - SUB_BITS;
+	return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    // Largest value that falls in a bucket
+    static long upperBound(int bucket) {
+	if (bucket < SUB_BUCKETS) {
+	    return bucket;
+	}
+	int shift = bucket / SUB_BUCKETS - 1;
+	long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+	return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,145 @@
+package com.luhar.auctioneer.metrics;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// Copy of a TrackerMetrics at one point in time. Counts are since the metrics were made or last reset
+public final class MetricsSnapshot {
+
+    // How busy one item's book is
+    public static final class ItemActivity {
+	private final UUID itemID;
+	private final String itemName;
+	private final int depth;
+	private final long activity;
+
+	ItemActivity(UUID itemID, String itemName, int depth, long activity) {
+	    this.itemID = itemID;
+	    this.itemName = itemName;
+	    this.depth = depth;
+	    this.activity = activity;
+	}
+
+	public UUID getItemID() {
+	    return itemID;
+	}
+
+	public String getItemName() {
+	    return itemName;
+	}
+
+	// Bids in the book
+	public int getDepth() {
+	    return depth;
+	}
+
+	// Bids made or changed on the item since it was registered
+	public long getActivity() {
+	    return activity;
+	}
+
+	public String toString() {
+	    return itemName + " (" + itemID + ") depth: " + depth + " activity: " + activity;
+	}
+    }
+
+    private final long time;
+    private final Map<Operation, Long> calls;
+    private final Map<Operation, LatencyHistogram.Snapshot> latencies;
+    private final long bidsPlaced;
+    private final long bidsAmended;
+    private final Map<RejectReason, Long> rejects;
+    private final int itemCount;
+    private final int maxDepth;
+    private final List<ItemActivity> hotItems;
+
+    MetricsSnapshot(long time, Map<Operation, Long> calls, Map<Operation, LatencyHistogram.Snapshot> latencies,
+	    long bidsPlaced, long bidsAmended, Map<RejectReason, Long> rejects, int itemCount, int maxDepth, List<ItemActivity> hotItems) {
+	this.time = time;
+	this.calls = Collections.unmodifiableMap(calls);
+	this.latencies = Collections.unmodifiableMap(latencies);
+	this.bidsPlaced = bidsPlaced;
+	this.bidsAmended = bidsAmended;
+	this.rejects = Collections.unmodifiableMap(rejects);
+	this.itemCount = itemCount;
+	this.maxDepth = maxDepth;
+	this.hotItems = Collections.unmodifiableList(hotItems);
+    }
+
+    // Clock time the snapshot was taken
+    public long getTime() {
+	return time;
+    }
+
+    public long getCallCount(Operation operation) {
+	return calls.get(operation);
+    }
+
+    // Latencies of the calls that were timed, a sample of them all
+    public LatencyHistogram.Snapshot getLatency(Operation operation) {
+	return latencies.get(operation);
+    }
+
+    public Map<Operation, LatencyHistogram.Snapshot> getLatencies() {
+	return latencies;
+    }
+
+    public long getBidsPlaced() {
+	return bidsPlaced;
+    }
+
+    public long getBidsAmended() {
+	return bidsAmended;
+    }
+
+    public long getRejectCount(RejectReason reason) {
+	return rejects.get(reason);
+    }
+
+    public Map<RejectReason, Long> getRejectCounts() {
+	return rejects;
+    }
+
+    public long getBidsRejected() {
+	long total = 0;
+	for (long count : rejects.values()) {
+	    total += count;
+	}
+	return total;
+    }
+
+    // Items in memory when the snapshot was taken
+    public int getItemCount() {
+	return itemCount;
+    }
+
+    // Deepest book among them
+    public int getMaxDepth() {
+	return maxDepth;
+    }
+
+    // Most active items, most active first
+    public List<ItemActivity> getHotItems() {
+	return hotItems;
+    }
+
+    public String toString() {
+	StringBuilder text = new StringBuilder();
+	text.append("placed: ").append(bidsPlaced).append(" amended: ").append(bidsAmended).append(" rejected: ")
+		.append(rejects).append('\n');
+	for (Map.Entry<Operation, LatencyHistogram.Snapshot> entry : latencies.entrySet()) {
+	    long callCount = calls.get(entry.getKey());
+	    if (callCount > 0) {
+		text.append(entry.getKey()).append(" calls: ").append(callCount).append(" sampled ").append(entry.getValue())
+			.append('\n');
+	    }
+	}
+	text.append("items: ").append(itemCount).append(" max depth: ").append(maxDepth).append('\n');
+	for (ItemActivity item : hotItems) {
+	    text.append("  ").append(item).append('\n');
+	}
+	return text.toString();
+    }
+}
@@ -0,0 +1,23 @@
+package com.luhar.auctioneer.metrics;
+
+// BidTracker methods that TrackerMetrics times
+public enum Operation {
+    REGISTER_USER,
+    REGISTER_ITEM,
+    REGISTER_USERS,
+    REGISTER_ITEMS,
+    REGISTER_BID,
+    REGISTER_BIDS,
+    SET_CLOSE_TIME,
+    CLOSE_ITEM,
+    GET_WINNING_BID,
+    GET_ALL_BIDS_FOR_ITEM,
+    GET_TOP_BIDS,
+    GET_BIDS_PAGE,
+    GET_RANK_OF,
+    GET_ALL_ITEMS_FOR_USER,
+    GET_ITEMS_WINNING_FOR_USER,
+    GET_ITEMS_OUTBID_FOR_USER,
+    GET_ALL_REGISTERED_USERS,
+    GET_ALL_REGISTERED_ITEMS
+}
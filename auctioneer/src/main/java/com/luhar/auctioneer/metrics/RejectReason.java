@@ -0,0 +1,15 @@
+package com.luhar.auctioneer.metrics;
+
+// Why a bid was turned down. A bid with several faults counts under the first in this order
+public enum RejectReason {
+    // Item not registered
+    INVALID_ITEM,
+    // Item's auction has closed
+    CLOSED_ITEM,
+    // User not registered
+    INVALID_USER,
+    // Amount not positive, or not representable in the item's price scale
+    INVALID_AMOUNT,
+    // Amount under the item's reserve
+    BELOW_RESERVE
+}
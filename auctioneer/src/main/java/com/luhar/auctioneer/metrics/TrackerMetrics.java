@@ -0,0 +1,219 @@
+package com.luhar.auctioneer.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.luhar.auctioneer.model.AuctioneerObject;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+
+// Latency and outcome counts for a tracker's operations. The tracker records into it as it works, see
+// BidTrackerImpl.setMetrics; recording only adds to striped counters, so it does not make threads wait on
+// each other. Every call and every bid outcome is counted, but only one call in LATENCY_SAMPLE is timed, as
+// the two clock reads would cost more than many reads of the tracker. Book depths and hot items are not
+// tracked as bids come in but read off the items when a snapshot is taken, so they cost nothing on the bid
+// path. Readable through snapshot() or over JMX once registered
+public class TrackerMetrics implements TrackerMetricsMXBean {
+    public static final int LATENCY_SAMPLE = 16;
+    static final int HOT_ITEMS = 10;
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final RejectReason[] REJECT_REASONS = RejectReason.values();
+    private static final Comparator<MetricsSnapshot.ItemActivity> BY_ACTIVITY = new Comparator<MetricsSnapshot.ItemActivity>() {
+	public int compare(MetricsSnapshot.ItemActivity o1, MetricsSnapshot.ItemActivity o2) {
+	    long activity1 = o1.getActivity();
+	    long activity2 = o2.getActivity();
+	    return activity1 < activity2 ? -1 : (activity1 == activity2 ? 0 : 1);
+	}
+    };
+
+    private final BidTracker tracker;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+    private final LongAdder[] calls = new LongAdder[OPERATIONS.length];
+    private final LongAdder placed = new LongAdder();
+    private final LongAdder amended = new LongAdder();
+    private final LongAdder[] rejects = new LongAdder[REJECT_REASONS.length];
+    private ObjectName objectName;
+
+    // Metrics for a tracker, which is only read from to find its items
+    public TrackerMetrics(BidTracker tracker) {
+	this.tracker = tracker;
+	for (int i = 0; i < latencies.length; i++) {
+	    latencies[i] = new LatencyHistogram();
+	    calls[i] = new LongAdder();
+	}
+	for (int i = 0; i < rejects.length; i++) {
+	    rejects[i] = new LongAdder();
+	}
+    }
+
+    // Count a call of an operation and, unless startNanos is 0, record the time it took since System.nanoTime()
+    // was startNanos
+    public void record(Operation operation, long startNanos) {
+	calls[operation.ordinal()].increment();
+	if (startNanos != 0) {
+	    latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+	}
+    }
+
+    public void bidPlaced() {
+	placed.increment();
+    }
+
+    public void bidAmended() {
+	amended.increment();
+    }
+
+    public void bidRejected(RejectReason reason) {
+	rejects[reason.ordinal()].increment();
+    }
+
+    public MetricsSnapshot snapshot() {
+	return snapshot(HOT_ITEMS);
+    }
+
+    // Snapshot naming the hotItemCount items with the most bids made or changed on them. Walks every item
+    // in memory
+    public MetricsSnapshot snapshot(int hotItemCount) {
+	Map<Operation, LatencyHistogram.Snapshot> latencySnapshots = new EnumMap<Operation, LatencyHistogram.Snapshot>(Operation.class);
+	Map<Operation, Long> callCounts = new EnumMap<Operation, Long>(Operation.class);
+	for (Operation operation : OPERATIONS) {
+	    latencySnapshots.put(operation, latencies[operation.ordinal()].snapshot());
+	    callCounts.put(operation, calls[operation.ordinal()].sum());
+	}
+	Map<RejectReason, Long> rejectCounts = new EnumMap<RejectReason, Long>(RejectReason.class);
+	for (RejectReason reason : REJECT_REASONS) {
+	    rejectCounts.put(reason, rejects[reason.ordinal()].sum());
+	}
+	PriorityQueue<MetricsSnapshot.ItemActivity> hottest = new PriorityQueue<MetricsSnapshot.ItemActivity>(
+		Math.max(1, hotItemCount + 1), BY_ACTIVITY);
+	int itemCount = 0;
+	int maxDepth = 0;
+	for (Item item : tracker.getAllRegisteredItems()) {
+	    itemCount++;
+	    int depth = item.getBookDepth();
+	    maxDepth = Math.max(maxDepth, depth);
+	    if (hotItemCount == 0) {
+		continue;
+	    }
+	    long activity = item.getBidActivity();
+	    if (hottest.size() < hotItemCount || activity > hottest.peek().getActivity()) {
+		hottest.add(new MetricsSnapshot.ItemActivity(item.getID(), item.getItemName(), depth, activity));
+		if (hottest.size() > hotItemCount) {
+		    hottest.poll();
+		}
+	    }
+	}
+	List<MetricsSnapshot.ItemActivity> hotItems = new ArrayList<MetricsSnapshot.ItemActivity>(hottest);
+	Collections.sort(hotItems, Collections.reverseOrder(BY_ACTIVITY));
+	return new MetricsSnapshot(AuctioneerObject.getClock().currentTimeMillis(), callCounts, latencySnapshots, placed.sum(),
+		amended.sum(), rejectCounts, itemCount, maxDepth, hotItems);
+    }
+
+    // Start every count again from zero
+    public void reset() {
+	for (int i = 0; i < latencies.length; i++) {
+	    latencies[i].reset();
+	    calls[i].reset();
+	}
+	placed.reset();
+	amended.reset();
+	for (LongAdder count : rejects) {
+	    count.reset();
+	}
+    }
+
+    // Publish on the platform MBean server as com.luhar.auctioneer:type=BidTracker,name=<name>
+    public synchronized void registerMBean(String name) throws JMException {
+	if (objectName != null) {
+	    throw new IllegalStateException("Already registered as " + objectName);
+	}
+	ObjectName newName = new ObjectName("com.luhar.auctioneer:type=BidTracker,name=" + ObjectName.quote(name));
+	ManagementFactory.getPlatformMBeanServer().registerMBean(this, newName);
+	objectName = newName;
+    }
+
+    public synchronized void unregisterMBean() throws JMException {
+	if (objectName != null) {
+	    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	    server.unregisterMBean(objectName);
+	    objectName = null;
+	}
+    }
+
+    public long getBidsPlaced() {
+	return placed.sum();
+    }
+
+    public long getBidsAmended() {
+	return amended.sum();
+    }
+
+    public long getBidsRejected() {
+	long total = 0;
+	for (LongAdder count : rejects) {
+	    total += count.sum();
+	}
+	return total;
+    }
+
+    public Map<String, Long> getRejectCounts() {
+	Map<String, Long> counts = new LinkedHashMap<String, Long>();
+	for (RejectReason reason : REJECT_REASONS) {
+	    counts.put(reason.name(), rejects[reason.ordinal()].sum());
+	}
+	return counts;
+    }
+
+    public Map<String, Long> getOperationCounts() {
+	Map<String, Long> counts = new LinkedHashMap<String, Long>();
+	for (Operation operation : OPERATIONS) {
+	    counts.put(operation.name(), calls[operation.ordinal()].sum());
+	}
+	return counts;
+    }
+
+    public Map<String, Long> getP50Nanos() {
+	return percentiles(0.5);
+    }
+
+    public Map<String, Long> getP99Nanos() {
+	return percentiles(0.99);
+    }
+
+    public Map<String, Long> getP999Nanos() {
+	return percentiles(0.999);
+    }
+
+    public String[] getHotItems() {
+	List<MetricsSnapshot.ItemActivity> hotItems = snapshot().getHotItems();
+	String[] names = new String[hotItems.size()];
+	for (int i = 0; i < names.length; i++) {
+	    names[i] = hotItems.get(i).toString();
+	}
+	return names;
+    }
+
+    // Operations that have been called, with their latency at the quantile
+    private Map<String, Long> percentiles(double quantile) {
+	Map<String, Long> values = new LinkedHashMap<String, Long>();
+	for (Operation operation : OPERATIONS) {
+	    LatencyHistogram.Snapshot snapshot = latencies[operation.ordinal()].snapshot();
+	    if (snapshot.getCount() > 0) {
+		values.put(operation.name(), snapshot.getPercentile(quantile));
+	    }
+	}
+	return values;
+    }
+}
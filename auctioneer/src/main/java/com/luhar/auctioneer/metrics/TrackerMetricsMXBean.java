@@ -0,0 +1,30 @@
+package com.luhar.auctioneer.metrics;
+
+import java.util.Map;
+
+// JMX view of a TrackerMetrics. Latencies are keyed by operation, reject counts by reason. Latencies
+// come from a sample of the calls, see TrackerMetrics
+public interface TrackerMetricsMXBean {
+
+    public long getBidsPlaced();
+
+    public long getBidsAmended();
+
+    public long getBidsRejected();
+
+    public Map<String, Long> getRejectCounts();
+
+    // Calls of each operation
+    public Map<String, Long> getOperationCounts();
+
+    public Map<String, Long> getP50Nanos();
+
+    public Map<String, Long> getP99Nanos();
+
+    public Map<String, Long> getP999Nanos();
+
+    // The ten most active items
+    public String[] getHotItems();
+
+    public void reset();
+}
@@ -0,0 +1,44 @@
+package com.luhar.auctioneer.model;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// BidTracker whose calls return straight away. Each future completes with what the matching BidTracker
+// method returns, or exceptionally if the request was refused, timed out or failed. Cancelling a future
+// stops the request if it has not been applied yet
+public interface AsyncBidTracker {
+
+    public CompletableFuture<Boolean> registerUser(User user);
+
+    public CompletableFuture<Boolean> registerItem(Item item);
+
+    public CompletableFuture<Bid> registerBid(Item item, User user, BigDecimal amount);
+
+    public CompletableFuture<List<Bid>> registerBids(Collection<BidRequest> requests);
+
+    public CompletableFuture<Boolean> setCloseTime(Item item, long closeTime);
+
+    public CompletableFuture<Boolean> closeItem(Item item);
+
+    public CompletableFuture<Bid> getWinningBid(Item item);
+
+    public CompletableFuture<Collection<Bid>> getAllBidsForItem(Item item);
+
+    public CompletableFuture<List<Bid>> getTopBids(Item item, int count);
+
+    public CompletableFuture<BidPage> getBidsPage(Item item, BidCursor cursor, int pageSize);
+
+    public CompletableFuture<Integer> getRankOf(Bid bid);
+
+    public CompletableFuture<Collection<Item>> getAllItemsForUser(User user);
+
+    public CompletableFuture<Collection<Item>> getItemsWinningForUser(User user);
+
+    public CompletableFuture<Collection<Item>> getItemsOutbidForUser(User user);
+
+    public CompletableFuture<Collection<User>> getAllRegisteredUsers();
+
+    public CompletableFuture<Collection<Item>> getAllRegisteredItems();
+}
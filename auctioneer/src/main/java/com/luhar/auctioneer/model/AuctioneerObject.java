@@ -4,20 +4,52 @@ import java.util.UUID;
 
 import org.apache.log4j.Logger;
 
+import com.luhar.auctioneer.utils.Clock;
+import com.luhar.auctioneer.utils.IdGenerator;
+import com.luhar.auctioneer.utils.SequentialIdGenerator;
+import com.luhar.auctioneer.utils.SystemClock;
+
+// Users, items and bids are equal when their IDs are, so hashing and comparing them costs the same
+// however many bids they hold
 public abstract class AuctioneerObject {
     private final UUID id;
     static final Logger logger = Logger.getLogger(BidTracker.class);
+    private static volatile IdGenerator idGenerator = new SequentialIdGenerator();
+    private static volatile Clock clock = new SystemClock();
     
     public AuctioneerObject() {
-	this.id = UUID.randomUUID();
+	this.id = idGenerator.nextID();
+    }
+    
+    // Object recovered with a known ID, e.g. from a journal
+    protected AuctioneerObject(UUID id) {
+	this.id = id;
     }
     
     public UUID getID() {
 	return this.id;
     }
+    
+    // Generator for the IDs of objects made from now on
+    public static void setIdGenerator(IdGenerator generator) {
+	idGenerator = generator;
+    }
+    
+    public static IdGenerator getIdGenerator() {
+	return idGenerator;
+    }
+    
+    // Clock for the times stamped on bids from now on
+    public static void setClock(Clock newClock) {
+	clock = newClock;
+    }
+    
+    public static Clock getClock() {
+	return clock;
+    }
 
     @Override
-    public int hashCode() {
+    public final int hashCode() {
 	final int prime = 31;
 	int result = 1;
 	result = prime * result + ((id == null) ? 0 : id.hashCode());
@@ -25,7 +57,7 @@ public abstract class AuctioneerObject {
     }
 
     @Override
-    public boolean equals(Object obj) {
+    public final boolean equals(Object obj) {
 	if (this == obj)
 	    return true;
 	if (obj == null)
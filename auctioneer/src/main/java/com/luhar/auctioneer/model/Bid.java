@@ -3,22 +3,96 @@ package com.luhar.auctioneer.model;
 import java.math.BigDecimal;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.UUID;
 
 public class Bid extends AuctioneerObject implements Comparable<Bid> {
     
     private final Item item;
     private final User user;
+    // Fixed point scale of the item, or null when the amount is held as a BigDecimal
+    private final PriceScale priceScale;
     private BigDecimal bidAmount;
-    // Time that this bid was last updated
-    private Date lastUpdated;
-    private final SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy.MM.dd 'at' HH:mm:ss.SSS z");
+    // Amount in minor units, used instead of bidAmount for fixed point items
+    private long bidAmountUnits;
+    // Time that this bid was last updated, in milliseconds. Kept as a long so changing a bid allocates nothing
+    private long lastUpdated;
+    // Place of this bid in the order bids on its item were made or last changed. Breaks ties between equal
+    // amounts, however many bids share a millisecond
+    private long sequence;
+    private static final String DATE_FORMAT = "yyyy.MM.dd 'at' HH:mm:ss.SSS z";
     
     public Bid(Item item, User user, BigDecimal bidAmount) {
 	super();
 	this.item = item;
 	this.user = user;
-	this.bidAmount = bidAmount;  
-	this.lastUpdated = new Date();
+	this.priceScale = item.getPriceScale();
+	if (priceScale != null) {
+	    this.bidAmountUnits = priceScale.toUnits(bidAmount);
+	} else {
+	    this.bidAmount = bidAmount;
+	}
+	touch();
+    }
+    
+    // Bid in minor units on a fixed point item
+    public Bid(Item item, User user, long bidAmountUnits) {
+	super();
+	this.item = item;
+	this.user = user;
+	this.priceScale = checkFixedPoint(item);
+	this.bidAmountUnits = bidAmountUnits;
+	touch();
+    }
+    
+    // Bid recovered with a known ID and update time
+    public Bid(UUID id, Item item, User user, BigDecimal bidAmount, long lastUpdated) {
+	super(id);
+	this.item = item;
+	this.user = user;
+	this.priceScale = item.getPriceScale();
+	restoreBidAmount(bidAmount, lastUpdated);
+    }
+    
+    // Stand-in for a position in an item's BigDecimal book, used to search the book from a cursor. It
+    // belongs to no user
+    Bid(Item item, UUID id, BigDecimal bidAmount, long lastUpdated, long sequence) {
+	super(id);
+	this.item = item;
+	this.user = null;
+	this.priceScale = null;
+	this.bidAmount = bidAmount;
+	this.lastUpdated = lastUpdated;
+	this.sequence = sequence;
+    }
+    
+    // View of a bid kept in an OffHeapBidStore, made from its record
+    Bid(UUID id, Item item, User user, long bidAmountUnits, long lastUpdated, long sequence) {
+	super(id);
+	this.item = item;
+	this.user = user;
+	this.priceScale = item.getPriceScale();
+	this.bidAmountUnits = bidAmountUnits;
+	this.lastUpdated = lastUpdated;
+	this.sequence = sequence;
+    }
+    
+    // Copy of a bid as it stands, which nothing else refers to or changes. Made under its item's book lock
+    Bid(Bid bid) {
+	super(bid.getID());
+	this.item = bid.item;
+	this.user = bid.user;
+	this.priceScale = bid.priceScale;
+	this.bidAmount = bid.bidAmount;
+	this.bidAmountUnits = bid.bidAmountUnits;
+	this.lastUpdated = bid.lastUpdated;
+	this.sequence = bid.sequence;
+    }
+    
+    private static PriceScale checkFixedPoint(Item item) {
+	if (item.getPriceScale() == null) {
+	    throw new IllegalArgumentException("Item does not use a fixed point price scale: " + item.toString());
+	}
+	return item.getPriceScale();
     }
     
     // Get the Item for this bid
@@ -33,97 +107,96 @@ public class Bid extends AuctioneerObject implements Comparable<Bid> {
     
     // Assuming all bids are made for a single currency
     public BigDecimal getBidAmount() {
-	return this.bidAmount;
+	return priceScale != null ? priceScale.toAmount(bidAmountUnits) : this.bidAmount;
+    }
+    
+    // Amount in minor units. Only available for fixed point items
+    public long getBidAmountUnits() {
+	if (priceScale == null) {
+	    throw new IllegalStateException("Bid amount is not fixed point: " + getID().toString());
+	}
+	return this.bidAmountUnits;
     }
     
     // Assume that the bidAmount can be changed in an auction
     public void setBidAmount(BigDecimal newAmount) {
-	this.bidAmount = newAmount;
-	this.lastUpdated = new Date();
+	if (priceScale != null) {
+	    this.bidAmountUnits = priceScale.toUnits(newAmount);
+	} else {
+	    this.bidAmount = newAmount;
+	}
+	touch();
+    }
+    
+    // Put back an amount and update time recovered from a journal or snapshot
+    public void restoreBidAmount(BigDecimal amount, long lastUpdated) {
+	if (priceScale != null) {
+	    this.bidAmountUnits = priceScale.toUnits(amount);
+	} else {
+	    this.bidAmount = amount;
+	}
+	this.lastUpdated = lastUpdated;
+	this.sequence = item.nextBidSequence();
+    }
+    
+    public void setBidAmountUnits(long newAmountUnits) {
+	if (priceScale == null) {
+	    throw new IllegalStateException("Bid amount is not fixed point: " + getID().toString());
+	}
+	this.bidAmountUnits = newAmountUnits;
+	touch();
+    }
+    
+    // Stamp the bid as made or changed now. Its place among equal amounts moves to the back
+    private void touch() {
+	this.lastUpdated = getClock().currentTimeMillis();
+	this.sequence = item.nextBidSequence();
     }
     
     public Date getLastUpdate() {
-	return this.lastUpdated;
+	return new Date(this.lastUpdated);
     }
-
-    @Override
-    public int hashCode() {
-	final int prime = 31;
-	int result = super.hashCode();
-	result = prime * result
-		+ ((bidAmount == null) ? 0 : bidAmount.hashCode());
-	result = prime * result + ((item == null) ? 0 : item.hashCode());
-	result = prime * result
-		+ ((lastUpdated == null) ? 0 : lastUpdated.hashCode());
-	result = prime
-		* result
-		+ ((simpleDateFormat == null) ? 0 : simpleDateFormat.hashCode());
-	result = prime * result + ((user == null) ? 0 : user.hashCode());
-	return result;
+    
+    // Same as getLastUpdate without making a Date
+    public long getLastUpdateTime() {
+	return this.lastUpdated;
     }
-
-    @Override
-    public boolean equals(Object obj) {
-	if (this == obj)
-	    return true;
-	if (!super.equals(obj))
-	    return false;
-	if (getClass() != obj.getClass())
-	    return false;
-	Bid other = (Bid) obj;
-	if (bidAmount == null) {
-	    if (other.bidAmount != null)
-		return false;
-	} else if (!bidAmount.equals(other.bidAmount))
-	    return false;
-	if (item == null) {
-	    if (other.item != null)
-		return false;
-	} else if (!item.equals(other.item))
-	    return false;
-	if (lastUpdated == null) {
-	    if (other.lastUpdated != null)
-		return false;
-	} else if (!lastUpdated.equals(other.lastUpdated))
-	    return false;
-	if (simpleDateFormat == null) {
-	    if (other.simpleDateFormat != null)
-		return false;
-	} else if (!simpleDateFormat.equals(other.simpleDateFormat))
-	    return false;
-	if (user == null) {
-	    if (other.user != null)
-		return false;
-	} else if (!user.equals(other.user))
-	    return false;
-	return true;
+    
+    // Bids on the same item with a lower sequence were made or last changed earlier
+    public long getSequence() {
+	return this.sequence;
     }
 
     public String toString() {
 	StringBuilder stringBuilder = new StringBuilder();
-	stringBuilder.append("Bid id: ").append(getID().toString()).append("  Amount: ").append(bidAmount.toPlainString())
+	stringBuilder.append("Bid id: ").append(getID().toString()).append("  Amount: ").append(getBidAmount().toPlainString())
 		.append("User: ").append(user.toString()).append("\n")
 		.append("Item: ").append(item.toString()).append("\n")
-		.append("Bid Updated at: ").append(simpleDateFormat.format(lastUpdated));
+		.append("Bid Updated at: ").append(new SimpleDateFormat(DATE_FORMAT).format(getLastUpdate()));
 	return stringBuilder.toString();
     }
 
     public int compareTo(Bid otherBid) {
-	// Note that we need to compare to get the highest bid first. If the bidAmounts are equal, return the
-	// one with the higher timestamp
-	if (otherBid.getBidAmount().compareTo(getBidAmount()) == 0) {
-	    if (otherBid.getLastUpdate().getTime() > getLastUpdate().getTime()) {
-		// Other bid is newer
-		return -1;
-	    } else if (otherBid.getLastUpdate().getTime() == getLastUpdate().getTime()) {
-		// Identical bid
-		return 0;
-	    }
-	    else {
-		return 1;
+	// Note that we need to compare to get the highest bid first. If the bidAmounts are equal, the bid
+	// made or last changed first comes first. Bids on the same item go by their sequence, which gives a
+	// total order that does not depend on the clock. Bids on different items fall back on their times
+	int amountOrder = compareAmounts(otherBid);
+	if (amountOrder != 0) {
+	    return amountOrder;
+	}
+	if (item != otherBid.item) {
+	    if (lastUpdated != otherBid.lastUpdated) {
+		return lastUpdated < otherBid.lastUpdated ? -1 : 1;
 	    }
 	}
-	
-	return otherBid.getBidAmount().compareTo(bidAmount);
+	return sequence < otherBid.sequence ? -1 : (sequence == otherBid.sequence ? 0 : 1);
+    }
+    
+    private int compareAmounts(Bid otherBid) {
+	if (priceScale != null && priceScale.equals(otherBid.priceScale)) {
+	    // Both in minor units of the same scale, no need to go through BigDecimal
+	    return otherBid.bidAmountUnits < bidAmountUnits ? -1 : (otherBid.bidAmountUnits == bidAmountUnits ? 0 : 1);
+	}
+	return otherBid.getBidAmount().compareTo(getBidAmount());
     }
 }
@@ -0,0 +1,79 @@
+package com.luhar.auctioneer.model;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+// Place in an item's book just after the last bid of a page. It records where that bid ranked when the
+// page was read rather than an index, so the next page carries on from the same place in the ranking
+// however the book has changed in between. Only meaningful for the book that made it
+public final class BidCursor {
+    // Amount, time and sequence of the last bid, for BigDecimal books
+    final Item item;
+    final BigDecimal amount;
+    final long lastUpdated;
+    final long sequence;
+    final UUID bidID;
+    // Amount and arrival number of the last bid, for fixed point books
+    final long amountUnits;
+    final long arrival;
+
+    BidCursor(Bid bid) {
+	this.item = bid.getItem();
+	this.amount = bid.getBidAmount();
+	this.lastUpdated = bid.getLastUpdateTime();
+	this.sequence = bid.getSequence();
+	this.bidID = bid.getID();
+	this.amountUnits = 0;
+	this.arrival = 0;
+    }
+
+    BidCursor(Bid bid, long amountUnits, long arrival) {
+	this.item = bid.getItem();
+	this.amount = null;
+	this.lastUpdated = bid.getLastUpdateTime();
+	this.sequence = bid.getSequence();
+	this.bidID = bid.getID();
+	this.amountUnits = amountUnits;
+	this.arrival = arrival;
+    }
+
+    // Cursor rebuilt from the parts of one sent by another process, for the given item's book. The amount
+    // is null for fixed point books
+    public BidCursor(Item item, UUID bidID, BigDecimal amount, long lastUpdated, long sequence, long amountUnits, long arrival) {
+	this.item = item;
+	this.amount = amount;
+	this.lastUpdated = lastUpdated;
+	this.sequence = sequence;
+	this.bidID = bidID;
+	this.amountUnits = amountUnits;
+	this.arrival = arrival;
+    }
+
+    public UUID getBidID() {
+	return this.bidID;
+    }
+
+    public BigDecimal getAmount() {
+	return this.amount;
+    }
+
+    public long getLastUpdated() {
+	return this.lastUpdated;
+    }
+
+    public long getSequence() {
+	return this.sequence;
+    }
+
+    public long getAmountUnits() {
+	return this.amountUnits;
+    }
+
+    public long getArrival() {
+	return this.arrival;
+    }
+
+    public String toString() {
+	return "Bid cursor after bid: " + bidID.toString();
+    }
+}
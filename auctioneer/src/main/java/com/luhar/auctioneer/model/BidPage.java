@@ -0,0 +1,24 @@
+package com.luhar.auctioneer.model;
+
+import java.util.List;
+
+// One page of an item's book, winning bid first
+public final class BidPage {
+    private final List<Bid> bids;
+    private final BidCursor next;
+
+    public BidPage(List<Bid> bids, BidCursor next) {
+	this.bids = bids;
+	this.next = next;
+    }
+
+    // Immutable list of the bids on this page
+    public List<Bid> getBids() {
+	return this.bids;
+    }
+
+    // Cursor for the following page, or null if this is the last page
+    public BidCursor getNext() {
+	return this.next;
+    }
+}
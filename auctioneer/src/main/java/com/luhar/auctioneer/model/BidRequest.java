@@ -0,0 +1,33 @@
+package com.luhar.auctioneer.model;
+
+import java.math.BigDecimal;
+
+// One bid in a batch passed to BidTracker.registerBids
+public class BidRequest {
+    private final Item item;
+    private final User user;
+    private final BigDecimal amount;
+
+    public BidRequest(Item item, User user, BigDecimal amount) {
+	this.item = item;
+	this.user = user;
+	this.amount = amount;
+    }
+
+    public Item getItem() {
+	return this.item;
+    }
+
+    public User getUser() {
+	return this.user;
+    }
+
+    public BigDecimal getAmount() {
+	return this.amount;
+    }
+
+    public String toString() {
+	return "Bid request for item: " + item.getID().toString() + " by user: " + user.getID().toString()
+		+ " amount: " + amount.toPlainString();
+    }
+}
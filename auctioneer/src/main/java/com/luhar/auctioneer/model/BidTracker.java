@@ -2,6 +2,7 @@ package com.luhar.auctioneer.model;
 
 import java.math.BigDecimal;
 import java.util.Collection;
+import java.util.List;
 
 public interface BidTracker {
     
@@ -14,15 +15,42 @@ public interface BidTracker {
     // Record a user's bid on an item. Returns true on a successful bid
     public Bid registerBid(Item item, User user, BigDecimal amount);
     
+    // Record a batch of bids. Returns one result per request, in request order: the user's bid on the
+    // item once the batch is applied, or null if the request was rejected
+    public List<Bid> registerBids(Collection<BidRequest> requests);
+    
+    // Set or move the time an item's auction closes, Item.NO_CLOSE_TIME for none. Returns false if the item
+    // is unknown or already closed
+    public boolean setCloseTime(Item item, long closeTime);
+    
+    // Close an item's auction now. Its book is frozen and later bids are rejected. Returns false if the item
+    // is unknown or already closed
+    public boolean closeItem(Item item);
+    
     // Get the current winning bid for an item
     public Bid getWinningBid(Item item);
     
     // Get all the bids for an item
     public Collection<Bid> getAllBidsForItem(Item item);
     
+    // Get the best count bids for an item, winning bid first
+    public List<Bid> getTopBids(Item item, int count);
+    
+    // Get a page of the bids for an item. Pass a null cursor for the first page, then the page's next cursor
+    public BidPage getBidsPage(Item item, BidCursor cursor, int pageSize);
+    
+    // Get the place of a bid on its item, 1 for the winning bid, or -1 if the bid is not in the item's book
+    public int getRankOf(Bid bid);
+    
     // Get all the items on which a user has bid
     public Collection<Item> getAllItemsForUser(User user);
     
+    // Get the items on which a user holds the winning bid, or won once closed
+    public Collection<Item> getItemsWinningForUser(User user);
+    
+    // Get the items on which a user has bid and someone else holds the winning bid
+    public Collection<Item> getItemsOutbidForUser(User user);
+    
     // Get all known users
     public Collection<User> getAllRegisteredUsers();
     
@@ -0,0 +1,22 @@
+package com.luhar.auctioneer.model;
+
+// Told about every change a BidTracker accepts, after it has been applied. Callbacks run on the thread
+// that made the change, so they should be quick
+public interface BidTrackerListener {
+    
+    public void userRegistered(User user);
+    
+    public void itemRegistered(Item item);
+    
+    // A user's first bid on an item
+    public void bidPlaced(Bid bid);
+    
+    // An existing bid changed to a new amount
+    public void bidAmended(Bid bid);
+    
+    // The item's close time was set or moved
+    public void closeTimeChanged(Item item);
+    
+    // The auction closed with the given winner, or with no bids if the winner is null
+    public void itemClosed(Item item, Bid winner);
+}
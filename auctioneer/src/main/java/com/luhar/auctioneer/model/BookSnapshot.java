@@ -0,0 +1,47 @@
+package com.luhar.auctioneer.model;
+
+import java.util.List;
+
+// Immutable picture of the top of an item's book, taken on any thread while the book changes. The bids are
+// the live ones in their ranking at the time: one amended since may already show its new amount. The version
+// goes up by one with every change to the book
+public final class BookSnapshot {
+    private final long version;
+    private final int depth;
+    private final List<Bid> topBids;
+
+    BookSnapshot(long version, int depth, List<Bid> topBids) {
+	this.version = version;
+	this.depth = depth;
+	this.topBids = topBids;
+    }
+
+    public long getVersion() {
+	return this.version;
+    }
+
+    // Number of bids in the book
+    public int getDepth() {
+	return this.depth;
+    }
+
+    // Winning bid, or null if the book was empty
+    public Bid getWinningBid() {
+	return topBids.isEmpty() ? null : topBids.get(0);
+    }
+
+    // Best bids, winning bid first. Up to Item.SNAPSHOT_BIDS of them, so all of them when the book is
+    // no deeper than that
+    public List<Bid> getTopBids() {
+	return this.topBids;
+    }
+
+    // Whether the snapshot holds every bid in the book
+    public boolean isComplete() {
+	return topBids.size() == depth;
+    }
+
+    public String toString() {
+	return "Book version: " + version + "  Depth: " + depth + "  Top bids: " + topBids.size();
+    }
+}
@@ -0,0 +1,90 @@
+package com.luhar.auctioneer.model;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+// Smallest step a proxy bid raises the price by, depending on the price it raises from. Each band runs
+// from its start price up to the next band's start. Tables are immutable: withBand returns a new one
+public final class IncrementTable {
+    private final BigDecimal[] starts;
+    private final BigDecimal[] increments;
+
+    // The same increment at every price
+    public IncrementTable(BigDecimal increment) {
+	this(new BigDecimal[] { BigDecimal.ZERO }, new BigDecimal[] { checkIncrement(increment) });
+    }
+
+    private IncrementTable(BigDecimal[] starts, BigDecimal[] increments) {
+	this.starts = starts;
+	this.increments = increments;
+    }
+
+    // Increments for a currency with two decimal places, growing with the price
+    public static IncrementTable standard() {
+	return new IncrementTable(new BigDecimal("0.05"))
+		.withBand(new BigDecimal("1.00"), new BigDecimal("0.25"))
+		.withBand(new BigDecimal("5.00"), new BigDecimal("0.50"))
+		.withBand(new BigDecimal("25.00"), new BigDecimal("1.00"))
+		.withBand(new BigDecimal("100.00"), new BigDecimal("2.50"))
+		.withBand(new BigDecimal("250.00"), new BigDecimal("5.00"))
+		.withBand(new BigDecimal("500.00"), new BigDecimal("10.00"))
+		.withBand(new BigDecimal("1000.00"), new BigDecimal("25.00"))
+		.withBand(new BigDecimal("2500.00"), new BigDecimal("50.00"))
+		.withBand(new BigDecimal("5000.00"), new BigDecimal("100.00"));
+    }
+
+    // Copy of this table that uses the given increment from the start price up. A band already starting
+    // at that price is replaced
+    public IncrementTable withBand(BigDecimal start, BigDecimal increment) {
+	checkIncrement(increment);
+	if (start.signum() < 0) {
+	    throw new IllegalArgumentException("Band start must not be negative: " + start.toPlainString());
+	}
+	int index = band(start);
+	if (starts[index].compareTo(start) == 0) {
+	    BigDecimal[] newIncrements = increments.clone();
+	    newIncrements[index] = increment;
+	    return new IncrementTable(starts, newIncrements);
+	}
+	BigDecimal[] newStarts = new BigDecimal[starts.length + 1];
+	BigDecimal[] newIncrements = new BigDecimal[starts.length + 1];
+	System.arraycopy(starts, 0, newStarts, 0, index + 1);
+	System.arraycopy(increments, 0, newIncrements, 0, index + 1);
+	newStarts[index + 1] = start;
+	newIncrements[index + 1] = increment;
+	System.arraycopy(starts, index + 1, newStarts, index + 2, starts.length - index - 1);
+	System.arraycopy(increments, index + 1, newIncrements, index + 2, starts.length - index - 1);
+	return new IncrementTable(newStarts, newIncrements);
+    }
+
+    // Increment to add to a price
+    public BigDecimal incrementAt(BigDecimal price) {
+	return increments[band(price)];
+    }
+
+    // Last band starting at or below the price. The first band starts at zero, so there always is one
+    private int band(BigDecimal price) {
+	int low = 0;
+	int high = starts.length - 1;
+	while (low < high) {
+	    int middle = (low + high + 1) >>> 1;
+	    if (starts[middle].compareTo(price) <= 0) {
+		low = middle;
+	    } else {
+		high = middle - 1;
+	    }
+	}
+	return low;
+    }
+
+    private static BigDecimal checkIncrement(BigDecimal increment) {
+	if (increment.signum() <= 0) {
+	    throw new IllegalArgumentException("Increment must be positive: " + increment.toPlainString());
+	}
+	return increment;
+    }
+
+    public String toString() {
+	return "IncrementTable: from " + Arrays.toString(starts) + " by " + Arrays.toString(increments);
+    }
+}
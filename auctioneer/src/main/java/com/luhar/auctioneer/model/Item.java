@@ -1,39 +1,147 @@
 package com.luhar.auctioneer.model;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Comparator;
-import java.util.Vector;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
 
-import com.google.common.collect.TreeMultiset;
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.collect.Collections2;
 
 public class Item extends AuctioneerObject {
+    // Close time of an item that stays open until closed by hand
+    public static final long NO_CLOSE_TIME = Long.MAX_VALUE;
+    // Best bids kept in a BookSnapshot
+    public static final int SNAPSHOT_BIDS = 10;
+    // Times a read of the book is tried without a lock before it waits for the writer
+    private static final int OPTIMISTIC_READS = 3;
     private final String name;
-    private String description = "";
+    private String description;
     // By default the reserve amount is set to zero
-    private BigDecimal reserveAmount = new BigDecimal(0);
+    private BigDecimal reserveAmount;
+    // Set for items whose amounts are held in fixed point minor units
+    private PriceScale priceScale;
+    private long reserveAmountUnits;
     
-    // We use a TreeMultiSet of all bids to keep track of the first 
-    private TreeMultiset<Bid> bids = TreeMultiset.create(new Comparator<Bid>() {
-	public int compare(Bid o1, Bid o2) {
-	    // Note that that we need to keep track of the highest bid, not the lowest bid
-	    return o1.compareTo(o2);
+    // Price ordered book of all bids, to keep track of the first. Made by the constructor, so fixed point
+    // items only make the book they use
+    private OrderBook bids;
+    // Index of each user's bid on this item, in the order the users first bid. Lets us find a user's
+    // bid without walking the book. Changed under bookLock's write lock and read under its read lock
+    private final Map<UUID, Bid> bidsByUser = new LinkedHashMap<UUID, Bid>();
+    // Set once the bids are kept in an OffHeapBidStore, which then finds a user's bid in place of bidsByUser
+    private OffHeapOrderBook offHeapBids;
+    // Held for writing around every change to the book. Readers on other threads read under an optimistic
+    // stamp, and only take the read lock if changes keep getting in the way
+    private final StampedLock bookLock = new StampedLock();
+    // Only the array books are read optimistically. A tree caught mid rotation can hold a loop
+    private boolean optimisticReads;
+    // Top of the book as of the last change, read without waiting. Set with the write lock held, which
+    // the change that published them takes, so nothing is made per change
+    private volatile Bid winningBid;
+    private volatile int bookDepth;
+    private long bookVersion;
+    // Told when the top of the book changes. Set by a WinningBidFeed, null while nobody listens
+    private volatile WinningBidListener winningBidListener;
+    // Last update given to the listener, readable from any thread
+    private volatile WinningBidUpdate winningBidUpdate;
+    // Top of the book as last published. Only used by the thread changing the book
+    private Bid topBid;
+    private BigDecimal topAmount;
+    private long topAmountUnits;
+    private long topVersion;
+    // User whose bid topped the book when the bidders' indexes were last told. Only used by the thread
+    // changing the book
+    private User leader;
+    // When the auction is due to close, in clock milliseconds. Read by the scheduler thread
+    private volatile long closeTime = NO_CLOSE_TIME;
+    // Once closed the book is frozen
+    private volatile boolean closed;
+    // Last sequence handed to a bid on this item. Like the book, only changed by the thread changing the item
+    private long bidSequence;
+    private static final Function<Bid, User> BID_TO_USER = new Function<Bid, User>() {
+	public User apply(Bid bid) {
+	    return bid.getUser();
 	}
-    });
+    };
     
     public Item(String name) {
-	super();
-	this.name = name;
+	this(name, "");
     }
     
     public Item(String name, String description) {
-	this(name);
-	this.description = description;
+	this(name, description, BigDecimal.ZERO);
     }
     
     public Item(String name, String description, BigDecimal reserveAmount) {
-	this(name, description);
+	this(name, description, reserveAmount, null);
+    }
+    
+    // Item with amounts held in minor units of the given scale, ranked by a primitive book. A null scale
+    // gives an item that holds BigDecimal amounts
+    public Item(String name, String description, BigDecimal reserveAmount, PriceScale priceScale) {
+	super();
+	this.name = name;
+	this.description = description;
 	this.reserveAmount = reserveAmount;
+	makeBook(priceScale);
+    }
+    
+    // Item recovered with a known ID. priceScale is null for items that hold BigDecimal amounts
+    public Item(UUID id, String name, String description, BigDecimal reserveAmount, PriceScale priceScale) {
+	super(id);
+	this.name = name;
+	this.description = description;
+	this.reserveAmount = reserveAmount;
+	makeBook(priceScale);
+    }
+    
+    private void makeBook(PriceScale priceScale) {
+	if (priceScale == null) {
+	    this.bids = new TreeOrderBook();
+	    return;
+	}
+	this.priceScale = priceScale;
+	this.reserveAmountUnits = priceScale.toUnits(reserveAmount);
+	this.bids = new LongOrderBook();
+	this.optimisticReads = true;
+    }
+    
+    // Keep this item's bids in an off heap store rather than in a book on the heap. Only for fixed point
+    // items, before their first bid
+    public void storeBidsIn(OffHeapBidStore store) {
+	if (priceScale == null) {
+	    throw new IllegalArgumentException("Only fixed point items can keep their bids off the heap: " + getID().toString());
+	}
+	if (offHeapBids != null || bids.size() > 0) {
+	    throw new IllegalStateException("Item already has a book of bids: " + getID().toString());
+	}
+	this.offHeapBids = new OffHeapOrderBook(store, this);
+	this.bids = offHeapBids;
+	this.optimisticReads = true;
+    }
+    
+    // Store holding this item's bids, or null if they are on the heap
+    public OffHeapBidStore getBidStore() {
+	return offHeapBids == null ? null : offHeapBids.getStore();
+    }
+    
+    // Give the bids back to the store, leaving the book empty. Used when the item is archived
+    public void releaseBids() {
+	if (offHeapBids != null) {
+	    long stamp = bookLock.writeLock();
+	    try {
+		offHeapBids.release();
+		publishBook();
+	    } finally {
+		bookLock.unlockWrite(stamp);
+	    }
+	}
     }
     
     // Human readable name for this item
@@ -51,52 +159,447 @@ public class Item extends AuctioneerObject {
 	return this.reserveAmount;
     }
     
-    // Get list of Bids that have been made on this item
+    // Price scale for fixed point items, null otherwise
+    public PriceScale getPriceScale() {
+	return this.priceScale;
+    }
+    
+    // Reserve amount in minor units. Only available for fixed point items
+    public long getReserveAmountUnits() {
+	if (priceScale == null) {
+	    throw new IllegalStateException("Item does not use a fixed point price scale: " + getID().toString());
+	}
+	return this.reserveAmountUnits;
+    }
+    
+    public long getCloseTime() {
+	return this.closeTime;
+    }
+    
+    // Change when the auction is due to close. Use BidTracker.setCloseTime so the change is scheduled
+    // and recorded. Taken under the book's write lock, so closeIfDue sees the close time either before
+    // or after the change
+    public void setCloseTime(long closeTime) {
+	long stamp = bookLock.writeLock();
+	try {
+	    if (closed) {
+		throw new IllegalStateException("Auction has closed: " + getID().toString());
+	    }
+	    this.closeTime = closeTime;
+	} finally {
+	    bookLock.unlockWrite(stamp);
+	}
+    }
+    
+    public boolean isClosed() {
+	return this.closed;
+    }
+    
+    // Freeze the book. Returns false if it was already closed. Taken under the book's write lock, so a
+    // bid racing the close is either in the book before it or refused
+    public synchronized boolean close() {
+	if (closed) {
+	    return false;
+	}
+	long stamp = bookLock.writeLock();
+	try {
+	    closed = true;
+	} finally {
+	    bookLock.unlockWrite(stamp);
+	}
+	return true;
+    }
+    
+    // Freeze the book if the close time has come by now. Returns false if it was already closed or a late
+    // bid has since pushed the close time past now. Checked and closed under the book's write lock, so a
+    // change to the close time cannot fall in between
+    public synchronized boolean closeIfDue(long now) {
+	long stamp = bookLock.writeLock();
+	try {
+	    if (closed || closeTime == NO_CLOSE_TIME || closeTime > now) {
+		return false;
+	    }
+	    closed = true;
+	} finally {
+	    bookLock.unlockWrite(stamp);
+	}
+	return true;
+    }
+    
+    // Get list of Bids that have been made on this item. This is the live book, only for the thread
+    // changing it. Other threads use copyBids
     public Collection<Bid> getBids() {
-	return this.bids;
+	return this.bids.asCollection();
     }
     
-    // Get list of Users who have made Bids on this item
-    public Collection<User> getUsers() {
-	Vector<User> users = new Vector<User>();
-	for (Bid bid : bids) {
-	    if (!users.contains(bid.getUser())) {
-		users.add(bid.getUser());
+    // Immutable copy of the bids, winning bid first. Can be taken on any thread while the book changes
+    public List<Bid> copyBids() {
+	return readBook(new BookRead<List<Bid>>() {
+	    List<Bid> read() {
+		return bids.top(bids.size());
 	    }
+	});
+    }
+    
+    // Copies of the bids as they stand, winning bid first, for writing the book out while it changes. Taken
+    // under the book's read lock, so each copy's amount, time and sequence are from the same moment and
+    // stay that way
+    public List<Bid> copyBidStates() {
+	long stamp = bookLock.readLock();
+	try {
+	    List<Bid> copies = new ArrayList<Bid>(bids.size());
+	    for (Bid bid : bids.top(bids.size())) {
+		copies.add(new Bid(bid));
+	    }
+	    return copies;
+	} finally {
+	    bookLock.unlockRead(stamp);
 	}
-	return users;
     }
     
-    // Get Bid for a user
-    public Bid getBidFromUser(User user) {
-	for (Bid bid : bids) {
-	    if (bid.getUser().equals(user)) {
-		return bid;
+    // Top of the book as of its last change, taken on any thread while the book changes
+    public BookSnapshot getBookSnapshot() {
+	return readBook(new BookRead<BookSnapshot>() {
+	    BookSnapshot read() {
+		return new BookSnapshot(bookVersion, bids.size(), bids.top(SNAPSHOT_BIDS));
+	    }
+	});
+    }
+    
+    // Number of bids in the book as of its last change. Never waits for the writer
+    public int getBookDepth() {
+	return this.bookDepth;
+    }
+    
+    // Best count bids, winning bid first
+    public List<Bid> getTopBids(final int count) {
+	return readBook(new BookRead<List<Bid>>() {
+	    List<Bid> read() {
+		return bids.top(count);
 	    }
+	});
+    }
+    
+    // Page of bids ranked below the cursor, or from the top if the cursor is null
+    public BidPage getBidsPage(final BidCursor cursor, final int pageSize) {
+	return readBook(new BookRead<BidPage>() {
+	    BidPage read() {
+		return bids.page(cursor, pageSize);
+	    }
+	});
+    }
+    
+    // Place of a bid in this item's book, 1 for the winning bid, or -1 if the bid is not in the book
+    public int getRankOf(final Bid bid) {
+	return readBook(new BookRead<Integer>() {
+	    Integer read() {
+		return bids.rank(bid);
+	    }
+	});
+    }
+    
+    // Get list of Users who have made Bids on this item, in the order they first bid, or in ranking order
+    // when the bids are off the heap. Users on the heap are a copy; off the heap this is a read-only view
+    public Collection<User> getUsers() {
+	if (offHeapBids != null) {
+	    return Collections2.transform(bids.asCollection(), BID_TO_USER);
+	}
+	long stamp = bookLock.readLock();
+	try {
+	    return new ArrayList<User>(Collections2.transform(bidsByUser.values(), BID_TO_USER));
+	} finally {
+	    bookLock.unlockRead(stamp);
+	}
+    }
+    
+    // Number of distinct users who have bid on this item
+    public int getBidderCount() {
+	if (offHeapBids != null) {
+	    return bids.size();
+	}
+	long stamp = bookLock.readLock();
+	try {
+	    return bidsByUser.size();
+	} finally {
+	    bookLock.unlockRead(stamp);
+	}
+    }
+    
+    // Check if a user has bid on this item
+    public boolean hasBidFrom(User user) {
+	if (offHeapBids != null) {
+	    return offHeapBids.hasBidFrom(user);
 	}
-	return null;
+	return getBidFromUser(user) != null;
     }
     
-    // Add bid to this item
-    public void addBid(Bid bid) {
-	if (!bids.contains(bid)) {
-	    logger.info("Adding bid: " + bid.toString() + " to item: " + toString());
-	    bids.add(bid);
+    // Get Bid for a user. The index changes under the book's write lock, so this takes the read lock
+    // rather than a readBook, which would make an object on the bid path
+    public Bid getBidFromUser(User user) {
+	if (offHeapBids != null) {
+	    return offHeapBids.bidFrom(user);
+	}
+	long stamp = bookLock.readLock();
+	try {
+	    return bidsByUser.get(user.getID());
+	} finally {
+	    bookLock.unlockRead(stamp);
+	}
+    }
+    
+    // Next place in the order bids on this item are made or changed
+    long nextBidSequence() {
+	return ++bidSequence;
+    }
+    
+    // Number of times bids on this item have been made or changed. Other threads may see a slightly old
+    // count, which is fine for statistics
+    public long getBidActivity() {
+	return bidSequence;
+    }
+    
+    // Add bid to this item. Returns false if the item has closed or already holds the bid
+    public boolean addBid(Bid bid) {
+	boolean open;
+	boolean added = false;
+	long stamp = bookLock.writeLock();
+	try {
+	    open = !closed;
+	    if (open) {
+		added = bids.add(bid);
+		if (added) {
+		    if (offHeapBids == null) {
+			bidsByUser.put(bid.getUser().getID(), bid);
+		    }
+		    publishBook();
+		}
+	    }
+	} finally {
+	    bookLock.unlockWrite(stamp);
+	}
+	if (!open) {
+	    logger.warn("Bid on closed item: " + bid.getID().toString());
+	    return false;
+	}
+	if (added) {
+	    if (logger.isInfoEnabled()) {
+		logger.info("Adding bid: " + bid.toString() + " to item: " + toString());
+	    }
+	    if (offHeapBids == null) {
+		checkLeader();
+		if (bid.getUser() != leader) {
+		    bid.getUser().markOutbid(this);
+		}
+	    }
+	    checkWinningBid();
 	} else {
 	    logger.warn("Duplicate bid: " + bid.toString());
 	}
+	return added;
+    }
+    
+    // Change the amount of a bid on this item, keeping the book ordered. The bid has to leave the
+    // book before its amount changes, otherwise it can no longer be found at its old position. Returns
+    // false, leaving the bid as it was, if the item has closed
+    public boolean updateBid(Bid bid, BigDecimal amount) {
+	boolean open;
+	boolean removed = false;
+	long stamp = bookLock.writeLock();
+	try {
+	    open = !closed;
+	    if (open) {
+		removed = bids.remove(bid);
+		bid.setBidAmount(amount);
+		if (removed) {
+		    bids.add(bid);
+		    publishBook();
+		}
+	    }
+	} finally {
+	    bookLock.unlockWrite(stamp);
+	}
+	if (!open) {
+	    logger.warn("Bid on closed item: " + bid.getID().toString());
+	    return false;
+	}
+	if (removed) {
+	    checkLeader();
+	    checkWinningBid();
+	}
+	return true;
+    }
+    
+    // Same as updateBid for fixed point items, with the new amount in minor units
+    public boolean updateBid(Bid bid, long amountUnits) {
+	boolean open;
+	boolean removed = false;
+	long stamp = bookLock.writeLock();
+	try {
+	    open = !closed;
+	    if (open) {
+		removed = bids.remove(bid);
+		bid.setBidAmountUnits(amountUnits);
+		if (removed) {
+		    bids.add(bid);
+		    publishBook();
+		}
+	    }
+	} finally {
+	    bookLock.unlockWrite(stamp);
+	}
+	if (!open) {
+	    logger.warn("Bid on closed item: " + bid.getID().toString());
+	    return false;
+	}
+	if (removed) {
+	    checkLeader();
+	    checkWinningBid();
+	}
+	return true;
+    }
+    
+    // Put a bid back to an amount and update time recovered from a journal or snapshot
+    public void restoreBid(Bid bid, BigDecimal amount, long lastUpdated) {
+	boolean removed;
+	long stamp = bookLock.writeLock();
+	try {
+	    removed = bids.remove(bid);
+	    bid.restoreBidAmount(amount, lastUpdated);
+	    if (removed) {
+		bids.add(bid);
+		publishBook();
+	    }
+	} finally {
+	    bookLock.unlockWrite(stamp);
+	}
+	if (removed) {
+	    checkLeader();
+	    checkWinningBid();
+	}
     }
     
     // Method to notify when the bid has been modified
     public void bidModified(Bid bid) {
-	if (bids.contains(bid)) {
-	    bids.remove(bid);
-	    bids.add(bid);
+	if (offHeapBids != null ? bids.contains(bid) : bidsByUser.get(bid.getUser().getID()) == bid) {
+	    long stamp = bookLock.writeLock();
+	    try {
+		bids.bidModified(bid);
+		publishBook();
+	    } finally {
+		bookLock.unlockWrite(stamp);
+	    }
+	    checkLeader();
+	    checkWinningBid();
 	}
     }
     
+    // Winning bid as of the last change to the book. Never waits for the writer
     public Bid getWinningBid() {
-	return bids.firstEntry().getElement();
+	return this.winningBid;
+    }
+    
+    // Listen to changes to the top of the book. Only one listener is kept, pass null to stop listening
+    public void setWinningBidListener(WinningBidListener listener) {
+	this.winningBidListener = listener;
+    }
+    
+    // Last change to the top of the book given to the listener, or null if there has been none
+    public WinningBidUpdate getWinningBidUpdate() {
+	return this.winningBidUpdate;
+    }
+    
+    // Publish the top of the book as it is now. Called with the write lock held
+    private void publishBook() {
+	bookVersion++;
+	bookDepth = bids.size();
+	winningBid = bids.first();
+    }
+    
+    // Read of the book that may run on another thread while the writer changes it
+    private abstract class BookRead<T> {
+	abstract T read();
+    }
+    
+    // Run a read under an optimistic stamp, trying again if a change got in the way. A read racing the
+    // writer can see the book half changed and fail, which the stamp then shows. After a few attempts the
+    // read waits for the read lock, so a busy writer cannot starve it
+    private <T> T readBook(BookRead<T> read) {
+	if (optimisticReads) {
+	    for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+		long stamp = bookLock.tryOptimisticRead();
+		if (stamp == 0) {
+		    continue;
+		}
+		try {
+		    T result = read.read();
+		    if (bookLock.validate(stamp)) {
+			return result;
+		    }
+		} catch (RuntimeException ex) {
+		    if (bookLock.validate(stamp)) {
+			throw ex;
+		    }
+		}
+	    }
+	}
+	long stamp = bookLock.readLock();
+	try {
+	    return read.read();
+	} finally {
+	    bookLock.unlockRead(stamp);
+	}
+    }
+    
+    // Tell the bidders' indexes if another user's bid now tops the book. Bids kept off the heap are not
+    // indexed by their users
+    private void checkLeader() {
+	if (offHeapBids != null) {
+	    return;
+	}
+	// As publishBook left it. Asking the book again would make an entry on a tree book
+	Bid winner = winningBid;
+	User top = winner == null ? null : winner.getUser();
+	if (top != leader) {
+	    if (leader != null) {
+		leader.markOutbid(this);
+	    }
+	    if (top != null) {
+		top.markWinning(this);
+	    }
+	    leader = top;
+	}
+    }
+    
+    // Tell the listener if the book has a new winning bid, or the winning bid a new amount. Other changes
+    // to the book are not passed on
+    private void checkWinningBid() {
+	WinningBidListener listener = winningBidListener;
+	if (listener == null) {
+	    return;
+	}
+	Bid winner = bids.first();
+	// Off heap books hand out a new view of the same bid each time, so compare IDs
+	if (Objects.equal(winner, topBid) && (winner == null || !topAmountChanged(winner))) {
+	    return;
+	}
+	topBid = winner;
+	if (winner != null) {
+	    if (priceScale != null) {
+		topAmountUnits = winner.getBidAmountUnits();
+	    } else {
+		topAmount = winner.getBidAmount();
+	    }
+	}
+	WinningBidUpdate update = new WinningBidUpdate(this, ++topVersion, winner);
+	winningBidUpdate = update;
+	listener.winningBidChanged(update);
+    }
+    
+    private boolean topAmountChanged(Bid winner) {
+	if (priceScale != null) {
+	    return winner.getBidAmountUnits() != topAmountUnits;
+	}
+	return winner.getBidAmount().compareTo(topAmount) != 0;
     }
     
     
@@ -109,54 +612,4 @@ public class Item extends AuctioneerObject {
 	
 	return builder.toString();
     }
-    
-
-    @Override
-    public int hashCode() {
-	final int prime = 31;
-	int result = super.hashCode();
-	result = prime * result + ((bids == null) ? 0 : bids.hashCode());
-	result = prime * result
-		+ ((description == null) ? 0 : description.hashCode());
-	result = prime * result + ((name == null) ? 0 : name.hashCode());
-	result = prime * result
-		+ ((reserveAmount == null) ? 0 : reserveAmount.hashCode());
-	return result;
-    }
-
-    @Override
-    public boolean equals(Object obj) {
-	if (this == obj)
-	    return true;
-	if (!super.equals(obj))
-	    return false;
-	if (getClass() != obj.getClass())
-	    return false;
-	Item other = (Item) obj;
-	if (bids == null) {
-	    if (other.bids != null)
-		return false;
-	} else if (!bids.equals(other.bids))
-	    return false;
-	if (description == null) {
-	    if (other.description != null)
-		return false;
-	} else if (!description.equals(other.description))
-	    return false;
-	if (name == null) {
-	    if (other.name != null)
-		return false;
-	} else if (!name.equals(other.name))
-	    return false;
-	if (reserveAmount == null) {
-	    if (other.reserveAmount != null)
-		return false;
-	} else if (!reserveAmount.equals(other.reserveAmount))
-	    return false;
-	return true;
-    }
-
-    
-    
-    
 }
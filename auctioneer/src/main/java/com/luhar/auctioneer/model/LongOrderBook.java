@@ -0,0 +1,208 @@
+package com.luhar.auctioneer.model;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.google.common.collect.ImmutableList;
+
+// Book for fixed point items. Bids are ranked on their amount in minor units, held in a primitive array
+// next to the bids, so ranking a bid never allocates or touches a BigDecimal. Among equal amounts the
+// bid that got there first wins, which the book gets by keeping arrival order within an amount. The
+// arrays run from the lowest ranked bid at index 0 to the winning bid at size - 1, so a bid that takes
+// the lead is appended at the end and moves nothing. Each entry also records when it arrived, which
+// orders the bids within an amount for cursors
+public class LongOrderBook implements OrderBook {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] amounts = new long[INITIAL_CAPACITY];
+    private Bid[] bids = new Bid[INITIAL_CAPACITY];
+    private long[] arrivals = new long[INITIAL_CAPACITY];
+    private long nextArrival;
+    private int size;
+
+    private final Collection<Bid> view = new AbstractCollection<Bid>() {
+	public Iterator<Bid> iterator() {
+	    return new Iterator<Bid>() {
+		private int index = size - 1;
+
+		public boolean hasNext() {
+		    return index >= 0;
+		}
+
+		public Bid next() {
+		    if (index < 0) {
+			throw new NoSuchElementException();
+		    }
+		    return bids[index--];
+		}
+
+		public void remove() {
+		    throw new UnsupportedOperationException("Bids cannot be removed through the book view");
+		}
+	    };
+	}
+
+	public int size() {
+	    return size;
+	}
+
+	public boolean contains(Object o) {
+	    return (o instanceof Bid) && LongOrderBook.this.contains((Bid) o);
+	}
+    };
+
+    public boolean add(Bid bid) {
+	long amount = bid.getBidAmountUnits();
+	if (indexOf(bid, amount) >= 0) {
+	    return false;
+	}
+	// A new bid ranks below every earlier bid of the same amount
+	insertAt(lowerBound(amount), amount, bid);
+	return true;
+    }
+
+    public boolean remove(Bid bid) {
+	int index = indexOf(bid, bid.getBidAmountUnits());
+	if (index < 0) {
+	    return false;
+	}
+	removeAt(index);
+	return true;
+    }
+
+    public boolean contains(Bid bid) {
+	return indexOf(bid, bid.getBidAmountUnits()) >= 0;
+    }
+
+    public void bidModified(Bid bid) {
+	// The amount has already changed, so look the bid up by identity rather than by its amount
+	for (int i = 0; i < size; i++) {
+	    if (bids[i] == bid) {
+		removeAt(i);
+		add(bid);
+		return;
+	    }
+	}
+    }
+
+    public Bid first() {
+	return size == 0 ? null : bids[size - 1];
+    }
+
+    // Amount of the winning bid in minor units, or Long.MIN_VALUE if the book is empty
+    public long firstAmountUnits() {
+	return size == 0 ? Long.MIN_VALUE : amounts[size - 1];
+    }
+
+    public int size() {
+	return size;
+    }
+
+    // Read-only live view of the book, winning bid first
+    public Collection<Bid> asCollection() {
+	return view;
+    }
+
+    public List<Bid> top(int count) {
+	return copy(size - 1, count);
+    }
+
+    public BidPage page(BidCursor cursor, int pageSize) {
+	int start = size - 1;
+	if (cursor != null) {
+	    // Within an amount later arrivals sit lower, so the bids below the cursor's bid in its amount
+	    // are the ones that arrived after it, at the bottom of the amount's range
+	    int low = lowerBound(cursor.amountUnits);
+	    int high = lowerBound(cursor.amountUnits + 1);
+	    while (low < high) {
+		int mid = (low + high) >>> 1;
+		if (arrivals[mid] > cursor.arrival) {
+		    low = mid + 1;
+		} else {
+		    high = mid;
+		}
+	    }
+	    start = low - 1;
+	}
+	List<Bid> page = copy(start, pageSize);
+	int last = start - page.size() + 1;
+	if (page.size() < pageSize || last == 0) {
+	    return new BidPage(page, null);
+	}
+	return new BidPage(page, new BidCursor(bids[last], amounts[last], arrivals[last]));
+    }
+
+    public int rank(Bid bid) {
+	int index = indexOf(bid, bid.getBidAmountUnits());
+	return index < 0 ? -1 : size - index;
+    }
+
+    // Up to count bids going down the book from an index
+    private List<Bid> copy(int from, int count) {
+	ImmutableList.Builder<Bid> builder = ImmutableList.builder();
+	for (int i = from; i >= 0 && i > from - count; i--) {
+	    builder.add(bids[i]);
+	}
+	return builder.build();
+    }
+
+    // Position of a bid with the given amount, or -1
+    private int indexOf(Bid bid, long amount) {
+	for (int i = lowerBound(amount); i < size && amounts[i] == amount; i++) {
+	    if (bids[i] == bid) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    // First position holding an amount greater than or equal to the given amount
+    private int lowerBound(long amount) {
+	int low = 0;
+	int high = size;
+	while (low < high) {
+	    int mid = (low + high) >>> 1;
+	    if (amounts[mid] < amount) {
+		low = mid + 1;
+	    } else {
+		high = mid;
+	    }
+	}
+	return low;
+    }
+
+    private void insertAt(int index, long amount, Bid bid) {
+	if (size == bids.length) {
+	    int capacity = size * 2;
+	    long[] newAmounts = new long[capacity];
+	    Bid[] newBids = new Bid[capacity];
+	    long[] newArrivals = new long[capacity];
+	    System.arraycopy(amounts, 0, newAmounts, 0, size);
+	    System.arraycopy(bids, 0, newBids, 0, size);
+	    System.arraycopy(arrivals, 0, newArrivals, 0, size);
+	    amounts = newAmounts;
+	    bids = newBids;
+	    arrivals = newArrivals;
+	}
+	int moved = size - index;
+	System.arraycopy(amounts, index, amounts, index + 1, moved);
+	System.arraycopy(bids, index, bids, index + 1, moved);
+	System.arraycopy(arrivals, index, arrivals, index + 1, moved);
+	amounts[index] = amount;
+	bids[index] = bid;
+	arrivals[index] = nextArrival++;
+	size++;
+    }
+
+    private void removeAt(int index) {
+	int moved = size - index - 1;
+	System.arraycopy(amounts, index + 1, amounts, index, moved);
+	System.arraycopy(bids, index + 1, bids, index, moved);
+	System.arraycopy(arrivals, index + 1, arrivals, index, moved);
+	size--;
+	bids[size] = null;
+    }
+}
@@ -0,0 +1,441 @@
+package com.luhar.auctioneer.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// Keeps the bids of fixed point items out of the Java heap, for catalogs with more bids than the heap
+// should hold. Each bid is a fixed width record, and each item's ranking a sorted array of fixed width
+// entries, in large buffers of direct memory or of a file mapped into memory, so the collector sees a few
+// buffers however many bids there are. Bids are found by ID, or by item and user, through hash tables
+// kept off the heap too. Bid objects handed out for these items are views made from the record when asked
+// for: two views of one bid are equal but not the same object. The store is working space only, the
+// journal is still what survives a restart. Items use it through Item.storeBidsIn, or every fixed point
+// item of a tracker through BidTrackerImpl.setBidStore
+public class OffHeapBidStore {
+    // Memory is handed out in blocks of MIN_BLOCK bytes times a power of two, carved from chunks
+    static final int MIN_BLOCK = 64;
+    static final int DEFAULT_CHUNK_BITS = 26;
+    static final long NONE = -1;
+    // Layout of the MIN_BLOCK byte record of a bid
+    static final int ID_HIGH = 0;
+    static final int ID_LOW = 8;
+    static final int AMOUNT = 16;
+    static final int UPDATED = 24;
+    static final int SEQUENCE = 32;
+    static final int USER = 40;
+    static final int ITEM = 44;
+    static final int NEXT_OF_USER = 48;
+    static final int PREVIOUS_OF_USER = 56;
+    // Hash table slots per buffer, and in a new table
+    private static final int TABLE_PART_BITS = 20;
+    private static final int INITIAL_TABLE_BITS = 10;
+
+    // Open addressed hash table of records, keyed on their ID or on their item and user. A slot holds a
+    // record's address plus one, so a zeroed slot is empty. Linear probing, so removing a record shifts
+    // the records after it back rather than leaving a marker
+    private final class RecordIndex {
+	private final boolean byID;
+	private ByteBuffer[] parts;
+	private int partBits;
+	private long mask;
+	private long count;
+
+	RecordIndex(boolean byID) {
+	    this.byID = byID;
+	    allocate(INITIAL_TABLE_BITS);
+	}
+
+	long find(long key1, long key2) {
+	    for (long slot = hash(key1, key2) & mask;; slot = (slot + 1) & mask) {
+		long record = get(slot) - 1;
+		if (record == NONE || (key1(record) == key1 && key2(record) == key2)) {
+		    return record;
+		}
+	    }
+	}
+
+	void add(long record) {
+	    if ((count + 1) * 2 > mask + 1) {
+		grow();
+	    }
+	    place(record);
+	    count++;
+	}
+
+	void remove(long record) {
+	    long hole = hash(key1(record), key2(record)) & mask;
+	    while (get(hole) - 1 != record) {
+		hole = (hole + 1) & mask;
+	    }
+	    for (long slot = (hole + 1) & mask;; slot = (slot + 1) & mask) {
+		long next = get(slot) - 1;
+		if (next == NONE) {
+		    break;
+		}
+		// A record can fill the hole if the hole lies between its home slot and where it sits
+		long home = hash(key1(next), key2(next)) & mask;
+		if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+		    set(hole, next + 1);
+		    hole = slot;
+		}
+	    }
+	    set(hole, 0);
+	    count--;
+	}
+
+	long getCount() {
+	    return count;
+	}
+
+	long getBytes() {
+	    return (mask + 1) * 8;
+	}
+
+	private void place(long record) {
+	    long slot = hash(key1(record), key2(record)) & mask;
+	    while (get(slot) != 0) {
+		slot = (slot + 1) & mask;
+	    }
+	    set(slot, record + 1);
+	}
+
+	private void grow() {
+	    ByteBuffer[] oldParts = parts;
+	    long oldSlots = mask + 1;
+	    int oldPartBits = partBits;
+	    allocate(Long.numberOfTrailingZeros(oldSlots) + 1);
+	    for (long slot = 0; slot < oldSlots; slot++) {
+		long record = oldParts[(int) (slot >>> oldPartBits)].getLong((int) (slot & ((1 << oldPartBits) - 1)) << 3) - 1;
+		if (record != NONE) {
+		    place(record);
+		}
+	    }
+	}
+
+	private void allocate(int bits) {
+	    partBits = Math.min(bits, TABLE_PART_BITS);
+	    parts = new ByteBuffer[1 << (bits - partBits)];
+	    for (int i = 0; i < parts.length; i++) {
+		parts[i] = ByteBuffer.allocateDirect(8 << partBits);
+	    }
+	    mask = (1L << bits) - 1;
+	}
+
+	private long get(long slot) {
+	    return parts[(int) (slot >>> partBits)].getLong((int) (slot & ((1 << partBits) - 1)) << 3);
+	}
+
+	private void set(long slot, long value) {
+	    parts[(int) (slot >>> partBits)].putLong((int) (slot & ((1 << partBits) - 1)) << 3, value);
+	}
+
+	private long key1(long record) {
+	    return byID ? getLong(record + ID_HIGH) : ownerKey(getInt(record + ITEM), getInt(record + USER));
+	}
+
+	private long key2(long record) {
+	    return byID ? getLong(record + ID_LOW) : 0;
+	}
+    }
+
+    private final int chunkBits;
+    private final int chunkSize;
+    private final long chunkMask;
+    private final RandomAccessFile file;
+    // Written under the store's lock, read without it by books and views
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    private volatile Item[] items = new Item[16];
+    private volatile User[] users = new User[16];
+    // Bytes used in the last chunk
+    private int chunkUsed;
+    // Blocks given back, by size class
+    private final long[][] freeBlocks;
+    private final int[] freeCounts;
+    private final RecordIndex byID = new RecordIndex(true);
+    private final RecordIndex byOwner = new RecordIndex(false);
+    private final Map<UUID, Integer> userSlots = new HashMap<UUID, Integer>();
+    // Each user's records are chained from the last one made
+    private long[] userHeads = new long[16];
+    private int itemCount;
+    // Items whose books are still in the store
+    private int liveItems;
+
+    // Store in direct memory
+    public OffHeapBidStore() {
+	this((RandomAccessFile) null, DEFAULT_CHUNK_BITS);
+    }
+
+    // Store in a file mapped into memory, for catalogs bigger than memory. Whatever the file held is lost
+    public OffHeapBidStore(File file) throws IOException {
+	this(open(file), DEFAULT_CHUNK_BITS);
+    }
+
+    // Store with smaller chunks, in direct memory if file is null
+    OffHeapBidStore(File file, int chunkBits) throws IOException {
+	this(file == null ? null : open(file), chunkBits);
+    }
+
+    private OffHeapBidStore(RandomAccessFile file, int chunkBits) {
+	this.file = file;
+	this.chunkBits = chunkBits;
+	this.chunkSize = 1 << chunkBits;
+	this.chunkMask = chunkSize - 1;
+	int sizeClasses = classOf(chunkSize) + 1;
+	this.freeBlocks = new long[sizeClasses][];
+	this.freeCounts = new int[sizeClasses];
+	for (int i = 0; i < sizeClasses; i++) {
+	    freeBlocks[i] = new long[16];
+	}
+	Arrays.fill(userHeads, NONE);
+    }
+
+    private static RandomAccessFile open(File file) throws IOException {
+	RandomAccessFile opened = new RandomAccessFile(file, "rw");
+	opened.setLength(0);
+	return opened;
+    }
+
+    // Bid with the given ID, or null if the store does not hold it
+    public synchronized Bid getBid(UUID bidID) {
+	long record = byID.find(bidID.getMostSignificantBits(), bidID.getLeastSignificantBits());
+	return record == NONE ? null : view(record, items[getInt(record + ITEM)]);
+    }
+
+    // Items holding a bid from the user, in the order the user first bid on them
+    public synchronized List<Item> getItems(User user) {
+	Integer userSlot = userSlots.get(user.getID());
+	if (userSlot == null) {
+	    return Collections.emptyList();
+	}
+	List<Item> userItems = new ArrayList<Item>();
+	for (long record = userHeads[userSlot]; record != NONE; record = getLong(record + NEXT_OF_USER)) {
+	    userItems.add(items[getInt(record + ITEM)]);
+	}
+	Collections.reverse(userItems);
+	return userItems;
+    }
+
+    // Every bid in the store, made from the records. Costs a Bid per record
+    public Collection<Bid> getAllBids() {
+	Item[] current;
+	int count;
+	synchronized (this) {
+	    current = items;
+	    count = itemCount;
+	}
+	List<Bid> allBids = new ArrayList<Bid>();
+	for (int i = 0; i < count; i++) {
+	    if (current[i] != null) {
+		allBids.addAll(current[i].copyBids());
+	    }
+	}
+	return allBids;
+    }
+
+    public synchronized long getBidCount() {
+	return byID.getCount();
+    }
+
+    public synchronized int getItemCount() {
+	return liveItems;
+    }
+
+    // Memory taken from the system for records, books and tables, in bytes
+    public synchronized long getReservedBytes() {
+	return (long) chunks.length * chunkSize + byID.getBytes() + byOwner.getBytes();
+    }
+
+    // Let go of the file behind a mapped store. The store cannot be used afterwards
+    public synchronized void close() throws IOException {
+	if (file != null) {
+	    file.close();
+	}
+    }
+
+    // Place for a new item's book
+    synchronized int addItem(Item item) {
+	if (itemCount == items.length) {
+	    items = Arrays.copyOf(items, itemCount * 2);
+	}
+	items[itemCount] = item;
+	liveItems++;
+	return itemCount++;
+    }
+
+    // Forget an item once its book has given back its records. Its place is not reused
+    synchronized void removeItem(int itemSlot) {
+	if (items[itemSlot] != null) {
+	    items[itemSlot] = null;
+	    liveItems--;
+	}
+    }
+
+    // Record of a bid on an item, found by the user who made it, or NONE
+    synchronized long findRecord(int itemSlot, User user) {
+	Integer userSlot = userSlots.get(user.getID());
+	return userSlot == null ? NONE : byOwner.find(ownerKey(itemSlot, userSlot), 0);
+    }
+
+    // New record for a bid, found by its ID and its item and user from now on. The book writes its amount
+    synchronized long addRecord(int itemSlot, Bid bid) {
+	long record = allocate(0);
+	UUID id = bid.getID();
+	int userSlot = userSlot(bid.getUser());
+	putLong(record + ID_HIGH, id.getMostSignificantBits());
+	putLong(record + ID_LOW, id.getLeastSignificantBits());
+	putInt(record + USER, userSlot);
+	putInt(record + ITEM, itemSlot);
+	long head = userHeads[userSlot];
+	putLong(record + NEXT_OF_USER, head);
+	putLong(record + PREVIOUS_OF_USER, NONE);
+	if (head != NONE) {
+	    putLong(head + PREVIOUS_OF_USER, record);
+	}
+	userHeads[userSlot] = record;
+	byID.add(record);
+	byOwner.add(record);
+	return record;
+    }
+
+    synchronized void removeRecord(long record) {
+	byID.remove(record);
+	byOwner.remove(record);
+	long next = getLong(record + NEXT_OF_USER);
+	long previous = getLong(record + PREVIOUS_OF_USER);
+	if (next != NONE) {
+	    putLong(next + PREVIOUS_OF_USER, previous);
+	}
+	if (previous != NONE) {
+	    putLong(previous + NEXT_OF_USER, next);
+	} else {
+	    userHeads[getInt(record + USER)] = next;
+	}
+	free(record, 0);
+    }
+
+    // Check a record belongs to the bid with the given ID
+    boolean hasID(long record, UUID id) {
+	return getLong(record + ID_HIGH) == id.getMostSignificantBits() && getLong(record + ID_LOW) == id.getLeastSignificantBits();
+    }
+
+    // Bid made from a record of the given item
+    Bid view(long record, Item item) {
+	return new Bid(new UUID(getLong(record + ID_HIGH), getLong(record + ID_LOW)), item, users[getInt(record + USER)],
+		getLong(record + AMOUNT), getLong(record + UPDATED), getLong(record + SEQUENCE));
+    }
+
+    // Block of MIN_BLOCK << sizeClass bytes. Returns its address
+    synchronized long allocate(int sizeClass) {
+	if (sizeClass >= freeCounts.length) {
+	    throw new IllegalStateException("Cannot allocate more than a chunk of " + chunkSize + " bytes");
+	}
+	if (freeCounts[sizeClass] > 0) {
+	    return freeBlocks[sizeClass][--freeCounts[sizeClass]];
+	}
+	int size = MIN_BLOCK << sizeClass;
+	if (chunks.length == 0 || chunkUsed + size > chunkSize) {
+	    addChunk();
+	}
+	long address = ((long) (chunks.length - 1) << chunkBits) + chunkUsed;
+	chunkUsed += size;
+	return address;
+    }
+
+    synchronized void free(long address, int sizeClass) {
+	if (freeCounts[sizeClass] == freeBlocks[sizeClass].length) {
+	    freeBlocks[sizeClass] = Arrays.copyOf(freeBlocks[sizeClass], freeCounts[sizeClass] * 2);
+	}
+	freeBlocks[sizeClass][freeCounts[sizeClass]++] = address;
+    }
+
+    // Largest size class, a block of a whole chunk
+    int maxSizeClass() {
+	return freeCounts.length - 1;
+    }
+
+    long getLong(long address) {
+	return chunks[(int) (address >>> chunkBits)].getLong((int) (address & chunkMask));
+    }
+
+    void putLong(long address, long value) {
+	chunks[(int) (address >>> chunkBits)].putLong((int) (address & chunkMask), value);
+    }
+
+    int getInt(long address) {
+	return chunks[(int) (address >>> chunkBits)].getInt((int) (address & chunkMask));
+    }
+
+    void putInt(long address, int value) {
+	chunks[(int) (address >>> chunkBits)].putInt((int) (address & chunkMask), value);
+    }
+
+    private void addChunk() {
+	// What is left of the last chunk is kept as free blocks, largest first
+	if (chunks.length > 0) {
+	    long base = (long) (chunks.length - 1) << chunkBits;
+	    while (chunkSize - chunkUsed >= MIN_BLOCK) {
+		int sizeClass = classOf(chunkSize - chunkUsed);
+		free(base + chunkUsed, sizeClass);
+		chunkUsed += MIN_BLOCK << sizeClass;
+	    }
+	}
+	ByteBuffer chunk;
+	if (file == null) {
+	    chunk = ByteBuffer.allocateDirect(chunkSize);
+	} else {
+	    try {
+		chunk = file.getChannel().map(FileChannel.MapMode.READ_WRITE, (long) chunks.length << chunkBits, chunkSize);
+	    } catch (IOException ex) {
+		throw new IllegalStateException("Cannot grow bid store file", ex);
+	    }
+	}
+	ByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+	grown[chunks.length] = chunk;
+	chunks = grown;
+	chunkUsed = 0;
+    }
+
+    private int userSlot(User user) {
+	Integer slot = userSlots.get(user.getID());
+	if (slot != null) {
+	    return slot;
+	}
+	int newSlot = userSlots.size();
+	if (newSlot == users.length) {
+	    users = Arrays.copyOf(users, newSlot * 2);
+	    userHeads = Arrays.copyOf(userHeads, newSlot * 2);
+	    Arrays.fill(userHeads, newSlot, newSlot * 2, NONE);
+	}
+	users[newSlot] = user;
+	userSlots.put(user.getID(), newSlot);
+	return newSlot;
+    }
+
+    // Largest size class that fits in the given number of bytes
+    private static int classOf(int bytes) {
+	return 31 - Integer.numberOfLeadingZeros(bytes / MIN_BLOCK);
+    }
+
+    private static long ownerKey(int itemSlot, int userSlot) {
+	return ((long) itemSlot << 32) | (userSlot & 0xFFFFFFFFL);
+    }
+
+    private static long hash(long key1, long key2) {
+	long h = key1 * 0x9E3779B97F4A7C15L + key2;
+	h ^= h >>> 33;
+	h *= 0xFF51AFD7ED558CCDL;
+	h ^= h >>> 33;
+	return h;
+    }
+}
@@ -0,0 +1,297 @@
+package com.luhar.auctioneer.model;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.google.common.collect.ImmutableList;
+
+// Book for fixed point items that keeps its bids in an OffHeapBidStore. Ranked like a LongOrderBook, from
+// the lowest ranked bid at index 0 to the winning bid at size - 1, but the array is a block of store
+// memory holding the amount, sequence and record of each bid. Within an amount the bid with the lower
+// sequence got there first and ranks higher, so amount and sequence find an entry by binary search, and
+// the sequence serves as the arrival number for cursors. Bids handed out are views of their records.
+// Unlike the heap books every method takes the book's lock: a reader racing the writer could otherwise
+// read a block the store has since given to another item
+class OffHeapOrderBook implements OrderBook {
+    // Bytes of an entry, and where its fields sit
+    private static final int ENTRY = 24;
+    private static final int AMOUNT = 0;
+    private static final int SEQUENCE = 8;
+    private static final int RECORD = 16;
+    // Size class of a book's first block, room for 10 entries
+    private static final int FIRST_SIZE_CLASS = 2;
+
+    private final OffHeapBidStore store;
+    private final Item item;
+    private final int itemSlot;
+    private long block = OffHeapBidStore.NONE;
+    private int sizeClass = FIRST_SIZE_CLASS - 1;
+    private int capacity;
+    private int size;
+    // Last record found for a user. Amending a bid looks it up several times over
+    private User lastUser;
+    private long lastRecord = OffHeapBidStore.NONE;
+
+    private final Collection<Bid> view = new AbstractCollection<Bid>() {
+	public Iterator<Bid> iterator() {
+	    return new Iterator<Bid>() {
+		private int index = size() - 1;
+
+		public boolean hasNext() {
+		    return index >= 0;
+		}
+
+		public Bid next() {
+		    synchronized (OffHeapOrderBook.this) {
+			if (index < 0 || index >= size) {
+			    throw new NoSuchElementException();
+			}
+			return store.view(recordAt(index--), item);
+		    }
+		}
+
+		public void remove() {
+		    throw new UnsupportedOperationException("Bids cannot be removed through the book view");
+		}
+	    };
+	}
+
+	public int size() {
+	    return OffHeapOrderBook.this.size();
+	}
+
+	public boolean contains(Object o) {
+	    return (o instanceof Bid) && OffHeapOrderBook.this.contains((Bid) o);
+	}
+    };
+
+    OffHeapOrderBook(OffHeapBidStore store, Item item) {
+	this.store = store;
+	this.item = item;
+	this.itemSlot = store.addItem(item);
+    }
+
+    OffHeapBidStore getStore() {
+	return store;
+    }
+
+    // A bid already in the store with its old amount, taken out of the book beforehand, is put back
+    // with the bid's new amount
+    public synchronized boolean add(Bid bid) {
+	long record = findRecord(bid.getUser());
+	if (record == OffHeapBidStore.NONE) {
+	    record = store.addRecord(itemSlot, bid);
+	} else if (indexOf(record) >= 0) {
+	    return false;
+	}
+	insert(record, bid);
+	return true;
+    }
+
+    public synchronized boolean remove(Bid bid) {
+	int index = indexOf(recordOf(bid));
+	if (index < 0) {
+	    return false;
+	}
+	removeAt(index);
+	return true;
+    }
+
+    public synchronized boolean contains(Bid bid) {
+	return indexOf(recordOf(bid)) >= 0;
+    }
+
+    public synchronized void bidModified(Bid bid) {
+	// The record still has the old amount, so its entry can be found from it
+	long record = recordOf(bid);
+	int index = indexOf(record);
+	if (index >= 0) {
+	    removeAt(index);
+	    insert(record, bid);
+	}
+    }
+
+    public synchronized Bid first() {
+	return size == 0 ? null : store.view(recordAt(size - 1), item);
+    }
+
+    public synchronized int size() {
+	return size;
+    }
+
+    // Read-only live view of the book, winning bid first. Each bid is made as it is reached
+    public Collection<Bid> asCollection() {
+	return view;
+    }
+
+    public synchronized List<Bid> top(int count) {
+	return copy(size - 1, count);
+    }
+
+    public synchronized BidPage page(BidCursor cursor, int pageSize) {
+	int start = cursor == null ? size - 1 : lowerBound(cursor.amountUnits, cursor.arrival) - 1;
+	List<Bid> page = copy(start, pageSize);
+	int last = start - page.size() + 1;
+	if (page.size() < pageSize || last == 0) {
+	    return new BidPage(page, null);
+	}
+	return new BidPage(page, new BidCursor(page.get(page.size() - 1), amountAt(last), sequenceAt(last)));
+    }
+
+    public synchronized int rank(Bid bid) {
+	int index = indexOf(recordOf(bid));
+	return index < 0 ? -1 : size - index;
+    }
+
+    // Bid on this item from the user, or null
+    synchronized Bid bidFrom(User user) {
+	long record = findRecord(user);
+	return record == OffHeapBidStore.NONE ? null : store.view(record, item);
+    }
+
+    synchronized boolean hasBidFrom(User user) {
+	return findRecord(user) != OffHeapBidStore.NONE;
+    }
+
+    // Give every record and the book's block back to the store. The book is empty afterwards
+    synchronized void release() {
+	for (int i = 0; i < size; i++) {
+	    store.removeRecord(recordAt(i));
+	}
+	if (block != OffHeapBidStore.NONE) {
+	    store.free(block, sizeClass);
+	}
+	store.removeItem(itemSlot);
+	lastUser = null;
+	lastRecord = OffHeapBidStore.NONE;
+	block = OffHeapBidStore.NONE;
+	sizeClass = FIRST_SIZE_CLASS - 1;
+	capacity = 0;
+	size = 0;
+    }
+
+    // Record of a bid on this item, or NONE if the store holds no bid with its ID from its user
+    private long recordOf(Bid bid) {
+	long record = findRecord(bid.getUser());
+	if (record == OffHeapBidStore.NONE || !store.hasID(record, bid.getID())) {
+	    return OffHeapBidStore.NONE;
+	}
+	return record;
+    }
+
+    // Records are only freed with the whole book, so one found stays good
+    private long findRecord(User user) {
+	if (user == lastUser) {
+	    return lastRecord;
+	}
+	long record = store.findRecord(itemSlot, user);
+	if (record != OffHeapBidStore.NONE) {
+	    lastUser = user;
+	    lastRecord = record;
+	}
+	return record;
+    }
+
+    // Position of the record's entry, found from the amount and sequence the record holds, or -1
+    private int indexOf(long record) {
+	if (record == OffHeapBidStore.NONE) {
+	    return -1;
+	}
+	int index = lowerBound(store.getLong(record + OffHeapBidStore.AMOUNT), store.getLong(record + OffHeapBidStore.SEQUENCE));
+	return index < size && recordAt(index) == record ? index : -1;
+    }
+
+    // Write the bid's amount to its record and put its entry in place
+    private void insert(long record, Bid bid) {
+	long amount = bid.getBidAmountUnits();
+	long sequence = bid.getSequence();
+	store.putLong(record + OffHeapBidStore.AMOUNT, amount);
+	store.putLong(record + OffHeapBidStore.UPDATED, bid.getLastUpdateTime());
+	store.putLong(record + OffHeapBidStore.SEQUENCE, sequence);
+	int index = lowerBound(amount, sequence);
+	if (size == capacity) {
+	    grow();
+	}
+	for (int i = size - 1; i >= index; i--) {
+	    copyEntry(i, i + 1);
+	}
+	long entry = block + (long) index * ENTRY;
+	store.putLong(entry + AMOUNT, amount);
+	store.putLong(entry + SEQUENCE, sequence);
+	store.putLong(entry + RECORD, record);
+	size++;
+    }
+
+    private void removeAt(int index) {
+	for (int i = index + 1; i < size; i++) {
+	    copyEntry(i, i - 1);
+	}
+	size--;
+    }
+
+    // Move to a block of the next size class up
+    private void grow() {
+	if (sizeClass == store.maxSizeClass()) {
+	    throw new IllegalStateException("Book is full at " + size + " bids");
+	}
+	long oldBlock = block;
+	int oldSizeClass = sizeClass;
+	sizeClass++;
+	block = store.allocate(sizeClass);
+	capacity = (OffHeapBidStore.MIN_BLOCK << sizeClass) / ENTRY;
+	for (int offset = 0; offset < size * ENTRY; offset += 8) {
+	    store.putLong(block + offset, store.getLong(oldBlock + offset));
+	}
+	if (oldBlock != OffHeapBidStore.NONE) {
+	    store.free(oldBlock, oldSizeClass);
+	}
+    }
+
+    // First position whose entry ranks at or above the given amount and sequence
+    private int lowerBound(long amount, long sequence) {
+	int low = 0;
+	int high = size;
+	while (low < high) {
+	    int mid = (low + high) >>> 1;
+	    long midAmount = amountAt(mid);
+	    if (midAmount < amount || (midAmount == amount && sequenceAt(mid) > sequence)) {
+		low = mid + 1;
+	    } else {
+		high = mid;
+	    }
+	}
+	return low;
+    }
+
+    // Up to count bids going down the book from an index
+    private List<Bid> copy(int from, int count) {
+	ImmutableList.Builder<Bid> builder = ImmutableList.builder();
+	for (int i = from; i >= 0 && i > from - count; i--) {
+	    builder.add(store.view(recordAt(i), item));
+	}
+	return builder.build();
+    }
+
+    private void copyEntry(int from, int to) {
+	long source = block + (long) from * ENTRY;
+	long target = block + (long) to * ENTRY;
+	store.putLong(target + AMOUNT, store.getLong(source + AMOUNT));
+	store.putLong(target + SEQUENCE, store.getLong(source + SEQUENCE));
+	store.putLong(target + RECORD, store.getLong(source + RECORD));
+    }
+
+    private long amountAt(int index) {
+	return store.getLong(block + (long) index * ENTRY + AMOUNT);
+    }
+
+    private long sequenceAt(int index) {
+	return store.getLong(block + (long) index * ENTRY + SEQUENCE);
+    }
+
+    private long recordAt(int index) {
+	return store.getLong(block + (long) index * ENTRY + RECORD);
+    }
+}
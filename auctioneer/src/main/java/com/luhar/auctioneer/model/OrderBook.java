@@ -0,0 +1,39 @@
+package com.luhar.auctioneer.model;
+
+import java.util.Collection;
+import java.util.List;
+
+// Price ordered book of the bids on an item, winning bid first. A book is not thread safe, it is
+// owned by the Item and changed by one writer at a time
+public interface OrderBook {
+    
+    // Add a bid. Returns false if the bid is already in the book
+    public boolean add(Bid bid);
+    
+    // Remove a bid. The bid's amount must not have changed since it was added
+    public boolean remove(Bid bid);
+    
+    // Check if the book holds a bid
+    public boolean contains(Bid bid);
+    
+    // Put a bid back in order after its amount was changed while it was in the book
+    public void bidModified(Bid bid);
+    
+    // Get the winning bid, or null if the book is empty
+    public Bid first();
+    
+    // Number of bids in the book
+    public int size();
+    
+    // The bids in the book, winning bid first
+    public Collection<Bid> asCollection();
+    
+    // Immutable list of the best count bids, winning bid first. Costs O(count), not O(size)
+    public List<Bid> top(int count);
+    
+    // Up to pageSize bids ranked just below the cursor, or from the top if the cursor is null
+    public BidPage page(BidCursor cursor, int pageSize);
+    
+    // Place of a bid in the book, 1 for the winning bid, or -1 if the bid is not in the book. O(log n)
+    public int rank(Bid bid);
+}
@@ -0,0 +1,55 @@
+package com.luhar.auctioneer.model;
+
+import java.math.BigDecimal;
+
+// Fixed point price scale. Amounts are held as a long count of minor units, e.g. cents for a scale of 2,
+// and only turned back into BigDecimals at the edges of the API
+public final class PriceScale {
+    public static final PriceScale CENTS = new PriceScale(2);
+    
+    private final int scale;
+    
+    public PriceScale(int scale) {
+	if (scale < 0 || scale > 18) {
+	    throw new IllegalArgumentException("Price scale must be between 0 and 18: " + scale);
+	}
+	this.scale = scale;
+    }
+    
+    // Number of decimal places in a minor unit
+    public int getScale() {
+	return this.scale;
+    }
+    
+    // Convert an amount to minor units. Throws ArithmeticException if the amount has more decimal places
+    // than this scale or does not fit in a long
+    public long toUnits(BigDecimal amount) {
+	return amount.movePointRight(scale).longValueExact();
+    }
+    
+    // Convert minor units back to an amount
+    public BigDecimal toAmount(long units) {
+	return BigDecimal.valueOf(units, scale);
+    }
+
+    @Override
+    public int hashCode() {
+	return 31 + scale;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+	if (this == obj)
+	    return true;
+	if (obj == null)
+	    return false;
+	if (getClass() != obj.getClass())
+	    return false;
+	PriceScale other = (PriceScale) obj;
+	return scale == other.scale;
+    }
+    
+    public String toString() {
+	return "PriceScale: " + scale;
+    }
+}
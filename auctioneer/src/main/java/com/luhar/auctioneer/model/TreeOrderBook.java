@@ -0,0 +1,114 @@
+package com.luhar.auctioneer.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.common.collect.BoundType;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.TreeMultiset;
+
+// Default book, a Guava TreeMultiset ordered by Bid.compareTo. The tree keeps a count for every subtree,
+// so a bid's rank and the start of a page are found in O(log n)
+public class TreeOrderBook implements OrderBook {
+    
+    private final TreeMultiset<Bid> bids = TreeMultiset.create(new Comparator<Bid>() {
+	public int compare(Bid o1, Bid o2) {
+	    // Note that that we need to keep track of the highest bid, not the lowest bid
+	    int order = o1.compareTo(o2);
+	    // Bids on one item never tie, as each has its own sequence. Fall back on the ID all the same, so a
+	    // bid that does tie is never taken for another and left out of the book
+	    return order != 0 ? order : o1.getID().compareTo(o2.getID());
+	}
+    });
+    
+    public boolean add(Bid bid) {
+	if (bids.contains(bid)) {
+	    return false;
+	}
+	bids.add(bid);
+	return true;
+    }
+    
+    public boolean remove(Bid bid) {
+	return bids.remove(bid);
+    }
+    
+    public boolean contains(Bid bid) {
+	return bids.contains(bid);
+    }
+    
+    public void bidModified(Bid bid) {
+	// The bid has already been changed, so the tree cannot find it at its old position. Re-sort the whole book
+	List<Bid> allBids = new ArrayList<Bid>(bids);
+	bids.clear();
+	bids.addAll(allBids);
+    }
+    
+    public Bid first() {
+	return bids.isEmpty() ? null : bids.firstEntry().getElement();
+    }
+    
+    public int size() {
+	return bids.size();
+    }
+    
+    // The live multiset
+    public Collection<Bid> asCollection() {
+	return bids;
+    }
+    
+    public List<Bid> top(int count) {
+	return copy(bids, count);
+    }
+    
+    public BidPage page(BidCursor cursor, int pageSize) {
+	Collection<Bid> below = bids;
+	if (cursor != null) {
+	    below = bids.tailMultiset(new Bid(cursor.item, cursor.bidID, cursor.amount, cursor.lastUpdated, cursor.sequence), BoundType.OPEN);
+	}
+	// One more than asked for, to know whether there is a next page
+	List<Bid> page = copy(below, pageSize + 1);
+	if (page.size() <= pageSize) {
+	    return new BidPage(page, null);
+	}
+	page = page.subList(0, pageSize);
+	return new BidPage(page, new BidCursor(page.get(pageSize - 1)));
+    }
+    
+    public int rank(Bid bid) {
+	if (!bids.contains(bid)) {
+	    return -1;
+	}
+	return bids.headMultiset(bid, BoundType.OPEN).size() + 1;
+    }
+    
+    private static List<Bid> copy(Collection<Bid> source, int count) {
+	ImmutableList.Builder<Bid> builder = ImmutableList.builder();
+	int copied = 0;
+	for (Bid bid : source) {
+	    if (copied++ == count) {
+		break;
+	    }
+	    builder.add(bid);
+	}
+	return builder.build();
+    }
+
+    @Override
+    public int hashCode() {
+	return bids.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+	if (this == obj)
+	    return true;
+	if (obj == null)
+	    return false;
+	if (getClass() != obj.getClass())
+	    return false;
+	return bids.equals(((TreeOrderBook) obj).bids);
+    }
+}
@@ -1,82 +1,225 @@
 package com.luhar.auctioneer.model;
 
 import java.math.BigDecimal;
-import java.util.Collection;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
 
 public class User extends AuctioneerObject {
     private final String name;
-    private Collection<Bid> bids = new Vector<Bid>();
-    private Collection<Item> items = new Vector<Item>();
+    // The user's bid on each item, hashed by item ID and chained in the order the user first bid on them.
+    // The entries are their own hash nodes, so a new bid makes one small object and no map entry
+    private Participation[] participations;
+    private int participationCount;
+    private final Participation placed = new Participation(null);
+    // Items the user's bid tops, and items someone else's does. Their books tell us as they change, so
+    // neither query has to look at the user's other items
+    private final Participation winning = new Participation(null);
+    private final Participation outbid = new Participation(null);
+    private int winningCount;
+    private int outbidCount;
     
     public User(String name) {
 	super();
 	this.name = name;
     }
     
+    // User recovered with a known ID
+    public User(UUID id, String name) {
+	super(id);
+	this.name = name;
+    }
+    
     // Get human readable short name for the user
     public String getName() {
 	return this.name;
     }
     
-    // Get list of Bids made by this user
-    public Collection<Bid> getBids() {
-	return this.bids;
+    // Get list of Bids made by this user. A copy, safe to walk while the user bids on
+    public synchronized List<Bid> getBids() {
+	List<Bid> userBids = new ArrayList<Bid>(participationCount);
+	for (Participation participation = placed.newer; participation != placed; participation = participation.newer) {
+	    userBids.add(participation.bid);
+	}
+	return userBids;
+    }
+    
+    // Get list of Items bid on by this user. A copy, like getBids
+    public synchronized List<Item> getItems() {
+	List<Item> userItems = new ArrayList<Item>(participationCount);
+	for (Participation participation = placed.newer; participation != placed; participation = participation.newer) {
+	    userItems.add(participation.bid.getItem());
+	}
+	return userItems;
+    }
+    
+    // The user's bid on an item, or null if they have not bid on it
+    public synchronized Bid getBidOn(Item item) {
+	Participation participation = find(item.getID());
+	return participation == null ? null : participation.bid;
+    }
+    
+    // Items on which the user holds the winning bid, or won if the auction has closed
+    public synchronized List<Item> getItemsWinning() {
+	return itemsOn(winning, winningCount);
+    }
+    
+    // Items on which the user has bid and someone else holds the winning bid
+    public synchronized List<Item> getItemsOutbid() {
+	return itemsOn(outbid, outbidCount);
+    }
+    
+    public synchronized int getWinningCount() {
+	return winningCount;
     }
     
-    // Get list of Items bid on by this user
-    public Collection<Item> getItems() {
-	return this.items;
+    public synchronized int getOutbidCount() {
+	return outbidCount;
     }
     
     public Bid makeBid(Item item, BigDecimal amount) {
-	Bid newBid = new Bid(item, this, amount);
-	this.bids.add(newBid);
+	return addBid(new Bid(item, this, amount));
+    }
+    
+    // Make a bid in minor units on a fixed point item
+    public Bid makeBid(Item item, long amountUnits) {
+	return addBid(new Bid(item, this, amountUnits));
+    }
+    
+    // Record a bid made by this user. It is neither winning nor outbid until its item has taken it
+    public synchronized Bid addBid(Bid newBid) {
+	Item item = newBid.getItem();
+	Participation participation = find(item.getID());
 	// Check and log if there are any bids already for this item
-	if (items.contains(item)) {
+	if (participation != null) {
 	    AuctioneerObject.logger.warn(String.format("User %s has already bid on Item %s", this.toString(), item.toString()));
+	    participation.bid = newBid;
 	} else {
-	    items.add(item);
+	    insert(new Participation(newBid));
 	}
 	return newBid;
     }
 
-    @Override
-    public int hashCode() {
-	final int prime = 31;
-	int result = super.hashCode();
-	result = prime * result + ((bids == null) ? 0 : bids.hashCode());
-	result = prime * result + ((items == null) ? 0 : items.hashCode());
-	result = prime * result + ((name == null) ? 0 : name.hashCode());
-	return result;
+    // Forget a bid, and the item it was made on. Used when the item is archived
+    public synchronized void removeBid(Bid bid) {
+	Participation participation = find(bid.getItem().getID());
+	if (participation != null && participation.bid.equals(bid)) {
+	    unlink(participation);
+	    delete(participation);
+	}
     }
-
-    @Override
-    public boolean equals(Object obj) {
-	if (this == obj)
-	    return true;
-	if (!super.equals(obj))
-	    return false;
-	if (getClass() != obj.getClass())
-	    return false;
-	User other = (User) obj;
-	if (bids == null) {
-	    if (other.bids != null)
-		return false;
-	} else if (!bids.equals(other.bids))
-	    return false;
-	if (items == null) {
-	    if (other.items != null)
-		return false;
-	} else if (!items.equals(other.items))
-	    return false;
-	if (name == null) {
-	    if (other.name != null)
-		return false;
-	} else if (!name.equals(other.name))
-	    return false;
-	return true;
+    
+    // Called by an item when this user's bid takes the top of its book
+    synchronized void markWinning(Item item) {
+	Participation participation = find(item.getID());
+	if (participation != null && participation.list != winning) {
+	    unlink(participation);
+	    link(participation, winning);
+	    winningCount++;
+	}
+    }
+    
+    // Called by an item when another bid tops this user's, either as it is placed or when it is overtaken.
+    // Items whose bids the user has not recorded, such as those read back from an archive, are left out
+    synchronized void markOutbid(Item item) {
+	Participation participation = find(item.getID());
+	if (participation != null && participation.list != outbid) {
+	    unlink(participation);
+	    link(participation, outbid);
+	    outbidCount++;
+	}
+    }
+    
+    private Participation find(UUID itemID) {
+	if (participations == null) {
+	    return null;
+	}
+	Participation participation = participations[indexFor(itemID, participations.length)];
+	while (participation != null && !participation.bid.getItem().getID().equals(itemID)) {
+	    participation = participation.chained;
+	}
+	return participation;
+    }
+    
+    private void insert(Participation participation) {
+	if (participations == null) {
+	    participations = new Participation[8];
+	} else if (participationCount >= participations.length - (participations.length >> 2)) {
+	    resize();
+	}
+	int index = indexFor(participation.bid.getItem().getID(), participations.length);
+	participation.chained = participations[index];
+	participations[index] = participation;
+	participation.older = placed.older;
+	participation.newer = placed;
+	placed.older.newer = participation;
+	placed.older = participation;
+	participationCount++;
+    }
+    
+    private void delete(Participation participation) {
+	int index = indexFor(participation.bid.getItem().getID(), participations.length);
+	if (participations[index] == participation) {
+	    participations[index] = participation.chained;
+	} else {
+	    Participation before = participations[index];
+	    while (before.chained != participation) {
+		before = before.chained;
+	    }
+	    before.chained = participation.chained;
+	}
+	participation.older.newer = participation.newer;
+	participation.newer.older = participation.older;
+	participationCount--;
+    }
+    
+    // Doubles the table, rehashing in first bid order
+    private void resize() {
+	participations = new Participation[participations.length << 1];
+	for (Participation participation = placed.newer; participation != placed; participation = participation.newer) {
+	    int index = indexFor(participation.bid.getItem().getID(), participations.length);
+	    participation.chained = participations[index];
+	    participations[index] = participation;
+	}
+    }
+    
+    private static int indexFor(UUID itemID, int length) {
+	int hash = itemID.hashCode();
+	return (hash ^ (hash >>> 16)) & (length - 1);
+    }
+    
+    private List<Item> itemsOn(Participation list, int count) {
+	List<Item> listed = new ArrayList<Item>(count);
+	for (Participation participation = list.next; participation != list; participation = participation.next) {
+	    listed.add(participation.bid.getItem());
+	}
+	return listed;
+    }
+    
+    private void link(Participation participation, Participation list) {
+	participation.list = list;
+	participation.previous = list.previous;
+	participation.next = list;
+	list.previous.next = participation;
+	list.previous = participation;
+    }
+    
+    private void unlink(Participation participation) {
+	Participation list = participation.list;
+	if (list == null) {
+	    return;
+	}
+	if (list == winning) {
+	    winningCount--;
+	} else {
+	    outbidCount--;
+	}
+	participation.previous.next = participation.next;
+	participation.next.previous = participation.previous;
+	participation.list = null;
+	participation.previous = null;
+	participation.next = null;
     }
     
     public String toString() {
@@ -86,5 +229,20 @@ public class User extends AuctioneerObject {
 	return builder.toString();
     }
     
-    
+    // The user's bid on one item, linked into the winning or outbid list. Moving between the two lists
+    // only relinks it, so a change of leader makes nothing. Each list is headed by an entry without a bid,
+    // as is the first bid order. Chained links entries sharing a slot of the table
+    private static final class Participation {
+	Bid bid;
+	Participation list;
+	Participation previous = this;
+	Participation next = this;
+	Participation older = this;
+	Participation newer = this;
+	Participation chained;
+
+	Participation(Bid bid) {
+	    this.bid = bid;
+	}
+    }
 }
@@ -0,0 +1,7 @@
+package com.luhar.auctioneer.model;
+
+// Told when the winning bid on an item changes, either to another bid or to a new amount
+public interface WinningBidListener {
+
+    public void winningBidChanged(WinningBidUpdate update);
+}
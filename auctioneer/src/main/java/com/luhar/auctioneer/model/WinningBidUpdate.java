@@ -0,0 +1,67 @@
+package com.luhar.auctioneer.model;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+// Immutable picture of the top of an item's book, taken on the thread that changed it, so subscribers can
+// read it on their own threads while bidding carries on. The version goes up by one with every change to
+// the top of the item's book
+public final class WinningBidUpdate {
+    private final UUID itemID;
+    private final long version;
+    private final UUID bidID;
+    private final UUID userID;
+    private final BigDecimal amount;
+    private final long lastUpdated;
+
+    WinningBidUpdate(Item item, long version, Bid winner) {
+	this.itemID = item.getID();
+	this.version = version;
+	if (winner != null) {
+	    this.bidID = winner.getID();
+	    this.userID = winner.getUser().getID();
+	    this.amount = winner.getBidAmount();
+	    this.lastUpdated = winner.getLastUpdateTime();
+	} else {
+	    this.bidID = null;
+	    this.userID = null;
+	    this.amount = null;
+	    this.lastUpdated = 0;
+	}
+    }
+
+    public UUID getItemID() {
+	return this.itemID;
+    }
+
+    public long getVersion() {
+	return this.version;
+    }
+
+    // Winning bid, or null if the item has no bids
+    public UUID getBidID() {
+	return this.bidID;
+    }
+
+    public UUID getUserID() {
+	return this.userID;
+    }
+
+    public BigDecimal getAmount() {
+	return this.amount;
+    }
+
+    public long getLastUpdated() {
+	return this.lastUpdated;
+    }
+
+    public String toString() {
+	StringBuilder builder = new StringBuilder();
+	builder.append("Winning bid on item: ").append(itemID.toString()).append("  Version: ").append(version);
+	if (bidID != null) {
+	    builder.append("  Bid id: ").append(bidID.toString()).append("  User ID: ").append(userID.toString())
+		    .append("  Amount: ").append(amount.toPlainString());
+	}
+	return builder.toString();
+    }
+}
@@ -0,0 +1,11 @@
+package com.luhar.auctioneer.replication;
+
+// When a change on the primary is done, as far as the caller that made it is concerned
+public enum CommitMode {
+    // Once it is in the replication log. Backups catch up in the background, and losing the primary can lose
+    // the changes they had not yet applied
+    ASYNC,
+    // Once every caught-up backup has acknowledged it. Callers waiting together share the acknowledgements,
+    // as backups acknowledge the last record of each batch they apply
+    SYNC
+}
@@ -0,0 +1,231 @@
+package com.luhar.auctioneer.replication;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+
+import org.apache.log4j.Logger;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.journal.RecordCodec;
+import com.luhar.auctioneer.model.BidTracker;
+
+// Keeps a BidTrackerImpl in step with a ReplicationPrimary. Records are applied through the tracker's restore
+// methods on the backup's own thread, and after each batch read from the socket the backup acknowledges the
+// sequence of the last record it applied. If the connection drops the backup connects again and is sent
+// the primary's state afresh. Applying it updates whatever the tracker already holds, but nothing is taken
+// away: an item or bid the primary dropped while the backup was away stays on the backup.
+//
+// The primary counts as lost when nothing, not even a heartbeat, has arrived for the failure timeout. To fail
+// over, promote the caught-up backup that has applied the most, see mostCaughtUp(), and put a new primary
+// in front of its tracker for the others to follow
+public class ReplicationBackup implements Closeable {
+    private static final Logger logger = Logger.getLogger(BidTracker.class);
+    public static final long DEFAULT_FAILURE_TIMEOUT_MILLIS = 10 * ReplicationPrimary.HEARTBEAT_INTERVAL_MILLIS;
+    public static final long RECONNECT_INTERVAL_MILLIS = 100;
+    private static final int RECEIVE_BUFFER_SIZE = 1024 * 1024;
+
+    private final BidTrackerImpl tracker;
+    private final InetSocketAddress primaryAddress;
+    private final long failureTimeoutMillis;
+    private final ByteBuffer received = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    private final ByteBuffer ack = ByteBuffer.allocateDirect(8);
+    private Thread receiver;
+    private volatile boolean closed;
+    private volatile boolean connected;
+    private volatile boolean caughtUp;
+    private volatile long appliedSequence = -1;
+    private volatile long lastHeard;
+    private long acknowledged;
+    private long skipped;
+
+    public ReplicationBackup(BidTrackerImpl tracker, InetSocketAddress primaryAddress) {
+	this(tracker, primaryAddress, DEFAULT_FAILURE_TIMEOUT_MILLIS);
+    }
+
+    public ReplicationBackup(BidTrackerImpl tracker, InetSocketAddress primaryAddress, long failureTimeoutMillis) {
+	this.tracker = tracker;
+	this.primaryAddress = primaryAddress;
+	this.failureTimeoutMillis = failureTimeoutMillis;
+    }
+
+    public synchronized void start() {
+	if (receiver != null) {
+	    throw new IllegalStateException("Backup already started for " + primaryAddress);
+	}
+	receiver = new Thread(new Runnable() {
+	    public void run() {
+		receiveLoop();
+	    }
+	}, "auctioneer-replication-backup");
+	receiver.setDaemon(true);
+	receiver.start();
+    }
+
+    public BidTrackerImpl getTracker() {
+	return this.tracker;
+    }
+
+    // Whether the primary is connected and has been heard from within the failure timeout
+    public boolean isConnected() {
+	return connected && System.currentTimeMillis() - lastHeard < failureTimeoutMillis;
+    }
+
+    // Whether the tracker holds a whole copy of the primary's state, up to the applied sequence. Stays true
+    // after the primary is lost, until the backup connects again
+    public boolean isCaughtUp() {
+	return this.caughtUp;
+    }
+
+    // Sequence of the last of the primary's records applied, -1 before the backup has caught up
+    public long getAppliedSequence() {
+	return this.appliedSequence;
+    }
+
+    // Stop following the primary and hand back the tracker, to serve from with a new primary in front
+    public BidTrackerImpl promote() {
+	close();
+	if (!caughtUp) {
+	    throw new IllegalStateException("Backup of " + primaryAddress + " had not caught up with the primary");
+	}
+	logger.info("Promoted backup of " + primaryAddress + " at sequence " + appliedSequence);
+	return tracker;
+    }
+
+    public void close() {
+	closed = true;
+	if (receiver != null) {
+	    receiver.interrupt();
+	    try {
+		receiver.join();
+	    } catch (InterruptedException ex) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+    }
+
+    // The caught-up backup that has applied the most of the primary's changes, or null if none has caught up
+    public static ReplicationBackup mostCaughtUp(Collection<ReplicationBackup> backups) {
+	ReplicationBackup best = null;
+	for (ReplicationBackup backup : backups) {
+	    if (backup.isCaughtUp() && (best == null || backup.getAppliedSequence() > best.getAppliedSequence())) {
+		best = backup;
+	    }
+	}
+	return best;
+    }
+
+    private void receiveLoop() {
+	while (!closed) {
+	    try {
+		receive();
+	    } catch (IOException ex) {
+		if (!closed) {
+		    logger.warn("Lost replication primary " + primaryAddress + ": " + ex.getMessage());
+		}
+	    } catch (RuntimeException ex) {
+		logger.error("Could not apply replication record from " + primaryAddress, ex);
+	    }
+	    connected = false;
+	    try {
+		Thread.sleep(RECONNECT_INTERVAL_MILLIS);
+	    } catch (InterruptedException ex) {
+		return;
+	    }
+	}
+    }
+
+    // Follow the primary over one connection until it fails
+    private void receive() throws IOException {
+	SocketChannel channel = SocketChannel.open();
+	Selector selector = Selector.open();
+	try {
+	    channel.socket().connect(primaryAddress, (int) failureTimeoutMillis);
+	    channel.socket().setTcpNoDelay(true);
+	    channel.configureBlocking(false);
+	    channel.register(selector, SelectionKey.OP_READ);
+	    // The state the primary sends next updates what the tracker holds. It does not remove anything
+	    caughtUp = false;
+	    appliedSequence = -1;
+	    acknowledged = -1;
+	    received.clear();
+	    lastHeard = System.currentTimeMillis();
+	    connected = true;
+	    logger.info("Following replication primary " + primaryAddress);
+	    while (!closed) {
+		selector.select(failureTimeoutMillis);
+		selector.selectedKeys().clear();
+		int read = channel.read(received);
+		if (read < 0) {
+		    throw new IOException("Primary closed the connection");
+		}
+		long now = System.currentTimeMillis();
+		if (read == 0) {
+		    if (now - lastHeard >= failureTimeoutMillis) {
+			throw new IOException("Nothing heard for " + (now - lastHeard) + " ms");
+		    }
+		    continue;
+		}
+		lastHeard = now;
+		received.flip();
+		applyFrames();
+		received.compact();
+		if (caughtUp && appliedSequence > acknowledged) {
+		    ack.clear();
+		    ack.putLong(appliedSequence);
+		    ack.flip();
+		    while (ack.hasRemaining()) {
+			channel.write(ack);
+		    }
+		    acknowledged = appliedSequence;
+		}
+	    }
+	} finally {
+	    selector.close();
+	    channel.close();
+	}
+    }
+
+    // Apply every whole frame in the received bytes, leaving a part frame for the next read
+    private void applyFrames() {
+	while (received.remaining() >= ReplicationPrimary.FRAME_HEADER_SIZE) {
+	    int start = received.position();
+	    int length = received.getInt(start);
+	    if (length + ReplicationPrimary.FRAME_HEADER_SIZE > received.capacity()) {
+		throw new ReplicationException("Replication frame of " + length + " bytes is too large");
+	    }
+	    if (received.remaining() < ReplicationPrimary.FRAME_HEADER_SIZE + length) {
+		return;
+	    }
+	    long frameSequence = received.getLong(start + 4);
+	    int end = start + ReplicationPrimary.FRAME_HEADER_SIZE + length;
+	    if (length == 0) {
+		// Everything up to the heartbeat's sequence has arrived, and the first heartbeat ends the state
+		if (!caughtUp) {
+		    caughtUp = true;
+		    logger.info("Caught up with replication primary " + primaryAddress + " at sequence " + frameSequence);
+		}
+		appliedSequence = Math.max(appliedSequence, frameSequence);
+	    } else {
+		int limit = received.limit();
+		received.position(start + ReplicationPrimary.FRAME_HEADER_SIZE);
+		received.limit(end);
+		// The state is read while bidding carries on, so it can hold a bid on an item it has no record of.
+		// The log brings both later, so only log records that cannot be applied are worth a warning
+		if (!RecordCodec.apply(received, tracker) && frameSequence > 0 && ++skipped % 1000 == 1) {
+		    logger.warn("Skipped " + skipped + " replication records that refer to unknown users, items or bids");
+		}
+		received.limit(limit);
+		if (frameSequence > 0) {
+		    appliedSequence = frameSequence;
+		}
+	    }
+	    received.position(end);
+	}
+    }
+}
@@ -0,0 +1,14 @@
+package com.luhar.auctioneer.replication;
+
+// Unchecked failure to replicate a tracker's changes
+public class ReplicationException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public ReplicationException(String message) {
+	super(message);
+    }
+
+    public ReplicationException(String message, Throwable cause) {
+	super(message, cause);
+    }
+}
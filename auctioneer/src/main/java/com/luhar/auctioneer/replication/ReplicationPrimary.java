@@ -0,0 +1,566 @@
+package com.luhar.auctioneer.replication;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.journal.RecordCodec;
+import com.luhar.auctioneer.journal.TrackerSnapshot;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.BidTrackerListener;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+// Streams every change a BidTrackerImpl accepts to ReplicationBackups over TCP. Changes go into one
+// in-memory log as frames of [int payload length][long sequence][payload], see RecordCodec for the payload,
+// and a single selector thread copies each backup's unsent part of the log to its socket. Records go out in
+// batches of whatever built up since the last write, without waiting for earlier batches to be acknowledged,
+// and backups acknowledge the sequence of the last record they applied. A frame with no payload is a
+// heartbeat: every record up to its sequence has been sent before it.
+//
+// A backup that connects is first sent the tracker's state as records, taken while bidding carries on, and
+// then the log from the point it joined. As with journal snapshots, applying the log over that state gives
+// the primary's state. A backup is caught up once it has acknowledged the end of its state. A backup that
+// falls a whole log behind, or in SYNC mode misses the sync timeout, is dropped and connects again to start
+// over
+public class ReplicationPrimary implements BidTrackerListener, Closeable {
+    private static final Logger logger = Logger.getLogger(BidTracker.class);
+    public static final int DEFAULT_LOG_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_SYNC_TIMEOUT_MILLIS = 1000;
+    public static final long HEARTBEAT_INTERVAL_MILLIS = 100;
+    static final int FRAME_HEADER_SIZE = 12;
+    private static final int SEND_BUFFER_SIZE = 256 * 1024;
+    private static final int STATE_CHUNK_SIZE = 1024 * 1024;
+    private static final ByteBuffer NO_PAYLOAD = ByteBuffer.allocate(0);
+
+    private final BidTrackerImpl tracker;
+    private final InetSocketAddress bindAddress;
+    private final CommitMode commitMode;
+    private final long syncTimeoutMillis;
+    private final List<Session> sessions = new CopyOnWriteArrayList<Session>();
+    // Set while a wakeup of the selector is on its way, so a burst of changes wakes it once
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final Object ackLock = new Object();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread sender;
+    private volatile boolean closed;
+
+    // Guarded by this
+    private final byte[] log;
+    private long logHead;
+    private long sequence;
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+
+    public ReplicationPrimary(BidTrackerImpl tracker, InetSocketAddress bindAddress, CommitMode commitMode) {
+	this(tracker, bindAddress, commitMode, DEFAULT_LOG_SIZE, DEFAULT_SYNC_TIMEOUT_MILLIS);
+    }
+
+    public ReplicationPrimary(BidTrackerImpl tracker, InetSocketAddress bindAddress, CommitMode commitMode, int logSize, long syncTimeoutMillis) {
+	this.tracker = tracker;
+	this.bindAddress = bindAddress;
+	this.commitMode = commitMode;
+	this.syncTimeoutMillis = syncTimeoutMillis;
+	this.log = new byte[logSize];
+    }
+
+    // Listen for backups and start replicating the tracker's changes
+    public synchronized void start() throws IOException {
+	if (serverChannel != null) {
+	    throw new IllegalStateException("Primary already started: " + getAddress());
+	}
+	selector = Selector.open();
+	serverChannel = ServerSocketChannel.open();
+	serverChannel.configureBlocking(false);
+	serverChannel.socket().bind(bindAddress);
+	serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	tracker.addListener(this);
+	sender = new Thread(new Runnable() {
+	    public void run() {
+		sendLoop();
+	    }
+	}, "auctioneer-replication");
+	sender.setDaemon(true);
+	sender.start();
+	logger.info("Replication primary listening on " + getAddress() + " in " + commitMode + " mode");
+    }
+
+    // Address backups connect to, with the port picked if it was bound to port zero
+    public InetSocketAddress getAddress() {
+	return (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+    }
+
+    // Sequence of the last change put in the log
+    public synchronized long getSequence() {
+	return this.sequence;
+    }
+
+    // Backups connected and caught up
+    public int getBackupCount() {
+	int count = 0;
+	for (Session session : sessions) {
+	    if (session.isCaughtUp()) {
+		count++;
+	    }
+	}
+	return count;
+    }
+
+    // Changes the slowest caught-up backup has still to acknowledge, 0 if there are no backups
+    public long getReplicationLag() {
+	long current = getSequence();
+	long lag = 0;
+	for (Session session : sessions) {
+	    if (session.isCaughtUp()) {
+		lag = Math.max(lag, current - session.acked);
+	    }
+	}
+	return lag;
+    }
+
+    public void userRegistered(User user) {
+	record(RecordCodec.USER, user, null, null);
+    }
+
+    public void itemRegistered(Item item) {
+	record(RecordCodec.ITEM, null, item, null);
+    }
+
+    public void bidPlaced(Bid bid) {
+	record(RecordCodec.NEW_BID, null, null, bid);
+    }
+
+    public void bidAmended(Bid bid) {
+	record(RecordCodec.AMENDED_BID, null, null, bid);
+    }
+
+    public void closeTimeChanged(Item item) {
+	record(RecordCodec.CLOSE_TIME, null, item, null);
+    }
+
+    public void itemClosed(Item item, Bid winner) {
+	record(RecordCodec.CLOSED, null, item, null);
+    }
+
+    // Stop replicating and disconnect the backups. Changes the tracker accepts from now on are not sent
+    public void close() throws IOException {
+	tracker.removeListener(this);
+	closed = true;
+	synchronized (ackLock) {
+	    ackLock.notifyAll();
+	}
+	if (selector != null) {
+	    selector.wakeup();
+	    try {
+		sender.join();
+	    } catch (InterruptedException ex) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+    }
+
+    private void record(byte type, User user, Item item, Bid bid) {
+	long recorded;
+	synchronized (this) {
+	    if (closed) {
+		return;
+	    }
+	    while (true) {
+		scratch.clear();
+		try {
+		    encode(scratch, type, user, item, bid);
+		    break;
+		} catch (BufferOverflowException ex) {
+		    scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+		}
+	    }
+	    scratch.flip();
+	    recorded = append(scratch, ++sequence);
+	}
+	if (wakeupPending.compareAndSet(false, true)) {
+	    selector.wakeup();
+	}
+	if (commitMode == CommitMode.SYNC) {
+	    awaitAcks(recorded);
+	}
+    }
+
+    private static void encode(ByteBuffer buffer, byte type, User user, Item item, Bid bid) {
+	switch (type) {
+	case RecordCodec.USER:
+	    RecordCodec.writeUser(buffer, user);
+	    break;
+	case RecordCodec.ITEM:
+	    RecordCodec.writeItem(buffer, item);
+	    break;
+	case RecordCodec.NEW_BID:
+	    RecordCodec.writeNewBid(buffer, bid);
+	    break;
+	case RecordCodec.CLOSE_TIME:
+	    RecordCodec.writeCloseTime(buffer, item);
+	    break;
+	case RecordCodec.CLOSED:
+	    RecordCodec.writeClosed(buffer, item);
+	    break;
+	default:
+	    RecordCodec.writeAmendedBid(buffer, bid);
+	}
+    }
+
+    // Put a frame in the log, dropping any backup whose unsent records it would overwrite. Guarded by this
+    private long append(ByteBuffer payload, long frameSequence) {
+	int frameLength = FRAME_HEADER_SIZE + payload.remaining();
+	if (frameLength > log.length) {
+	    throw new ReplicationException("Record of " + payload.remaining() + " bytes does not fit in the replication log");
+	}
+	for (Session session : sessions) {
+	    if (!session.dropped && logHead + frameLength - session.sent > log.length) {
+		session.drop("fell a whole replication log behind");
+	    }
+	}
+	frameHeader.clear();
+	frameHeader.putInt(payload.remaining());
+	frameHeader.putLong(frameSequence);
+	frameHeader.flip();
+	put(frameHeader);
+	put(payload);
+	return frameSequence;
+    }
+
+    private void put(ByteBuffer source) {
+	while (source.hasRemaining()) {
+	    int offset = (int) (logHead % log.length);
+	    int length = Math.min(source.remaining(), log.length - offset);
+	    source.get(log, offset, length);
+	    logHead += length;
+	}
+    }
+
+    // Wait until every caught-up backup has acknowledged a sequence, dropping those that take too long
+    private void awaitAcks(long awaited) {
+	long deadline = System.currentTimeMillis() + syncTimeoutMillis;
+	synchronized (ackLock) {
+	    try {
+		while (!closed) {
+		    Session behind = null;
+		    for (Session session : sessions) {
+			if (session.isCaughtUp() && session.acked < awaited) {
+			    behind = session;
+			    break;
+			}
+		    }
+		    if (behind == null) {
+			return;
+		    }
+		    long wait = deadline - System.currentTimeMillis();
+		    if (wait <= 0) {
+			behind.drop("missed the sync timeout");
+			selector.wakeup();
+		    } else {
+			ackLock.wait(wait);
+		    }
+		}
+	    } catch (InterruptedException ex) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+    }
+
+    private void sendLoop() {
+	long nextHeartbeat = System.currentTimeMillis() + HEARTBEAT_INTERVAL_MILLIS;
+	try {
+	    while (!closed) {
+		selector.select(HEARTBEAT_INTERVAL_MILLIS);
+		wakeupPending.set(false);
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+		    SelectionKey key = keys.next();
+		    keys.remove();
+		    if (!key.isValid()) {
+			continue;
+		    }
+		    if (key.isAcceptable()) {
+			accept();
+		    } else if (key.isReadable()) {
+			readAcks((Session) key.attachment());
+		    }
+		}
+		long now = System.currentTimeMillis();
+		if (now >= nextHeartbeat) {
+		    synchronized (this) {
+			append(NO_PAYLOAD, sequence);
+		    }
+		    nextHeartbeat = now + HEARTBEAT_INTERVAL_MILLIS;
+		}
+		for (Session session : sessions) {
+		    if (!session.dropped) {
+			send(session);
+		    }
+		    if (session.dropped) {
+			disconnect(session);
+		    }
+		}
+	    }
+	} catch (IOException ex) {
+	    logger.error("Replication stopped: " + ex.getMessage(), ex);
+	} finally {
+	    for (Session session : sessions) {
+		disconnect(session);
+	    }
+	    try {
+		serverChannel.close();
+		selector.close();
+	    } catch (IOException ex) {
+		logger.warn("Could not close replication socket: " + ex.getMessage());
+	    }
+	}
+    }
+
+    // Take on a new backup from the current end of the log, and build its copy of the state on another
+    // thread so the others keep streaming
+    private void accept() throws IOException {
+	SocketChannel channel = serverChannel.accept();
+	if (channel == null) {
+	    return;
+	}
+	channel.configureBlocking(false);
+	channel.socket().setTcpNoDelay(true);
+	final Session session = new Session(channel);
+	synchronized (this) {
+	    session.sent = logHead;
+	    session.startSequence = sequence;
+	}
+	session.key = channel.register(selector, SelectionKey.OP_READ, session);
+	sessions.add(session);
+	logger.info("Backup connected from " + channel.socket().getRemoteSocketAddress() + " at sequence " + session.startSequence);
+	Thread builder = new Thread(new Runnable() {
+	    public void run() {
+		try {
+		    session.state = stateRecords(session.startSequence);
+		} catch (RuntimeException ex) {
+		    logger.error("Could not copy state for backup " + session, ex);
+		    session.drop("could not copy the state");
+		}
+		selector.wakeup();
+	    }
+	}, "auctioneer-replication-state");
+	builder.setDaemon(true);
+	builder.start();
+    }
+
+    // The tracker's users, items and bids as frames with sequence zero, ended by a heartbeat at the
+    // sequence the backup joined the log at
+    private List<ByteBuffer> stateRecords(long startSequence) {
+	long started = System.nanoTime();
+	StateWriter writer = new StateWriter();
+	for (User user : tracker.getAllRegisteredUsers()) {
+	    writer.write(RecordCodec.USER, user, null, null);
+	}
+	List<Item> items = new ArrayList<Item>(tracker.getAllRegisteredItems());
+	List<Item> closedItems = new ArrayList<Item>();
+	for (Item item : items) {
+	    writer.write(RecordCodec.ITEM, null, item, null);
+	    if (item.getCloseTime() != Item.NO_CLOSE_TIME) {
+		writer.write(RecordCodec.CLOSE_TIME, null, item, null);
+	    }
+	    if (item.isClosed()) {
+		closedItems.add(item);
+	    }
+	}
+	// Copies, as the bids keep changing while they are sorted and written
+	for (Bid bid : TrackerSnapshot.bidsInUpdateOrder(items)) {
+	    writer.write(RecordCodec.NEW_BID, null, null, bid);
+	}
+	for (Item item : closedItems) {
+	    writer.write(RecordCodec.CLOSED, null, item, null);
+	}
+	writer.heartbeat(startSequence);
+	logger.info("Copied state for a backup in " + (System.nanoTime() - started) / 1000000 + " ms");
+	return writer.chunks;
+    }
+
+    private void readAcks(Session session) {
+	try {
+	    if (session.channel.read(session.acks) < 0) {
+		session.drop("closed the connection");
+		return;
+	    }
+	} catch (IOException ex) {
+	    session.drop(ex.getMessage());
+	    return;
+	}
+	session.acks.flip();
+	while (session.acks.remaining() >= 8) {
+	    session.acked = session.acks.getLong();
+	}
+	session.acks.compact();
+	if (commitMode == CommitMode.SYNC) {
+	    synchronized (ackLock) {
+		ackLock.notifyAll();
+	    }
+	}
+    }
+
+    // Write as much of a backup's state and log as its socket takes
+    private void send(Session session) {
+	try {
+	    while (true) {
+		if (!session.pending.hasRemaining() && !fill(session)) {
+		    session.key.interestOps(SelectionKey.OP_READ);
+		    return;
+		}
+		session.channel.write(session.pending);
+		if (session.pending.hasRemaining()) {
+		    // Socket full, carry on when it drains
+		    session.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		    return;
+		}
+	    }
+	} catch (IOException ex) {
+	    session.drop(ex.getMessage());
+	}
+    }
+
+    // Point a backup's pending bytes at the next part of its state, or copy its next batch from the log.
+    // Returns false if there is nothing to send yet, or the backup has been dropped
+    private boolean fill(Session session) {
+	if (!session.stateSent) {
+	    List<ByteBuffer> state = session.state;
+	    if (state == null) {
+		return false;
+	    }
+	    if (session.stateIndex < state.size()) {
+		session.pending = state.get(session.stateIndex++);
+		return true;
+	    }
+	    session.stateSent = true;
+	    session.state = null;
+	}
+	ByteBuffer buffer = session.buffer;
+	synchronized (this) {
+	    long available = logHead - session.sent;
+	    // append may have dropped the backup and written over its unsent bytes since the caller looked
+	    if (available == 0 || session.dropped || available > log.length) {
+		return false;
+	    }
+	    buffer.clear();
+	    int length = (int) Math.min(available, buffer.capacity());
+	    int offset = (int) (session.sent % log.length);
+	    int first = Math.min(length, log.length - offset);
+	    buffer.put(log, offset, first);
+	    buffer.put(log, 0, length - first);
+	    session.sent += length;
+	}
+	buffer.flip();
+	session.pending = buffer;
+	return true;
+    }
+
+    private void disconnect(Session session) {
+	if (sessions.remove(session)) {
+	    try {
+		session.channel.close();
+	    } catch (IOException ex) {
+		// Going away anyway
+	    }
+	    synchronized (ackLock) {
+		ackLock.notifyAll();
+	    }
+	}
+    }
+
+    // One connected backup. Written by the selector thread, except for dropped and acked
+    private static class Session {
+	final SocketChannel channel;
+	final ByteBuffer buffer = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+	final ByteBuffer acks = ByteBuffer.allocate(64);
+	SelectionKey key;
+	ByteBuffer pending = ByteBuffer.allocate(0);
+	volatile List<ByteBuffer> state;
+	int stateIndex;
+	boolean stateSent;
+	// Guarded by the primary
+	long sent;
+	long startSequence;
+	volatile long acked = -1;
+	volatile boolean dropped;
+
+	Session(SocketChannel channel) {
+	    this.channel = channel;
+	}
+
+	// Backups only acknowledge once they have their copy of the state
+	boolean isCaughtUp() {
+	    return acked >= 0 && !dropped;
+	}
+
+	void drop(String reason) {
+	    if (!dropped) {
+		dropped = true;
+		logger.warn("Dropping backup " + this + ": " + reason);
+	    }
+	}
+
+	public String toString() {
+	    return String.valueOf(channel.socket().getRemoteSocketAddress());
+	}
+    }
+
+    // Frames the state records into chunks, starting a new chunk when one is full
+    private static class StateWriter {
+	final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	ByteBuffer chunk = ByteBuffer.allocate(STATE_CHUNK_SIZE);
+
+	void write(byte type, User user, Item item, Bid bid) {
+	    int start = chunk.position();
+	    try {
+		frame(type, user, item, bid);
+	    } catch (BufferOverflowException ex) {
+		chunk.position(start);
+		next();
+		// A single record is always far smaller than a chunk
+		frame(type, user, item, bid);
+	    }
+	}
+
+	private void frame(byte type, User user, Item item, Bid bid) {
+	    int start = chunk.position();
+	    chunk.putInt(0);
+	    chunk.putLong(0);
+	    encode(chunk, type, user, item, bid);
+	    chunk.putInt(start, chunk.position() - start - FRAME_HEADER_SIZE);
+	}
+
+	void heartbeat(long heartbeatSequence) {
+	    if (chunk.remaining() < FRAME_HEADER_SIZE) {
+		next();
+	    }
+	    chunk.putInt(0);
+	    chunk.putLong(heartbeatSequence);
+	    chunk.flip();
+	    chunks.add(chunk);
+	}
+
+	private void next() {
+	    chunk.flip();
+	    chunks.add(chunk);
+	    chunk = ByteBuffer.allocate(STATE_CHUNK_SIZE);
+	}
+    }
+}
@@ -0,0 +1,326 @@
+package com.luhar.auctioneer.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+// Talks to a BidServer over one connection. The submit methods send a request and return at once, so any
+// number can be in flight; the blocking methods wait for their answer. Requests sent while the writer
+// thread is busy go out together in its next write, and a reader thread completes the futures as the
+// responses arrive.
+//
+// Bids that come back are built on the Item, and for winning bids the User, the caller knows: a winning bid
+// by a user this client never registered comes back with a User made from the server's record
+public class BidClient implements Closeable {
+    private static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    private final SocketChannel channel;
+    private final ConcurrentHashMap<UUID, User> users = new ConcurrentHashMap<UUID, User>();
+    // Requests are written here under the client's lock, and swapped with the writer's buffer to send
+    private ByteBuffer out = ByteBuffer.allocateDirect(4 * WireProtocol.MAX_MESSAGE_SIZE);
+    private ByteBuffer sending = ByteBuffer.allocateDirect(4 * WireProtocol.MAX_MESSAGE_SIZE);
+    private final ByteBuffer in = ByteBuffer.allocateDirect(4 * WireProtocol.MAX_MESSAGE_SIZE);
+    // Requests sent and not yet answered, in the order they were sent
+    private final ArrayDeque<Request<?>> pending = new ArrayDeque<Request<?>>();
+    private final Thread writer;
+    private final Thread reader;
+    private int nextRequestID;
+    private volatile Throwable failure;
+
+    public BidClient(InetSocketAddress address) throws IOException {
+	channel = SocketChannel.open(address);
+	channel.socket().setTcpNoDelay(true);
+	writer = new Thread(new Runnable() {
+	    public void run() {
+		writeLoop();
+	    }
+	}, "auctioneer-client-writer");
+	reader = new Thread(new Runnable() {
+	    public void run() {
+		readLoop();
+	    }
+	}, "auctioneer-client-reader");
+	writer.setDaemon(true);
+	reader.setDaemon(true);
+	writer.start();
+	reader.start();
+    }
+
+    public ListenableFuture<Boolean> submitUser(final User user) {
+	users.put(user.getID(), user);
+	return send(new Request<Boolean>(WireProtocol.REGISTER_USER) {
+	    void write(ByteBuffer buffer) {
+		WireProtocol.writeUUID(buffer, user.getID());
+		WireProtocol.writeString(buffer, user.getName());
+	    }
+
+	    Boolean read(ByteBuffer buffer) {
+		return buffer.get() != 0;
+	    }
+	});
+    }
+
+    public ListenableFuture<Boolean> submitItem(final Item item) {
+	WireProtocol.checkDecimal(item.getReserveAmount());
+	return send(new Request<Boolean>(WireProtocol.REGISTER_ITEM) {
+	    void write(ByteBuffer buffer) {
+		WireProtocol.writeUUID(buffer, item.getID());
+		WireProtocol.writeString(buffer, item.getItemName());
+		WireProtocol.writeString(buffer, item.getDescription());
+		WireProtocol.writeDecimal(buffer, item.getReserveAmount());
+		buffer.put((byte) (item.getPriceScale() == null ? -1 : item.getPriceScale().getScale()));
+	    }
+
+	    Boolean read(ByteBuffer buffer) {
+		return buffer.get() != 0;
+	    }
+	});
+    }
+
+    // The future yields the new or amended Bid, or null if the server rejected it
+    public ListenableFuture<Bid> submitBid(final Item item, final User user, final BigDecimal amount) {
+	WireProtocol.checkDecimal(amount);
+	return send(new Request<Bid>(WireProtocol.REGISTER_BID) {
+	    void write(ByteBuffer buffer) {
+		WireProtocol.writeUUID(buffer, item.getID());
+		WireProtocol.writeUUID(buffer, user.getID());
+		WireProtocol.writeDecimal(buffer, amount);
+	    }
+
+	    Bid read(ByteBuffer buffer) {
+		if (buffer.get() == 0) {
+		    return null;
+		}
+		UUID id = WireProtocol.readUUID(buffer);
+		long lastUpdated = buffer.getLong();
+		return new Bid(id, item, user, WireProtocol.readDecimal(buffer), lastUpdated);
+	    }
+	});
+    }
+
+    // Answered after the bids on the item sent before it have been applied
+    public ListenableFuture<Bid> submitWinningBid(final Item item) {
+	return send(new Request<Bid>(WireProtocol.GET_WINNING_BID) {
+	    void write(ByteBuffer buffer) {
+		WireProtocol.writeUUID(buffer, item.getID());
+	    }
+
+	    Bid read(ByteBuffer buffer) {
+		if (buffer.get() == 0) {
+		    return null;
+		}
+		UUID id = WireProtocol.readUUID(buffer);
+		UUID userID = WireProtocol.readUUID(buffer);
+		String userName = WireProtocol.readString(buffer);
+		long lastUpdated = buffer.getLong();
+		BigDecimal amount = WireProtocol.readDecimal(buffer);
+		User user = users.get(userID);
+		return new Bid(id, item, user == null ? new User(userID, userName) : user, amount, lastUpdated);
+	    }
+	});
+    }
+
+    public boolean registerUser(User user) {
+	return get(submitUser(user));
+    }
+
+    public boolean registerItem(Item item) {
+	return get(submitItem(item));
+    }
+
+    public Bid registerBid(Item item, User user, BigDecimal amount) {
+	return get(submitBid(item, user, amount));
+    }
+
+    public Bid getWinningBid(Item item) {
+	return get(submitWinningBid(item));
+    }
+
+    // Close the connection. Requests still waiting for an answer fail
+    public void close() {
+	fail(new BidServerException("Client closed"));
+	try {
+	    writer.join();
+	    reader.join();
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    private static <T> T get(ListenableFuture<T> future) {
+	try {
+	    return Futures.getUnchecked(future);
+	} catch (UncheckedExecutionException ex) {
+	    if (ex.getCause() instanceof RuntimeException) {
+		throw (RuntimeException) ex.getCause();
+	    }
+	    throw ex;
+	}
+    }
+
+    private synchronized <T> ListenableFuture<T> send(Request<T> request) {
+	if (failure != null) {
+	    request.future.setException(failure);
+	    return request.future;
+	}
+	while (out.remaining() < WireProtocol.MAX_MESSAGE_SIZE) {
+	    // The writer has fallen behind
+	    try {
+		wait();
+	    } catch (InterruptedException ex) {
+		Thread.currentThread().interrupt();
+		throw new BidServerException("Interrupted waiting to send", ex);
+	    }
+	    if (failure != null) {
+		request.future.setException(failure);
+		return request.future;
+	    }
+	}
+	request.id = nextRequestID++;
+	int start = WireProtocol.startMessage(out, request.id, request.op);
+	try {
+	    request.write(out);
+	    if (out.position() - start > WireProtocol.MAX_MESSAGE_SIZE) {
+		throw new IllegalArgumentException("Request too large to send: " + (out.position() - start) + " bytes");
+	    }
+	} catch (RuntimeException ex) {
+	    // Take the part written back out, so the requests around it still go through
+	    out.position(start);
+	    request.future.setException(ex);
+	    return request.future;
+	}
+	WireProtocol.endMessage(out, start);
+	pending.add(request);
+	notifyAll();
+	return request.future;
+    }
+
+    private void writeLoop() {
+	try {
+	    while (true) {
+		synchronized (this) {
+		    while (out.position() == 0 && failure == null) {
+			wait();
+		    }
+		    if (failure != null) {
+			return;
+		    }
+		    // Take everything sent so far, and leave the empty buffer for the next requests
+		    ByteBuffer full = out;
+		    out = sending;
+		    sending = full;
+		    notifyAll();
+		}
+		sending.flip();
+		while (sending.hasRemaining()) {
+		    channel.write(sending);
+		}
+		sending.clear();
+	    }
+	} catch (IOException ex) {
+	    fail(ex);
+	} catch (InterruptedException ex) {
+	    fail(ex);
+	}
+    }
+
+    private void readLoop() {
+	try {
+	    while (true) {
+		if (channel.read(in) < 0) {
+		    throw new IOException("Server closed the connection");
+		}
+		in.flip();
+		int length;
+		while ((length = WireProtocol.messageLength(in)) > 0) {
+		    int end = in.position() + length;
+		    in.position(in.position() + 4);
+		    complete(in);
+		    in.position(end);
+		}
+		in.compact();
+	    }
+	} catch (IOException ex) {
+	    fail(ex);
+	} catch (RuntimeException ex) {
+	    fail(ex);
+	}
+    }
+
+    private void complete(ByteBuffer buffer) {
+	int requestID = buffer.getInt();
+	byte status = buffer.get();
+	Request<?> request;
+	synchronized (this) {
+	    request = pending.poll();
+	}
+	if (request == null || request.id != requestID) {
+	    throw new BidServerException("Response to request " + requestID + " out of order");
+	}
+	if (status == WireProtocol.OK) {
+	    request.complete(buffer);
+	} else {
+	    request.future.setException(new BidServerException(WireProtocol.readString(buffer)));
+	}
+    }
+
+    // Fail every request waiting for an answer, and any sent after
+    private void fail(Throwable cause) {
+	ArrayDeque<Request<?>> failed;
+	synchronized (this) {
+	    if (failure != null) {
+		return;
+	    }
+	    failure = cause instanceof BidServerException ? cause : new BidServerException("Connection failed: " + cause.getMessage(), cause);
+	    failed = new ArrayDeque<Request<?>>(pending);
+	    pending.clear();
+	    notifyAll();
+	}
+	if (!(cause instanceof BidServerException)) {
+	    logger.warn("Bid client connection failed: " + cause.getMessage());
+	}
+	try {
+	    channel.close();
+	} catch (IOException ex) {
+	    // Already failing
+	}
+	for (Request<?> request : failed) {
+	    request.future.setException(failure);
+	}
+    }
+
+    private abstract static class Request<T> {
+	final byte op;
+	final SettableFuture<T> future = SettableFuture.create();
+	int id;
+
+	Request(byte op) {
+	    this.op = op;
+	}
+
+	abstract void write(ByteBuffer buffer);
+
+	abstract T read(ByteBuffer buffer);
+
+	void complete(ByteBuffer buffer) {
+	    future.set(read(buffer));
+	}
+    }
+}
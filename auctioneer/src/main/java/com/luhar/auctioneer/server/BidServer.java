@@ -0,0 +1,476 @@
+package com.luhar.auctioneer.server;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.impl.ShardedBidTracker;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+// Serves a BidTrackerImpl to BidClients over TCP, see WireProtocol. A few event loops each own a selector
+// and their share of the connections. A loop reads whatever requests have arrived on a connection, hands
+// bids and winning bid reads to the item's shard of a ShardedBidTracker without waiting, and writes the
+// responses that are ready in one go, in request order, each time round. Each connection reads into and
+// writes from its own buffers for as long as it is open.
+//
+// Bids and reads of one item run in the order they arrived, as they queue on the same shard. Registrations
+// are done before the loop reads on, so requests after them find the new user or item. A connection with
+// too many responses outstanding is not read until some have been written
+public class BidServer {
+    private static final Logger logger = Logger.getLogger(BidTracker.class);
+    static final int MAX_PENDING = 4096;
+
+    private final BidTrackerImpl tracker;
+    private final ShardedBidTracker sharded;
+    private final InetSocketAddress bindAddress;
+    private final EventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private int nextLoop;
+    private volatile boolean closed;
+
+    // Server on the loopback interface. Port zero picks a free one
+    public BidServer(int port) {
+	this(new BidTrackerImpl(), Runtime.getRuntime().availableProcessors(), new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1);
+    }
+
+    public BidServer(BidTrackerImpl tracker, int shardCount, InetSocketAddress bindAddress, int loopCount) {
+	if (loopCount < 1) {
+	    throw new IllegalArgumentException("Loop count must be positive: " + loopCount);
+	}
+	this.tracker = tracker;
+	this.sharded = new ShardedBidTracker(tracker, shardCount);
+	this.bindAddress = bindAddress;
+	this.loops = new EventLoop[loopCount];
+    }
+
+    public synchronized void start() throws IOException {
+	if (serverChannel != null) {
+	    throw new IllegalStateException("Server already started: " + getAddress());
+	}
+	serverChannel = ServerSocketChannel.open();
+	serverChannel.configureBlocking(false);
+	serverChannel.socket().bind(bindAddress);
+	for (int i = 0; i < loops.length; i++) {
+	    loops[i] = new EventLoop(i);
+	}
+	// The first loop takes new connections as well
+	serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+	for (EventLoop loop : loops) {
+	    loop.thread.start();
+	}
+	logger.info("Bid server listening on " + getAddress() + " with " + loops.length + " event loops");
+    }
+
+    // Address the server listens on, with the port picked if it was started on port zero
+    public InetSocketAddress getAddress() {
+	return (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+    }
+
+    public BidTrackerImpl getTracker() {
+	return tracker;
+    }
+
+    // Stop listening, close the connections and wait for queued work to finish
+    public void shutdown() {
+	closed = true;
+	for (EventLoop loop : loops) {
+	    if (loop != null) {
+		loop.selector.wakeup();
+		try {
+		    loop.thread.join();
+		} catch (InterruptedException ex) {
+		    Thread.currentThread().interrupt();
+		}
+	    }
+	}
+	try {
+	    if (serverChannel != null) {
+		serverChannel.close();
+	    }
+	} catch (IOException ex) {
+	    logger.warn("Could not close server socket: " + ex.getMessage());
+	}
+	sharded.shutdown();
+    }
+
+    private void accept() throws IOException {
+	SocketChannel channel;
+	while ((channel = serverChannel.accept()) != null) {
+	    channel.configureBlocking(false);
+	    channel.socket().setTcpNoDelay(true);
+	    EventLoop loop = loops[nextLoop++ % loops.length];
+	    loop.added.add(channel);
+	    loop.wakeup();
+	}
+    }
+
+    // Decode one request and start it. Results that are known at once are done here
+    private void dispatch(Connection connection, ByteBuffer in) {
+	int requestID = in.getInt();
+	byte op = in.get();
+	Pending pending = new Pending(requestID, op);
+	connection.pending.add(pending);
+	try {
+	    switch (op) {
+	    case WireProtocol.REGISTER_USER: {
+		User user = new User(WireProtocol.readUUID(in), WireProtocol.readString(in));
+		pending.complete(sharded.registerUser(user));
+		break;
+	    }
+	    case WireProtocol.REGISTER_ITEM: {
+		UUID id = WireProtocol.readUUID(in);
+		String name = WireProtocol.readString(in);
+		String description = WireProtocol.readString(in);
+		BigDecimal reserveAmount = WireProtocol.readDecimal(in);
+		byte scale = in.get();
+		Item item = new Item(id, name, description, reserveAmount, scale < 0 ? null : new PriceScale(scale));
+		pending.complete(sharded.registerItem(item));
+		break;
+	    }
+	    case WireProtocol.REGISTER_BID: {
+		Item item = tracker.getItem(WireProtocol.readUUID(in));
+		User user = tracker.getUser(WireProtocol.readUUID(in));
+		BigDecimal amount = WireProtocol.readDecimal(in);
+		if (item == null || user == null) {
+		    pending.complete(null);
+		} else {
+		    pending.await(sharded.submitBid(item, user, amount), connection);
+		}
+		break;
+	    }
+	    case WireProtocol.GET_WINNING_BID: {
+		Item item = tracker.getItem(WireProtocol.readUUID(in));
+		if (item == null) {
+		    pending.complete(null);
+		} else {
+		    pending.await(sharded.submitWinningBid(item), connection);
+		}
+		break;
+	    }
+	    default:
+		throw new BidServerException("Unknown request: " + op);
+	    }
+	} catch (BufferUnderflowException ex) {
+	    pending.fail(new BidServerException("Request " + requestID + " is too short for its arguments"));
+	} catch (RuntimeException ex) {
+	    pending.fail(ex);
+	}
+    }
+
+    // Write the response to a finished request
+    private static void encode(ByteBuffer out, Pending pending) {
+	int start;
+	if (pending.failure != null) {
+	    start = WireProtocol.startMessage(out, pending.requestID, WireProtocol.ERROR);
+	    WireProtocol.writeString(out, String.valueOf(pending.failure.getMessage()));
+	    WireProtocol.endMessage(out, start);
+	    return;
+	}
+	start = WireProtocol.startMessage(out, pending.requestID, WireProtocol.OK);
+	switch (pending.op) {
+	case WireProtocol.REGISTER_USER:
+	case WireProtocol.REGISTER_ITEM:
+	    out.put((byte) (Boolean.TRUE.equals(pending.result) ? 1 : 0));
+	    break;
+	case WireProtocol.REGISTER_BID: {
+	    Bid bid = (Bid) pending.result;
+	    out.put((byte) (bid == null ? 0 : 1));
+	    if (bid != null) {
+		WireProtocol.writeUUID(out, bid.getID());
+		out.putLong(bid.getLastUpdateTime());
+		WireProtocol.writeDecimal(out, bid.getBidAmount());
+	    }
+	    break;
+	}
+	default: {
+	    Bid bid = (Bid) pending.result;
+	    out.put((byte) (bid == null ? 0 : 1));
+	    if (bid != null) {
+		WireProtocol.writeUUID(out, bid.getID());
+		WireProtocol.writeUUID(out, bid.getUser().getID());
+		WireProtocol.writeString(out, bid.getUser().getName());
+		out.putLong(bid.getLastUpdateTime());
+		WireProtocol.writeDecimal(out, bid.getBidAmount());
+	    }
+	}
+	}
+	WireProtocol.endMessage(out, start);
+    }
+
+    // A request and, once it is done, its result
+    private static class Pending {
+	final int requestID;
+	final byte op;
+	ListenableFuture<?> future;
+	volatile boolean done;
+	Object result;
+	Throwable failure;
+
+	Pending(int requestID, byte op) {
+	    this.requestID = requestID;
+	    this.op = op;
+	}
+
+	void complete(Object value) {
+	    result = value;
+	    done = true;
+	}
+
+	void fail(Throwable cause) {
+	    failure = cause;
+	    done = true;
+	}
+
+	void await(ListenableFuture<?> work, Connection connection) {
+	    future = work;
+	    work.addListener(connection.ready, MoreExecutors.sameThreadExecutor());
+	}
+
+	// Whether the result is in. Called on the loop thread, which takes the result from the future
+	boolean isDone() {
+	    if (done) {
+		return true;
+	    }
+	    if (!future.isDone()) {
+		return false;
+	    }
+	    try {
+		complete(future.get());
+	    } catch (ExecutionException ex) {
+		fail(ex.getCause());
+	    } catch (InterruptedException ex) {
+		Thread.currentThread().interrupt();
+		fail(ex);
+	    }
+	    return true;
+	}
+    }
+
+    private class Connection {
+	final SocketChannel channel;
+	final EventLoop loop;
+	final ByteBuffer in = ByteBuffer.allocateDirect(WireProtocol.MAX_MESSAGE_SIZE);
+	final ByteBuffer out = ByteBuffer.allocateDirect(4 * WireProtocol.MAX_MESSAGE_SIZE);
+	final ArrayDeque<Pending> pending = new ArrayDeque<Pending>();
+	// Set while the connection is in its loop's ready queue
+	final AtomicBoolean queued = new AtomicBoolean();
+	// Run by shards as requests finish, to have the loop write their responses
+	final Runnable ready = new Runnable() {
+	    public void run() {
+		if (queued.compareAndSet(false, true)) {
+		    loop.ready.add(Connection.this);
+		    loop.wakeup();
+		}
+	    }
+	};
+	SelectionKey key;
+
+	Connection(SocketChannel channel, EventLoop loop) {
+	    this.channel = channel;
+	    this.loop = loop;
+	}
+
+	void read() throws IOException {
+	    if (channel.read(in) < 0) {
+		close();
+		return;
+	    }
+	    in.flip();
+	    int length;
+	    while (pending.size() < MAX_PENDING && (length = WireProtocol.messageLength(in)) > 0) {
+		dispatchNext(length);
+	    }
+	    in.compact();
+	    write();
+	}
+
+	// Write the responses that are ready, in request order, and read again once few enough are waiting
+	void write() throws IOException {
+	    while (true) {
+		while (!pending.isEmpty() && out.remaining() >= WireProtocol.MAX_MESSAGE_SIZE && pending.peek().isDone()) {
+		    encode(out, pending.poll());
+		}
+		out.flip();
+		channel.write(out);
+		boolean full = out.hasRemaining();
+		out.compact();
+		if (full || pending.isEmpty() || !pending.peek().isDone()) {
+		    int ops = (full ? SelectionKey.OP_WRITE : 0) | (pending.size() < MAX_PENDING ? SelectionKey.OP_READ : 0);
+		    key.interestOps(ops);
+		    if (!full && in.position() > 0 && pending.size() < MAX_PENDING) {
+			// Requests held back while too many were waiting
+			readBuffered();
+		    }
+		    return;
+		}
+	    }
+	}
+
+	// Start the request at the buffer's position. Decoding stops at the end of the message, so a short one
+	// fails rather than reading the next
+	private void dispatchNext(int length) {
+	    int end = in.position() + length;
+	    int limit = in.limit();
+	    in.position(in.position() + 4);
+	    in.limit(end);
+	    dispatch(this, in);
+	    in.limit(limit);
+	    in.position(end);
+	}
+
+	// Start requests already read while the connection was held back
+	private void readBuffered() throws IOException {
+	    in.flip();
+	    int length;
+	    boolean started = false;
+	    while (pending.size() < MAX_PENDING && (length = WireProtocol.messageLength(in)) > 0) {
+		dispatchNext(length);
+		started = true;
+	    }
+	    in.compact();
+	    if (started) {
+		write();
+	    }
+	}
+
+	void close() {
+	    key.cancel();
+	    try {
+		channel.close();
+	    } catch (IOException ex) {
+		// Going away anyway
+	    }
+	}
+    }
+
+    private class EventLoop {
+	final Selector selector;
+	final Thread thread;
+	final ConcurrentLinkedQueue<SocketChannel> added = new ConcurrentLinkedQueue<SocketChannel>();
+	final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<Connection>();
+	// Set while a wakeup is on its way, so a burst of finished requests wakes the loop once
+	final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+	EventLoop(int index) throws IOException {
+	    this.selector = Selector.open();
+	    this.thread = new Thread(new Runnable() {
+		public void run() {
+		    loop();
+		}
+	    }, "auctioneer-server-" + index);
+	    thread.setDaemon(true);
+	}
+
+	void wakeup() {
+	    if (wakeupPending.compareAndSet(false, true)) {
+		selector.wakeup();
+	    }
+	}
+
+	void loop() {
+	    try {
+		while (!closed) {
+		    selector.select();
+		    wakeupPending.set(false);
+		    SocketChannel channel;
+		    while ((channel = added.poll()) != null) {
+			Connection connection = new Connection(channel, this);
+			connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+		    }
+		    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		    while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			if (!key.isValid()) {
+			    continue;
+			}
+			if (key.isAcceptable()) {
+			    accept();
+			    continue;
+			}
+			Connection connection = (Connection) key.attachment();
+			try {
+			    if (key.isReadable()) {
+				connection.read();
+			    } else if (key.isWritable()) {
+				connection.write();
+			    }
+			} catch (IOException ex) {
+			    logger.info("Closing connection " + connection.channel.socket().getRemoteSocketAddress() + ": " + ex.getMessage());
+			    connection.close();
+			} catch (BidServerException ex) {
+			    logger.warn("Closing connection " + connection.channel.socket().getRemoteSocketAddress() + ": " + ex.getMessage());
+			    connection.close();
+			}
+		    }
+		    Connection connection;
+		    while ((connection = ready.poll()) != null) {
+			connection.queued.set(false);
+			if (connection.key.isValid()) {
+			    try {
+				connection.write();
+			    } catch (IOException ex) {
+				connection.close();
+			    }
+			}
+		    }
+		}
+	    } catch (IOException ex) {
+		logger.error("Bid server event loop stopped: " + ex.getMessage(), ex);
+	    } finally {
+		for (SelectionKey key : selector.keys()) {
+		    if (key.attachment() instanceof Connection) {
+			((Connection) key.attachment()).close();
+		    }
+		}
+		try {
+		    selector.close();
+		} catch (IOException ex) {
+		    // Nothing more to do
+		}
+	    }
+	}
+    }
+
+    public static void main(String[] args) throws IOException {
+	BasicConfigurator.configure();
+	Logger.getRootLogger().setLevel(Level.WARN);
+	int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+	int shardCount = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+	int loopCount = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+	// Only this machine can connect unless a host to listen on is given
+	InetSocketAddress address = args.length > 3 ? new InetSocketAddress(args[3], port)
+		: new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+	BidServer server = new BidServer(new BidTrackerImpl(), shardCount, address, loopCount);
+	server.start();
+	System.out.println("Bid server listening on port " + server.getAddress().getPort());
+	System.out.flush();
+	while (System.in.read() >= 0) {
+	}
+	server.shutdown();
+    }
+}
@@ -0,0 +1,14 @@
+package com.luhar.auctioneer.server;
+
+// Unchecked failure reported by a BidServer, or of the connection to one
+public class BidServerException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public BidServerException(String message) {
+	super(message);
+    }
+
+    public BidServerException(String message, Throwable cause) {
+	super(message, cause);
+    }
+}
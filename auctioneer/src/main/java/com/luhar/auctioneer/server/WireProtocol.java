@@ -0,0 +1,100 @@
+package com.luhar.auctioneer.server;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+// Binary messages between a BidClient and a BidServer. A request is [int length][int request ID][byte op]
+// and its arguments, the length counting everything after itself. Its response is [int length][int request
+// ID][byte status] and the result for OK or a message for ERROR. Responses on a connection come back in
+// the order of its requests, so a client can send many before reading any. IDs go as two longs, strings as
+// a short length and UTF-8, and amounts as a byte scale and a long unscaled value
+final class WireProtocol {
+    static final byte REGISTER_USER = 1;
+    static final byte REGISTER_ITEM = 2;
+    static final byte REGISTER_BID = 3;
+    static final byte GET_WINNING_BID = 4;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    // Room for the length, request ID and op or status
+    static final int HEADER_SIZE = 9;
+    // Largest message either side sends, so the other can keep one in its buffer
+    static final int MAX_MESSAGE_SIZE = 64 * 1024;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final BigInteger MIN_LONG = BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger MAX_LONG = BigInteger.valueOf(Long.MAX_VALUE);
+
+    private WireProtocol() {
+    }
+
+    // Start a message: its length goes in by endMessage once the body is written
+    static int startMessage(ByteBuffer buffer, int requestID, byte code) {
+	int start = buffer.position();
+	buffer.putInt(0);
+	buffer.putInt(requestID);
+	buffer.put(code);
+	return start;
+    }
+
+    static void endMessage(ByteBuffer buffer, int start) {
+	buffer.putInt(start, buffer.position() - start - 4);
+    }
+
+    // Length of the whole message at the buffer's position, or 0 if it has not all arrived
+    static int messageLength(ByteBuffer buffer) {
+	if (buffer.remaining() < 4) {
+	    return 0;
+	}
+	int length = buffer.getInt(buffer.position());
+	if (length < HEADER_SIZE - 4 || length + 4 > MAX_MESSAGE_SIZE) {
+	    throw new BidServerException("Bad message length: " + length);
+	}
+	return buffer.remaining() < length + 4 ? 0 : length + 4;
+    }
+
+    static void writeUUID(ByteBuffer buffer, UUID id) {
+	buffer.putLong(id.getMostSignificantBits());
+	buffer.putLong(id.getLeastSignificantBits());
+    }
+
+    static UUID readUUID(ByteBuffer buffer) {
+	return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    static void writeString(ByteBuffer buffer, String value) {
+	byte[] bytes = value.getBytes(UTF_8);
+	if (bytes.length > Short.MAX_VALUE) {
+	    throw new IllegalArgumentException("String too long to send: " + bytes.length + " bytes");
+	}
+	buffer.putShort((short) bytes.length);
+	buffer.put(bytes);
+    }
+
+    static String readString(ByteBuffer buffer) {
+	byte[] bytes = new byte[buffer.getShort()];
+	buffer.get(bytes);
+	return new String(bytes, UTF_8);
+    }
+
+    // Amounts are checked before the request is made, so a bad amount fails the call itself
+    static void checkDecimal(BigDecimal value) {
+	BigInteger unscaled = value.unscaledValue();
+	if (value.scale() < Byte.MIN_VALUE || value.scale() > Byte.MAX_VALUE || unscaled.compareTo(MIN_LONG) < 0 || unscaled.compareTo(MAX_LONG) > 0) {
+	    throw new IllegalArgumentException("Amount too large to send: " + value.toPlainString());
+	}
+    }
+
+    static void writeDecimal(ByteBuffer buffer, BigDecimal value) {
+	buffer.put((byte) value.scale());
+	buffer.putLong(value.unscaledValue().longValue());
+    }
+
+    static BigDecimal readDecimal(ByteBuffer buffer) {
+	byte scale = buffer.get();
+	return BigDecimal.valueOf(buffer.getLong(), scale);
+    }
+}
@@ -0,0 +1,8 @@
+package com.luhar.auctioneer.utils;
+
+// Source of the times stamped on bids and audit events. Only used for the timestamps themselves, the order
+// of bids does not depend on it
+public interface Clock {
+
+    public long currentTimeMillis();
+}
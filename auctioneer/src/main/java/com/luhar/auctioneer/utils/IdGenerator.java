@@ -0,0 +1,10 @@
+package com.luhar.auctioneer.utils;
+
+import java.util.UUID;
+
+// Source of IDs for new users, items and bids. Implementations must be safe to call from any thread and
+// must never hand out the same ID twice
+public interface IdGenerator {
+
+    public UUID nextID();
+}
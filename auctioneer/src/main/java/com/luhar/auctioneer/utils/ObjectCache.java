@@ -1,30 +1,309 @@
 package com.luhar.auctioneer.utils;
 
+import java.io.IOException;
 import java.util.Collection;
-import java.util.Map;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Collections2;
 import com.luhar.auctioneer.model.AuctioneerObject;
+import com.luhar.auctioneer.model.BidTracker;
 
-// Simple object cache for storing Auctioneer items
+// Simple object cache for storing Auctioneer items. Unbounded by default. Given a bound on the number of
+// entries or on their total weight, it evicts entries that have not been used lately, picked by a CLOCK
+// sweep: every read marks its entry, and the sweep passes over marked entries once, clearing the mark, before
+// it takes one. With an ObjectStore evicted entries are written to the store before they leave memory and
+// read back into the cache when asked for again, so an entry is always in one or the other. An entry evicted
+// without a store is gone.
+// A reloaded entry is a new object. Only bound caches whose cold entries are no longer being changed, and
+// say which entries those are with setEvictable
 public class ObjectCache<T extends AuctioneerObject> {
-    private final Map<UUID, T> cache = new ConcurrentHashMap<UUID, T>();
-    
+    private static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    // Weight of an entry against the cache's maximum weight, taken when the entry goes in
+    public interface Weigher<T> {
+	public int weigh(T object);
+    }
+
+    // Counts since the cache was made
+    public static final class Stats {
+	private final long hitCount;
+	private final long missCount;
+	private final long loadCount;
+	private final long evictionCount;
+	private final long size;
+	private final long weight;
+
+	Stats(long hitCount, long missCount, long loadCount, long evictionCount, long size, long weight) {
+	    this.hitCount = hitCount;
+	    this.missCount = missCount;
+	    this.loadCount = loadCount;
+	    this.evictionCount = evictionCount;
+	    this.size = size;
+	    this.weight = weight;
+	}
+
+	// Lookups found in memory
+	public long getHitCount() {
+	    return hitCount;
+	}
+
+	// Lookups not found in memory, whether or not the store had them
+	public long getMissCount() {
+	    return missCount;
+	}
+
+	// Misses read back from the store
+	public long getLoadCount() {
+	    return loadCount;
+	}
+
+	public long getEvictionCount() {
+	    return evictionCount;
+	}
+
+	// Entries in memory
+	public long getSize() {
+	    return size;
+	}
+
+	public long getWeight() {
+	    return weight;
+	}
+
+	public double getHitRate() {
+	    long lookups = hitCount + missCount;
+	    return lookups == 0 ? 1.0 : (double) hitCount / lookups;
+	}
+
+	public String toString() {
+	    return "hits: " + hitCount + " misses: " + missCount + " loads: " + loadCount + " evictions: "
+		    + evictionCount + " size: " + size + " weight: " + weight;
+	}
+    }
+
+    static final class Entry<T> {
+	final T value;
+	final int weight;
+	// Set by reads, cleared by the eviction sweep
+	volatile boolean referenced;
+
+	Entry(T value, int weight) {
+	    this.value = value;
+	    this.weight = weight;
+	}
+    }
+
+    private final ConcurrentHashMap<UUID, Entry<T>> cache = new ConcurrentHashMap<UUID, Entry<T>>();
+    // Long.MAX_VALUE when unbounded
+    private final long maximumWeight;
+    private final Weigher<? super T> weigher;
+    private final ObjectStore<T> store;
+    private volatile Predicate<? super T> evictable = Predicates.alwaysTrue();
+    private final AtomicLong weight = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    // Clock hand, only used while holding the cache's lock
+    private Iterator<Entry<T>> hand;
+    private final Function<Entry<T>, T> entryValue = new Function<Entry<T>, T>() {
+	public T apply(Entry<T> entry) {
+	    return entry.value;
+	}
+    };
+
+    public ObjectCache() {
+	this(Long.MAX_VALUE, null, null);
+    }
+
+    // At most maximumSize entries in memory. Evicted entries are dropped
+    public ObjectCache(long maximumSize) {
+	this(maximumSize, null, null);
+    }
+
+    // At most maximumSize entries in memory, the rest in the store
+    public ObjectCache(long maximumSize, ObjectStore<T> store) {
+	this(maximumSize, null, store);
+    }
+
+    // Entries in memory weigh at most maximumWeight together. The store may be null
+    public ObjectCache(long maximumWeight, Weigher<? super T> weigher, ObjectStore<T> store) {
+	if (maximumWeight < 0) {
+	    throw new IllegalArgumentException("Maximum weight must not be negative: " + maximumWeight);
+	}
+	this.maximumWeight = maximumWeight;
+	this.weigher = weigher;
+	this.store = store;
+    }
+
+    // Only entries the predicate accepts leave memory, whether by the bound or evictItem. Others stay, over
+    // the bound if need be. Every entry can go until this is called
+    public void setEvictable(Predicate<? super T> evictable) {
+	this.evictable = evictable;
+    }
+
     public void addItem(T item) {
-	cache.put(item.getID(), item);
+	Entry<T> entry = new Entry<T>(item, weigh(item));
+	Entry<T> previous = cache.put(item.getID(), entry);
+	weight.addAndGet(entry.weight - (previous == null ? 0 : previous.weight));
+	evictIfNeeded();
+    }
+
+    // Add an entry unless one with its ID is already in memory or in the store, checking and adding in one
+    // step so callers on several threads cannot both add the same ID. Returns false if there was one
+    public boolean addIfAbsent(T item) {
+	if (store != null && getItem(item.getID()) != null) {
+	    return false;
+	}
+	Entry<T> entry = new Entry<T>(item, weigh(item));
+	if (cache.putIfAbsent(item.getID(), entry) != null) {
+	    return false;
+	}
+	weight.addAndGet(entry.weight);
+	evictIfNeeded();
+	return true;
     }
-    
+
     public T getItem(UUID itemID) {
-	return cache.get(itemID);
+	Entry<T> entry = cache.get(itemID);
+	if (entry != null) {
+	    hits.increment();
+	    if (maximumWeight != Long.MAX_VALUE && !entry.referenced) {
+		entry.referenced = true;
+	    }
+	    return entry.value;
+	}
+	misses.increment();
+	return store == null ? null : load(itemID);
     }
-    
+
     public boolean containsItem(T item) {
 	return !(getItem(item.getID()) == null);
     }
-    
+
+    // Drop an entry from memory and from the store
+    public T removeItem(UUID itemID) {
+	Entry<T> entry = cache.remove(itemID);
+	if (entry != null) {
+	    weight.addAndGet(-entry.weight);
+	}
+	if (store != null) {
+	    try {
+		store.delete(itemID);
+	    } catch (IOException ex) {
+		throw new IllegalStateException("Could not delete from store: " + itemID, ex);
+	    }
+	}
+	return entry == null ? null : entry.value;
+    }
+
+    // Move an entry to the store straight away, whatever the bound. Returns false if there is no store, the
+    // entry is not in memory or it cannot be evicted
+    public boolean evictItem(UUID itemID) {
+	if (store == null) {
+	    return false;
+	}
+	synchronized (this) {
+	    Entry<T> entry = cache.get(itemID);
+	    return entry != null && evict(itemID, entry);
+	}
+    }
+
+    // The entries in memory. Entries in the store are not included
     public Collection<T> getAllItems() {
-	return cache.values();
+	return Collections2.transform(Collections.unmodifiableCollection(cache.values()), entryValue);
+    }
+
+    public Stats getStats() {
+	return new Stats(hits.sum(), misses.sum(), loads.sum(), evictions.sum(), cache.size(), weight.get());
+    }
+
+    private int weigh(T item) {
+	if (weigher == null) {
+	    return 1;
+	}
+	int itemWeight = weigher.weigh(item);
+	if (itemWeight < 0) {
+	    throw new IllegalArgumentException("Negative weight for: " + item.getID());
+	}
+	return itemWeight;
+    }
+
+    // Read a missing entry back from the store. If several threads ask at once they all get the same object
+    private T load(UUID itemID) {
+	T item;
+	try {
+	    item = store.read(itemID);
+	} catch (IOException ex) {
+	    throw new IllegalStateException("Could not read from store: " + itemID, ex);
+	}
+	if (item == null) {
+	    return null;
+	}
+	Entry<T> entry = new Entry<T>(item, weigh(item));
+	Entry<T> existing = cache.putIfAbsent(itemID, entry);
+	if (existing != null) {
+	    return existing.value;
+	}
+	loads.increment();
+	weight.addAndGet(entry.weight);
+	evictIfNeeded();
+	return item;
+    }
+
+    private void evictIfNeeded() {
+	if (weight.get() <= maximumWeight) {
+	    return;
+	}
+	synchronized (this) {
+	    // Two passes let every marked entry lose its mark once
+	    int checked = 0;
+	    int limit = 2 * cache.size() + 1;
+	    while (weight.get() > maximumWeight && checked++ < limit) {
+		if (hand == null || !hand.hasNext()) {
+		    hand = cache.values().iterator();
+		    if (!hand.hasNext()) {
+			return;
+		    }
+		}
+		Entry<T> entry = hand.next();
+		if (entry.referenced) {
+		    entry.referenced = false;
+		} else {
+		    evict(entry.value.getID(), entry);
+		}
+	    }
+	}
+    }
+
+    // Write an entry to the store, if there is one, and only then let it go from memory
+    private boolean evict(UUID itemID, Entry<T> entry) {
+	if (!evictable.apply(entry.value)) {
+	    return false;
+	}
+	if (store != null) {
+	    try {
+		store.write(entry.value);
+	    } catch (IOException ex) {
+		logger.error("Could not move " + itemID + " to the store, keeping it in memory", ex);
+		return false;
+	    }
+	}
+	if (cache.remove(itemID, entry)) {
+	    weight.addAndGet(-entry.weight);
+	    evictions.increment();
+	    return true;
+	}
+	return false;
     }
-    
 }
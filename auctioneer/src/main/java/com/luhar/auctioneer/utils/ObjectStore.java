@@ -0,0 +1,18 @@
+package com.luhar.auctioneer.utils;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import com.luhar.auctioneer.model.AuctioneerObject;
+
+// Second tier for an ObjectCache. Entries evicted from memory are written here and read back when they are
+// asked for again. Writing an entry that is already stored replaces it
+public interface ObjectStore<T extends AuctioneerObject> {
+
+    public void write(T object) throws IOException;
+
+    // The stored object, or null if there is none
+    public T read(UUID id) throws IOException;
+
+    public void delete(UUID id) throws IOException;
+}
@@ -0,0 +1,11 @@
+package com.luhar.auctioneer.utils;
+
+import java.util.UUID;
+
+// Random type 4 UUIDs. Every call goes through a shared SecureRandom, so this is the slow option under load
+public class RandomIdGenerator implements IdGenerator {
+
+    public UUID nextID() {
+	return UUID.randomUUID();
+    }
+}
@@ -0,0 +1,36 @@
+package com.luhar.auctioneer.utils;
+
+import java.security.SecureRandom;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+// IDs from a 64 bit counter behind a per-generator prefix. The prefix holds a 16 bit node number and the
+// time the generator was made in milliseconds, so nodes and restarts of the same node do not collide.
+// Making an ID is one atomic increment, and IDs from one generator go up in the order they were made
+public class SequentialIdGenerator implements IdGenerator {
+    // System property with this node's number. A random node number is used when it is not set
+    public static final String NODE_PROPERTY = "auctioneer.node";
+    private static final long TIME_MASK = (1L << 48) - 1;
+    private final long prefix;
+    private final AtomicLong counter = new AtomicLong();
+
+    public SequentialIdGenerator() {
+	this(Integer.getInteger(NODE_PROPERTY, new SecureRandom().nextInt(1 << 16)));
+    }
+
+    public SequentialIdGenerator(int node) {
+	if (node < 0 || node >= 1 << 16) {
+	    throw new IllegalArgumentException("Node number must fit in 16 bits: " + node);
+	}
+	this.prefix = ((long) node << 48) | (System.currentTimeMillis() & TIME_MASK);
+    }
+
+    public UUID nextID() {
+	return new UUID(prefix, counter.incrementAndGet());
+    }
+
+    // Node number an ID was made on
+    public static int nodeOf(UUID id) {
+	return (int) (id.getMostSignificantBits() >>> 48);
+    }
+}
@@ -0,0 +1,9 @@
+package com.luhar.auctioneer.utils;
+
+// Wall clock time from System.currentTimeMillis
+public class SystemClock implements Clock {
+
+    public long currentTimeMillis() {
+	return System.currentTimeMillis();
+    }
+}
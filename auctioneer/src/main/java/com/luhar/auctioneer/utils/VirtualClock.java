@@ -0,0 +1,40 @@
+package com.luhar.auctioneer.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Clock that only moves when told to, for tests and simulations that should not depend on how fast they
+// run. Time never goes backwards, so bids stamped from it keep the same order after a restart
+public class VirtualClock implements Clock {
+    private final AtomicLong time;
+
+    public VirtualClock() {
+	this(0);
+    }
+
+    public VirtualClock(long startMillis) {
+	this.time = new AtomicLong(startMillis);
+    }
+
+    public long currentTimeMillis() {
+	return time.get();
+    }
+
+    // Move the clock on and return the new time
+    public long advance(long millis) {
+	if (millis < 0) {
+	    throw new IllegalArgumentException("Cannot move the clock backwards: " + millis);
+	}
+	return time.addAndGet(millis);
+    }
+
+    public void set(long millis) {
+	long current = time.get();
+	while (millis >= current) {
+	    if (time.compareAndSet(current, millis)) {
+		return;
+	    }
+	    current = time.get();
+	}
+	throw new IllegalArgumentException("Cannot move the clock back from " + current + " to " + millis);
+    }
+}
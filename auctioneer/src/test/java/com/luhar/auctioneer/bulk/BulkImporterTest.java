@@ -0,0 +1,219 @@
+package com.luhar.auctioneer.bulk;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.journal.BidJournal;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+public class BulkImporterTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    File directory;
+    Level level;
+    BidTrackerImpl tracker;
+    BulkImporter importer;
+
+    @Before
+    public void setUp() throws IOException {
+	level = logger.getLevel();
+	logger.setLevel(Level.ERROR);
+	directory = File.createTempFile("import", "");
+	directory.delete();
+	directory.mkdirs();
+	tracker = new BidTrackerImpl();
+	importer = new BulkImporter(tracker, 4);
+    }
+
+    @After
+    public void tearDown() {
+	importer.shutdown();
+	logger.setLevel(level);
+	delete(directory);
+    }
+
+    static void delete(File file) {
+	File[] files = file.listFiles();
+	if (files != null) {
+	    for (File child : files) {
+		delete(child);
+	    }
+	}
+	file.delete();
+    }
+
+    File write(String name, String text) throws IOException {
+	File file = new File(directory, name);
+	Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+	try {
+	    writer.write(text);
+	} finally {
+	    writer.close();
+	}
+	return file;
+    }
+
+    @Test
+    public void testCsv() throws IOException {
+	User alice = new User("Alice");
+	tracker.registerUser(alice);
+	UUID fooID = UUID.randomUUID();
+	File file = write("catalog.csv", "# Catalog for the spring sale\n"
+		+ "user,,Bob\n"
+		+ "user," + alice.getID() + ",Alice again\n"
+		+ "\n"
+		+ "item," + fooID + ",Foo,\"Finest Foo, \"\"as new\"\"\",10.50,2\r\n"
+		+ "item,,Bar\n"
+		+ "lot,,Baz\n"
+		+ "item,,Qux,,10.555,2\n"
+		+ "user,not an id,Charlie\n"
+		+ "user,,Dave,extra\n"
+		+ "item," + fooID + ",Foo again\n"
+		+ "user,,\"Eve\n"
+		+ "user,,Frank");
+	ImportReport report = importer.importFile(file);
+
+	assertEquals(ImportFormat.CSV, report.getFormat());
+	assertEquals(13L, report.getRows());
+	assertEquals(2L, report.getUsersRegistered());
+	assertEquals(2L, report.getItemsRegistered());
+	assertEquals(7L, report.getRejectedCount());
+	List<Long> rows = new ArrayList<Long>();
+	for (ImportReport.Rejection rejection : report.getRejections()) {
+	    rows.add(rejection.getRow());
+	}
+	assertEquals(Arrays.asList(3L, 7L, 8L, 9L, 10L, 11L, 12L), rows);
+	assertTrue(report.getRejections().get(0).getReason().startsWith("Duplicate user"));
+	assertEquals("Unknown row kind: lot", report.getRejections().get(1).getReason());
+
+	assertEquals(3, tracker.getAllRegisteredUsers().size());
+	assertEquals("Alice", tracker.getUser(alice.getID()).getName());
+	Item foo = tracker.getItem(fooID);
+	assertEquals("Finest Foo, \"as new\"", foo.getDescription());
+	assertEquals(PriceScale.CENTS, foo.getPriceScale());
+	assertEquals(1050L, foo.getReserveAmountUnits());
+	// Bar takes the defaults for what its row leaves out
+	for (Item item : tracker.getAllRegisteredItems()) {
+	    if (item.getItemName().equals("Bar")) {
+		assertEquals("", item.getDescription());
+		assertNull(item.getPriceScale());
+	    }
+	}
+    }
+
+    @Test
+    public void testChunksKeepRowNumbers() throws IOException {
+	importer.setMinChunkBytes(256);
+	importer.setBatchSize(16);
+	// Every hundredth row repeats the first row's user. Rows in different chunks race, so any one of them
+	// can be the one registered
+	UUID first = UUID.randomUUID();
+	StringBuilder text = new StringBuilder();
+	for (int row = 1; row <= 1000; row++) {
+	    UUID id = row == 1 || row % 100 == 0 ? first : UUID.randomUUID();
+	    text.append(id == first || row % 2 == 1 ? "user," : "item,").append(id).append(",Row").append(row).append('\n');
+	}
+	ImportReport report = importer.importFile(write("rows.csv", text.toString()));
+
+	assertEquals(1000L, report.getRows());
+	assertEquals(990L, report.getRegistrations());
+	assertEquals(10, report.getRejections().size());
+	long previous = 0;
+	for (ImportReport.Rejection rejection : report.getRejections()) {
+	    assertTrue(rejection.getRow() == 1 || rejection.getRow() % 100 == 0);
+	    assertTrue(rejection.getRow() > previous);
+	    assertEquals("Duplicate user " + first, rejection.getReason());
+	    previous = rejection.getRow();
+	}
+	String registered = tracker.getUser(first).getName();
+	for (ImportReport.Rejection rejection : report.getRejections()) {
+	    assertFalse(registered.equals("Row" + rejection.getRow()));
+	}
+	assertEquals(500, tracker.getAllRegisteredUsers().size());
+	assertEquals(490, tracker.getAllRegisteredItems().size());
+    }
+
+    @Test
+    public void testBinary() throws IOException {
+	List<User> users = new ArrayList<User>();
+	List<Item> items = new ArrayList<Item>();
+	for (int i = 0; i < 500; i++) {
+	    users.add(new User("User" + i));
+	    items.add(i % 2 == 0 ? new Item("Item" + i) : new Item("Item" + i, "", new BigDecimal("1.25"), PriceScale.CENTS));
+	}
+	File file = new File(directory, "catalog.bin");
+	BulkImporter.writeBinary(file, users, items);
+	File journalDirectory = new File(directory, "journal");
+	BidJournal journal = new BidJournal(journalDirectory);
+	journal.recover(tracker);
+	importer.setMinChunkBytes(1024);
+	ImportReport report = importer.importFile(file);
+	journal.close();
+
+	assertEquals(ImportFormat.BINARY, report.getFormat());
+	assertEquals(1000L, report.getRows());
+	assertEquals(500L, report.getUsersRegistered());
+	assertEquals(500L, report.getItemsRegistered());
+	assertEquals(0L, report.getRejectedCount());
+	// The registrations were journaled as they went in
+	BidTrackerImpl recovered = new BidTrackerImpl();
+	journal = new BidJournal(journalDirectory);
+	journal.recover(recovered);
+	journal.close();
+	assertEquals(500, recovered.getAllRegisteredUsers().size());
+	assertEquals(500, recovered.getAllRegisteredItems().size());
+	assertEquals(125L, recovered.getItem(items.get(1).getID()).getReserveAmountUnits());
+
+	// Importing again only finds duplicates
+	report = importer.importFile(file);
+	assertEquals(1000L, report.getRejectedCount());
+	assertEquals(0L, report.getRegistrations());
+    }
+
+    @Test
+    public void testDamagedBinary() throws IOException {
+	File file = new File(directory, "damaged.bin");
+	BulkImporter.writeBinary(file, Arrays.asList(new User("Alice"), new User("Bob"), new User("Charlie")),
+		new ArrayList<Item>());
+	RandomAccessFile output = new RandomAccessFile(file, "rw");
+	try {
+	    // Bob's record says it is a bid, and the end marker gives way to a length past the end
+	    long bob = 4 + output.readInt();
+	    output.seek(bob + 4);
+	    output.writeByte(3);
+	    output.seek(output.length() - 4);
+	    output.writeInt(1000);
+	} finally {
+	    output.close();
+	}
+	ImportReport report = importer.importFile(file);
+	assertEquals(4L, report.getRows());
+	assertEquals(2L, report.getUsersRegistered());
+	assertEquals(2L, report.getRejectedCount());
+	assertEquals(2L, report.getRejections().get(0).getRow());
+	assertEquals(4L, report.getRejections().get(1).getRow());
+	assertTrue(report.getRejections().get(1).getReason().startsWith("Damaged record length"));
+    }
+}
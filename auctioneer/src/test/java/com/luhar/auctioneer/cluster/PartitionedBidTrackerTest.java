@@ -0,0 +1,427 @@
+package com.luhar.auctioneer.cluster;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidPage;
+import com.luhar.auctioneer.model.BidRequest;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+public class PartitionedBidTrackerTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    PartitionedBidTracker tracker;
+    List<PartitionNode> nodes = new ArrayList<PartitionNode>();
+    List<Process> processes = new ArrayList<Process>();
+    Level level;
+
+    @Before
+    public void setUp() {
+	level = logger.getLevel();
+	logger.setLevel(Level.WARN);
+	tracker = new PartitionedBidTracker(64);
+    }
+
+    @After
+    public void tearDown() {
+	tracker.shutdown();
+	for (PartitionNode node : nodes) {
+	    node.shutdown();
+	}
+	for (Process process : processes) {
+	    process.destroy();
+	}
+	logger.setLevel(level);
+    }
+
+    @Test
+    public void testRing() {
+	HashRing ring = new HashRing(HashRing.DEFAULT_PARTITIONS, Arrays.asList("a", "b", "c"));
+	for (String node : ring.getNodes()) {
+	    // Roughly a third each
+	    int owned = ring.partitionsOf(node).size();
+	    assertTrue(ring.toString(), owned > HashRing.DEFAULT_PARTITIONS / 6 && owned < HashRing.DEFAULT_PARTITIONS / 2);
+	}
+
+	// A new node only takes partitions, none move between the others
+	HashRing grown = ring.withNode("d");
+	int moved = 0;
+	for (int partition = 0; partition < ring.getPartitionCount(); partition++) {
+	    if (!ring.ownerOf(partition).equals(grown.ownerOf(partition))) {
+		assertEquals("d", grown.ownerOf(partition));
+		moved++;
+	    }
+	}
+	assertEquals(grown.partitionsOf("d").size(), moved);
+	assertTrue(moved > 0);
+
+	// And removing it gives the same ring back
+	HashRing shrunk = grown.withoutNode("d");
+	for (int partition = 0; partition < ring.getPartitionCount(); partition++) {
+	    assertEquals(ring.ownerOf(partition), shrunk.ownerOf(partition));
+	}
+
+	UUID id = UUID.randomUUID();
+	assertEquals(ring.partitionOf(id), HashRing.partitionOf(id, HashRing.DEFAULT_PARTITIONS));
+	assertNull(new HashRing(8, new ArrayList<String>()).ownerOf(0));
+    }
+
+    @Test
+    public void testPartitionedTracker() throws Exception {
+	tracker.addNode("node0", startNode());
+	tracker.addNode("node1", startNode());
+
+	User alice = new User("Alice");
+	User bob = new User("Bob");
+	assertTrue(tracker.registerUser(alice));
+	assertTrue(tracker.registerUser(bob));
+	assertFalse(tracker.registerUser(alice));
+
+	Item foo = new Item("Foo", "Finest Foo", new BigDecimal(10));
+	Item bar = new Item("Bar", "Fixed point Bar", new BigDecimal(5), PriceScale.CENTS);
+	assertTrue(tracker.registerItem(foo));
+	assertTrue(tracker.registerItem(bar));
+	assertFalse(tracker.registerItem(foo));
+
+	assertNull(tracker.registerBid(foo, alice, new BigDecimal(9)));
+	Bid aliceFoo = tracker.registerBid(foo, alice, new BigDecimal(11));
+	Bid bobFoo = tracker.registerBid(foo, bob, new BigDecimal("12.5"));
+	assertNotNull(aliceFoo);
+	assertSame(alice, aliceFoo.getUser());
+	assertSame(foo, aliceFoo.getItem());
+	assertEquals(bobFoo, tracker.getWinningBid(foo));
+	assertEquals(0, new BigDecimal("12.5").compareTo(tracker.getWinningBid(foo).getBidAmount()));
+	assertEquals(2, tracker.getRankOf(aliceFoo));
+	assertEquals(2, tracker.getAllBidsForItem(foo).size());
+
+	List<Bid> batch = tracker.registerBids(Arrays.asList(new BidRequest(bar, alice, new BigDecimal("6.25")),
+		new BidRequest(foo, alice, new BigDecimal(13)), new BidRequest(bar, bob, new BigDecimal(1))));
+	assertEquals(3, batch.size());
+	assertEquals(bar, batch.get(0).getItem());
+	assertEquals(aliceFoo, batch.get(1));
+	assertNull(batch.get(2));
+	assertEquals(aliceFoo, tracker.getTopBids(foo, 1).get(0));
+
+	BidPage page = tracker.getBidsPage(foo, null, 1);
+	assertEquals(aliceFoo, page.getBids().get(0));
+	page = tracker.getBidsPage(foo, page.getNext(), 1);
+	assertEquals(bobFoo, page.getBids().get(0));
+
+	// Fanned out across the nodes
+	assertEquals(2, tracker.getAllItemsForUser(alice).size());
+	assertEquals(1, tracker.getAllItemsForUser(bob).size());
+	assertEquals(2, tracker.getItemsWinningForUser(alice).size());
+	assertEquals(Arrays.asList(foo), new ArrayList<Item>(tracker.getItemsOutbidForUser(bob)));
+	assertEquals(2, tracker.getAllRegisteredItems().size());
+	assertEquals(2, tracker.getAllRegisteredUsers().size());
+
+	assertTrue(tracker.closeItem(bar));
+	assertNull(tracker.registerBid(bar, bob, new BigDecimal(100)));
+	assertFalse(tracker.setCloseTime(bar, System.currentTimeMillis()));
+    }
+
+    @Test
+    public void testAddAndRemoveNodes() throws Exception {
+	tracker.addNode("node0", startNode());
+	User[] users = registerUsers(10);
+	Item[] items = registerItems(100);
+	placeBids(items, users);
+	List<Bid> winners = winners(items);
+
+	// Items spread onto the new nodes, with their books and their users
+	tracker.addNode("node1", startNode());
+	tracker.addNode("node2", startNode());
+	int total = 0;
+	for (PartitionNode node : nodes) {
+	    int held = node.getTracker().getAllRegisteredItems().size();
+	    assertTrue(held > 0);
+	    assertEquals(users.length, node.getTracker().getAllRegisteredUsers().size());
+	    total += held;
+	}
+	assertEquals(items.length, total);
+	assertEquals(winners, winners(items));
+	assertEquals(items.length, tracker.getAllItemsForUser(users[0]).size());
+
+	// Bidding carries on where the books were left
+	User late = new User("Late");
+	assertTrue(tracker.registerUser(late));
+	for (Item item : items) {
+	    assertNotNull(tracker.registerBid(item, late, new BigDecimal(1000)));
+	    assertSame(late, tracker.getWinningBid(item).getUser());
+	    assertEquals(users.length + 1, tracker.getAllBidsForItem(item).size());
+	}
+
+	tracker.removeNode("node1");
+	assertEquals(0, nodes.get(1).getTracker().getAllRegisteredItems().size());
+	assertEquals(items.length, tracker.getAllRegisteredItems().size());
+	for (Item item : items) {
+	    assertSame(late, tracker.getWinningBid(item).getUser());
+	}
+	// Moved items bring where their bidders stand with them
+	assertEquals(items.length, tracker.getItemsWinningForUser(late).size());
+	assertEquals(items.length, tracker.getItemsOutbidForUser(users[0]).size());
+    }
+
+    @Test
+    public void testFailedMove() throws Exception {
+	tracker.addNode("node0", startNode());
+	User[] users = registerUsers(5);
+	Item[] items = registerItems(50);
+	placeBids(items, users);
+	List<Bid> winners = winners(items);
+
+	// This node drops one user, so the bids of that user cannot be copied to it
+	final UUID dropped = users[2].getID();
+	PartitionNode broken = new PartitionNode(new BidTrackerImpl() {
+	    public void restoreUser(User user) {
+		if (!user.getID().equals(dropped)) {
+		    super.restoreUser(user);
+		}
+	    }
+	}, 1, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+	broken.start();
+	nodes.add(broken);
+	try {
+	    tracker.addNode("node1", broken.getAddress());
+	    fail("Partitions cannot be copied");
+	} catch (ClusterException ex) {
+	    // Expected
+	}
+	// Nothing half copied is left behind, and the old owner still answers for every item
+	assertEquals(0, broken.getTracker().getAllRegisteredItems().size());
+	assertEquals(Arrays.asList("node0"), new ArrayList<String>(tracker.getRing().getNodes()));
+	assertEquals(winners, winners(items));
+	assertEquals(items.length, tracker.getAllRegisteredItems().size());
+
+	// A working node takes the partitions as usual
+	tracker.addNode("node1", startNode());
+	assertEquals(items.length, tracker.getAllRegisteredItems().size());
+	assertEquals(winners, winners(items));
+    }
+
+    @Test
+    public void testLostNode() throws Exception {
+	tracker.addNode("node0", startNode());
+	tracker.addNode("node1", startNode());
+	User alice = new User("Alice");
+	tracker.registerUser(alice);
+	Item[] items = registerItems(20);
+	nodes.get(1).shutdown();
+	try {
+	    tracker.getAllRegisteredItems();
+	    fail("Node is down");
+	} catch (ClusterException ex) {
+	    // Expected
+	}
+	// The broken connection is not used again, the lost node's items are reported as such
+	int lost = 0;
+	for (Item item : items) {
+	    try {
+		tracker.getWinningBid(item);
+	    } catch (ClusterException ex) {
+		assertEquals("Node node1 is not connected", ex.getMessage());
+		lost++;
+	    }
+	}
+	assertTrue(lost > 0 && lost < items.length);
+
+	// Once it leaves the ring, its partitions start again on the remaining node
+	tracker.removeNode("node1");
+	assertEquals(items.length - lost, tracker.getAllRegisteredItems().size());
+	for (Item item : items) {
+	    assertNull(tracker.getWinningBid(item));
+	}
+    }
+
+    @Test
+    public void testFailedRequests() throws Exception {
+	InetSocketAddress address = startNode();
+	tracker.addNode("node0", address);
+	final Item item = registerItems(1)[0];
+	try {
+	    tracker.getTopBids(item, -1);
+	    fail("Negative count");
+	} catch (IllegalArgumentException ex) {
+	    // Expected
+	}
+	try {
+	    tracker.getBidsPage(item, null, 0);
+	    fail("Empty page");
+	} catch (IllegalArgumentException ex) {
+	    // Expected
+	}
+
+	// A request the node turns down is answered with the error alone, and the connection carries on
+	Map<String, NodeClient> clients = new ConcurrentHashMap<String, NodeClient>();
+	NodeClient client = new NodeClient("direct", address, clients);
+	clients.put("direct", client);
+	try {
+	    client.call(ClusterProtocol.GET_TOP_BIDS, new NodeClient.Call<List<Bid>>() {
+		void write(DataOutputStream out) throws IOException {
+		    ClusterProtocol.writeUUID(out, item.getID());
+		    out.writeInt(-1);
+		}
+
+		List<Bid> read(DataInputStream in) throws IOException {
+		    return ClusterProtocol.readBids(in, item, new ConcurrentHashMap<UUID, User>());
+		}
+	    });
+	    fail("Negative count");
+	} catch (ClusterException ex) {
+	    assertTrue(ex.getMessage().contains("Bid count must not be negative"));
+	}
+	NodeClient.Call<Integer> rank = new NodeClient.Call<Integer>() {
+	    void write(DataOutputStream out) throws IOException {
+		ClusterProtocol.writeUUID(out, UUID.randomUUID());
+	    }
+
+	    Integer read(DataInputStream in) throws IOException {
+		return in.readInt();
+	    }
+	};
+	assertEquals(-1, client.call(ClusterProtocol.GET_RANK_OF, rank).intValue());
+
+	// A call that fails while reading its answer leaves the stream out of step, so the client goes
+	try {
+	    client.call(ClusterProtocol.GET_RANK_OF, new NodeClient.Call<Integer>() {
+		void write(DataOutputStream out) throws IOException {
+		    ClusterProtocol.writeUUID(out, UUID.randomUUID());
+		}
+
+		Integer read(DataInputStream in) {
+		    throw new IllegalStateException("Cannot decode");
+		}
+	    });
+	    fail("Bad answer");
+	} catch (IllegalStateException ex) {
+	    // Expected
+	}
+	assertTrue(clients.isEmpty());
+	try {
+	    client.call(ClusterProtocol.GET_RANK_OF, rank);
+	    fail("Client is closed");
+	} catch (ClusterException ex) {
+	    assertTrue(ex.getMessage().startsWith("Lost node direct"));
+	}
+	// The router's own connection was never disturbed
+	assertEquals(0, tracker.getTopBids(item, 5).size());
+    }
+
+    // Nodes in their own processes, as they would run on one host
+    @Test
+    public void testNodeProcesses() throws Exception {
+	tracker.addNode("node0", startProcess());
+	tracker.addNode("node1", startProcess());
+	User[] users = registerUsers(5);
+	Item[] items = registerItems(50);
+	placeBids(items, users);
+	List<Bid> winners = winners(items);
+
+	tracker.addNode("node2", startProcess());
+	assertEquals(winners, winners(items));
+	assertEquals(items.length, tracker.getAllRegisteredItems().size());
+	assertEquals(users.length, tracker.getAllRegisteredUsers().size());
+	assertEquals(items.length, tracker.getAllItemsForUser(users[users.length - 1]).size());
+	for (Item item : items) {
+	    assertEquals(users.length, tracker.getAllBidsForItem(item).size());
+	}
+    }
+
+    InetSocketAddress startNode() throws IOException {
+	PartitionNode node = new PartitionNode(0);
+	node.start();
+	nodes.add(node);
+	return node.getAddress();
+    }
+
+    InetSocketAddress startProcess() throws IOException {
+	String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+	ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), PartitionNode.class.getName(), "0", "2");
+	builder.redirectErrorStream(true);
+	final Process process = builder.start();
+	processes.add(process);
+	final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+	String line;
+	while ((line = reader.readLine()) != null && !line.startsWith("Partition node listening on port ")) {
+	}
+	assertNotNull("Node process exited", line);
+	int port = Integer.parseInt(line.substring("Partition node listening on port ".length()).trim());
+	// Keep reading, so the node never blocks on a full pipe
+	Thread drain = new Thread(new Runnable() {
+	    public void run() {
+		try {
+		    while (reader.readLine() != null) {
+		    }
+		} catch (IOException ex) {
+		    // Process gone
+		}
+	    }
+	});
+	drain.setDaemon(true);
+	drain.start();
+	return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    User[] registerUsers(int count) {
+	User[] users = new User[count];
+	for (int i = 0; i < count; i++) {
+	    users[i] = new User("User" + i);
+	    assertTrue(tracker.registerUser(users[i]));
+	}
+	return users;
+    }
+
+    Item[] registerItems(int count) {
+	Item[] items = new Item[count];
+	for (int i = 0; i < count; i++) {
+	    items[i] = i % 2 == 0 ? new Item("Item" + i) : new Item("Item" + i, "", BigDecimal.ZERO, PriceScale.CENTS);
+	    assertTrue(tracker.registerItem(items[i]));
+	}
+	return items;
+    }
+
+    // Every user bids on every item, the item's winner picked by its index
+    void placeBids(Item[] items, User[] users) {
+	for (int i = 0; i < items.length; i++) {
+	    for (int u = 0; u < users.length; u++) {
+		int amount = u == i % users.length ? 500 : 10 + u;
+		assertNotNull(tracker.registerBid(items[i], users[u], new BigDecimal(amount)));
+	    }
+	}
+    }
+
+    List<Bid> winners(Item[] items) {
+	List<Bid> winners = new ArrayList<Bid>();
+	for (Item item : items) {
+	    winners.add(tracker.getWinningBid(item));
+	}
+	return winners;
+    }
+}
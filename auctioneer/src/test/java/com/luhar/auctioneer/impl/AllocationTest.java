@@ -0,0 +1,153 @@
+package com.luhar.auctioneer.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+import com.luhar.auctioneer.utils.ObjectCache;
+
+// Checks what the accept path allocates with INFO logging off and an audit log attached
+public class AllocationTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    Level level;
+    BidTrackerImpl tracker;
+    AuditLog auditLog;
+    com.sun.management.ThreadMXBean threads;
+
+    @Before
+    public void setUp() {
+	level = logger.getLevel();
+	logger.setLevel(Level.WARN);
+	tracker = new BidTrackerImpl();
+	auditLog = new AuditLog(new Writer() {
+	    public void write(char[] buffer, int offset, int length) {
+	    }
+
+	    public void flush() {
+	    }
+
+	    public void close() {
+	    }
+	});
+	tracker.addListener(auditLog);
+	threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+	tracker.removeListener(auditLog);
+	auditLog.shutdown();
+	logger.setLevel(level);
+    }
+
+    private long allocatedBytes() {
+	return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Amending a fixed point bid only moves it in its item's book and fills in an audit event. Averaged
+    // over many amendments this has to come to nothing: anything made per call would be 16 bytes or more
+    @Test
+    public void testAmendAllocatesNothing() {
+	Item item = new Item("Foo", "", BigDecimal.ZERO, PriceScale.CENTS);
+	User[] users = new User[100];
+	tracker.registerItem(item);
+	for (int i = 0; i < users.length; i++) {
+	    users[i] = new User("User" + i);
+	    tracker.registerUser(users[i]);
+	    tracker.registerBid(item, users[i], 100L + i);
+	}
+	// Let the JIT settle first, so nothing it does is counted
+	amend(item, users, 200000);
+	long overhead = allocatedBytes();
+	overhead = allocatedBytes() - overhead;
+	int count = 100000;
+	long before = allocatedBytes();
+	amend(item, users, count);
+	long allocated = allocatedBytes() - before - overhead;
+	assertTrue("Allocated " + allocated + " bytes over " + count + " amendments", allocated < count);
+	assertTrue(auditLog.flush(10, TimeUnit.SECONDS));
+	// One event per user, item, first bid and amendment
+	assertEquals(300201L, auditLog.getWritten());
+    }
+
+    // Each user moves their bid up one unit and back down again on the next round
+    private void amend(Item item, User[] users, int count) {
+	for (int i = 0; i < count; i++) {
+	    User user = users[i % users.length];
+	    Bid bid = item.getBidFromUser(user);
+	    long amountUnits = bid.getBidAmountUnits() + ((i / users.length) % 2 == 0 ? 1 : -1);
+	    assertSame(bid, tracker.registerBid(item, user, amountUnits));
+	}
+    }
+
+    // A new bid may cost the bid itself and the entries that index it, nothing more. Rather than guess at
+    // their size, the same bids are stored by hand on another user and set of items, and registering through
+    // the tracker may only add less than an object per bid to that. A SimpleDateFormat per bid or a log line
+    // built while INFO is off would each blow this on their own
+    @Test
+    public void testNewBidAllocation() {
+	checkNewBidAllocation(true);
+	checkNewBidAllocation(false);
+    }
+
+    private void checkNewBidAllocation(boolean fixedPoint) {
+	// Both ways round once first, so the interpreter's allocations are not counted against either
+	registerBids(new User("Warm"), fixedPoint);
+	storeBids(new User("Warm"), fixedPoint);
+	long perBid = registerBids(new User("Alice"), fixedPoint);
+	long stored = storeBids(new User("Bob"), fixedPoint);
+	assertTrue("Allocated " + perBid + " bytes per bid against " + stored + " to store it", perBid < stored + 16);
+    }
+
+    // Bytes per bid for the user to bid once on each of a set of new items through the tracker
+    private long registerBids(User user, boolean fixedPoint) {
+	tracker.registerUser(user);
+	Item[] items = makeItems(fixedPoint);
+	for (Item item : items) {
+	    tracker.registerItem(item);
+	}
+	long before = allocatedBytes();
+	for (Item item : items) {
+	    assertNotNull(fixedPoint ? tracker.registerBid(item, user, 1000L) : tracker.registerBid(item, user, BigDecimal.TEN));
+	}
+	return (allocatedBytes() - before) / items.length;
+    }
+
+    // Bytes per bid for the same bids made by hand: the bid, its entries in its item's book and user index,
+    // its entry in its user's bids and one in a bid index
+    private long storeBids(User user, boolean fixedPoint) {
+	Item[] items = makeItems(fixedPoint);
+	ObjectCache<Bid> index = new ObjectCache<Bid>();
+	long before = allocatedBytes();
+	for (Item item : items) {
+	    Bid bid = fixedPoint ? user.makeBid(item, 1000L) : user.makeBid(item, BigDecimal.TEN);
+	    assertTrue(item.addBid(bid));
+	    index.addItem(bid);
+	}
+	return (allocatedBytes() - before) / items.length;
+    }
+
+    private static Item[] makeItems(boolean fixedPoint) {
+	Item[] items = new Item[10000];
+	for (int i = 0; i < items.length; i++) {
+	    items[i] = fixedPoint ? new Item("Foo", "", BigDecimal.ZERO, PriceScale.CENTS) : new Item("Foo");
+	}
+	return items;
+    }
+}
@@ -0,0 +1,171 @@
+package com.luhar.auctioneer.impl;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.BidTrackerListener;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+
+public class AsyncBidTrackerImplTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    Level level;
+    ExecutorService executor;
+    CountDownLatch release;
+
+    @Before
+    public void setUp() {
+	level = logger.getLevel();
+	logger.setLevel(Level.WARN);
+	executor = Executors.newSingleThreadExecutor();
+	release = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() {
+	release.countDown();
+	executor.shutdown();
+	logger.setLevel(level);
+    }
+
+    // A tracker that holds up every user registration until release is counted down
+    BidTrackerImpl blockingTracker() {
+	BidTrackerImpl tracker = new BidTrackerImpl();
+	tracker.addListener(new BidTrackerListener() {
+	    public void userRegistered(User user) {
+		try {
+		    release.await();
+		} catch (InterruptedException ex) {
+		    Thread.currentThread().interrupt();
+		}
+	    }
+
+	    public void itemRegistered(Item item) {
+	    }
+
+	    public void bidPlaced(Bid bid) {
+	    }
+
+	    public void bidAmended(Bid bid) {
+	    }
+
+	    public void closeTimeChanged(Item item) {
+	    }
+
+	    public void itemClosed(Item item, Bid winner) {
+	    }
+	});
+	return tracker;
+    }
+
+    @Test
+    public void testSharded() throws Exception {
+	AsyncBidTrackerImpl tracker = new AsyncBidTrackerImpl();
+	User alice = new User("Alice");
+	Item foo = new Item("Foo", "Finest Foo", new BigDecimal(10));
+	CompletableFuture<Boolean> user = tracker.registerUser(alice);
+	CompletableFuture<Boolean> item = tracker.registerItem(foo);
+	assertTrue(user.get());
+	assertTrue(item.get());
+	assertNull(tracker.registerBid(foo, alice, new BigDecimal(9)).get());
+	Bid bid = tracker.registerBid(foo, alice, new BigDecimal(11)).get();
+	assertTrue(tracker.getWinningBid(foo).get() == bid);
+	assertTrue(tracker.getAllBidsForItem(foo).get().contains(bid));
+	assertTrue(tracker.getAllItemsForUser(alice).get().contains(foo));
+	assertEquals(0, tracker.getInFlight());
+	tracker.shutdown();
+    }
+
+    @Test
+    public void testItemsForUser() throws Exception {
+	assertItemsForUser(new AsyncBidTrackerImpl());
+	assertItemsForUser(new AsyncBidTrackerImpl(new BidTrackerImpl(), executor, 16, 0));
+    }
+
+    void assertItemsForUser(AsyncBidTrackerImpl tracker) throws Exception {
+	User alice = new User("Alice");
+	User bob = new User("Bob");
+	Item foo = new Item("Foo", "Finest Foo", new BigDecimal(10));
+	Item bar = new Item("Bar", "Barest Bar", new BigDecimal(10));
+	tracker.registerUser(alice).get();
+	tracker.registerUser(bob).get();
+	tracker.registerItem(foo).get();
+	tracker.registerItem(bar).get();
+	tracker.registerBid(foo, alice, new BigDecimal(11)).get();
+	tracker.registerBid(bar, alice, new BigDecimal(11)).get();
+	tracker.registerBid(bar, bob, new BigDecimal(12)).get();
+	assertEquals(Arrays.asList(foo), new ArrayList<Item>(tracker.getItemsWinningForUser(alice).get()));
+	assertEquals(Arrays.asList(bar), new ArrayList<Item>(tracker.getItemsOutbidForUser(alice).get()));
+	assertEquals(Arrays.asList(bar), new ArrayList<Item>(tracker.getItemsWinningForUser(bob).get()));
+	assertTrue(tracker.getItemsOutbidForUser(bob).get().isEmpty());
+	tracker.shutdown();
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+	BidTrackerImpl delegate = blockingTracker();
+	AsyncBidTrackerImpl tracker = new AsyncBidTrackerImpl(delegate, executor, 2, 0);
+	CompletableFuture<Boolean> first = tracker.registerUser(new User("Alice"));
+	CompletableFuture<Boolean> second = tracker.registerUser(new User("Bob"));
+	// Both slots are taken, so the third request is refused without waiting
+	CompletableFuture<Boolean> third = tracker.registerUser(new User("Charlie"));
+	assertTrue(third.isCompletedExceptionally());
+	try {
+	    third.get();
+	    fail();
+	} catch (ExecutionException ex) {
+	    assertTrue(ex.getCause() instanceof RejectedExecutionException);
+	}
+	release.countDown();
+	assertTrue(first.get());
+	assertTrue(second.get());
+	assertEquals(2, delegate.getAllRegisteredUsers().size());
+	assertEquals(0, tracker.getInFlight());
+    }
+
+    @Test
+    public void testTimeoutAndCancel() throws Exception {
+	BidTrackerImpl delegate = blockingTracker();
+	AsyncBidTrackerImpl tracker = new AsyncBidTrackerImpl(delegate, executor, 10, 50);
+	CompletableFuture<Boolean> first = tracker.registerUser(new User("Alice"));
+	User bob = new User("Bob");
+	CompletableFuture<Boolean> second = tracker.registerUser(bob);
+	for (CompletableFuture<Boolean> future : Arrays.asList(first, second)) {
+	    try {
+		future.get();
+		fail();
+	    } catch (ExecutionException ex) {
+		assertTrue(ex.getCause() instanceof TimeoutException);
+	    }
+	}
+	// Bob's request timed out while queued behind Alice's, and Charlie's is cancelled there
+	CompletableFuture<Boolean> third = tracker.registerUser(new User("Charlie"));
+	assertTrue(third.cancel(false));
+	release.countDown();
+	tracker.registerItem(new Item("Foo")).get();
+	// Alice's registration had started and went through, the others were dropped
+	assertEquals(1, delegate.getAllRegisteredUsers().size());
+	assertFalse(delegate.getAllRegisteredUsers().contains(bob));
+	tracker.shutdown();
+    }
+}
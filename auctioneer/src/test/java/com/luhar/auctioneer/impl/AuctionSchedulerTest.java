@@ -0,0 +1,292 @@
+package com.luhar.auctioneer.impl;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.luhar.auctioneer.model.AuctioneerObject;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.BidTrackerListener;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+import com.luhar.auctioneer.utils.Clock;
+import com.luhar.auctioneer.utils.VirtualClock;
+
+public class AuctionSchedulerTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    Level level;
+    Clock previous;
+    VirtualClock clock;
+    BidTrackerImpl tracker;
+    User alice;
+    User bob;
+
+    @Before
+    public void setUp() {
+	level = logger.getLevel();
+	logger.setLevel(Level.ERROR);
+	previous = AuctioneerObject.getClock();
+	clock = new VirtualClock(1000);
+	AuctioneerObject.setClock(clock);
+	tracker = new BidTrackerImpl();
+	alice = new User("Alice");
+	bob = new User("Bob");
+	tracker.registerUser(alice);
+	tracker.registerUser(bob);
+    }
+
+    @After
+    public void tearDown() {
+	AuctioneerObject.setClock(previous);
+	logger.setLevel(level);
+    }
+
+    @Test
+    public void testCloseOnTime() {
+	AuctionScheduler scheduler = new AuctionScheduler(tracker, 1);
+	final List<Bid> winners = new ArrayList<Bid>();
+	tracker.addListener(new BidTrackerListener() {
+	    public void userRegistered(User user) {
+	    }
+
+	    public void itemRegistered(Item item) {
+	    }
+
+	    public void bidPlaced(Bid bid) {
+	    }
+
+	    public void bidAmended(Bid bid) {
+	    }
+
+	    public void closeTimeChanged(Item item) {
+	    }
+
+	    public void itemClosed(Item item, Bid winner) {
+		winners.add(winner);
+	    }
+	});
+	Item foo = new Item("Foo");
+	tracker.registerItem(foo);
+	tracker.setCloseTime(foo, 1500);
+	tracker.registerBid(foo, alice, new BigDecimal(10));
+	Bid winning = tracker.registerBid(foo, bob, new BigDecimal(20));
+	assertEquals(1, scheduler.getPendingCount());
+
+	assertEquals(0, scheduler.advance(1499));
+	assertFalse(foo.isClosed());
+	clock.set(1500);
+	assertEquals(1, scheduler.advance(1500));
+	assertTrue(foo.isClosed());
+	assertEquals(0, scheduler.getPendingCount());
+	assertEquals(1, winners.size());
+	assertSame(winning, winners.get(0));
+
+	// The book is frozen
+	assertNull(tracker.registerBid(foo, alice, new BigDecimal(30)));
+	assertNull(tracker.registerBid(foo, new User("Charlie"), new BigDecimal(30)));
+	assertEquals(2, foo.getBids().size());
+	assertSame(winning, tracker.getWinningBid(foo));
+	assertFalse(tracker.setCloseTime(foo, 2000));
+	assertFalse(tracker.closeItem(foo));
+    }
+
+    @Test
+    public void testManyCloses() {
+	AuctionScheduler scheduler = new AuctionScheduler(tracker, 10);
+	Random random = new Random(42);
+	List<Item> items = new ArrayList<Item>();
+	// Spread over several levels of the wheel, some sharing a tick
+	for (int i = 0; i < 5000; i++) {
+	    Item item = new Item("Item" + i);
+	    tracker.registerItem(item);
+	    long closeTime = 1000 + (i % 3 == 0 ? random.nextInt(1000) : random.nextInt(50000000));
+	    tracker.setCloseTime(item, closeTime);
+	    items.add(item);
+	}
+	// Some cancelled, some moved
+	for (int i = 0; i < items.size(); i += 10) {
+	    tracker.setCloseTime(items.get(i), Item.NO_CLOSE_TIME);
+	    tracker.setCloseTime(items.get(i + 1), items.get(i + 1).getCloseTime() / 2 + 1000);
+	}
+	assertEquals(4500, scheduler.getPendingCount());
+
+	long now = 1000;
+	int closed = 0;
+	while (now < 60000000) {
+	    now += 1 + random.nextInt(200000);
+	    clock.set(now);
+	    closed += scheduler.advance(now);
+	    for (Item item : items) {
+		long closeTime = item.getCloseTime();
+		// Never early, and never more than a tick late
+		if (item.isClosed()) {
+		    assertTrue(closeTime <= now);
+		} else {
+		    assertTrue(closeTime > now - 10);
+		}
+	    }
+	}
+	assertEquals(4500, closed);
+	assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void testCloseDueBeforeStart() {
+	Item foo = new Item("Foo");
+	foo.setCloseTime(500);
+	tracker.registerItem(foo);
+	AuctionScheduler scheduler = new AuctionScheduler(tracker, 100);
+	assertEquals(1, scheduler.getPendingCount());
+	assertEquals(1, scheduler.advance(1000));
+	assertTrue(foo.isClosed());
+    }
+
+    @Test
+    public void testCloseByHand() {
+	AuctionScheduler scheduler = new AuctionScheduler(tracker, 1);
+	Item foo = new Item("Foo");
+	tracker.registerItem(foo);
+	tracker.setCloseTime(foo, 2000);
+	assertTrue(tracker.closeItem(foo));
+	assertEquals(0, scheduler.getPendingCount());
+	assertEquals(0, scheduler.advance(3000));
+    }
+
+    @Test
+    public void testSnipeProtection() {
+	AuctionScheduler scheduler = new AuctionScheduler(tracker, 1);
+	scheduler.setSnipeProtection(100, 200);
+	Item foo = new Item("Foo");
+	tracker.registerItem(foo);
+	tracker.setCloseTime(foo, 2000);
+
+	// Too early to count
+	clock.set(1800);
+	tracker.registerBid(foo, alice, new BigDecimal(10));
+	assertEquals(2000L, foo.getCloseTime());
+
+	// A late bid gives the others time to answer
+	clock.set(1950);
+	tracker.registerBid(foo, bob, new BigDecimal(20));
+	assertEquals(2150L, foo.getCloseTime());
+	clock.set(2000);
+	assertEquals(0, scheduler.advance(2000));
+	assertFalse(foo.isClosed());
+
+	// and an answer pushes it back again
+	clock.set(2100);
+	tracker.registerBid(foo, alice, new BigDecimal(30));
+	assertEquals(2300L, foo.getCloseTime());
+	clock.set(2299);
+	assertEquals(0, scheduler.advance(2299));
+	clock.set(2300);
+	assertEquals(1, scheduler.advance(2300));
+	assertTrue(foo.isClosed());
+	assertSame(alice, tracker.getWinningBid(foo).getUser());
+    }
+
+    @Test
+    public void testBidRacingClose() {
+	AuctionScheduler scheduler = new AuctionScheduler(tracker, 1);
+	final List<Bid> accepted = new ArrayList<Bid>();
+	tracker.addListener(new BidTrackerListener() {
+	    public void userRegistered(User user) {
+	    }
+
+	    public void itemRegistered(Item item) {
+	    }
+
+	    public void bidPlaced(Bid bid) {
+		accepted.add(bid);
+	    }
+
+	    public void bidAmended(Bid bid) {
+		accepted.add(bid);
+	    }
+
+	    public void closeTimeChanged(Item item) {
+	    }
+
+	    public void itemClosed(Item item, Bid winner) {
+	    }
+	});
+	// Still open when the tracker checks, as if the scheduler closed it just after
+	Item foo = new Item("Foo") {
+	    public boolean isClosed() {
+		return false;
+	    }
+	};
+	tracker.registerItem(foo);
+	tracker.setCloseTime(foo, 1100);
+	Bid winning = tracker.registerBid(foo, alice, new BigDecimal(10));
+	clock.set(1100);
+	assertEquals(1, scheduler.advance(1100));
+
+	// The book refuses both, so neither is accepted or passed on
+	assertNull(tracker.registerBid(foo, alice, new BigDecimal(30)));
+	assertNull(tracker.registerBid(foo, bob, new BigDecimal(20)));
+	assertEquals(1, accepted.size());
+	assertEquals(1, foo.getBids().size());
+	assertEquals(0, winning.getBidAmount().compareTo(new BigDecimal(10)));
+	assertNull(bob.getBidOn(foo));
+	assertTrue(bob.getItems().isEmpty());
+    }
+
+    // A late bid moves the close time after the scheduler found the item due. The close does not go ahead,
+    // and waits for the new time instead
+    @Test
+    public void testCloseTimeMovedWhileClosing() {
+	AuctionScheduler scheduler = new AuctionScheduler(tracker, 1);
+	final AtomicBoolean stale = new AtomicBoolean();
+	// Gives the close time from before the late bid while stale is set
+	Item foo = new Item("Foo") {
+	    public long getCloseTime() {
+		return stale.get() ? 1100 : super.getCloseTime();
+	    }
+	};
+	tracker.registerItem(foo);
+	tracker.setCloseTime(foo, 1100);
+	clock.set(1100);
+	tracker.setCloseTime(foo, 1300);
+	stale.set(true);
+	assertFalse(tracker.closeDueItem(foo, 1100));
+	assertFalse(foo.isClosed());
+	assertNotNull(tracker.registerBid(foo, alice, new BigDecimal(10)));
+
+	stale.set(false);
+	clock.set(1300);
+	assertEquals(1, scheduler.advance(1300));
+	assertTrue(foo.isClosed());
+    }
+
+    @Test
+    public void testSharded() throws Exception {
+	ShardedBidTracker sharded = new ShardedBidTracker(tracker, 2);
+	AuctionScheduler scheduler = new AuctionScheduler(sharded, 1);
+	Item foo = new Item("Foo");
+	sharded.registerItem(foo);
+	sharded.setCloseTime(foo, 1100);
+	sharded.registerBid(foo, alice, new BigDecimal(10));
+	clock.set(1100);
+	assertEquals(1, scheduler.advance(1100));
+	// Queued behind the close, so rejected
+	assertNull(sharded.submitBid(foo, bob, new BigDecimal(20)).get());
+	assertTrue(foo.isClosed());
+	assertSame(alice, sharded.getWinningBid(foo).getUser());
+	scheduler.shutdown();
+	sharded.shutdown();
+    }
+}
@@ -0,0 +1,108 @@
+package com.luhar.auctioneer.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+public class AuditLogTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    Level level;
+    BidTrackerImpl tracker;
+    StringWriter out;
+
+    @Before
+    public void setUp() {
+	level = logger.getLevel();
+	logger.setLevel(Level.WARN);
+	tracker = new BidTrackerImpl();
+	out = new StringWriter();
+    }
+
+    @After
+    public void tearDown() {
+	logger.setLevel(level);
+    }
+
+    @Test
+    public void testEvents() throws Exception {
+	AuditLog auditLog = new AuditLog(out);
+	tracker.addListener(auditLog);
+	User alice = new User("Alice");
+	Item foo = new Item("Foo", "Finest Foo", new BigDecimal(5));
+	Item bar = new Item("Bar", "", BigDecimal.ZERO, PriceScale.CENTS);
+	tracker.registerUser(alice);
+	tracker.registerItem(foo);
+	tracker.registerItem(bar);
+	Bid fooBid = tracker.registerBid(foo, alice, new BigDecimal("10.5"));
+	Bid barBid = tracker.registerBid(bar, alice, new BigDecimal("1.25"));
+	tracker.registerBid(bar, alice, new BigDecimal("2.50"));
+	// Rejected bids are not audited
+	assertNull(tracker.registerBid(foo, alice, BigDecimal.ONE));
+	tracker.removeListener(auditLog);
+	auditLog.shutdown();
+
+	String[] lines = out.toString().split("\n");
+	assertEquals(6, lines.length);
+	assertTrue(lines[0].endsWith(" USER_REGISTERED user=" + alice.getID() + " name=Alice"));
+	assertTrue(lines[1].endsWith(" ITEM_REGISTERED item=" + foo.getID() + " name=Foo reserve=5"));
+	assertTrue(lines[2].endsWith(" ITEM_REGISTERED item=" + bar.getID() + " name=Bar reserve=0 scale=2"));
+	assertTrue(lines[3].contains(" BID_PLACED bid=" + fooBid.getID() + " item=" + foo.getID() + " user="
+		+ alice.getID() + " amount=10.5 updated="));
+	// Each event keeps the amount the bid had at the time
+	assertTrue(lines[4].contains(" BID_PLACED bid=" + barBid.getID() + " item=" + bar.getID() + " user="
+		+ alice.getID() + " amount=1.25 updated="));
+	assertTrue(lines[5].contains(" BID_AMENDED bid=" + barBid.getID()));
+	assertTrue(lines[5].contains(" amount=2.50 updated=" + barBid.getLastUpdateTime()));
+    }
+
+    @Test
+    public void testFullRing() throws Exception {
+	// A ring far smaller than the number of changes, filled from several threads at once
+	final AuditLog auditLog = new AuditLog(out, 16);
+	tracker.addListener(auditLog);
+	final Item foo = new Item("Foo");
+	tracker.registerItem(foo);
+	List<Thread> threads = new ArrayList<Thread>();
+	for (int t = 0; t < 4; t++) {
+	    final User user = new User("User" + t);
+	    tracker.registerUser(user);
+	    Thread thread = new Thread(new Runnable() {
+		public void run() {
+		    for (int i = 1; i <= 1000; i++) {
+			synchronized (foo) {
+			    tracker.registerBid(foo, user, new BigDecimal(i));
+			}
+		    }
+		}
+	    });
+	    threads.add(thread);
+	    thread.start();
+	}
+	for (Thread thread : threads) {
+	    thread.join();
+	}
+	assertTrue(auditLog.flush(10, TimeUnit.SECONDS));
+	// An item, four users and a placed or amended bid for every call
+	assertEquals(4005L, auditLog.getWritten());
+	assertEquals(4005, out.toString().split("\n").length);
+	auditLog.shutdown();
+    }
+}
@@ -3,15 +3,25 @@ package com.luhar.auctioneer.impl;
 import static org.junit.Assert.*;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
 import org.junit.Test;
 
+import com.luhar.auctioneer.model.AuctioneerObject;
 import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidRequest;
 import com.luhar.auctioneer.model.BidTracker;
 import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.OffHeapBidStore;
+import com.luhar.auctioneer.model.PriceScale;
 import com.luhar.auctioneer.model.User;
+import com.luhar.auctioneer.utils.Clock;
+import com.luhar.auctioneer.utils.ObjectCache;
+import com.luhar.auctioneer.utils.VirtualClock;
 
 public class BidTrackerImplTest {
     
@@ -105,9 +115,9 @@ public class BidTrackerImplTest {
 	Bid bid4 = tracker.registerBid(foo, bob, new BigDecimal(12));
 	assertTrue(foo.getWinningBid().equals(bid4));
 	
-	// Lets have two bids, identical amounts, but one bid made after the other. Thread.sleep is used to model the delay
+	// Lets have two bids, identical amounts, but one bid made after the other. The earlier bid wins even
+	// within the same millisecond
 	Bid bid5 = tracker.registerBid(bar, bob, new BigDecimal(5));
-	try { Thread.sleep(1); } catch (Exception ex) {}
 	Bid bid6 = tracker.registerBid(bar, charlie, new BigDecimal(5));
 	assertTrue(bar.getWinningBid().equals(bid5));
 	assertTrue(bar.getBids().size() == 2);
@@ -141,6 +151,39 @@ public class BidTrackerImplTest {
 	assertTrue(alice.getItems().contains(baz));
     }
     
+    @Test
+    public void testItemsWinningAndOutbid() {
+	reset();
+	tracker.registerBid(foo, alice, new BigDecimal(10));
+	tracker.registerBid(bar, alice, new BigDecimal(5));
+	tracker.registerBid(foo, bob, new BigDecimal(11));
+	// Placed below the winning bid, so outbid from the start
+	tracker.registerBid(bar, charlie, new BigDecimal(4));
+	assertEquals(Arrays.asList(bar), tracker.getItemsWinningForUser(alice));
+	assertEquals(Arrays.asList(foo), tracker.getItemsOutbidForUser(alice));
+	assertEquals(Arrays.asList(foo), tracker.getItemsWinningForUser(bob));
+	assertTrue(tracker.getItemsOutbidForUser(bob).isEmpty());
+	assertEquals(Arrays.asList(bar), tracker.getItemsOutbidForUser(charlie));
+	
+	// Amending back to the top moves the item over, and the user it was taken from is now outbid
+	tracker.registerBid(foo, alice, new BigDecimal(12));
+	tracker.registerBid(bar, charlie, new BigDecimal(6));
+	assertEquals(Arrays.asList(foo), tracker.getItemsWinningForUser(alice));
+	assertEquals(Arrays.asList(bar), tracker.getItemsOutbidForUser(alice));
+	assertEquals(Arrays.asList(foo), tracker.getItemsOutbidForUser(bob));
+	assertEquals(Arrays.asList(bar), tracker.getItemsWinningForUser(charlie));
+	assertEquals(1, alice.getWinningCount());
+	assertEquals(1, alice.getOutbidCount());
+	// Amending while on top changes nothing
+	tracker.registerBid(foo, alice, new BigDecimal(13));
+	assertEquals(Arrays.asList(foo), tracker.getItemsWinningForUser(alice));
+	
+	// Won items stay won once closed
+	tracker.closeItem(foo);
+	assertEquals(Arrays.asList(foo), tracker.getItemsWinningForUser(alice));
+	assertEquals(Arrays.asList(foo), tracker.getItemsOutbidForUser(bob));
+    }
+    
     @Test
     public void testBidModification() {
 	// Test to see if bid modifications works
@@ -153,5 +196,229 @@ public class BidTrackerImplTest {
 	assertTrue(bid1 == tracker.registerBid(foo, alice, new BigDecimal(12)));
 	assertTrue(foo.getWinningBid().equals(bid1));
     }
+    
+    @Test
+    public void testRepeatedBid() {
+	reset();
+	Item qux = new Item("Qux", "Quixotic Qux", BigDecimal.ONE, PriceScale.CENTS);
+	tracker.registerItem(qux);
+	for (Item item : Arrays.asList(foo, qux)) {
+	    // Bidding the same amount again leaves the bid as it is
+	    Bid bid = tracker.registerBid(item, bob, new BigDecimal(15));
+	    assertTrue(bid == tracker.registerBid(item, bob, new BigDecimal(15)));
+	    assertEquals(1, tracker.getAllBidsForItem(item).size());
+	    tracker.registerBid(item, bob, new BigDecimal(17));
+	    List<Bid> top = tracker.getTopBids(item, 10);
+	    assertEquals(1, top.size());
+	    assertTrue(top.get(0) == bid);
+	    assertEquals(0, bid.getBidAmount().compareTo(new BigDecimal(17)));
+	}
+	assertTrue(((BidTrackerImpl) tracker).registerBid(qux, bob, 1700L) == qux.getBidFromUser(bob));
+	assertEquals(1, tracker.getAllBidsForItem(qux).size());
+    }
+    
+    @Test
+    public void testBidFromUser() {
+	reset();
+	Bid bid1 = tracker.registerBid(foo, alice, new BigDecimal(10));
+	Bid bid2 = tracker.registerBid(foo, bob, new BigDecimal(11));
+	assertTrue(foo.getBidFromUser(alice) == bid1);
+	assertTrue(foo.getBidFromUser(bob) == bid2);
+	assertNull(foo.getBidFromUser(charlie));
+	assertFalse(foo.hasBidFrom(charlie));
+	// Amending a bid keeps one bid per user
+	tracker.registerBid(foo, alice, new BigDecimal(12));
+	tracker.registerBid(foo, alice, new BigDecimal(13));
+	assertTrue(foo.getBidFromUser(alice) == bid1);
+	assertTrue(foo.getBidderCount() == 2);
+	assertTrue(foo.getUsers().size() == 2);
+	assertTrue(foo.getUsers().contains(alice));
+	assertTrue(foo.getUsers().contains(bob));
+    }
+    
+    @Test
+    public void testFixedPointBids() {
+	reset();
+	Item qux = new Item("Qux", "Quixotic Qux", new BigDecimal("10.50"), PriceScale.CENTS);
+	tracker.registerItem(qux);
+	// Below the reserve, and more precise than the price scale allows
+	assertNull(tracker.registerBid(qux, alice, new BigDecimal("10.49")));
+	assertNull(tracker.registerBid(qux, alice, new BigDecimal("10.555")));
+	Bid bid1 = tracker.registerBid(qux, alice, new BigDecimal("10.50"));
+	Bid bid2 = tracker.registerBid(qux, bob, new BigDecimal("10.75"));
+	Bid bid3 = tracker.registerBid(qux, charlie, new BigDecimal("10.75"));
+	assertTrue(bid2.getBidAmountUnits() == 1075);
+	assertTrue(bid2.getBidAmount().compareTo(new BigDecimal("10.75")) == 0);
+	// Bob got to 10.75 first
+	assertTrue(qux.getWinningBid() == bid2);
+	assertTrue(qux.getBids().size() == 3);
+	assertTrue(qux.getBids().contains(bid3));
+	
+	// Amend in minor units through the primitive entry point
+	assertTrue(bid1 == ((BidTrackerImpl) tracker).registerBid(qux, alice, 1100L));
+	assertTrue(qux.getWinningBid() == bid1);
+	assertTrue(qux.getBids().iterator().next() == bid1);
+    }
+
+    @Test
+    public void testBidStore() {
+	resetTracker();
+	resetUsers();
+	resetItems();
+	OffHeapBidStore store = new OffHeapBidStore();
+	BidTrackerImpl impl = (BidTrackerImpl) tracker;
+	impl.setBidStore(store);
+	Item qux = new Item("Qux", "Quixotic Qux", new BigDecimal("10.50"), PriceScale.CENTS);
+	tracker.registerItem(foo);
+	tracker.registerItem(qux);
+	tracker.registerUser(alice);
+	tracker.registerUser(bob);
+	tracker.registerUser(charlie);
+	// Only the fixed point item keeps its bids off the heap
+	assertNull(foo.getBidStore());
+	assertSame(store, qux.getBidStore());
+	Bid fooBid = tracker.registerBid(foo, alice, new BigDecimal(10));
+	Bid bid1 = tracker.registerBid(qux, alice, new BigDecimal("10.50"));
+	Bid bid2 = tracker.registerBid(qux, bob, new BigDecimal("10.75"));
+	assertEquals(bid2, tracker.getWinningBid(qux));
+	assertEquals(bid1, tracker.registerBid(qux, alice, new BigDecimal("11.00")));
+	assertEquals(1100L, tracker.getWinningBid(qux).getBidAmountUnits());
+	tracker.registerBids(Arrays.asList(new BidRequest(qux, charlie, new BigDecimal("12.00"))));
+	assertEquals(charlie, tracker.getWinningBid(qux).getUser());
+	assertEquals(3L, store.getBidCount());
+
+	// Found through the store rather than the bid index or the users
+	assertEquals(bid2, impl.getBid(bid2.getID()));
+	assertEquals(1100L, impl.getBid(bid1.getID()).getBidAmountUnits());
+	assertEquals(4, impl.getAllBids().size());
+	assertEquals(Arrays.asList(fooBid), new ArrayList<Bid>(alice.getBids()));
+	assertEquals(Arrays.asList(foo, qux), new ArrayList<Item>(tracker.getAllItemsForUser(alice)));
+	assertEquals(Arrays.asList(qux), new ArrayList<Item>(tracker.getAllItemsForUser(bob)));
+	assertEquals(Arrays.asList(charlie, alice, bob), new ArrayList<User>(qux.getUsers()));
+	// Stored bids are not in the users' indexes, so their items are looked at one by one
+	assertEquals(Arrays.asList(foo), new ArrayList<Item>(tracker.getItemsWinningForUser(alice)));
+	assertEquals(Arrays.asList(qux), new ArrayList<Item>(tracker.getItemsOutbidForUser(alice)));
+	assertEquals(Arrays.asList(qux), new ArrayList<Item>(tracker.getItemsWinningForUser(charlie)));
+    }
+
+    @Test
+    public void testRegisterItemsRace() {
+	// The cache never admits to holding an item, as if another batch registered it right after the check
+	BidTrackerImpl impl = new BidTrackerImpl();
+	impl.setItemCache(new ObjectCache<Item>() {
+	    public boolean containsItem(Item item) {
+		return false;
+	    }
+	});
+	OffHeapBidStore store = new OffHeapBidStore();
+	impl.setBidStore(store);
+	Item qux = new Item("Qux", "Quixotic Qux", new BigDecimal("10.50"), PriceScale.CENTS);
+	Item copy = new Item(qux.getID(), "Qux", "Quixotic Qux", new BigDecimal("10.50"), PriceScale.CENTS);
+	assertTrue(impl.registerItems(Arrays.asList(qux)).isEmpty());
+	assertEquals(1, store.getItemCount());
+	// The losing copy gives its place in the store back
+	assertEquals(Arrays.asList(copy), impl.registerItems(Arrays.asList(copy)));
+	assertEquals(1, store.getItemCount());
+	// The same item again keeps its place
+	assertEquals(Arrays.asList(qux), impl.registerItems(Arrays.asList(qux)));
+	assertEquals(1, store.getItemCount());
+	assertSame(store, qux.getBidStore());
+    }
+
+    @Test
+    public void testRegisterBids() {
+	reset();
+	Item qux = new Item("Qux", "Quixotic Qux", new BigDecimal("10.50"), PriceScale.CENTS);
+	tracker.registerItem(qux);
+	Bid existing = tracker.registerBid(bar, charlie, new BigDecimal(3));
+	List<BidRequest> requests = new ArrayList<BidRequest>();
+	requests.add(new BidRequest(foo, alice, new BigDecimal(11)));
+	requests.add(new BidRequest(foo, bob, new BigDecimal(9)));
+	requests.add(new BidRequest(bar, charlie, new BigDecimal(4)));
+	requests.add(new BidRequest(foo, alice, new BigDecimal(13)));
+	requests.add(new BidRequest(qux, bob, new BigDecimal("10.555")));
+	requests.add(new BidRequest(qux, bob, new BigDecimal("10.75")));
+	requests.add(new BidRequest(foo, bob, new BigDecimal(12)));
+	requests.add(new BidRequest(baz, new User("Unregistered"), new BigDecimal(1)));
+	// Below the reserve, so alice's earlier amount stands
+	requests.add(new BidRequest(foo, alice, new BigDecimal(5)));
+	List<Bid> results = tracker.registerBids(requests);
+	
+	assertEquals(requests.size(), results.size());
+	assertNull(results.get(1));
+	assertNull(results.get(4));
+	assertNull(results.get(7));
+	assertNull(results.get(8));
+	// Alice's two accepted requests end up as one bid at her last valid amount
+	assertTrue(results.get(0) == results.get(3));
+	assertTrue(results.get(0).getBidAmount().compareTo(new BigDecimal(13)) == 0);
+	assertTrue(foo.getBids().size() == 2);
+	assertTrue(foo.getWinningBid() == results.get(0));
+	assertTrue(results.get(6) == foo.getBidFromUser(bob));
+	// Existing bids are amended in place
+	assertTrue(results.get(2) == existing);
+	assertTrue(existing.getBidAmount().compareTo(new BigDecimal(4)) == 0);
+	assertEquals(1075L, results.get(5).getBidAmountUnits());
+	assertTrue(qux.getWinningBid() == results.get(5));
+	assertTrue(baz.getBids().isEmpty());
+    }
+
+    @Test
+    public void testIdentity() {
+	reset();
+	int aliceHash = alice.hashCode();
+	int fooHash = foo.hashCode();
+	Bid bid = tracker.registerBid(foo, alice, new BigDecimal(11));
+	int bidHash = bid.hashCode();
+	tracker.registerBid(foo, alice, new BigDecimal(12));
+	// Bidding and amending leave identity alone
+	assertEquals(aliceHash, alice.hashCode());
+	assertEquals(fooHash, foo.hashCode());
+	assertEquals(bidHash, bid.hashCode());
+	// Objects with the same ID are the same object, whatever else they hold
+	assertEquals(alice, new User(alice.getID(), "Someone else"));
+	assertFalse(alice.equals(bob));
+	assertEquals(foo, new Item(foo.getID(), "Foo", "", BigDecimal.ZERO, null));
+    }
+
+    @Test
+    public void testPriceTimePriority() {
+	// The clock stands still, so every bid lands in the same millisecond
+	VirtualClock clock = new VirtualClock(1000);
+	Clock previous = AuctioneerObject.getClock();
+	AuctioneerObject.setClock(clock);
+	try {
+	    reset();
+	    List<User> users = new ArrayList<User>();
+	    for (int i = 0; i < 1000; i++) {
+		User user = new User("User" + i);
+		tracker.registerUser(user);
+		users.add(user);
+		tracker.registerBid(bar, user, new BigDecimal(5));
+	    }
+	    // Equal amounts rank in the order they were made
+	    List<User> ranked = new ArrayList<User>();
+	    for (Bid bid : bar.getBids()) {
+		assertEquals(1000L, bid.getLastUpdateTime());
+		ranked.add(bid.getUser());
+	    }
+	    assertEquals(users, ranked);
+	    // Changing a bid sends it to the back of its new amount
+	    clock.advance(5);
+	    Bid first = bar.getBidFromUser(users.get(0));
+	    tracker.registerBid(bar, users.get(0), new BigDecimal(6));
+	    tracker.registerBid(bar, users.get(0), new BigDecimal(5));
+	    assertEquals(1005L, first.getLastUpdateTime());
+	    assertEquals(users.get(1), bar.getWinningBid().getUser());
+	    assertEquals(1000, bar.getRankOf(first));
+	} finally {
+	    AuctioneerObject.setClock(previous);
+	}
+	try {
+	    clock.set(999);
+	    fail();
+	} catch (IllegalArgumentException ex) {
+	}
+    }
 
 }
@@ -0,0 +1,195 @@
+package com.luhar.auctioneer.impl;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.IncrementTable;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+public class ProxyBidderTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    BidTrackerImpl tracker;
+    ProxyBidder proxies;
+    Item item;
+    User alice;
+    User bob;
+    User carol;
+    Level level;
+
+    @Before
+    public void setUp() {
+	level = logger.getLevel();
+	logger.setLevel(Level.ERROR);
+	tracker = new BidTrackerImpl();
+	proxies = new ProxyBidder(tracker, new IncrementTable(new BigDecimal(1)));
+	item = new Item("Foo", "Finest Foo", new BigDecimal(10));
+	tracker.registerItem(item);
+	alice = register("Alice");
+	bob = register("Bob");
+	carol = register("Carol");
+    }
+
+    @After
+    public void tearDown() {
+	logger.setLevel(level);
+    }
+
+    @Test
+    public void testIncrementTable() {
+	IncrementTable table = new IncrementTable(new BigDecimal("0.05"))
+		.withBand(new BigDecimal(100), new BigDecimal(5))
+		.withBand(new BigDecimal(10), new BigDecimal(1));
+	assertEquals(new BigDecimal("0.05"), table.incrementAt(new BigDecimal("9.99")));
+	assertEquals(new BigDecimal(1), table.incrementAt(new BigDecimal(10)));
+	assertEquals(new BigDecimal(1), table.incrementAt(new BigDecimal("99.99")));
+	assertEquals(new BigDecimal(5), table.incrementAt(new BigDecimal(1000)));
+	assertEquals(new BigDecimal(2), table.withBand(new BigDecimal(10), new BigDecimal(2)).incrementAt(new BigDecimal(50)));
+	assertEquals(new BigDecimal(1), table.incrementAt(new BigDecimal(50)));
+	assertEquals(new BigDecimal("0.25"), IncrementTable.standard().incrementAt(new BigDecimal("4.99")));
+	try {
+	    new IncrementTable(BigDecimal.ZERO);
+	    fail("Increment must be positive");
+	} catch (IllegalArgumentException ex) {
+	    // Expected
+	}
+    }
+
+    @Test
+    public void testSingleProxyBidsReserve() {
+	Bid bid = proxies.registerMaxBid(item, alice, new BigDecimal(100));
+	assertAmount(10, bid);
+	assertEquals(bid, tracker.getWinningBid(item));
+	assertEquals(new BigDecimal(100), proxies.getMaxBid(item, alice));
+	assertNull(proxies.getMaxBid(item, bob));
+	// Below the reserve there is nothing to bid
+	assertNull(proxies.registerMaxBid(item, bob, new BigDecimal(5)));
+	assertNull(proxies.getMaxBid(item, bob));
+    }
+
+    @Test
+    public void testCompetingProxies() {
+	proxies.registerMaxBid(item, alice, new BigDecimal(100));
+	// Bob is outbid at once: he bids his whole maximum and Alice answers one increment above it
+	Bid bobBid = proxies.registerMaxBid(item, bob, new BigDecimal(50));
+	assertAmount(50, bobBid);
+	assertEquals(alice, tracker.getWinningBid(item).getUser());
+	assertAmount(51, tracker.getWinningBid(item));
+
+	// Carol takes the lead, one increment above Alice's maximum
+	Bid carolBid = proxies.registerMaxBid(item, carol, new BigDecimal(500));
+	assertAmount(101, carolBid);
+	assertEquals(carolBid, tracker.getWinningBid(item));
+	assertAmount(100, item.getBidFromUser(alice));
+
+	// Alice raises past Carol and leads again
+	Bid aliceBid = proxies.registerMaxBid(item, alice, new BigDecimal(600));
+	assertAmount(501, aliceBid);
+	assertEquals(aliceBid, tracker.getWinningBid(item));
+	List<Bid> top = tracker.getTopBids(item, 3);
+	assertAmount(501, top.get(0));
+	assertAmount(500, top.get(1));
+	assertAmount(50, top.get(2));
+	// A handful of bids rather than the hundreds the war would have taken one increment at a time
+	assertTrue(proxies.getPlacedBidCount() <= 8);
+    }
+
+    @Test
+    public void testDisplacedLeaderAtMaximum() {
+	proxies.registerMaxBid(item, alice, new BigDecimal(10));
+	// Carol outbids Alice's maximum directly, so Alice is left on her maximum
+	proxies.registerBid(item, carol, new BigDecimal(12));
+	Bid bobBid = proxies.registerMaxBid(item, bob, new BigDecimal(20));
+	assertAmount(13, bobBid);
+	List<Bid> bids = tracker.getTopBids(item, 10);
+	assertEquals(3, bids.size());
+	assertEquals(bob, bids.get(0).getUser());
+	assertEquals(carol, bids.get(1).getUser());
+	assertEquals(alice, bids.get(2).getUser());
+	assertAmount(10, bids.get(2));
+    }
+
+    @Test
+    public void testTieGoesToEarlierProxy() {
+	proxies.registerMaxBid(item, alice, new BigDecimal(100));
+	Bid bobBid = proxies.registerMaxBid(item, bob, new BigDecimal(100));
+	assertNotNull(bobBid);
+	Bid winning = tracker.getWinningBid(item);
+	assertEquals(alice, winning.getUser());
+	assertAmount(100, winning);
+    }
+
+    @Test
+    public void testStandingMaximumOnlyRises() {
+	proxies.registerMaxBid(item, alice, new BigDecimal(100));
+	assertNull(proxies.registerMaxBid(item, alice, new BigDecimal(80)));
+	assertNull(proxies.registerMaxBid(item, alice, new BigDecimal(100)));
+	// Raising alone does not raise the price
+	assertAmount(10, proxies.registerMaxBid(item, alice, new BigDecimal(200)));
+	assertEquals(new BigDecimal(200), proxies.getMaxBid(item, alice));
+    }
+
+    @Test
+    public void testDirectBidsAreAnswered() {
+	proxies.registerMaxBid(item, alice, new BigDecimal(100));
+	Bid bobBid = proxies.registerBid(item, bob, new BigDecimal(40));
+	assertAmount(40, bobBid);
+	assertEquals(alice, tracker.getWinningBid(item).getUser());
+	assertAmount(41, tracker.getWinningBid(item));
+	// Past Alice's maximum Bob wins, and Alice's bid stops at her maximum
+	proxies.registerBid(item, bob, new BigDecimal(150));
+	assertEquals(bob, tracker.getWinningBid(item).getUser());
+	assertAmount(100, item.getBidFromUser(alice));
+	// Items nobody set a maximum on are bid on as usual
+	Item bar = new Item("Bar");
+	tracker.registerItem(bar);
+	assertAmount(5, proxies.registerBid(bar, bob, new BigDecimal(5)));
+    }
+
+    @Test
+    public void testClosedItem() {
+	proxies.registerMaxBid(item, alice, new BigDecimal(100));
+	tracker.closeItem(item);
+	assertNull(proxies.registerMaxBid(item, bob, new BigDecimal(200)));
+	assertNull(proxies.getMaxBid(item, alice));
+    }
+
+    @Test
+    public void testFixedPointItem() {
+	Item cents = new Item("Cents", "", new BigDecimal("1.00"), PriceScale.CENTS);
+	tracker.registerItem(cents);
+	ProxyBidder standard = new ProxyBidder(tracker, IncrementTable.standard());
+	standard.registerMaxBid(cents, alice, new BigDecimal("20.00"));
+	standard.registerMaxBid(cents, bob, new BigDecimal("7.30"));
+	assertEquals(alice, tracker.getWinningBid(cents).getUser());
+	assertEquals(0, new BigDecimal("7.80").compareTo(tracker.getWinningBid(cents).getBidAmount()));
+	// The lead is capped at Alice's maximum however large the increment
+	standard.registerMaxBid(cents, bob, new BigDecimal("19.75"));
+	assertEquals(0, new BigDecimal("20.00").compareTo(tracker.getWinningBid(cents).getBidAmount()));
+	assertEquals(alice, tracker.getWinningBid(cents).getUser());
+    }
+
+    User register(String name) {
+	User user = new User(name);
+	tracker.registerUser(user);
+	return user;
+    }
+
+    static void assertAmount(int expected, Bid bid) {
+	assertNotNull(bid);
+	assertEquals(0, new BigDecimal(expected).compareTo(bid.getBidAmount()));
+    }
+}
@@ -0,0 +1,230 @@
+package com.luhar.auctioneer.impl;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidRequest;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.BookSnapshot;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+public class ShardedBidTrackerTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    ShardedBidTracker tracker;
+    Level level;
+
+    @Before
+    public void setUp() {
+	// Thousands of bids are placed below, keep the output readable
+	level = logger.getLevel();
+	logger.setLevel(Level.WARN);
+	tracker = new ShardedBidTracker(4);
+    }
+
+    @After
+    public void tearDown() {
+	tracker.shutdown();
+	logger.setLevel(level);
+    }
+
+    @Test
+    public void testSubmitBid() throws Exception {
+	User alice = new User("Alice");
+	Item foo = new Item("Foo", "Finest Foo", new BigDecimal(10));
+	assertTrue(tracker.registerUser(alice));
+	assertTrue(tracker.registerItem(foo));
+	assertFalse(tracker.registerItem(foo));
+
+	// Below the reserve, rejected
+	assertNull(tracker.submitBid(foo, alice, new BigDecimal(9)).get());
+	Bid bid = tracker.submitBid(foo, alice, new BigDecimal(11)).get();
+	assertNotNull(bid);
+	assertTrue(tracker.getWinningBid(foo).equals(bid));
+	assertTrue(tracker.getAllBidsForItem(foo).contains(bid));
+	assertTrue(tracker.getAllItemsForUser(alice).contains(foo));
+    }
+
+    @Test
+    public void testRegisterBids() {
+	List<User> users = new ArrayList<User>();
+	List<Item> items = new ArrayList<Item>();
+	for (int i = 0; i < 4; i++) {
+	    users.add(new User("User" + i));
+	    tracker.registerUser(users.get(i));
+	}
+	for (int i = 0; i < 16; i++) {
+	    items.add(new Item("Item" + i));
+	    tracker.registerItem(items.get(i));
+	}
+	// The batch spans every shard, results come back in request order
+	List<BidRequest> requests = new ArrayList<BidRequest>();
+	for (int i = 0; i < 64; i++) {
+	    requests.add(new BidRequest(items.get(i % 16), users.get(i / 16), new BigDecimal(i + 1)));
+	}
+	List<Bid> results = tracker.registerBids(requests);
+	assertEquals(64, results.size());
+	for (int i = 0; i < 64; i++) {
+	    Bid bid = results.get(i);
+	    assertTrue(bid.getItem() == items.get(i % 16));
+	    assertTrue(bid.getUser() == users.get(i / 16));
+	    assertEquals(0, bid.getBidAmount().compareTo(new BigDecimal(i + 1)));
+	}
+	for (Item item : items) {
+	    assertEquals(4, tracker.getAllBidsForItem(item).size());
+	    assertTrue(tracker.getWinningBid(item).getUser() == users.get(3));
+	}
+    }
+
+    @Test
+    public void testConcurrentBids() throws Exception {
+	final int userCount = 8;
+	final int itemCount = 16;
+	final int bidsPerUser = 500;
+	final List<User> users = new ArrayList<User>();
+	final List<Item> items = new ArrayList<Item>();
+	for (int i = 0; i < userCount; i++) {
+	    users.add(new User("User" + i));
+	    tracker.registerUser(users.get(i));
+	}
+	for (int i = 0; i < itemCount; i++) {
+	    items.add(new Item("Item" + i));
+	    tracker.registerItem(items.get(i));
+	}
+
+	// Every user raises their bid on every item from their own thread
+	final CountDownLatch start = new CountDownLatch(1);
+	List<Thread> threads = new ArrayList<Thread>();
+	for (int u = 0; u < userCount; u++) {
+	    final User user = users.get(u);
+	    final int offset = u;
+	    Thread thread = new Thread(new Runnable() {
+		public void run() {
+		    try {
+			start.await();
+		    } catch (InterruptedException ex) {
+			return;
+		    }
+		    for (int i = 1; i <= bidsPerUser; i++) {
+			tracker.submitBid(items.get(i % itemCount), user, new BigDecimal(i * userCount + offset));
+		    }
+		}
+	    });
+	    threads.add(thread);
+	    thread.start();
+	}
+	start.countDown();
+	for (Thread thread : threads) {
+	    thread.join();
+	}
+
+	// The last user's final bid on each item is the highest one placed on it. Blocking reads do not queue,
+	// so first wait for the item's shard to get through the bids submitted on it
+	for (int i = 0; i < itemCount; i++) {
+	    Item item = items.get(i);
+	    tracker.submitWinningBid(item).get();
+	    assertEquals(userCount, tracker.getAllBidsForItem(item).size());
+	    int lastRound = bidsPerUser - ((bidsPerUser - i) % itemCount + itemCount) % itemCount;
+	    Bid winner = tracker.getWinningBid(item);
+	    assertEquals(users.get(userCount - 1), winner.getUser());
+	    assertEquals(0, winner.getBidAmount().compareTo(new BigDecimal(lastRound * userCount + userCount - 1)));
+	}
+    }
+
+    @Test
+    public void testReadsWhileBidding() throws Exception {
+	final int userCount = 50;
+	final int rounds = 40;
+	final List<User> users = new ArrayList<User>();
+	for (int i = 0; i < userCount; i++) {
+	    users.add(new User("User" + i));
+	    tracker.registerUser(users.get(i));
+	}
+	// One book read optimistically, one under the read lock
+	final Item[] items = { new Item("Foo", "", BigDecimal.ZERO, PriceScale.CENTS), new Item("Bar") };
+	for (Item item : items) {
+	    tracker.registerItem(item);
+	}
+
+	// Readers check each snapshot against the last one they saw while the shards change the books
+	final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+	final CountDownLatch done = new CountDownLatch(1);
+	List<Thread> readers = new ArrayList<Thread>();
+	for (int r = 0; r < 4; r++) {
+	    final Item item = items[r % items.length];
+	    Thread reader = new Thread(new Runnable() {
+		public void run() {
+		    try {
+			long version = 0;
+			int depth = 0;
+			int bidders = 0;
+			while (done.getCount() > 0) {
+			    BookSnapshot snapshot = item.getBookSnapshot();
+			    assertTrue(snapshot.getVersion() >= version);
+			    // Users only ever join the book
+			    assertTrue(snapshot.getDepth() >= depth);
+			    assertEquals(Math.min(snapshot.getDepth(), Item.SNAPSHOT_BIDS), snapshot.getTopBids().size());
+			    version = snapshot.getVersion();
+			    depth = snapshot.getDepth();
+			    assertTrue(tracker.getAllBidsForItem(item).size() >= depth);
+			    assertTrue(tracker.getTopBids(item, 20).size() <= 20);
+			    assertNotNull(tracker.getBidsPage(item, null, 20));
+			    Bid winner = tracker.getWinningBid(item);
+			    assertTrue(depth == 0 || winner != null);
+			    if (winner != null) {
+				assertTrue(tracker.getRankOf(winner) >= -1);
+			    }
+			    // The user index as well, from this thread
+			    assertTrue(item.getBidderCount() >= bidders);
+			    bidders = item.getBidderCount();
+			    assertTrue(item.getUsers().size() >= bidders);
+			    User user = users.get(bidders > 0 ? bidders - 1 : 0);
+			    Bid bid = item.getBidFromUser(user);
+			    assertTrue(bidders == 0 || (bid != null && bid.getUser() == user && item.hasBidFrom(user)));
+			}
+		    } catch (Throwable ex) {
+			failure.compareAndSet(null, ex);
+		    }
+		}
+	    });
+	    readers.add(reader);
+	    reader.start();
+	}
+	for (int round = 1; round <= rounds; round++) {
+	    for (int u = 0; u < userCount; u++) {
+		for (Item item : items) {
+		    tracker.submitBid(item, users.get(u), new BigDecimal(round * userCount + u));
+		}
+	    }
+	}
+	for (Item item : items) {
+	    // Queued behind every bid on the item
+	    assertEquals(users.get(userCount - 1), tracker.submitWinningBid(item).get().getUser());
+	}
+	done.countDown();
+	for (Thread reader : readers) {
+	    reader.join();
+	}
+	assertNull(failure.get());
+	for (Item item : items) {
+	    assertEquals(userCount, tracker.getAllBidsForItem(item).size());
+	    assertEquals(userCount, item.getBookSnapshot().getDepth());
+	    assertEquals(0, tracker.getWinningBid(item).getBidAmount().compareTo(new BigDecimal(rounds * userCount + userCount - 1)));
+	}
+    }
+}
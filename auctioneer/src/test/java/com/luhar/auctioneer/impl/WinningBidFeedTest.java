@@ -0,0 +1,166 @@
+package com.luhar.auctioneer.impl;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.User;
+import com.luhar.auctioneer.model.WinningBidListener;
+import com.luhar.auctioneer.model.WinningBidUpdate;
+
+public class WinningBidFeedTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    Level level;
+    BidTrackerImpl tracker;
+    User alice;
+    User bob;
+    Item foo;
+
+    @Before
+    public void setUp() {
+	level = logger.getLevel();
+	logger.setLevel(Level.WARN);
+	tracker = new BidTrackerImpl();
+	alice = new User("Alice");
+	bob = new User("Bob");
+	foo = new Item("Foo");
+	tracker.registerUser(alice);
+	tracker.registerUser(bob);
+	tracker.registerItem(foo);
+    }
+
+    @After
+    public void tearDown() {
+	logger.setLevel(level);
+    }
+
+    // Keeps every update it is given
+    static class Recorder implements WinningBidListener {
+	final List<WinningBidUpdate> updates = Collections.synchronizedList(new ArrayList<WinningBidUpdate>());
+
+	public void winningBidChanged(WinningBidUpdate update) {
+	    updates.add(update);
+	}
+    }
+
+    @Test
+    public void testTopOfBookChanges() {
+	// Delivered on the bidding thread, so every update can be checked as it happens
+	WinningBidFeed feed = new WinningBidFeed(tracker, MoreExecutors.sameThreadExecutor());
+	Recorder recorder = new Recorder();
+	feed.subscribe(foo, recorder);
+
+	Bid aliceBid = tracker.registerBid(foo, alice, new BigDecimal(10));
+	assertEquals(1, recorder.updates.size());
+	assertEquals(aliceBid.getID(), recorder.updates.get(0).getBidID());
+	// Bob bids below Alice, the top does not move
+	Bid bobBid = tracker.registerBid(foo, bob, new BigDecimal(5));
+	assertEquals(1, recorder.updates.size());
+	// Alice raises her own winning bid
+	tracker.registerBid(foo, alice, new BigDecimal(12));
+	assertEquals(2, recorder.updates.size());
+	assertEquals(0, recorder.updates.get(1).getAmount().compareTo(new BigDecimal(12)));
+	// Bob overtakes her
+	tracker.registerBid(foo, bob, new BigDecimal(20));
+	assertEquals(3, recorder.updates.size());
+	assertEquals(bob.getID(), recorder.updates.get(2).getUserID());
+	assertEquals(3L, recorder.updates.get(2).getVersion());
+	// A change made behind the tracker's back and reported through bidModified counts too
+	bobBid.setBidAmount(new BigDecimal(1));
+	foo.bidModified(bobBid);
+	assertEquals(4, recorder.updates.size());
+	assertEquals(aliceBid.getID(), recorder.updates.get(3).getBidID());
+
+	// A late subscriber starts from the current top
+	Recorder late = new Recorder();
+	feed.subscribe(foo, late);
+	assertEquals(1, late.updates.size());
+	assertEquals(4L, late.updates.get(0).getVersion());
+    }
+
+    // The update handed out on subscribe may be read before a bid that is already pending. It does not
+    // replace the newer one
+    @Test
+    public void testStaleUpdateKept() {
+	final List<Runnable> runs = new ArrayList<Runnable>();
+	WinningBidFeed feed = new WinningBidFeed(tracker, new Executor() {
+	    public void execute(Runnable run) {
+		runs.add(run);
+	    }
+	});
+	tracker.registerBid(foo, alice, new BigDecimal(10));
+	WinningBidUpdate stale = foo.getWinningBidUpdate();
+	Recorder recorder = new Recorder();
+	WinningBidFeed.Subscription subscription = feed.subscribe(foo, recorder);
+	tracker.registerBid(foo, bob, new BigDecimal(11));
+	subscription.publish(stale);
+	assertEquals(1, runs.size());
+	runs.get(0).run();
+	assertEquals(1, recorder.updates.size());
+	assertEquals(bob.getID(), recorder.updates.get(0).getUserID());
+	assertEquals(2L, recorder.updates.get(0).getVersion());
+    }
+
+    @Test
+    public void testSlowSubscriber() throws Exception {
+	ExecutorService executor = Executors.newSingleThreadExecutor();
+	WinningBidFeed feed = new WinningBidFeed(tracker, executor);
+	final CountDownLatch stuck = new CountDownLatch(1);
+	final CountDownLatch release = new CountDownLatch(1);
+	final Recorder recorder = new Recorder();
+	feed.subscribe(foo, new WinningBidListener() {
+	    public void winningBidChanged(WinningBidUpdate update) {
+		stuck.countDown();
+		try {
+		    release.await();
+		} catch (InterruptedException ex) {
+		    Thread.currentThread().interrupt();
+		}
+		recorder.winningBidChanged(update);
+	    }
+	});
+	Recorder all = new Recorder();
+	feed.subscribeAll(all);
+
+	// The subscriber is stuck on the first update while the price climbs
+	tracker.registerBid(foo, bob, new BigDecimal(1));
+	assertTrue(stuck.await(10, TimeUnit.SECONDS));
+	for (int i = 2; i <= 1000; i++) {
+	    tracker.registerBid(foo, i % 2 == 0 ? alice : bob, new BigDecimal(i));
+	}
+	release.countDown();
+	executor.shutdown();
+	assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+	// Only the update it was stuck on and the latest one arrive
+	assertEquals(2, recorder.updates.size());
+	assertEquals(1000L, recorder.updates.get(1).getVersion());
+	assertEquals(0, recorder.updates.get(1).getAmount().compareTo(new BigDecimal(1000)));
+	long lastVersion = 0;
+	for (WinningBidUpdate update : all.updates) {
+	    assertTrue(update.getVersion() > lastVersion);
+	    lastVersion = update.getVersion();
+	}
+	assertEquals(1000L, lastVersion);
+    }
+}
@@ -0,0 +1,171 @@
+package com.luhar.auctioneer.journal;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+public class BidJournalTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    File directory;
+    Level level;
+
+    @Before
+    public void setUp() throws IOException {
+	level = logger.getLevel();
+	logger.setLevel(Level.WARN);
+	directory = File.createTempFile("journal", "");
+	directory.delete();
+	directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+	logger.setLevel(level);
+	deleteDirectory(directory);
+    }
+
+    static void deleteDirectory(File directory) {
+	File[] files = directory.listFiles();
+	if (files != null) {
+	    for (File file : files) {
+		if (file.isDirectory()) {
+		    deleteDirectory(file);
+		} else {
+		    file.delete();
+		}
+	    }
+	}
+	directory.delete();
+    }
+
+    @Test
+    public void testRecover() throws IOException {
+	BidJournal journal = new BidJournal(directory);
+	BidTrackerImpl tracker = new BidTrackerImpl();
+	assertEquals(0L, journal.recover(tracker));
+	User alice = new User("Alice");
+	User bob = new User("Bob");
+	Item foo = new Item("Foo", "Finest Foo", new BigDecimal(10));
+	Item qux = new Item("Qux", "Quixotic Qux", new BigDecimal("1.50"), PriceScale.CENTS);
+	tracker.registerUser(alice);
+	tracker.registerUser(bob);
+	tracker.registerItem(foo);
+	tracker.registerItem(qux);
+	Bid bid1 = tracker.registerBid(foo, alice, new BigDecimal("10.5"));
+	Bid bid2 = tracker.registerBid(foo, bob, new BigDecimal(11));
+	tracker.registerBid(foo, alice, new BigDecimal(12));
+	Bid bid3 = tracker.registerBid(qux, bob, new BigDecimal("2.25"));
+	journal.close();
+
+	// A new tracker rebuilt from the journal has the same objects, amounts and ranking
+	journal = new BidJournal(directory);
+	BidTrackerImpl recovered = new BidTrackerImpl();
+	assertEquals(8L, journal.recover(recovered));
+	assertEquals(2, recovered.getAllRegisteredUsers().size());
+	assertEquals(2, recovered.getAllRegisteredItems().size());
+	Item recoveredFoo = recovered.getItem(foo.getID());
+	assertEquals("Finest Foo", recoveredFoo.getDescription());
+	assertEquals(2, recoveredFoo.getBids().size());
+	Bid winner = recovered.getWinningBid(recoveredFoo);
+	assertEquals(bid1.getID(), winner.getID());
+	assertEquals(0, winner.getBidAmount().compareTo(new BigDecimal(12)));
+	assertEquals(bid1.getLastUpdate(), winner.getLastUpdate());
+	assertEquals(alice.getID(), winner.getUser().getID());
+	assertNotNull(recovered.getBid(bid2.getID()));
+	Item recoveredQux = recovered.getItem(qux.getID());
+	assertEquals(PriceScale.CENTS, recoveredQux.getPriceScale());
+	assertEquals(225L, recovered.getWinningBid(recoveredQux).getBidAmountUnits());
+	assertEquals(bid3.getID(), recovered.getWinningBid(recoveredQux).getID());
+
+	// The recovered tracker keeps journaling where the old one stopped
+	recovered.registerBid(recoveredQux, recovered.getUser(alice.getID()), new BigDecimal(3));
+	journal.close();
+	journal = new BidJournal(directory);
+	assertEquals(9L, journal.replay(new BidTrackerImpl()));
+	journal.close();
+    }
+
+    @Test
+    public void testSegmentRoll() throws IOException {
+	BidJournal journal = new BidJournal(directory, 4096, SyncMode.GROUP, 1);
+	BidTrackerImpl tracker = new BidTrackerImpl();
+	journal.recover(tracker);
+	Item foo = new Item("Foo");
+	tracker.registerItem(foo);
+	for (int i = 0; i < 100; i++) {
+	    User user = new User("User" + i);
+	    tracker.registerUser(user);
+	    tracker.registerBid(foo, user, new BigDecimal(i + 1));
+	}
+	journal.close();
+	assertTrue(directory.list().length > 1);
+
+	journal = new BidJournal(directory, 4096, SyncMode.GROUP, 1);
+	BidTrackerImpl recovered = new BidTrackerImpl();
+	assertEquals(201L, journal.recover(recovered));
+	Item recoveredFoo = recovered.getItem(foo.getID());
+	assertEquals(100, recoveredFoo.getBids().size());
+	assertEquals(0, recoveredFoo.getWinningBid().getBidAmount().compareTo(new BigDecimal(100)));
+	journal.close();
+    }
+
+    @Test
+    public void testTornRecord() throws IOException {
+	BidJournal journal = new BidJournal(directory, 4096, SyncMode.ASYNC, 1);
+	BidTrackerImpl tracker = new BidTrackerImpl();
+	journal.recover(tracker);
+	User alice = new User("Alice");
+	Item foo = new Item("Foo");
+	tracker.registerUser(alice);
+	tracker.registerItem(foo);
+	tracker.registerBid(foo, alice, new BigDecimal(5));
+	journal.close();
+
+	// Damage the payload of the last record, as a crash in the middle of a write would
+	File segment = new File(directory, directory.list()[0]);
+	RandomAccessFile file = new RandomAccessFile(segment, "rw");
+	int position = 0;
+	int last = 0;
+	while (true) {
+	    file.seek(position);
+	    int length = file.readInt();
+	    if (length == 0) {
+		break;
+	    }
+	    last = position;
+	    position += BidJournal.HEADER_SIZE + length;
+	}
+	file.seek(last + BidJournal.HEADER_SIZE + 1);
+	file.write(0x7f);
+	file.close();
+
+	journal = new BidJournal(directory, 4096, SyncMode.ASYNC, 1);
+	BidTrackerImpl recovered = new BidTrackerImpl();
+	assertEquals(2L, journal.recover(recovered));
+	assertTrue(recovered.getItem(foo.getID()).getBids().isEmpty());
+	// New records go where the torn one was
+	recovered.registerBid(recovered.getItem(foo.getID()), recovered.getUser(alice.getID()), new BigDecimal(6));
+	journal.close();
+	journal = new BidJournal(directory, 4096, SyncMode.ASYNC, 1);
+	assertEquals(3L, journal.replay(new BidTrackerImpl()));
+	journal.close();
+    }
+}
@@ -0,0 +1,198 @@
+package com.luhar.auctioneer.journal;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.OffHeapBidStore;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+import com.luhar.auctioneer.utils.ObjectCache;
+
+public class ItemArchiveTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    File directory;
+    Level level;
+    BidTrackerImpl tracker;
+    ItemArchive archive;
+    List<User> users;
+
+    @Before
+    public void setUp() throws IOException {
+	level = logger.getLevel();
+	logger.setLevel(Level.WARN);
+	directory = File.createTempFile("archive", "");
+	directory.delete();
+	tracker = new BidTrackerImpl();
+	archive = new ItemArchive(directory, tracker);
+	tracker.setItemCache(new ObjectCache<Item>(100, archive));
+	users = new ArrayList<User>();
+	for (int i = 0; i < 20; i++) {
+	    users.add(new User("User" + i));
+	    tracker.registerUser(users.get(i));
+	}
+    }
+
+    @After
+    public void tearDown() {
+	logger.setLevel(level);
+	BidJournalTest.deleteDirectory(directory);
+    }
+
+    // Bids from every user, with plenty of equal amounts
+    private Item auction(Item item) {
+	tracker.registerItem(item);
+	for (int i = 0; i < users.size(); i++) {
+	    tracker.registerBid(item, users.get(i), new BigDecimal(10 + i % 4));
+	}
+	return item;
+    }
+
+    private static List<String> ranking(Item item) {
+	List<String> ranking = new ArrayList<String>();
+	for (Bid bid : item.getBids()) {
+	    ranking.add(bid.getID() + " " + bid.getUser().getID() + " " + bid.getBidAmount().toPlainString() + " "
+		    + bid.getLastUpdateTime());
+	}
+	return ranking;
+    }
+
+    @Test
+    public void testArchiveItem() {
+	Item foo = auction(new Item("Foo", "Finest Foo", new BigDecimal(5)));
+	Item bar = auction(new Item("Bar", "", BigDecimal.ZERO, PriceScale.CENTS));
+	List<String> fooRanking = ranking(foo);
+	List<String> barRanking = ranking(bar);
+	tracker.setCloseTime(foo, 5000);
+	tracker.closeItem(foo);
+	Bid fooBid = foo.getBidFromUser(users.get(0));
+
+	assertTrue(tracker.archiveItem(foo));
+	assertFalse(tracker.archiveItem(foo));
+	// The item has left memory, along with its bids
+	assertFalse(tracker.getAllRegisteredItems().contains(foo));
+	assertNull(tracker.getBid(fooBid.getID()));
+	assertFalse(tracker.getAllItemsForUser(users.get(0)).contains(foo));
+	assertFalse(users.get(0).getBids().contains(fooBid));
+	assertTrue(tracker.getAllItemsForUser(users.get(0)).contains(bar));
+
+	// and comes back with its book as it was
+	Item recovered = tracker.getItem(foo.getID());
+	assertNotSame(foo, recovered);
+	assertEquals("Finest Foo", recovered.getDescription());
+	assertEquals(5000L, recovered.getCloseTime());
+	// Reading it back does not put it back on its bidders' lists
+	for (User user : users) {
+	    assertFalse(tracker.getItemsWinningForUser(user).contains(foo));
+	    assertFalse(tracker.getItemsOutbidForUser(user).contains(foo));
+	}
+	assertTrue(recovered.isClosed());
+	assertEquals(fooRanking, ranking(recovered));
+	assertSame(users.get(0), recovered.getBidFromUser(users.get(0)).getUser());
+	assertEquals(1L, tracker.getItemCacheStats().getLoadCount());
+
+	// An open item stays where its bidders can reach it
+	try {
+	    tracker.archiveItem(bar);
+	    fail("Bar is still open");
+	} catch (IllegalArgumentException ex) {
+	    // Expected
+	}
+	assertSame(bar, tracker.getItem(bar.getID()));
+	tracker.closeItem(bar);
+	assertTrue(tracker.archiveItem(bar));
+	assertEquals(barRanking, ranking(tracker.getItem(bar.getID())));
+	assertTrue(tracker.getItem(bar.getID()).isClosed());
+    }
+
+    // The bound only lets closed items go, so bids on open items always land in the book that is read
+    @Test
+    public void testEvictUnderPressure() {
+	List<Item> items = new ArrayList<Item>();
+	for (int i = 0; i < 150; i++) {
+	    items.add(auction(new Item("Item" + i)));
+	}
+	assertEquals(150L, tracker.getItemCacheStats().getSize());
+	assertEquals(0L, tracker.getItemCacheStats().getEvictionCount());
+	for (Item item : items) {
+	    assertNotNull(tracker.registerBid(item, users.get(0), new BigDecimal(100)));
+	    assertSame(item, tracker.getItem(item.getID()));
+	    assertEquals(users.get(0), tracker.getWinningBid(item).getUser());
+	}
+
+	// Closed items make room for new ones
+	for (Item item : items.subList(0, 100)) {
+	    tracker.closeItem(item);
+	}
+	Item late = auction(new Item("Late"));
+	assertEquals(100L, tracker.getItemCacheStats().getSize());
+	assertEquals(51L, tracker.getItemCacheStats().getEvictionCount());
+	for (Item item : items.subList(100, 150)) {
+	    assertSame(item, tracker.getItem(item.getID()));
+	    assertNotNull(tracker.registerBid(item, users.get(1), new BigDecimal(200)));
+	    assertEquals(users.get(1), tracker.getItem(item.getID()).getWinningBid().getUser());
+	}
+	assertSame(late, tracker.getItem(late.getID()));
+	// and the closed ones come back from the archive as they were
+	assertEquals(users.get(0), tracker.getItem(items.get(0).getID()).getWinningBid().getUser());
+    }
+
+    @Test
+    public void testArchiveStoredItem() {
+	OffHeapBidStore store = new OffHeapBidStore();
+	tracker.setBidStore(store);
+	Item bar = auction(new Item("Bar", "", BigDecimal.ZERO, PriceScale.CENTS));
+	List<String> barRanking = ranking(bar);
+	Bid barBid = bar.getBidFromUser(users.get(0));
+	assertEquals(20L, store.getBidCount());
+	tracker.closeItem(bar);
+
+	// The item's records go back to the store while it is out of memory
+	assertTrue(tracker.archiveItem(bar));
+	assertEquals(0L, store.getBidCount());
+	assertNull(tracker.getBid(barBid.getID()));
+	assertFalse(tracker.getAllItemsForUser(users.get(0)).contains(bar));
+
+	// and its bids go back into the store when it is read back
+	Item recovered = tracker.getItem(bar.getID());
+	assertSame(store, recovered.getBidStore());
+	assertEquals(barRanking, ranking(recovered));
+	assertEquals(20L, store.getBidCount());
+	assertEquals(barBid, tracker.getBid(barBid.getID()));
+    }
+
+    @Test
+    public void testDamagedArchive() throws IOException {
+	Item foo = auction(new Item("Foo"));
+	tracker.closeItem(foo);
+	assertTrue(tracker.archiveItem(foo));
+	RandomAccessFile file = new RandomAccessFile(archive.archiveFile(foo.getID()), "rw");
+	file.seek(file.length() / 2);
+	int value = file.read();
+	file.seek(file.length() / 2);
+	file.write(value ^ 0xff);
+	file.close();
+	try {
+	    tracker.getItem(foo.getID());
+	    fail();
+	} catch (JournalException ex) {
+	}
+    }
+}
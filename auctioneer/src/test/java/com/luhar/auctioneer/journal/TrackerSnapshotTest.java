@@ -0,0 +1,325 @@
+package com.luhar.auctioneer.journal;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.AuctioneerObject;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.OffHeapBidStore;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+import com.luhar.auctioneer.utils.Clock;
+import com.luhar.auctioneer.utils.VirtualClock;
+
+public class TrackerSnapshotTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    File directory;
+    Level level;
+
+    @Before
+    public void setUp() throws IOException {
+	level = logger.getLevel();
+	logger.setLevel(Level.WARN);
+	directory = File.createTempFile("snapshot", "");
+	directory.delete();
+	directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+	logger.setLevel(level);
+	BidJournalTest.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testSnapshotAndTail() throws IOException {
+	BidJournal journal = new BidJournal(directory, 4096, SyncMode.ASYNC, 1);
+	BidTrackerImpl tracker = new BidTrackerImpl();
+	journal.recover(tracker);
+	List<User> users = new ArrayList<User>();
+	for (int i = 0; i < 20; i++) {
+	    users.add(new User("User" + i));
+	    tracker.registerUser(users.get(i));
+	}
+	Item foo = new Item("Foo");
+	Item bar = new Item("Bar");
+	tracker.registerItem(foo);
+	tracker.registerItem(bar);
+	// Plenty of history: every user amends their bid on foo many times
+	for (int round = 1; round <= 20; round++) {
+	    for (User user : users) {
+		tracker.registerBid(foo, user, new BigDecimal(round * 100 + users.indexOf(user)));
+	    }
+	}
+	journal.snapshot(tracker);
+	tracker.registerBid(bar, users.get(0), new BigDecimal(7));
+	journal.snapshot(tracker);
+	// A tail after the latest snapshot
+	tracker.registerBid(foo, users.get(3), new BigDecimal(5000));
+	journal.close();
+
+	// Segments the two snapshots no longer need are gone
+	assertEquals(2, TrackerSnapshot.list(directory).length);
+	assertFalse(new File(directory, "journal-00000000.log").exists());
+
+	journal = new BidJournal(directory, 4096, SyncMode.ASYNC, 1);
+	BidTrackerImpl recovered = new BidTrackerImpl();
+	// Only the tail is replayed from the journal
+	assertEquals(1L, journal.recover(recovered));
+	assertEquals(20, recovered.getAllRegisteredUsers().size());
+	Item recoveredFoo = recovered.getItem(foo.getID());
+	assertEquals(20, recoveredFoo.getBids().size());
+	assertEquals(users.get(3).getID(), recoveredFoo.getWinningBid().getUser().getID());
+	assertEquals(0, recoveredFoo.getWinningBid().getBidAmount().compareTo(new BigDecimal(5000)));
+	assertEquals(1, recovered.getItem(bar.getID()).getBids().size());
+	for (Bid bid : tracker.getAllBids()) {
+	    Bid recoveredBid = recovered.getBid(bid.getID());
+	    assertEquals(0, bid.getBidAmount().compareTo(recoveredBid.getBidAmount()));
+	    assertEquals(bid.getLastUpdate(), recoveredBid.getLastUpdate());
+	}
+	journal.close();
+    }
+
+    @Test
+    public void testSnapshotKeepsTies() throws IOException {
+	// Every bid in the same millisecond at the same amount, so only their sequence ranks them
+	Clock previous = AuctioneerObject.getClock();
+	AuctioneerObject.setClock(new VirtualClock(1000));
+	try {
+	    BidJournal journal = new BidJournal(directory, 4096, SyncMode.ASYNC, 1);
+	    BidTrackerImpl tracker = new BidTrackerImpl();
+	    journal.recover(tracker);
+	    Item foo = new Item("Foo");
+	    tracker.registerItem(foo);
+	    for (int i = 0; i < 50; i++) {
+		User user = new User("User" + i);
+		tracker.registerUser(user);
+		tracker.registerBid(foo, user, new BigDecimal(5));
+	    }
+	    journal.snapshot(tracker);
+	    journal.close();
+
+	    journal = new BidJournal(directory, 4096, SyncMode.ASYNC, 1);
+	    BidTrackerImpl recovered = new BidTrackerImpl();
+	    journal.recover(recovered);
+	    List<UUID> expected = new ArrayList<UUID>();
+	    for (Bid bid : foo.getBids()) {
+		expected.add(bid.getID());
+	    }
+	    List<UUID> actual = new ArrayList<UUID>();
+	    for (Bid bid : recovered.getItem(foo.getID()).getBids()) {
+		actual.add(bid.getID());
+	    }
+	    assertEquals(expected, actual);
+	    journal.close();
+	} finally {
+	    AuctioneerObject.setClock(previous);
+	}
+    }
+
+    @Test
+    public void testBidStoreRecovered() throws IOException {
+	BidJournal journal = new BidJournal(directory, 4096, SyncMode.ASYNC, 1);
+	BidTrackerImpl tracker = new BidTrackerImpl();
+	tracker.setBidStore(new OffHeapBidStore());
+	journal.recover(tracker);
+	Item foo = new Item("Foo", "", BigDecimal.ZERO, PriceScale.CENTS);
+	tracker.registerItem(foo);
+	List<User> users = new ArrayList<User>();
+	for (int i = 0; i < 30; i++) {
+	    users.add(new User("User" + i));
+	    tracker.registerUser(users.get(i));
+	    tracker.registerBid(foo, users.get(i), (long) (100 + i % 7));
+	}
+	journal.snapshot(tracker);
+	// Amendments in the tail find their bids through the store
+	for (int i = 0; i < 30; i += 3) {
+	    tracker.registerBid(foo, users.get(i), (long) (200 + i));
+	}
+	journal.close();
+
+	journal = new BidJournal(directory, 4096, SyncMode.ASYNC, 1);
+	BidTrackerImpl recovered = new BidTrackerImpl();
+	recovered.setBidStore(new OffHeapBidStore());
+	journal.recover(recovered);
+	Item recoveredFoo = recovered.getItem(foo.getID());
+	assertSame(recovered.getBidStore(), recoveredFoo.getBidStore());
+	List<UUID> expected = new ArrayList<UUID>();
+	for (Bid bid : foo.getBids()) {
+	    expected.add(bid.getID());
+	}
+	List<UUID> actual = new ArrayList<UUID>();
+	for (Bid bid : recoveredFoo.getBids()) {
+	    actual.add(bid.getID());
+	}
+	assertEquals(expected, actual);
+	assertEquals(227L, recoveredFoo.getWinningBid().getBidAmountUnits());
+	assertEquals(30L, recovered.getBidStore().getBidCount());
+	journal.close();
+    }
+
+    @Test
+    public void testSnapshotWhileBidding() throws Exception {
+	final BidJournal journal = new BidJournal(directory, 64 * 1024, SyncMode.ASYNC, 1);
+	final BidTrackerImpl tracker = new BidTrackerImpl();
+	journal.recover(tracker);
+	final Item foo = new Item("Foo");
+	tracker.registerItem(foo);
+	Thread bidder = new Thread(new Runnable() {
+	    public void run() {
+		for (int i = 0; i < 2000; i++) {
+		    User user = new User("User" + i);
+		    tracker.registerUser(user);
+		    tracker.registerBid(foo, user, new BigDecimal(i + 1));
+		}
+	    }
+	});
+	bidder.start();
+	while (bidder.isAlive()) {
+	    journal.snapshot(tracker);
+	}
+	journal.close();
+
+	BidJournal reopened = new BidJournal(directory, 64 * 1024, SyncMode.ASYNC, 1);
+	BidTrackerImpl recovered = new BidTrackerImpl();
+	reopened.recover(recovered);
+	assertEquals(2000, recovered.getAllRegisteredUsers().size());
+	assertEquals(2000, recovered.getItem(foo.getID()).getBids().size());
+	assertEquals(0, recovered.getItem(foo.getID()).getWinningBid().getBidAmount().compareTo(new BigDecimal(2000)));
+	reopened.close();
+    }
+
+    // Bids keep moving while snapshots are written. Each snapshot sorts copies that hold still, and every
+    // one it writes loads back whole
+    @Test
+    public void testSnapshotWhileAmending() throws Exception {
+	final BidTrackerImpl tracker = new BidTrackerImpl();
+	final List<User> users = new ArrayList<User>();
+	for (int i = 0; i < 100; i++) {
+	    users.add(new User("User" + i));
+	    tracker.registerUser(users.get(i));
+	}
+	final List<Item> items = new ArrayList<Item>();
+	for (int i = 0; i < 5; i++) {
+	    items.add(i % 2 == 0 ? new Item("Item" + i) : new Item("Item" + i, "", BigDecimal.ZERO, PriceScale.CENTS));
+	    tracker.registerItem(items.get(i));
+	    for (User user : users) {
+		tracker.registerBid(items.get(i), user, BigDecimal.ONE);
+	    }
+	}
+	List<Bid> copies = TrackerSnapshot.bidsInUpdateOrder(items);
+	assertEquals(500, copies.size());
+	Bid copy = copies.get(0);
+	assertNotSame(tracker.getBid(copy.getID()), copy);
+	assertEquals(tracker.getBid(copy.getID()), copy);
+
+	Thread bidder = new Thread(new Runnable() {
+	    public void run() {
+		for (int round = 0; round < 200; round++) {
+		    for (int i = 0; i < users.size(); i++) {
+			for (Item item : items) {
+			    tracker.registerBid(item, users.get(i), new BigDecimal(2 + (round * 7 + i) % 50));
+			}
+		    }
+		}
+	    }
+	});
+	bidder.start();
+	int snapshots = 0;
+	while (bidder.isAlive() || snapshots == 0) {
+	    File file = TrackerSnapshot.write(tracker, directory, snapshots++);
+	    BidTrackerImpl loaded = new BidTrackerImpl();
+	    TrackerSnapshot.load(file, loaded);
+	    for (Item item : items) {
+		assertEquals(users.size(), loaded.getItem(item.getID()).getBids().size());
+	    }
+	    file.delete();
+	}
+	bidder.join();
+    }
+
+    @Test
+    public void testCloseRecovered() throws IOException {
+	BidJournal journal = new BidJournal(directory);
+	BidTrackerImpl tracker = new BidTrackerImpl();
+	journal.recover(tracker);
+	User alice = new User("Alice");
+	Item foo = new Item("Foo");
+	Item bar = new Item("Bar");
+	Item baz = new Item("Baz");
+	tracker.registerUser(alice);
+	tracker.registerItem(foo);
+	tracker.registerItem(bar);
+	tracker.registerItem(baz);
+	tracker.setCloseTime(foo, 5000);
+	tracker.registerBid(foo, alice, new BigDecimal(5));
+	tracker.closeItem(foo);
+	journal.snapshot(tracker);
+	// In the tail
+	tracker.setCloseTime(bar, 7000);
+	tracker.registerBid(baz, alice, new BigDecimal(3));
+	tracker.closeItem(baz);
+	journal.close();
+
+	journal = new BidJournal(directory);
+	BidTrackerImpl recovered = new BidTrackerImpl();
+	journal.recover(recovered);
+	Item recoveredFoo = recovered.getItem(foo.getID());
+	assertTrue(recoveredFoo.isClosed());
+	assertEquals(5000L, recoveredFoo.getCloseTime());
+	assertEquals(1, recoveredFoo.getBids().size());
+	assertFalse(recovered.getItem(bar.getID()).isClosed());
+	assertEquals(7000L, recovered.getItem(bar.getID()).getCloseTime());
+	Item recoveredBaz = recovered.getItem(baz.getID());
+	assertTrue(recoveredBaz.isClosed());
+	assertEquals(Item.NO_CLOSE_TIME, recoveredBaz.getCloseTime());
+	assertEquals(1, recoveredBaz.getBids().size());
+	assertNull(recovered.registerBid(recoveredBaz, recovered.getUser(alice.getID()), new BigDecimal(10)));
+	journal.close();
+    }
+
+    @Test
+    public void testDamagedSnapshot() throws IOException {
+	BidJournal journal = new BidJournal(directory);
+	BidTrackerImpl tracker = new BidTrackerImpl();
+	journal.recover(tracker);
+	User alice = new User("Alice");
+	Item foo = new Item("Foo");
+	tracker.registerUser(alice);
+	tracker.registerItem(foo);
+	journal.snapshot(tracker);
+	tracker.registerBid(foo, alice, new BigDecimal(5));
+	File latest = journal.snapshot(tracker);
+	journal.close();
+
+	RandomAccessFile file = new RandomAccessFile(latest, "rw");
+	file.seek(20);
+	file.write(0x7f);
+	file.close();
+
+	// Falls back to the previous snapshot and the journal after it
+	journal = new BidJournal(directory);
+	BidTrackerImpl recovered = new BidTrackerImpl();
+	assertEquals(1L, journal.recover(recovered));
+	assertEquals(1, recovered.getItem(foo.getID()).getBids().size());
+	journal.close();
+    }
+}
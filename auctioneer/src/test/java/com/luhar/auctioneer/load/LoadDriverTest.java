@@ -0,0 +1,231 @@
+package com.luhar.auctioneer.load;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.journal.BidJournal;
+import com.luhar.auctioneer.journal.SyncMode;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+public class LoadDriverTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    File directory;
+    Level level;
+
+    @Before
+    public void setUp() throws IOException {
+	level = logger.getLevel();
+	logger.setLevel(Level.ERROR);
+	directory = File.createTempFile("load", "");
+	directory.delete();
+	directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+	logger.setLevel(level);
+	File[] files = directory.listFiles();
+	if (files != null) {
+	    for (File file : files) {
+		file.delete();
+	    }
+	}
+	directory.delete();
+    }
+
+    @Test
+    public void testGeneratedWorkload() throws IOException {
+	BidTrackerImpl tracker = new BidTrackerImpl();
+	LoadReport report = new LoadDriver(tracker, 2).run("closed loop", smallWorkload());
+	assertTrue(report.getRequestCount() > 0);
+	assertTrue(report.getBidLatency().getCount() > 0);
+	assertTrue(report.getReadLatency().getCount() > 0);
+	assertTrue(report.getThroughput() > 0);
+	assertEquals(100, tracker.getAllRegisteredUsers().size());
+	assertEquals(10, tracker.getAllRegisteredItems().size());
+	// Without a schedule the latency is the service time
+	assertEquals(report.getBidLatency().getP99(), report.getBidServiceTime().getP99());
+
+	// The hottest item takes the most bids
+	int hottest = 0;
+	for (Item item : tracker.getAllRegisteredItems()) {
+	    hottest = Math.max(hottest, tracker.getAllBidsForItem(item).size());
+	}
+	assertEquals(hottest, tracker.getAllBidsForItem(itemNamed(tracker, "Item0")).size());
+
+	File csv = new File(directory, "report.csv");
+	report.appendCsv(csv);
+	new LoadDriver(new BidTrackerImpl(), 1).run("second", smallWorkload()).appendCsv(csv);
+	BufferedReader reader = new BufferedReader(new FileReader(csv));
+	try {
+	    assertEquals(LoadReport.CSV_HEADER, reader.readLine());
+	    assertTrue(reader.readLine().startsWith("closed loop,2,"));
+	    assertTrue(reader.readLine().startsWith("second,1,"));
+	    assertNull(reader.readLine());
+	} finally {
+	    reader.close();
+	}
+    }
+
+    @Test
+    public void testGeneratedItemsStayOnOneThread() {
+	// A plain tracker takes each item's bids from one thread, so every item keeps to the thread it started on
+	final ConcurrentMap<Item, Thread> bidders = new ConcurrentHashMap<Item, Thread>();
+	final AtomicInteger moved = new AtomicInteger();
+	BidTrackerImpl tracker = new BidTrackerImpl() {
+	    public Bid registerBid(Item item, User user, BigDecimal amount) {
+		Thread bidder = bidders.putIfAbsent(item, Thread.currentThread());
+		if (bidder != null && bidder != Thread.currentThread()) {
+		    moved.incrementAndGet();
+		}
+		return super.registerBid(item, user, amount);
+	    }
+	};
+	Workload workload = smallWorkload();
+	workload.setReadRatio(0);
+	new LoadDriver(tracker, 3).run("partitioned", workload);
+	assertEquals(10, bidders.size());
+	assertEquals(0, moved.get());
+	assertEquals(3, new HashSet<Thread>(bidders.values()).size());
+
+	workload.setItemCount(2);
+	try {
+	    new LoadDriver(new BidTrackerImpl(), 3).run("too few items", workload);
+	    fail();
+	} catch (IllegalArgumentException expected) {
+	}
+    }
+
+    @Test
+    public void testOpenLoopRate() {
+	Workload workload = smallWorkload();
+	workload.setRate(2000);
+	workload.setDurationMillis(500);
+	LoadReport report = new LoadDriver(new BidTrackerImpl(), 2).run("open loop", workload);
+	// Requests go out on the schedule, not faster
+	assertTrue(report.getRequestCount() <= 1002);
+	assertTrue(report.getRequestCount() > 200);
+    }
+
+    @Test
+    public void testStallCountsAgainstLaterRequests() {
+	// One bid takes 200 ms. Sent on a schedule, the requests due during the stall are late as well
+	BidTrackerImpl tracker = new BidTrackerImpl() {
+	    int bids;
+
+	    public Bid registerBid(Item item, User user, BigDecimal amount) {
+		if (++bids == 200) {
+		    try {
+			Thread.sleep(200);
+		    } catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		    }
+		}
+		return super.registerBid(item, user, amount);
+	    }
+	};
+	Workload workload = smallWorkload();
+	workload.setReadRatio(0);
+	workload.setWarmupMillis(0);
+	workload.setRate(1000);
+	workload.setDurationMillis(1000);
+	LoadReport report = new LoadDriver(tracker, 1).run("stalled", workload);
+	assertTrue(report.getBidLatency().getMax() >= 150000000L);
+	assertTrue(report.getBidLatency().getPercentile(0.9) >= 50000000L);
+	// One request was slow to serve, so the service time percentiles barely notice
+	assertTrue(report.getBidServiceTime().getPercentile(0.9) < 50000000L);
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+	BidJournal journal = new BidJournal(directory, 1024 * 1024, SyncMode.ASYNC, 10);
+	BidTrackerImpl recorded = new BidTrackerImpl();
+	journal.recover(recorded);
+	User alice = new User("Alice");
+	User bob = new User("Bob");
+	recorded.registerUser(alice);
+	recorded.registerUser(bob);
+	Item foo = new Item("Foo", "Finest Foo", new BigDecimal(10));
+	Item cents = new Item("Cents", "", new BigDecimal("1.00"), PriceScale.CENTS);
+	recorded.registerItem(foo);
+	recorded.registerItem(cents);
+	for (int i = 0; i < 10; i++) {
+	    recorded.registerBid(foo, i % 2 == 0 ? alice : bob, new BigDecimal(20 + i));
+	    recorded.registerBid(cents, i % 2 == 0 ? bob : alice, new BigDecimal("1.50").add(new BigDecimal(i)));
+	    Thread.sleep(10);
+	}
+	recorded.closeItem(cents);
+	journal.close();
+
+	BidLog log = BidLog.load(directory);
+	assertEquals(2, log.getUsers().size());
+	assertEquals(2, log.getItems().size());
+	assertEquals(21, log.size());
+	assertTrue(log.getSpanMillis() >= 80);
+
+	// As fast as possible, the replayed tracker ends up where the recorded one did
+	BidTrackerImpl replayed = new BidTrackerImpl();
+	LoadReport fast = new LoadDriver(replayed, 2).replay("fast", log, 0);
+	assertEquals(20L, fast.getBidLatency().getCount());
+	assertEquals(1L, fast.getCloseLatency().getCount());
+	assertEquals(0L, fast.getRejectedBids());
+	assertSameWinner(recorded, replayed, foo);
+	assertSameWinner(recorded, replayed, cents);
+	assertTrue(replayed.getItem(cents.getID()).isClosed());
+
+	// At the recorded speed it takes as long as the recording did
+	long started = System.nanoTime();
+	new LoadDriver(new BidTrackerImpl(), 1).replay("recorded speed", log, 1);
+	assertTrue(System.nanoTime() - started >= log.getSpanMillis() * 1000000);
+    }
+
+    Workload smallWorkload() {
+	Workload workload = new Workload();
+	workload.setUserCount(100);
+	workload.setItemCount(10);
+	workload.setZipfExponent(1.5);
+	workload.setWarmupMillis(50);
+	workload.setDurationMillis(200);
+	workload.setMaxPrice(1000);
+	return workload;
+    }
+
+    static Item itemNamed(BidTrackerImpl tracker, String name) {
+	for (Item item : tracker.getAllRegisteredItems()) {
+	    if (item.getItemName().equals(name)) {
+		return item;
+	    }
+	}
+	return null;
+    }
+
+    static void assertSameWinner(BidTrackerImpl expected, BidTrackerImpl actual, Item item) {
+	Bid winner = expected.getWinningBid(item);
+	Bid copy = actual.getWinningBid(actual.getItem(item.getID()));
+	assertEquals(winner.getUser().getID(), copy.getUser().getID());
+	assertEquals(0, winner.getBidAmount().compareTo(copy.getBidAmount()));
+	assertEquals(expected.getAllBidsForItem(item).size(), actual.getAllBidsForItem(actual.getItem(item.getID())).size());
+    }
+}
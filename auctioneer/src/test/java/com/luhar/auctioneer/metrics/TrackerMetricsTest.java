@@ -0,0 +1,188 @@
+package com.luhar.auctioneer.metrics;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.BidRequest;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+public class TrackerMetricsTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    Level level;
+    BidTrackerImpl tracker;
+    TrackerMetrics metrics;
+
+    @Before
+    public void setUp() {
+	level = logger.getLevel();
+	logger.setLevel(Level.ERROR);
+	tracker = new BidTrackerImpl();
+	metrics = new TrackerMetrics(tracker);
+	tracker.setMetrics(metrics);
+    }
+
+    @After
+    public void tearDown() {
+	logger.setLevel(level);
+    }
+
+    @Test
+    public void testHistogram() {
+	LatencyHistogram histogram = new LatencyHistogram();
+	assertEquals(0L, histogram.snapshot().getP99());
+	for (int i = 1; i <= 1000; i++) {
+	    histogram.record(i * 1000);
+	}
+	LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+	assertEquals(1000L, snapshot.getCount());
+	assertEquals(1000000L, snapshot.getMax());
+	assertEquals(500500.0, snapshot.getMean(), 0.001);
+	// Within a bucket of the true value, never below it
+	assertTrue(snapshot.getP50() >= 500000 && snapshot.getP50() < 500000 * 1.04);
+	assertTrue(snapshot.getP99() >= 990000 && snapshot.getP99() < 990000 * 1.04);
+	assertTrue(snapshot.getP999() >= 999000 && snapshot.getP999() <= 1000000);
+	assertEquals(1000000L, snapshot.getPercentile(1.0));
+	for (long value = 0; value < 100000; value += 7) {
+	    int bucket = LatencyHistogram.bucketOf(value);
+	    assertTrue(value <= LatencyHistogram.upperBound(bucket));
+	    assertTrue(bucket == 0 || value > LatencyHistogram.upperBound(bucket - 1));
+	}
+	histogram.record(Long.MAX_VALUE);
+	assertEquals(LatencyHistogram.MAX_VALUE, histogram.snapshot().getMax());
+	histogram.reset();
+	assertEquals(0L, histogram.snapshot().getCount());
+    }
+
+    @Test
+    public void testBidOutcomes() {
+	User alice = new User("Alice");
+	User bob = new User("Bob");
+	Item foo = new Item("Foo", "", new BigDecimal(10));
+	Item cents = new Item("Cents", "", BigDecimal.ZERO, PriceScale.CENTS);
+	Item closed = new Item("Closed");
+	tracker.registerUser(alice);
+	tracker.registerUser(bob);
+	tracker.registerItem(foo);
+	tracker.registerItem(cents);
+	tracker.registerItem(closed);
+	tracker.closeItem(closed);
+
+	tracker.registerBid(foo, alice, new BigDecimal(10));
+	tracker.registerBid(foo, alice, new BigDecimal(12));
+	tracker.registerBid(foo, bob, new BigDecimal(11));
+	tracker.registerBid(cents, alice, new BigDecimal("1.25"));
+	tracker.registerBid(new Item("Unknown"), alice, new BigDecimal(10));
+	tracker.registerBid(closed, alice, new BigDecimal(10));
+	tracker.registerBid(foo, new User("Unknown"), new BigDecimal(10));
+	tracker.registerBid(foo, bob, new BigDecimal(-1));
+	tracker.registerBid(cents, bob, new BigDecimal("1.255"));
+	tracker.registerBid(foo, bob, new BigDecimal(5));
+	tracker.registerBids(Arrays.asList(new BidRequest(foo, bob, new BigDecimal(15)), new BidRequest(foo, bob,
+		new BigDecimal(9)), new BidRequest(closed, bob, new BigDecimal(9))));
+
+	MetricsSnapshot snapshot = metrics.snapshot();
+	assertEquals(3L, snapshot.getBidsPlaced());
+	assertEquals(2L, snapshot.getBidsAmended());
+	assertEquals(1L, snapshot.getRejectCount(RejectReason.INVALID_ITEM));
+	assertEquals(2L, snapshot.getRejectCount(RejectReason.CLOSED_ITEM));
+	assertEquals(1L, snapshot.getRejectCount(RejectReason.INVALID_USER));
+	assertEquals(2L, snapshot.getRejectCount(RejectReason.INVALID_AMOUNT));
+	assertEquals(2L, snapshot.getRejectCount(RejectReason.BELOW_RESERVE));
+	assertEquals(8L, snapshot.getBidsRejected());
+	assertEquals(10L, snapshot.getCallCount(Operation.REGISTER_BID));
+	assertEquals(1L, snapshot.getCallCount(Operation.REGISTER_BIDS));
+	assertEquals(2L, snapshot.getCallCount(Operation.REGISTER_USER));
+	assertEquals(1L, snapshot.getCallCount(Operation.CLOSE_ITEM));
+	assertTrue(snapshot.getLatency(Operation.REGISTER_BID).getCount() <= 10);
+
+	// Enough calls that some are timed
+	for (int i = 0; i < 1000; i++) {
+	    tracker.getWinningBid(foo);
+	}
+	LatencyHistogram.Snapshot latency = metrics.snapshot().getLatency(Operation.GET_WINNING_BID);
+	assertTrue(latency.getCount() > 0 && latency.getCount() < 1000);
+	assertTrue(latency.getMax() > 0);
+
+	metrics.reset();
+	assertEquals(0L, metrics.snapshot().getBidsPlaced());
+	assertEquals(0L, metrics.snapshot().getCallCount(Operation.REGISTER_BID));
+	assertEquals(0L, metrics.snapshot().getLatency(Operation.GET_WINNING_BID).getCount());
+	tracker.setMetrics(null);
+	tracker.registerBid(foo, bob, new BigDecimal(20));
+	assertEquals(0L, metrics.snapshot().getBidsAmended());
+    }
+
+    @Test
+    public void testHotItems() {
+	User[] users = new User[10];
+	for (int i = 0; i < users.length; i++) {
+	    users[i] = new User("User" + i);
+	    tracker.registerUser(users[i]);
+	}
+	Item[] items = new Item[20];
+	for (int i = 0; i < items.length; i++) {
+	    items[i] = new Item("Item" + i);
+	    tracker.registerItem(items[i]);
+	    // Item i sees i bids, from at most 10 users
+	    for (int b = 0; b < i; b++) {
+		tracker.registerBid(items[i], users[b % users.length], new BigDecimal(b + 1));
+	    }
+	}
+	MetricsSnapshot snapshot = metrics.snapshot(3);
+	assertEquals(20, snapshot.getItemCount());
+	assertEquals(10, snapshot.getMaxDepth());
+	List<MetricsSnapshot.ItemActivity> hot = snapshot.getHotItems();
+	assertEquals(3, hot.size());
+	assertEquals(items[19].getID(), hot.get(0).getItemID());
+	assertEquals(19L, hot.get(0).getActivity());
+	assertEquals(10, hot.get(0).getDepth());
+	assertEquals(items[18].getID(), hot.get(1).getItemID());
+	assertEquals(items[17].getID(), hot.get(2).getItemID());
+	assertTrue(metrics.snapshot(0).getHotItems().isEmpty());
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+	User alice = new User("Alice");
+	Item foo = new Item("Foo", "", new BigDecimal(10));
+	tracker.registerUser(alice);
+	tracker.registerItem(foo);
+	tracker.registerBid(foo, alice, new BigDecimal(10));
+	tracker.registerBid(foo, alice, new BigDecimal(1));
+
+	metrics.registerMBean("test");
+	try {
+	    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	    ObjectName name = new ObjectName("com.luhar.auctioneer:type=BidTracker,name=\"test\"");
+	    assertEquals(1L, server.getAttribute(name, "BidsPlaced"));
+	    assertEquals(1L, server.getAttribute(name, "BidsRejected"));
+	    assertEquals(1, ((String[]) server.getAttribute(name, "HotItems")).length);
+	    assertNotNull(server.getAttribute(name, "P99Nanos"));
+	    assertEquals(Long.valueOf(1), metrics.getRejectCounts().get("BELOW_RESERVE"));
+	    assertEquals(Long.valueOf(2), metrics.getOperationCounts().get("REGISTER_BID"));
+	    server.invoke(name, "reset", null, null);
+	    assertEquals(0L, metrics.getBidsPlaced());
+	} finally {
+	    metrics.unregisterMBean();
+	}
+    }
+}
@@ -0,0 +1,82 @@
+package com.luhar.auctioneer.model;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+public class LongOrderBookTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    @Test
+    public void testRandomBidsStayRanked() {
+	Level level = logger.getLevel();
+	logger.setLevel(Level.WARN);
+	try {
+	    Random random = new Random(42);
+	    Item item = new Item("Foo", "Finest Foo", BigDecimal.ZERO, PriceScale.CENTS);
+	    List<User> users = new ArrayList<User>();
+	    for (int i = 0; i < 50; i++) {
+		users.add(new User("User" + i));
+	    }
+	    // When each bid last reached its current amount
+	    Map<Bid, Integer> arrivals = new IdentityHashMap<Bid, Integer>();
+	    for (int step = 0; step < 2000; step++) {
+		User user = users.get(random.nextInt(users.size()));
+		long amount = 1 + random.nextInt(20);
+		Bid bid = item.getBidFromUser(user);
+		if (bid == null) {
+		    bid = user.makeBid(item, amount);
+		    item.addBid(bid);
+		} else {
+		    item.updateBid(bid, amount);
+		}
+		arrivals.put(bid, step);
+		assertRanked(item, arrivals);
+	    }
+	    assertEquals(users.size(), item.getBids().size());
+	} finally {
+	    logger.setLevel(level);
+	}
+    }
+
+    @Test
+    public void testBidModified() {
+	Item item = new Item("Foo", "Finest Foo", BigDecimal.ZERO, PriceScale.CENTS);
+	User alice = new User("Alice");
+	User bob = new User("Bob");
+	Bid bid1 = alice.makeBid(item, 100L);
+	Bid bid2 = bob.makeBid(item, 200L);
+	item.addBid(bid1);
+	item.addBid(bid2);
+	assertTrue(item.getWinningBid() == bid2);
+	// Change the amount behind the book's back, then tell it
+	bid1.setBidAmountUnits(300L);
+	item.bidModified(bid1);
+	assertTrue(item.getWinningBid() == bid1);
+	assertEquals(2, item.getBids().size());
+    }
+
+    private void assertRanked(Item item, Map<Bid, Integer> arrivals) {
+	Bid previous = null;
+	for (Bid bid : item.getBids()) {
+	    if (previous != null) {
+		assertTrue(previous.getBidAmountUnits() >= bid.getBidAmountUnits());
+		if (previous.getBidAmountUnits() == bid.getBidAmountUnits()) {
+		    assertTrue(arrivals.get(previous) < arrivals.get(bid));
+		}
+	    }
+	    previous = bid;
+	}
+	assertTrue(item.getWinningBid() == item.getBids().iterator().next());
+    }
+}
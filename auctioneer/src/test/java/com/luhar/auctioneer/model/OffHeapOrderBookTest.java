@@ -0,0 +1,178 @@
+package com.luhar.auctioneer.model;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OffHeapOrderBookTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    Level level;
+
+    @Before
+    public void setUp() {
+	level = logger.getLevel();
+	logger.setLevel(Level.WARN);
+    }
+
+    @After
+    public void tearDown() {
+	logger.setLevel(level);
+    }
+
+    @Test
+    public void testSameRankingAsHeap() throws IOException {
+	// Small chunks, so books move between blocks and chunks as they grow
+	OffHeapBidStore store = new OffHeapBidStore(null, 14);
+	Random random = new Random(42);
+	List<User> users = new ArrayList<User>();
+	for (int i = 0; i < 300; i++) {
+	    users.add(new User("User" + i));
+	}
+	Item[] heapItems = new Item[3];
+	Item[] storedItems = new Item[3];
+	for (int i = 0; i < heapItems.length; i++) {
+	    heapItems[i] = new Item("Heap" + i, "", BigDecimal.ZERO, PriceScale.CENTS);
+	    storedItems[i] = new Item("Stored" + i, "", BigDecimal.ZERO, PriceScale.CENTS);
+	    storedItems[i].storeBidsIn(store);
+	}
+	for (int step = 0; step < 5000; step++) {
+	    int i = random.nextInt(heapItems.length);
+	    User user = users.get(random.nextInt(users.size()));
+	    long amount = 1 + random.nextInt(50);
+	    bid(heapItems[i], user, amount);
+	    bid(storedItems[i], user, amount);
+	}
+	long bidCount = 0;
+	for (int i = 0; i < heapItems.length; i++) {
+	    assertSameRanking(heapItems[i], storedItems[i]);
+	    bidCount += storedItems[i].getBidderCount();
+	}
+	assertEquals(bidCount, store.getBidCount());
+
+	// Pages walk the whole book, whatever changes in between
+	Item item = storedItems[0];
+	List<Bid> walked = new ArrayList<Bid>();
+	BidPage page = item.getBidsPage(null, 7);
+	walked.addAll(page.getBids());
+	while (page.getNext() != null) {
+	    page = item.getBidsPage(page.getNext(), 7);
+	    walked.addAll(page.getBids());
+	}
+	assertEquals(new ArrayList<Bid>(item.getBids()), walked);
+	assertEquals(item.getTopBids(10), walked.subList(0, 10));
+    }
+
+    @Test
+    public void testViews() throws IOException {
+	OffHeapBidStore store = new OffHeapBidStore(null, 14);
+	Item item = new Item("Foo", "", BigDecimal.ZERO, PriceScale.CENTS);
+	Item other = new Item("Bar", "", BigDecimal.ZERO, PriceScale.CENTS);
+	item.storeBidsIn(store);
+	other.storeBidsIn(store);
+	User alice = new User("Alice");
+	User bob = new User("Bob");
+	Bid aliceBid = new Bid(item, alice, 100L);
+	item.addBid(aliceBid);
+	item.addBid(new Bid(item, bob, 200L));
+	other.addBid(new Bid(other, alice, 50L));
+
+	// A view is equal to the bid it was made from, not the same object
+	Bid view = item.getBidFromUser(alice);
+	assertEquals(aliceBid, view);
+	assertNotSame(aliceBid, view);
+	assertEquals(100L, view.getBidAmountUnits());
+	assertEquals(aliceBid.getSequence(), view.getSequence());
+	assertEquals(aliceBid, store.getBid(aliceBid.getID()));
+	assertTrue(item.hasBidFrom(bob));
+	assertFalse(other.hasBidFrom(bob));
+	assertEquals(2, store.getItems(alice).size());
+	assertSame(item, store.getItems(alice).get(0));
+
+	// Changes through a view reach the record
+	item.updateBid(view, 300L);
+	assertEquals(alice, item.getWinningBid().getUser());
+	assertEquals(300L, item.getBidFromUser(alice).getBidAmountUnits());
+	assertEquals(1, item.getRankOf(aliceBid));
+	Bid bobBid = item.getBidFromUser(bob);
+	bobBid.setBidAmountUnits(400L);
+	item.bidModified(bobBid);
+	assertEquals(bob, item.getWinningBid().getUser());
+	// Adding it again is a duplicate
+	item.addBid(bobBid);
+	assertEquals(2, item.getBids().size());
+
+	// Released records are given back and reused
+	item.releaseBids();
+	assertEquals(0, item.getBids().size());
+	assertNull(store.getBid(aliceBid.getID()));
+	assertEquals(1, store.getItems(alice).size());
+	assertEquals(1L, store.getBidCount());
+	long reserved = store.getReservedBytes();
+	Item again = new Item("Again", "", BigDecimal.ZERO, PriceScale.CENTS);
+	again.storeBidsIn(store);
+	again.addBid(new Bid(again, alice, 10L));
+	again.addBid(new Bid(again, bob, 20L));
+	assertEquals(reserved, store.getReservedBytes());
+    }
+
+    @Test
+    public void testMappedFile() throws IOException {
+	File file = File.createTempFile("bids", ".store");
+	OffHeapBidStore store = new OffHeapBidStore(file, 12);
+	try {
+	    Item item = new Item("Foo", "", BigDecimal.ZERO, PriceScale.CENTS);
+	    item.storeBidsIn(store);
+	    for (int i = 0; i < 100; i++) {
+		item.addBid(new Bid(item, new User("User" + i), 1000L - i));
+	    }
+	    assertEquals(100, item.getBidderCount());
+	    assertEquals(1000L, item.getWinningBid().getBidAmountUnits());
+	    assertEquals(901L, item.getTopBids(100).get(99).getBidAmountUnits());
+	    assertTrue(file.length() >= 100 * OffHeapBidStore.MIN_BLOCK);
+	} finally {
+	    store.close();
+	    file.delete();
+	}
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBigDecimalItem() {
+	new Item("Foo").storeBidsIn(new OffHeapBidStore());
+    }
+
+    private void bid(Item item, User user, long amount) {
+	Bid bid = item.getBidFromUser(user);
+	if (bid == null) {
+	    item.addBid(new Bid(item, user, amount));
+	} else {
+	    item.updateBid(bid, amount);
+	}
+    }
+
+    private void assertSameRanking(Item heapItem, Item storedItem) {
+	List<Bid> heapBids = new ArrayList<Bid>(heapItem.getBids());
+	List<Bid> storedBids = new ArrayList<Bid>(storedItem.getBids());
+	assertEquals(heapBids.size(), storedBids.size());
+	for (int i = 0; i < heapBids.size(); i++) {
+	    Bid heapBid = heapBids.get(i);
+	    Bid storedBid = storedBids.get(i);
+	    assertSame(heapBid.getUser(), storedBid.getUser());
+	    assertEquals(heapBid.getBidAmountUnits(), storedBid.getBidAmountUnits());
+	    assertEquals(i + 1, storedItem.getRankOf(storedBid));
+	}
+	assertEquals(storedBids.get(0), storedItem.getWinningBid());
+    }
+}
@@ -0,0 +1,135 @@
+package com.luhar.auctioneer.model;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OrderBookQueryTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    Level level;
+    Random random = new Random(7);
+
+    @Before
+    public void setUp() {
+	level = logger.getLevel();
+	logger.setLevel(Level.WARN);
+    }
+
+    @After
+    public void tearDown() {
+	logger.setLevel(level);
+    }
+
+    @Test
+    public void testTreeBook() {
+	checkQueries(new Item("Foo"));
+    }
+
+    @Test
+    public void testLongBook() {
+	checkQueries(new Item("Foo", "Finest Foo", BigDecimal.ZERO, PriceScale.CENTS));
+    }
+
+    @Test
+    public void testTreeBookCursorUnderChange() {
+	checkCursorUnderChange(new Item("Foo"));
+    }
+
+    @Test
+    public void testLongBookCursorUnderChange() {
+	checkCursorUnderChange(new Item("Foo", "Finest Foo", BigDecimal.ZERO, PriceScale.CENTS));
+    }
+
+    // Bid on the item from count new users, with few distinct amounts so there are plenty of ties
+    private List<Bid> fill(Item item, int count) {
+	List<Bid> bids = new ArrayList<Bid>();
+	for (int i = 0; i < count; i++) {
+	    User user = new User("User" + i);
+	    Bid bid = user.makeBid(item, new BigDecimal(1 + random.nextInt(30)));
+	    item.addBid(bid);
+	    bids.add(bid);
+	}
+	return bids;
+    }
+
+    private void checkQueries(Item item) {
+	fill(item, 500);
+	List<Bid> ranked = new ArrayList<Bid>(item.getBids());
+	assertEquals(500, ranked.size());
+	assertEquals(ranked.subList(0, 10), item.getTopBids(10));
+	assertEquals(ranked, item.getTopBids(1000));
+	assertTrue(item.getTopBids(0).isEmpty());
+	for (int i = 0; i < ranked.size(); i++) {
+	    assertEquals(i + 1, item.getRankOf(ranked.get(i)));
+	}
+	assertEquals(-1, item.getRankOf(new Bid(item, new User("Nobody"), BigDecimal.ONE)));
+
+	// Walking the pages gives back the whole book in order
+	List<Bid> paged = new ArrayList<Bid>();
+	BidCursor cursor = null;
+	int pages = 0;
+	do {
+	    BidPage page = item.getBidsPage(cursor, 37);
+	    paged.addAll(page.getBids());
+	    cursor = page.getNext();
+	    pages++;
+	} while (cursor != null);
+	assertEquals(ranked, paged);
+	assertEquals(14, pages);
+	try {
+	    item.getTopBids(5).clear();
+	    fail();
+	} catch (UnsupportedOperationException ex) {
+	}
+    }
+
+    private void checkCursorUnderChange(Item item) {
+	List<Bid> bids = fill(item, 200);
+	BidPage first = item.getBidsPage(null, 50);
+	Map<Bid, Boolean> seen = new IdentityHashMap<Bid, Boolean>();
+	for (Bid bid : first.getBids()) {
+	    seen.put(bid, true);
+	}
+	// Reshuffle a few bids and add new ones before reading on
+	Map<Bid, Boolean> moved = new IdentityHashMap<Bid, Boolean>();
+	Collections.shuffle(bids, random);
+	for (Bid bid : bids.subList(0, 20)) {
+	    item.updateBid(bid, new BigDecimal(1 + random.nextInt(30)));
+	    moved.put(bid, true);
+	}
+	for (Bid bid : fill(item, 20)) {
+	    moved.put(bid, true);
+	}
+	BidCursor cursor = first.getNext();
+	Bid last = first.getBids().get(49);
+	while (cursor != null) {
+	    BidPage page = item.getBidsPage(cursor, 50);
+	    for (Bid bid : page.getBids()) {
+		// Bids that stayed put are never seen twice, and carry on in ranking order
+		assertTrue(moved.containsKey(bid) || !seen.containsKey(bid));
+		seen.put(bid, true);
+		assertTrue(bid.compareTo(last) >= 0 || moved.containsKey(last) || moved.containsKey(bid));
+		last = bid;
+	    }
+	    cursor = page.getNext();
+	}
+	// and none of them are skipped
+	for (Bid bid : item.getBids()) {
+	    assertTrue(moved.containsKey(bid) || seen.containsKey(bid));
+	}
+    }
+}
@@ -0,0 +1,226 @@
+package com.luhar.auctioneer.replication;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+public class ReplicationTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    List<ReplicationPrimary> primaries = new ArrayList<ReplicationPrimary>();
+    List<ReplicationBackup> backups = new ArrayList<ReplicationBackup>();
+    Level level;
+
+    @Before
+    public void setUp() {
+	level = logger.getLevel();
+	logger.setLevel(Level.WARN);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+	for (ReplicationBackup backup : backups) {
+	    backup.close();
+	}
+	for (ReplicationPrimary primary : primaries) {
+	    primary.close();
+	}
+	logger.setLevel(level);
+    }
+
+    @Test
+    public void testAsyncReplication() throws Exception {
+	BidTrackerImpl tracker = new BidTrackerImpl();
+	ReplicationPrimary primary = startPrimary(tracker, CommitMode.ASYNC);
+	// Some state before the backups join, sent to them as a copy
+	User[] users = registerUsers(tracker, 5);
+	Item[] items = registerItems(tracker, 20);
+	placeBids(tracker, items, users, 0);
+
+	ReplicationBackup first = startBackup(primary);
+	ReplicationBackup second = startBackup(primary);
+	// And more after, streamed
+	placeBids(tracker, items, users, 100);
+	User late = new User("Late");
+	tracker.registerUser(late);
+	Item fixed = new Item("Fixed", "", new BigDecimal(1), PriceScale.CENTS);
+	tracker.registerItem(fixed);
+	tracker.registerBid(fixed, late, new BigDecimal("2.50"));
+	tracker.setCloseTime(items[1], System.currentTimeMillis() + 60000);
+	tracker.closeItem(items[0]);
+
+	awaitCaughtUp(primary, first, second);
+	assertEquals(2, primary.getBackupCount());
+	assertEquals(0L, primary.getReplicationLag());
+	assertSameState(tracker, first.getTracker());
+	assertSameState(tracker, second.getTracker());
+	Item copy = first.getTracker().getItem(items[0].getID());
+	assertTrue(copy.isClosed());
+	assertEquals(items[1].getCloseTime(), first.getTracker().getItem(items[1].getID()).getCloseTime());
+    }
+
+    @Test
+    public void testSyncCommit() throws Exception {
+	BidTrackerImpl tracker = new BidTrackerImpl();
+	ReplicationPrimary primary = startPrimary(tracker, CommitMode.SYNC);
+	ReplicationBackup backup = startBackup(primary);
+	awaitCaughtUp(primary, backup);
+
+	// Each change is on the backup by the time the call returns
+	User alice = new User("Alice");
+	tracker.registerUser(alice);
+	assertNotNull(backup.getTracker().getUser(alice.getID()));
+	Item foo = new Item("Foo", "Finest Foo", new BigDecimal(10));
+	tracker.registerItem(foo);
+	for (int i = 11; i < 100; i++) {
+	    Bid bid = tracker.registerBid(foo, alice, new BigDecimal(i));
+	    Bid copy = backup.getTracker().getBid(bid.getID());
+	    assertNotNull(copy);
+	    assertEquals(0, new BigDecimal(i).compareTo(copy.getBidAmount()));
+	}
+	assertEquals(primary.getSequence(), backup.getAppliedSequence());
+
+	// A backup that stops acknowledging is dropped after the sync timeout rather than holding bids up
+	backup.close();
+	long started = System.currentTimeMillis();
+	tracker.registerBid(foo, alice, new BigDecimal(200));
+	assertTrue(System.currentTimeMillis() - started < 5000);
+	assertEquals(0, primary.getBackupCount());
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+	BidTrackerImpl tracker = new BidTrackerImpl();
+	ReplicationPrimary primary = startPrimary(tracker, CommitMode.ASYNC);
+	ReplicationBackup first = startBackup(primary);
+	ReplicationBackup second = startBackup(primary);
+	User[] users = registerUsers(tracker, 5);
+	Item[] items = registerItems(tracker, 10);
+	placeBids(tracker, items, users, 0);
+	awaitCaughtUp(primary, first, second);
+
+	primary.close();
+	long deadline = System.currentTimeMillis() + 10000;
+	while ((first.isConnected() || second.isConnected()) && System.currentTimeMillis() < deadline) {
+	    Thread.sleep(10);
+	}
+	assertFalse(first.isConnected());
+	assertTrue(first.isCaughtUp());
+
+	// The most caught-up backup takes over, and the other follows it
+	ReplicationBackup chosen = ReplicationBackup.mostCaughtUp(Arrays.asList(first, second));
+	ReplicationBackup other = chosen == first ? second : first;
+	BidTrackerImpl promoted = chosen.promote();
+	assertSameState(tracker, promoted);
+	ReplicationPrimary next = startPrimary(promoted, CommitMode.ASYNC);
+	other.close();
+	ReplicationBackup follower = startBackup(next, other.getTracker());
+
+	User late = new User("Late");
+	promoted.registerUser(late);
+	for (Item item : items) {
+	    Item promotedItem = promoted.getItem(item.getID());
+	    assertNotNull(promoted.registerBid(promotedItem, late, new BigDecimal(1000)));
+	}
+	awaitCaughtUp(next, follower);
+	assertSameState(promoted, follower.getTracker());
+	for (Item item : items) {
+	    assertEquals(late, follower.getTracker().getWinningBid(follower.getTracker().getItem(item.getID())).getUser());
+	}
+    }
+
+    ReplicationPrimary startPrimary(BidTrackerImpl tracker, CommitMode mode) throws Exception {
+	ReplicationPrimary primary = new ReplicationPrimary(tracker, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), mode,
+		ReplicationPrimary.DEFAULT_LOG_SIZE, 500);
+	primary.start();
+	primaries.add(primary);
+	return primary;
+    }
+
+    ReplicationBackup startBackup(ReplicationPrimary primary) {
+	return startBackup(primary, new BidTrackerImpl());
+    }
+
+    ReplicationBackup startBackup(ReplicationPrimary primary, BidTrackerImpl tracker) {
+	ReplicationBackup backup = new ReplicationBackup(tracker, primary.getAddress());
+	backup.start();
+	backups.add(backup);
+	return backup;
+    }
+
+    void awaitCaughtUp(ReplicationPrimary primary, ReplicationBackup... waiting) throws InterruptedException {
+	long deadline = System.currentTimeMillis() + 10000;
+	for (ReplicationBackup backup : waiting) {
+	    while (backup.getAppliedSequence() < primary.getSequence() && System.currentTimeMillis() < deadline) {
+		Thread.sleep(5);
+	    }
+	    assertEquals(primary.getSequence(), backup.getAppliedSequence());
+	}
+	while (primary.getBackupCount() < waiting.length && System.currentTimeMillis() < deadline) {
+	    Thread.sleep(5);
+	}
+    }
+
+    User[] registerUsers(BidTrackerImpl tracker, int count) {
+	User[] users = new User[count];
+	for (int i = 0; i < count; i++) {
+	    users[i] = new User("User" + i);
+	    assertTrue(tracker.registerUser(users[i]));
+	}
+	return users;
+    }
+
+    Item[] registerItems(BidTrackerImpl tracker, int count) {
+	Item[] items = new Item[count];
+	for (int i = 0; i < count; i++) {
+	    items[i] = i % 2 == 0 ? new Item("Item" + i) : new Item("Item" + i, "", BigDecimal.ZERO, PriceScale.CENTS);
+	    assertTrue(tracker.registerItem(items[i]));
+	}
+	return items;
+    }
+
+    void placeBids(BidTrackerImpl tracker, Item[] items, User[] users, int base) {
+	for (int i = 0; i < items.length; i++) {
+	    for (int u = 0; u < users.length; u++) {
+		assertNotNull(tracker.registerBid(items[i], users[u], new BigDecimal(base + 10 + (u + i) % users.length)));
+	    }
+	}
+    }
+
+    // Same users, items and bids, with the same amounts and winners
+    void assertSameState(BidTrackerImpl expected, BidTrackerImpl actual) {
+	assertEquals(expected.getAllRegisteredUsers().size(), actual.getAllRegisteredUsers().size());
+	assertEquals(expected.getAllRegisteredItems().size(), actual.getAllRegisteredItems().size());
+	for (Item item : expected.getAllRegisteredItems()) {
+	    Item copy = actual.getItem(item.getID());
+	    assertNotNull(copy);
+	    assertEquals(item.isClosed(), copy.isClosed());
+	    assertEquals(expected.getAllBidsForItem(item).size(), actual.getAllBidsForItem(copy).size());
+	    for (Bid bid : expected.getAllBidsForItem(item)) {
+		Bid bidCopy = actual.getBid(bid.getID());
+		assertNotNull(bidCopy);
+		assertEquals(0, bid.getBidAmount().compareTo(bidCopy.getBidAmount()));
+	    }
+	    assertEquals(expected.getWinningBid(item), actual.getWinningBid(copy));
+	}
+    }
+}
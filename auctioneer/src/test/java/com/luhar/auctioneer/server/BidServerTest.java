@@ -0,0 +1,241 @@
+package com.luhar.auctioneer.server;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.luhar.auctioneer.impl.BidTrackerImpl;
+import com.luhar.auctioneer.model.Bid;
+import com.luhar.auctioneer.model.BidTracker;
+import com.luhar.auctioneer.model.Item;
+import com.luhar.auctioneer.model.PriceScale;
+import com.luhar.auctioneer.model.User;
+
+public class BidServerTest {
+
+    static final Logger logger = Logger.getLogger(BidTracker.class);
+
+    BidServer server;
+    List<BidClient> clients = new ArrayList<BidClient>();
+    Level level;
+
+    @Before
+    public void setUp() throws Exception {
+	level = logger.getLevel();
+	logger.setLevel(Level.WARN);
+	server = new BidServer(new BidTrackerImpl(), 2, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+	server.start();
+    }
+
+    @After
+    public void tearDown() {
+	for (BidClient client : clients) {
+	    client.close();
+	}
+	server.shutdown();
+	logger.setLevel(level);
+    }
+
+    @Test
+    public void testRoundTrips() throws Exception {
+	BidClient client = connect();
+	User alice = new User("Alice");
+	User bob = new User("Bob");
+	assertTrue(client.registerUser(alice));
+	assertTrue(client.registerUser(bob));
+	assertFalse(client.registerUser(alice));
+	Item foo = new Item("Foo", "Finest Foo", new BigDecimal(10));
+	assertTrue(client.registerItem(foo));
+	assertFalse(client.registerItem(foo));
+	assertNull(client.getWinningBid(foo));
+
+	Bid bid = client.registerBid(foo, alice, new BigDecimal("12.5"));
+	assertNotNull(bid);
+	assertEquals(0, new BigDecimal("12.5").compareTo(bid.getBidAmount()));
+	assertEquals(server.getTracker().getWinningBid(server.getTracker().getItem(foo.getID())).getID(), bid.getID());
+	assertNotNull(client.registerBid(foo, bob, new BigDecimal(20)));
+
+	// A bid seen from another connection comes back with the server's record of the bidder
+	BidClient other = connect();
+	Bid winning = other.getWinningBid(foo);
+	assertEquals(bob.getID(), winning.getUser().getID());
+	assertEquals("Bob", winning.getUser().getName());
+	assertEquals(0, new BigDecimal(20).compareTo(winning.getBidAmount()));
+	assertSame(bob, client.getWinningBid(foo).getUser());
+    }
+
+    @Test
+    public void testRejectedBids() throws Exception {
+	BidClient client = connect();
+	User alice = new User("Alice");
+	client.registerUser(alice);
+	Item foo = new Item("Foo", "Finest Foo", new BigDecimal(10));
+	client.registerItem(foo);
+
+	assertNull(client.registerBid(foo, alice, new BigDecimal(5)));
+	assertNull(client.registerBid(foo, new User("Stranger"), new BigDecimal(50)));
+	assertNull(client.registerBid(new Item("Unknown"), alice, new BigDecimal(50)));
+	assertNull(client.getWinningBid(foo));
+	try {
+	    client.submitBid(foo, alice, new BigDecimal("1e200"));
+	    fail("Amount too large to send");
+	} catch (IllegalArgumentException ex) {
+	    // Expected
+	}
+	// The connection is still usable
+	assertNotNull(client.registerBid(foo, alice, new BigDecimal(11)));
+    }
+
+    // A request that cannot be written fails on its own, while the requests sent around it go through
+    @Test
+    public void testUnsendableRequest() throws Exception {
+	BidClient client = connect();
+	char[] name = new char[40000];
+	Arrays.fill(name, 'a');
+	char[] description = new char[32760];
+	Arrays.fill(description, 'b');
+	ListenableFuture<Boolean> before = client.submitUser(new User("Alice"));
+	ListenableFuture<Boolean> longName = client.submitUser(new User(new String(name)));
+	ListenableFuture<Boolean> tooLarge = client.submitItem(new Item(new String(description), new String(description), BigDecimal.ZERO));
+	ListenableFuture<Boolean> after = client.submitItem(new Item("Foo"));
+	assertTrue(before.get(10, TimeUnit.SECONDS));
+	assertTrue(after.get(10, TimeUnit.SECONDS));
+	for (ListenableFuture<Boolean> failed : Arrays.asList(longName, tooLarge)) {
+	    try {
+		failed.get(10, TimeUnit.SECONDS);
+		fail("Cannot be sent");
+	    } catch (ExecutionException ex) {
+		assertTrue(ex.getCause() instanceof IllegalArgumentException);
+	    }
+	}
+	assertEquals(1, server.getTracker().getAllRegisteredUsers().size());
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+	BidClient client = connect();
+	int userCount = 50;
+	int itemCount = 20;
+	User[] users = new User[userCount];
+	Item[] items = new Item[itemCount];
+	List<ListenableFuture<?>> registrations = new ArrayList<ListenableFuture<?>>();
+	for (int u = 0; u < userCount; u++) {
+	    users[u] = new User("User" + u);
+	    registrations.add(client.submitUser(users[u]));
+	}
+	for (int i = 0; i < itemCount; i++) {
+	    items[i] = new Item("Item" + i);
+	    registrations.add(client.submitItem(items[i]));
+	}
+	// Bids go out before any registration has been answered, and still find their users and items
+	List<ListenableFuture<Bid>> bids = new ArrayList<ListenableFuture<Bid>>();
+	for (int round = 1; round <= 10; round++) {
+	    for (int i = 0; i < itemCount; i++) {
+		for (int u = 0; u < userCount; u++) {
+		    bids.add(client.submitBid(items[i], users[u], new BigDecimal(round * 100 + u)));
+		}
+	    }
+	}
+	List<ListenableFuture<Bid>> winners = new ArrayList<ListenableFuture<Bid>>();
+	for (Item item : items) {
+	    winners.add(client.submitWinningBid(item));
+	}
+	for (ListenableFuture<?> registration : registrations) {
+	    assertEquals(Boolean.TRUE, registration.get());
+	}
+	for (ListenableFuture<Bid> bid : bids) {
+	    assertNotNull(bid.get());
+	}
+	// Each read is answered after the bids sent before it
+	for (int i = 0; i < itemCount; i++) {
+	    Bid winning = winners.get(i).get();
+	    assertSame(users[userCount - 1], winning.getUser());
+	    assertEquals(0, new BigDecimal(1000 + userCount - 1).compareTo(winning.getBidAmount()));
+	}
+	assertEquals(userCount, server.getTracker().getAllBidsForItem(server.getTracker().getItem(items[0].getID())).size());
+    }
+
+    @Test
+    public void testFixedPointItems() throws Exception {
+	BidClient client = connect();
+	User alice = new User("Alice");
+	client.registerUser(alice);
+	Item cents = new Item("Cents", "", new BigDecimal("1.00"), PriceScale.CENTS);
+	assertTrue(client.registerItem(cents));
+	assertEquals(PriceScale.CENTS, server.getTracker().getItem(cents.getID()).getPriceScale());
+	Bid bid = client.registerBid(cents, alice, new BigDecimal("2.25"));
+	assertEquals(0, new BigDecimal("2.25").compareTo(bid.getBidAmount()));
+	assertEquals(0, new BigDecimal("2.25").compareTo(client.getWinningBid(cents).getBidAmount()));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+	BidClient client = connect();
+	client.close();
+	try {
+	    client.registerUser(new User("Late"));
+	    fail("Client is closed");
+	} catch (BidServerException ex) {
+	    // Expected
+	}
+    }
+
+    @Test
+    public void testShortRequest() throws Exception {
+	Socket socket = new Socket(server.getAddress().getAddress(), server.getAddress().getPort());
+	try {
+	    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+	    // A bid with its item but no user or amount, then a request for a winning bid sent straight after
+	    out.writeInt(5 + 16);
+	    out.writeInt(1);
+	    out.writeByte(WireProtocol.REGISTER_BID);
+	    writeUUID(out, UUID.randomUUID());
+	    out.writeInt(5 + 16);
+	    out.writeInt(2);
+	    out.writeByte(WireProtocol.GET_WINNING_BID);
+	    writeUUID(out, UUID.randomUUID());
+	    out.flush();
+
+	    DataInputStream in = new DataInputStream(socket.getInputStream());
+	    int length = in.readInt();
+	    assertEquals(1, in.readInt());
+	    assertEquals(WireProtocol.ERROR, in.readByte());
+	    in.skipBytes(length - 5);
+	    // The second request still has its own arguments
+	    in.readInt();
+	    assertEquals(2, in.readInt());
+	    assertEquals(WireProtocol.OK, in.readByte());
+	} finally {
+	    socket.close();
+	}
+    }
+
+    static void writeUUID(DataOutputStream out, UUID id) throws Exception {
+	out.writeLong(id.getMostSignificantBits());
+	out.writeLong(id.getLeastSignificantBits());
+    }
+
+    BidClient connect() throws Exception {
+	BidClient client = new BidClient(server.getAddress());
+	clients.add(client);
+	return client;
+    }
+}
@@ -0,0 +1,204 @@
+package com.luhar.auctioneer.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import com.google.common.base.Predicate;
+import com.luhar.auctioneer.model.User;
+
+public class ObjectCacheTest {
+
+    // Keeps stored users in a map, counting what goes through it
+    static class MapStore implements ObjectStore<User> {
+	final Map<UUID, User> stored = new ConcurrentHashMap<UUID, User>();
+	int writes;
+
+	public void write(User user) {
+	    writes++;
+	    stored.put(user.getID(), user);
+	}
+
+	public User read(UUID id) {
+	    return stored.get(id);
+	}
+
+	public void delete(UUID id) {
+	    stored.remove(id);
+	}
+    }
+
+    private static List<User> users(int count) {
+	List<User> users = new ArrayList<User>();
+	for (int i = 0; i < count; i++) {
+	    users.add(new User("User" + i));
+	}
+	return users;
+    }
+
+    @Test
+    public void testUnbounded() {
+	ObjectCache<User> cache = new ObjectCache<User>();
+	for (User user : users(1000)) {
+	    cache.addItem(user);
+	}
+	assertEquals(1000, cache.getAllItems().size());
+	assertNull(cache.getItem(UUID.randomUUID()));
+	ObjectCache.Stats stats = cache.getStats();
+	assertEquals(0L, stats.getEvictionCount());
+	assertEquals(1L, stats.getMissCount());
+	assertEquals(1000L, stats.getSize());
+    }
+
+    @Test
+    public void testAddIfAbsent() {
+	MapStore store = new MapStore();
+	ObjectCache<User> cache = new ObjectCache<User>(10, store);
+	User user = users(1).get(0);
+	assertTrue(cache.addIfAbsent(user));
+	assertFalse(cache.addIfAbsent(new User(user.getID(), "Copy")));
+	// Moved to the store, where it still counts
+	assertTrue(cache.evictItem(user.getID()));
+	assertFalse(cache.addIfAbsent(new User(user.getID(), "Copy")));
+	assertEquals("User0", cache.getItem(user.getID()).getName());
+    }
+
+    @Test
+    public void testBoundedKeepsRecentlyUsed() {
+	ObjectCache<User> cache = new ObjectCache<User>(10);
+	List<User> users = users(20);
+	User favourite = users.get(0);
+	for (User user : users) {
+	    cache.addItem(user);
+	    // Looked up after every insert, so never picked by the sweep
+	    assertSame(favourite, cache.getItem(favourite.getID()));
+	}
+	assertEquals(10, cache.getAllItems().size());
+	assertEquals(10L, cache.getStats().getEvictionCount());
+	assertTrue(cache.containsItem(favourite));
+	assertTrue(cache.containsItem(users.get(19)));
+	// Without a store, evicted entries are gone
+	int missing = 0;
+	for (User user : users) {
+	    if (!cache.containsItem(user)) {
+		missing++;
+	    }
+	}
+	assertEquals(10, missing);
+    }
+
+    @Test
+    public void testEvictable() {
+	MapStore store = new MapStore();
+	ObjectCache<User> cache = new ObjectCache<User>(10, store);
+	final User kept = users(1).get(0);
+	cache.setEvictable(new Predicate<User>() {
+	    public boolean apply(User user) {
+		return user != kept;
+	    }
+	});
+	cache.addItem(kept);
+	for (User user : users(20)) {
+	    cache.addItem(user);
+	}
+	// Never looked up, yet never picked
+	assertEquals(10, cache.getAllItems().size());
+	assertTrue(cache.getAllItems().contains(kept));
+	assertFalse(cache.evictItem(kept.getID()));
+	assertFalse(store.stored.containsKey(kept.getID()));
+	assertEquals(11L, cache.getStats().getEvictionCount());
+    }
+
+    @Test
+    public void testWeightBound() {
+	ObjectCache<User> cache = new ObjectCache<User>(100, new ObjectCache.Weigher<User>() {
+	    public int weigh(User user) {
+		return user.getName().length();
+	    }
+	}, null);
+	// Five characters each
+	for (User user : users(100)) {
+	    if (user.getName().length() == 5) {
+		cache.addItem(user);
+	    }
+	}
+	assertEquals(10, cache.getAllItems().size());
+	assertEquals(50L, cache.getStats().getWeight());
+	for (User user : users(100)) {
+	    cache.addItem(user);
+	}
+	assertTrue(cache.getStats().getWeight() <= 100);
+    }
+
+    @Test
+    public void testStore() {
+	MapStore store = new MapStore();
+	ObjectCache<User> cache = new ObjectCache<User>(10, store);
+	List<User> users = users(50);
+	for (User user : users) {
+	    cache.addItem(user);
+	}
+	assertEquals(10, cache.getAllItems().size());
+	assertEquals(40, store.stored.size());
+	// Everything is still found, and read back into memory
+	for (User user : users) {
+	    assertEquals(user, cache.getItem(user.getID()));
+	}
+	ObjectCache.Stats stats = cache.getStats();
+	assertTrue(stats.getLoadCount() >= 40);
+	assertEquals(stats.getLoadCount(), stats.getMissCount());
+	assertTrue(stats.getHitRate() < 1.0);
+	assertEquals(10L, stats.getSize());
+
+	// Moved out on request, then dropped from both tiers
+	User user = users.get(49);
+	cache.getItem(user.getID());
+	assertTrue(cache.evictItem(user.getID()));
+	assertSame(user, store.read(user.getID()));
+	assertFalse(cache.evictItem(user.getID()));
+	assertSame(user, cache.getItem(user.getID()));
+	assertSame(user, cache.removeItem(user.getID()));
+	assertNull(store.read(user.getID()));
+	assertNull(cache.getItem(user.getID()));
+    }
+
+    @Test
+    public void testConcurrentLoads() throws Exception {
+	final MapStore store = new MapStore();
+	final ObjectCache<User> cache = new ObjectCache<User>(100, store);
+	final List<User> users = users(1000);
+	for (User user : users) {
+	    cache.addItem(user);
+	}
+	List<Thread> threads = new ArrayList<Thread>();
+	final List<Throwable> failures = new ArrayList<Throwable>();
+	for (int t = 0; t < 4; t++) {
+	    Thread thread = new Thread(new Runnable() {
+		public void run() {
+		    for (int round = 0; round < 5; round++) {
+			for (User user : users) {
+			    if (!user.equals(cache.getItem(user.getID()))) {
+				synchronized (failures) {
+				    failures.add(new AssertionError("Lost " + user.getID()));
+				}
+			    }
+			}
+		    }
+		}
+	    });
+	    threads.add(thread);
+	    thread.start();
+	}
+	for (Thread thread : threads) {
+	    thread.join();
+	}
+	assertTrue(failures.toString(), failures.isEmpty());
+	assertTrue(cache.getStats().getSize() <= 100 + 4);
+    }
+}
@@ -0,0 +1,54 @@
+package com.luhar.auctioneer.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+public class SequentialIdGeneratorTest {
+
+    @Test
+    public void testIncreasing() {
+	SequentialIdGenerator generator = new SequentialIdGenerator(513);
+	UUID previous = generator.nextID();
+	for (int i = 0; i < 1000; i++) {
+	    UUID id = generator.nextID();
+	    assertTrue(id.compareTo(previous) > 0);
+	    assertEquals(513, SequentialIdGenerator.nodeOf(id));
+	    previous = id;
+	}
+	try {
+	    new SequentialIdGenerator(1 << 16);
+	    fail();
+	} catch (IllegalArgumentException ex) {
+	}
+    }
+
+    @Test
+    public void testUniqueAcrossThreads() throws Exception {
+	final IdGenerator generator = new SequentialIdGenerator(1);
+	final Set<UUID> ids = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+	List<Thread> threads = new ArrayList<Thread>();
+	for (int t = 0; t < 8; t++) {
+	    Thread thread = new Thread(new Runnable() {
+		public void run() {
+		    for (int i = 0; i < 10000; i++) {
+			ids.add(generator.nextID());
+		    }
+		}
+	    });
+	    threads.add(thread);
+	    thread.start();
+	}
+	for (Thread thread : threads) {
+	    thread.join();
+	}
+	assertEquals(80000, ids.size());
+    }
+}